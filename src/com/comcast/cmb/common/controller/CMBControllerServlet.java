@@ -118,6 +118,7 @@ abstract public class CMBControllerServlet extends HttpServlet {
 				CMBProperties.getInstance();
 				workerPool = new ScheduledThreadPoolExecutor(CMBProperties.getInstance().getCMBWorkerPoolSize());
 				initStats();
+				CacheInvalidationBus.start();
 				initialized = true;
 			}
 
@@ -420,6 +421,8 @@ abstract public class CMBControllerServlet extends HttpServlet {
 				logLine.append(" cass_ms=" + valueAccumulator.getCounter(AccumulatorName.CassandraTime));
 				logLine.append(" cass_num_rd=" + valueAccumulator.getCounter(AccumulatorName.CassandraRead));
 				logLine.append(" cass_num_wr=" + valueAccumulator.getCounter(AccumulatorName.CassandraWrite));
+				logLine.append(" cass_num_hedged=" + valueAccumulator.getCounter(AccumulatorName.CassandraHedgedRead));
+				logLine.append(" cass_num_hedge_won=" + valueAccumulator.getCounter(AccumulatorName.CassandraHedgeWin));
 				logLine.append(((this instanceof CNSControllerServlet) ? (" cnscqs_ms=" + CMBControllerServlet.valueAccumulator.getCounter(AccumulatorName.CNSCQSTime)) : ""));
 				logLine.append(((this instanceof CQSControllerServlet) ? (" redis_ms=" + valueAccumulator.getCounter(AccumulatorName.RedisTime)) : ""));
 				logLine.append(" io_ms=" + valueAccumulator.getCounter(AccumulatorName.IOTime));
@@ -0,0 +1,245 @@
+/**
+ * Copyright 2012 Comcast Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.comcast.cmb.common.controller;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.JedisShardInfo;
+import redis.clients.jedis.ShardedJedis;
+import redis.clients.jedis.exceptions.JedisException;
+
+import com.comcast.cqs.persistence.RedisSortedSetPersistence;
+
+/**
+ * Invalidates queue, topic and user metadata cached on this and all other cqs and cns servers. Invalidations
+ * are published as "<type>:<key>" on the Redis channel CHANNEL, on the Redis shard the channel name maps to.
+ * Every api server and publish worker calling start() subscribes to it, independent of long polling. Delivery
+ * is best effort, the cache expiration remains the upper bound on staleness for servers that were not
+ * subscribed at the time.
+ *
+ * Caches register an invalidator for their type when they are loaded. A server that never loaded a cache has
+ * nothing to invalidate, so unknown types are ignored. Until start() was called invalidate() only applies to
+ * this server.
+ */
+public class CacheInvalidationBus {
+
+	private static Logger logger = Logger.getLogger(CacheInvalidationBus.class);
+
+	public static final String CHANNEL = "cmb-cache-invalidation";
+
+	public static final String QUEUE = "queue";
+	public static final String TOPIC = "topic";
+	public static final String TOPIC_ATTRIBUTES = "topic_attributes";
+	public static final String TOPIC_SUBSCRIPTIONS = "topic_subscriptions";
+	public static final String USER_ID = "user_id";
+	public static final String ACCESS_KEY = "access_key";
+
+	private static final long MAX_RESUBSCRIBE_DELAY_MS = 60000;
+
+	public interface Invalidator {
+		public void invalidate(String key);
+	}
+
+	private static final ConcurrentHashMap<String, Invalidator> invalidators = new ConcurrentHashMap<String, Invalidator>();
+
+	private static volatile boolean started = false;
+	private static volatile boolean subscribed = false;
+	private static final AtomicBoolean inactiveWarned = new AtomicBoolean(false);
+
+	public static void register(String type, Invalidator invalidator) {
+		invalidators.put(type, invalidator);
+	}
+
+	/**
+	 * Subscribe to invalidations from other servers and publish invalidations of this server from now on.
+	 * The subscription is kept by a daemon thread which reconnects if Redis goes away.
+	 */
+	public static synchronized void start() {
+
+		if (started) {
+			return;
+		}
+
+		started = true;
+
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				subscribeLoop();
+			}
+		}, "CacheInvalidationBus");
+
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * @return true if start() was called and the subscription to other servers' invalidations is up
+	 */
+	public static boolean isActive() {
+		return started && subscribed;
+	}
+
+	private static void subscribeLoop() {
+
+		long delayMS = 1000;
+
+		while (true) {
+
+			Jedis jedis = null;
+
+			try {
+
+				// dedicated connection, a subscribed connection can not be used for anything else
+				ShardedJedis pooled = RedisSortedSetPersistence.getResource();
+				JedisShardInfo shardInfo;
+
+				try {
+					shardInfo = pooled.getShardInfo(CHANNEL);
+				} finally {
+					RedisSortedSetPersistence.returnResource(pooled, false);
+				}
+
+				jedis = new Jedis(shardInfo.getHost(), shardInfo.getPort(), shardInfo.getTimeout());
+
+				jedis.subscribe(new JedisPubSub() {
+
+					public void onSubscribe(String channel, int subscribedChannels) {
+						subscribed = true;
+						logger.info("event=cache_invalidation_bus_subscribed channel=" + channel);
+					}
+
+					public void onMessage(String channel, String message) {
+						handle(message);
+					}
+
+					public void onUnsubscribe(String channel, int subscribedChannels) {
+						subscribed = false;
+					}
+
+					public void onPMessage(String pattern, String channel, String message) {
+					}
+
+					public void onPSubscribe(String pattern, int subscribedChannels) {
+					}
+
+					public void onPUnsubscribe(String pattern, int subscribedChannels) {
+					}
+				}, CHANNEL);
+
+				delayMS = 1000;
+
+			} catch (Throwable t) {
+				logger.warn("event=cache_invalidation_bus_subscribe_failed retry_ms=" + delayMS, t);
+			} finally {
+				subscribed = false;
+				if (jedis != null) {
+					try {
+						jedis.disconnect();
+					} catch (Exception ex) {
+						logger.debug("event=cache_invalidation_bus_disconnect_failed", ex);
+					}
+				}
+			}
+
+			try {
+				Thread.sleep(delayMS);
+			} catch (InterruptedException ex) {
+				return;
+			}
+
+			delayMS = Math.min(MAX_RESUBSCRIBE_DELAY_MS, delayMS * 2);
+		}
+	}
+
+	/**
+	 * Invalidate key in the cache of the given type on this api server only
+	 * @param type
+	 * @param key
+	 */
+	public static void invalidateLocally(String type, String key) {
+
+		if (key == null) {
+			return;
+		}
+
+		Invalidator invalidator = invalidators.get(type);
+
+		if (invalidator != null) {
+			invalidator.invalidate(key);
+		}
+	}
+
+	/**
+	 * Invalidate key in the cache of the given type on this and all other servers
+	 * @param type
+	 * @param key
+	 * @return true if the invalidation was published to the other servers
+	 */
+	public static boolean invalidate(String type, String key) {
+
+		if (key == null) {
+			return false;
+		}
+
+		invalidateLocally(type, key);
+
+		if (!started) {
+			if (inactiveWarned.compareAndSet(false, true)) {
+				logger.warn("event=cache_invalidation_bus_inactive action=invalidate_locally_only info=other servers keep stale entries until they expire");
+			}
+			return false;
+		}
+
+		ShardedJedis jedis = null;
+		boolean brokenJedis = false;
+
+		try {
+			jedis = RedisSortedSetPersistence.getResource();
+			jedis.getShard(CHANNEL).publish(CHANNEL, type + ":" + key);
+			logger.debug("event=invalidate_cache type=" + type + " key=" + key);
+			return true;
+		} catch (JedisException ex) {
+			brokenJedis = true;
+			logger.warn("event=cache_invalidation_publish_failed type=" + type + " key=" + key, ex);
+			return false;
+		} finally {
+			if (jedis != null) {
+				RedisSortedSetPersistence.returnResource(jedis, brokenJedis);
+			}
+		}
+	}
+
+	/**
+	 * Apply an invalidation received from another server
+	 * @param message <type>:<key>
+	 */
+	public static void handle(String message) {
+
+		int idx = message.indexOf(':');
+
+		if (idx <= 0) {
+			logger.warn("event=invalid_cache_invalidation message=" + message);
+			return;
+		}
+
+		invalidateLocally(message.substring(0, idx), message.substring(idx + 1));
+	}
+}
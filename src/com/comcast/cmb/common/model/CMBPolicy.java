@@ -17,14 +17,18 @@ package com.comcast.cmb.common.model;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import com.comcast.cmb.common.util.BoundedCache;
 import com.comcast.cmb.common.util.CMBErrorCodes;
 import com.comcast.cmb.common.util.CMBException;
 
@@ -49,6 +53,19 @@ public class CMBPolicy {
     protected String id;
     protected String version;
 
+    /**
+     * Statements compiled into service -> action -> principal -> allowed, where action and principal may be "*".
+     * Deny wins over Allow for the same entry. Built on first use and dropped whenever statements change.
+     */
+    private volatile Map<String, Map<String, Map<String, Boolean>>> index = null;
+
+    private static final CMBPolicy EMPTY_POLICY = new CMBPolicy();
+
+    private static final int POLICY_CACHE_SIZE = 10000;
+
+    // a policy string always parses to the same policy, so entries only need to go when space is needed
+    private static final BoundedCache<String, CMBPolicy> policyCache = new BoundedCache<String, CMBPolicy>("cmb_policy", POLICY_CACHE_SIZE);
+
     /**
      * construct a new policy
      */
@@ -109,6 +126,7 @@ public class CMBPolicy {
     	}
         
         this.statements.add(new CMBStatement(sid, effect, userList, normalizedActionList, resource, condition));        
+        this.index = null;
         
         return true;
     }
@@ -124,6 +142,7 @@ public class CMBPolicy {
                 CMBStatement stmt = it.next();
                 if (stmt.getSid().equals(sid)) {
                     it.remove();
+                    this.index = null;
                     return true;
                 }
             }
@@ -136,38 +155,151 @@ public class CMBPolicy {
         return this.statements;
     }
 
+    /**
+     * Parsed policy for policyString shared by all callers, for authorizing requests against stored queue and
+     * topic policies without parsing them on every request. The returned policy must not be modified, use
+     * new CMBPolicy(policyString) to get a policy to edit.
+     * @param policyString json encoded string of policy, null or empty for a policy without statements
+     * @return shared policy
+     * @throws Exception if policyString is not a valid policy
+     */
+    public static CMBPolicy getCachedPolicy(String policyString) throws Exception {
+    	
+        if (policyString == null || policyString.isEmpty()) {
+            return EMPTY_POLICY;
+        }
+        
+        CMBPolicy policy = policyCache.getIfPresent(policyString);
+        
+        if (policy != null) {
+            return policy;
+        }
+        
+        // parse outside the cache so invalid policies fail with their original error and are not cached
+        final CMBPolicy parsed = new CMBPolicy(policyString);
+        parsed.getIndex();
+        
+        return policyCache.getAndSetIfNotPresent(policyString, new Callable<CMBPolicy>() {
+            @Override
+            public CMBPolicy call() {
+                return parsed;
+            }
+        }, Integer.MAX_VALUE);
+    }
+    
+    public static Map<String, Long> getPolicyCacheStats() {
+        return policyCache.getStats();
+    }
+
     /**
      * check all statements matching user/action, return false upon the first Deny effect 
      * or no Allow effect; otherwise return true.
      * @param user
-     * @param action
+     * @param action qualified action, e.g. CQS:SendMessage
      * @return
      */
     public boolean isAllowed(User user, String action) {
     	
-        if (statements == null) {
+        int idx = action.lastIndexOf(':');
+        
+        return isAllowed(user, idx < 0 ? "" : action.substring(0, idx), action.substring(idx + 1));
+    }
+    
+    /**
+     * Same as isAllowed(user, service + ":" + actionName) without building the qualified action name. Looks up
+     * the compiled statements instead of walking them.
+     * @param user
+     * @param service e.g. CQS
+     * @param actionName e.g. SendMessage
+     * @return
+     */
+    public boolean isAllowed(User user, String service, String actionName) {
+    	
+        Map<String, Map<String, Boolean>> actions = getIndex().get(service);
+        
+        if (actions == null) {
             return false;
         }
         
-        boolean allow = false;
-        String actionPrefix = action.substring(0, action.lastIndexOf(':') + 1);
+        Boolean byAction = getEffect(actions.get(actionName), user.getUserId());
+        
+        if (byAction != null && !byAction) {
+            return false;
+        }
+        
+        Boolean byWildcard = getEffect(actions.get("*"), user.getUserId());
+        
+        if (byWildcard != null) {
+            return byWildcard;
+        }
+        
+        return byAction != null;
+    }
+    
+    private static Boolean getEffect(Map<String, Boolean> principals, String userId) {
+    	
+        if (principals == null) {
+            return null;
+        }
+        
+        Boolean byUser = principals.get(userId);
         
-        for (CMBStatement stmt : statements) {
+        if (byUser != null && !byUser) {
+            return byUser;
+        }
+        
+        Boolean byWildcard = principals.get("*");
+        
+        return byWildcard != null ? byWildcard : byUser;
+    }
+    
+    private Map<String, Map<String, Map<String, Boolean>>> getIndex() {
+    	
+        Map<String, Map<String, Map<String, Boolean>>> compiled = index;
+        
+        if (compiled != null) {
+            return compiled;
+        }
+        
+        compiled = new HashMap<String, Map<String, Map<String, Boolean>>>();
+        
+        if (statements != null) {
         	
-            if (stmt.getAction().contains(action) || stmt.getAction().contains(actionPrefix + "*")) {
+            for (CMBStatement stmt : statements) {
             	
-                if (stmt.getPrincipal().contains(user.getUserId()) || stmt.getPrincipal().contains("*")) {
+                boolean allow = stmt.getEffect() != CMBStatement.EFFECT.Deny;
+                
+                for (String action : stmt.getAction()) {
                 	
-                    if (stmt.getEffect() == CMBStatement.EFFECT.Deny) {
-                        return false;
-                    } else {
-                        allow = true;
+                    int idx = action.lastIndexOf(':');
+                    String service = idx < 0 ? "" : action.substring(0, idx);
+                    String actionName = action.substring(idx + 1);
+                    
+                    Map<String, Map<String, Boolean>> actions = compiled.get(service);
+                    
+                    if (actions == null) {
+                        actions = new HashMap<String, Map<String, Boolean>>();
+                        compiled.put(service, actions);
+                    }
+                    
+                    Map<String, Boolean> principals = actions.get(actionName);
+                    
+                    if (principals == null) {
+                        principals = new HashMap<String, Boolean>();
+                        actions.put(actionName, principals);
+                    }
+                    
+                    for (String principal : stmt.getPrincipal()) {
+                        Boolean current = principals.get(principal);
+                        principals.put(principal, (current == null || current) && allow);
                     }
                 }
             }
         }
         
-        return allow;
+        index = compiled;
+        
+        return compiled;
     }
     
     @Override
@@ -285,6 +417,8 @@ public class CMBPolicy {
             
             this.statements.add(statement);
         }
+        
+        this.index = null;
 	}
 	
     private List<String> getStringList(JSONArray jsonArr) throws JSONException {
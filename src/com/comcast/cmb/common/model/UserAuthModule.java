@@ -16,15 +16,15 @@
  */
 package com.comcast.cmb.common.model;
 
+import com.comcast.cmb.common.controller.CacheInvalidationBus;
 import com.comcast.cmb.common.persistence.IUserPersistence;
 import com.comcast.cmb.common.persistence.PersistenceFactory;
 import com.comcast.cmb.common.util.AuthUtil;
 import com.comcast.cmb.common.util.AuthenticationException;
+import com.comcast.cmb.common.util.BoundedCache;
 import com.comcast.cmb.common.util.CMBErrorCodes;
 import com.comcast.cmb.common.util.CMBException;
 import com.comcast.cmb.common.util.CMBProperties;
-import com.comcast.cmb.common.util.ExpiringCache;
-import com.comcast.cmb.common.util.ExpiringCache.CacheFullException;
 
 import org.apache.log4j.Logger;
 
@@ -45,11 +45,24 @@ import java.util.concurrent.Callable;
 public class UserAuthModule implements IAuthModule {
 
 	private IUserPersistence userPersistence;
-    private static ExpiringCache<String, User> userCacheByAccessKey = new ExpiringCache<String, User>(CMBProperties.getInstance().getUserCacheSizeLimit());
-    private static ExpiringCache<String, User> userCacheByUserId = new ExpiringCache<String, User>(CMBProperties.getInstance().getUserCacheSizeLimit());
+    private static BoundedCache<String, User> userCacheByAccessKey = new BoundedCache<String, User>("user_by_access_key", CMBProperties.getInstance().getUserCacheSizeLimit());
+    private static BoundedCache<String, User> userCacheByUserId = new BoundedCache<String, User>("user_by_user_id", CMBProperties.getInstance().getUserCacheSizeLimit());
 
     private static final Logger logger = Logger.getLogger(UserAuthModule.class);
     
+    static {
+    	CacheInvalidationBus.register(CacheInvalidationBus.USER_ID, new CacheInvalidationBus.Invalidator() {
+    		public void invalidate(String userId) {
+    			userCacheByUserId.remove(userId);
+    		}
+    	});
+    	CacheInvalidationBus.register(CacheInvalidationBus.ACCESS_KEY, new CacheInvalidationBus.Invalidator() {
+    		public void invalidate(String accessKey) {
+    			userCacheByAccessKey.remove(accessKey);
+    		}
+    	});
+    }
+    
     private static final List<String> ADMIN_ACTIONS = Arrays.asList(new String[] { "HealthCheck", "ManageService", "GetAPIStats", "GetWorkerStats", "ManageWorker" });
     
     public class UserCallableByAccessKey implements Callable<User> {
@@ -147,11 +160,7 @@ public class UserAuthModule implements IAuthModule {
         
         try {
 
-        	try {
-                user = userCacheByAccessKey.getAndSetIfNotPresent(accessKey, new UserCallableByAccessKey(accessKey), CMBProperties.getInstance().getUserCacheExpiring() * 1000);
-            } catch (CacheFullException e) {
-                user = new UserCallableByAccessKey(accessKey).call();
-            }
+        	user = userCacheByAccessKey.getAndSetIfNotPresent(accessKey, new UserCallableByAccessKey(accessKey), CMBProperties.getInstance().getUserCacheExpiring() * 1000);
             
             if (user == null) {
                 logger.error("event=authenticate access_key=" + accessKey + " error_code=invalid_accesskey");
@@ -341,11 +350,7 @@ public class UserAuthModule implements IAuthModule {
         
         try {
 
-        	try {
-                user = userCacheByAccessKey.getAndSetIfNotPresent(accessKey, new UserCallableByAccessKey(accessKey), CMBProperties.getInstance().getUserCacheExpiring() * 1000);
-            } catch (CacheFullException e) {
-                user = new UserCallableByAccessKey(accessKey).call();
-            }
+        	user = userCacheByAccessKey.getAndSetIfNotPresent(accessKey, new UserCallableByAccessKey(accessKey), CMBProperties.getInstance().getUserCacheExpiring() * 1000);
             
             if (user == null) {
                 logger.error("event=get_user_by_request access_key=" + accessKey + " error_code=invalid_accesskey");
@@ -368,11 +373,7 @@ public class UserAuthModule implements IAuthModule {
         
         try {
 
-        	try {
-                user = userCacheByUserId.getAndSetIfNotPresent(userId, new UserCallableByUserId(userId), CMBProperties.getInstance().getUserCacheExpiring() * 1000);
-            } catch (CacheFullException e) {
-                user = new UserCallableByAccessKey(userId).call();
-            }
+        	user = userCacheByUserId.getAndSetIfNotPresent(userId, new UserCallableByUserId(userId), CMBProperties.getInstance().getUserCacheExpiring() * 1000);
             
             if (user == null) {
                 logger.error("event=get_user_by_userid userId=" + userId + " error_code=invalid_userid");
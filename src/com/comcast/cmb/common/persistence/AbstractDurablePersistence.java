@@ -18,9 +18,20 @@ package com.comcast.cmb.common.persistence;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.comcast.cmb.common.controller.CMBControllerServlet;
 import com.comcast.cmb.common.util.CMBProperties;
 import com.comcast.cmb.common.util.PersistenceException;
+import com.comcast.cmb.common.util.ValueAccumulator.AccumulatorName;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 public abstract class AbstractDurablePersistence {
 	
@@ -104,9 +115,25 @@ public abstract class AbstractDurablePersistence {
 	public static final String CLUSTER_NAME = CMBProperties.getInstance().getClusterName();
 	public static final String CLUSTER_URL = CMBProperties.getInstance().getClusterUrl();
 	
-	private static long counter = 0;
+	/**
+	 * Runs the blocking operations behind the default async methods for clients without native async support
+	 */
+	protected static final ListeningExecutorService asyncExecutor = MoreExecutors.listeningDecorator(
+			Executors.newFixedThreadPool(CMBProperties.getInstance().getCassandraAsyncThreads(), new ThreadFactoryBuilder().setNameFormat("cassandra-async-%d").setDaemon(true).build()));
+	
+	private static final long COUNTER_WRAP = 1048575;
+	
+	private static final AtomicLong counter = new AtomicLong();
 
-	public static synchronized long newTime(long t, boolean isHidden) {   
+	/**
+	 * Time based column name part of the form timestamp << 21 | hidden bit | 20 bit counter. The counter is
+	 * shared by all threads and cycles through 0..1048574 exactly like it did when this method was synchronized,
+	 * but a single atomic increment replaces the monitor so concurrent senders no longer queue up here.
+	 * @param t timestamp in ms
+	 * @param isHidden
+	 * @return time column name part
+	 */
+	public static long newTime(long t, boolean isHidden) {   
         t = t << 21;
         //top 2 bits are 0. 64th and 63rd.
         //set 21st bit if hidden
@@ -114,10 +141,7 @@ public abstract class AbstractDurablePersistence {
             t |= 0x0000000000100000L;
         }
         //add 20 bit counter
-        if (counter == 1048575) {
-            counter = 0;
-        }
-        t += counter++;
+        t += (counter.getAndIncrement() & Long.MAX_VALUE) % COUNTER_WRAP;
         return t;
     }
     
@@ -207,4 +231,162 @@ public abstract class AbstractDurablePersistence {
 			K key, N columnName, CmbSerializer keySerializer,
 			CmbSerializer columnNameSerializer, CmbSerializer valueSerializer)
 			throws PersistenceException;
+
+	/**
+	 * Read named columns from several rows in a single request. The same column names are requested
+	 * from every row, so callers must match the returned columns against what they asked for each key.
+	 * Rows without any of the columns are left out.
+	 */
+	public abstract <K, N, V> List<CmbRow<K, N, V>> readColumnsByKeys(String keyspace, String columnFamily,
+			Map<K, List<N>> columnNamesByKey, CmbSerializer keySerializer,
+			CmbSerializer columnNameSerializer, CmbSerializer valueSerializer)
+			throws PersistenceException;
+
+	/*
+	 * Async variants of the most common operations. Failures are reported through the future, wait for
+	 * results with getResult() so Cassandra time is accounted to the request thread. The default
+	 * implementations run the blocking method on asyncExecutor, clients with native async support override them.
+	 */
+	
+	public <K, N, V> ListenableFuture<Void> updateAsync(final String keyspace, final String columnFamily, final K key, final N column, final V value, 
+			final CmbSerializer keySerializer, final CmbSerializer nameSerializer, final CmbSerializer valueSerializer, final Integer ttl) throws PersistenceException {
+		return asyncExecutor.submit(new Callable<Void>() {
+			public Void call() throws PersistenceException {
+				update(keyspace, columnFamily, key, column, value, keySerializer, nameSerializer, valueSerializer, ttl);
+				return null;
+			}
+		});
+	}
+
+	public <K, N, V> ListenableFuture<CmbColumnSlice<N, V>> readColumnSliceAsync(
+			final String keyspace, final String columnFamily, final K key, final N firstColumnName, final N lastColumnName,
+			final int numCols, final CmbSerializer keySerializer,
+			final CmbSerializer columnNameSerializer, final CmbSerializer valueSerializer) throws PersistenceException {
+		return asyncExecutor.submit(new Callable<CmbColumnSlice<N, V>>() {
+			public CmbColumnSlice<N, V> call() throws PersistenceException {
+				return readColumnSlice(keyspace, columnFamily, key, firstColumnName, lastColumnName, numCols, keySerializer, columnNameSerializer, valueSerializer);
+			}
+		});
+	}
+
+	public <K, N, V> ListenableFuture<CmbColumn<N, V>> readColumnAsync(final String keyspace, final String columnFamily,
+			final K key, final N columnName, final CmbSerializer keySerializer,
+			final CmbSerializer columnNameSerializer, final CmbSerializer valueSerializer) throws PersistenceException {
+		return asyncExecutor.submit(new Callable<CmbColumn<N, V>>() {
+			public CmbColumn<N, V> call() throws PersistenceException {
+				return readColumn(keyspace, columnFamily, key, columnName, keySerializer, columnNameSerializer, valueSerializer);
+			}
+		});
+	}
+
+	public <K, N, V> ListenableFuture<List<CmbRow<K, N, V>>> readColumnsByKeysAsync(final String keyspace, final String columnFamily,
+			final Map<K, List<N>> columnNamesByKey, final CmbSerializer keySerializer,
+			final CmbSerializer columnNameSerializer, final CmbSerializer valueSerializer) throws PersistenceException {
+		return asyncExecutor.submit(new Callable<List<CmbRow<K, N, V>>>() {
+			public List<CmbRow<K, N, V>> call() throws PersistenceException {
+				return readColumnsByKeys(keyspace, columnFamily, columnNamesByKey, keySerializer, columnNameSerializer, valueSerializer);
+			}
+		});
+	}
+
+	public <K, N, V> ListenableFuture<Void> insertRowAsync(final String keyspace, final K rowKey,
+			final String columnFamily, final Map<N, V> columnValues,
+			final CmbSerializer keySerializer, final CmbSerializer nameSerializer,
+			final CmbSerializer valueSerializer, final Integer ttl) throws PersistenceException {
+		return asyncExecutor.submit(new Callable<Void>() {
+			public Void call() throws PersistenceException {
+				insertRow(keyspace, rowKey, columnFamily, columnValues, keySerializer, nameSerializer, valueSerializer, ttl);
+				return null;
+			}
+		});
+	}
+
+	public <K, N> ListenableFuture<Void> deleteAsync(final String keyspace, final String columnFamily, final K key, final N column, 
+			final CmbSerializer keySerializer, final CmbSerializer columnSerializer) throws PersistenceException {
+		return asyncExecutor.submit(new Callable<Void>() {
+			public Void call() throws PersistenceException {
+				delete(keyspace, columnFamily, key, column, keySerializer, columnSerializer);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * readColumnSlice for latency critical reads. With cmb.cassandra.hedgedReads.enabled a read that is slower than
+	 * usual is sent a second time and the first response is used, see HedgedReads.
+	 */
+	public <K, N, V> CmbColumnSlice<N, V> readColumnSliceHedged(
+			final String keyspace, final String columnFamily, final K key, final N firstColumnName, final N lastColumnName,
+			final int numCols, final CmbSerializer keySerializer,
+			final CmbSerializer columnNameSerializer, final CmbSerializer valueSerializer) throws PersistenceException {
+		
+		if (!HedgedReads.getInstance().isEnabled()) {
+			return readColumnSlice(keyspace, columnFamily, key, firstColumnName, lastColumnName, numCols, keySerializer, columnNameSerializer, valueSerializer);
+		}
+		
+		return HedgedReads.getInstance().read("read_column_slice." + columnFamily, new Callable<ListenableFuture<CmbColumnSlice<N, V>>>() {
+			public ListenableFuture<CmbColumnSlice<N, V>> call() throws PersistenceException {
+				return readColumnSliceAsync(keyspace, columnFamily, key, firstColumnName, lastColumnName, numCols, keySerializer, columnNameSerializer, valueSerializer);
+			}
+		});
+	}
+
+	/**
+	 * readColumn for latency critical reads, hedged like readColumnSliceHedged()
+	 */
+	public <K, N, V> CmbColumn<N, V> readColumnHedged(final String keyspace, final String columnFamily,
+			final K key, final N columnName, final CmbSerializer keySerializer,
+			final CmbSerializer columnNameSerializer, final CmbSerializer valueSerializer) throws PersistenceException {
+		
+		if (!HedgedReads.getInstance().isEnabled()) {
+			return readColumn(keyspace, columnFamily, key, columnName, keySerializer, columnNameSerializer, valueSerializer);
+		}
+		
+		return HedgedReads.getInstance().read("read_column." + columnFamily, new Callable<ListenableFuture<CmbColumn<N, V>>>() {
+			public ListenableFuture<CmbColumn<N, V>> call() throws PersistenceException {
+				return readColumnAsync(keyspace, columnFamily, key, columnName, keySerializer, columnNameSerializer, valueSerializer);
+			}
+		});
+	}
+
+	/**
+	 * readColumnsByKeys for latency critical reads, hedged like readColumnSliceHedged()
+	 */
+	public <K, N, V> List<CmbRow<K, N, V>> readColumnsByKeysHedged(final String keyspace, final String columnFamily,
+			final Map<K, List<N>> columnNamesByKey, final CmbSerializer keySerializer,
+			final CmbSerializer columnNameSerializer, final CmbSerializer valueSerializer) throws PersistenceException {
+		
+		if (!HedgedReads.getInstance().isEnabled()) {
+			return readColumnsByKeys(keyspace, columnFamily, columnNamesByKey, keySerializer, columnNameSerializer, valueSerializer);
+		}
+		
+		return HedgedReads.getInstance().read("read_columns_by_keys." + columnFamily, new Callable<ListenableFuture<List<CmbRow<K, N, V>>>>() {
+			public ListenableFuture<List<CmbRow<K, N, V>>> call() throws PersistenceException {
+				return readColumnsByKeysAsync(keyspace, columnFamily, columnNamesByKey, keySerializer, columnNameSerializer, valueSerializer);
+			}
+		});
+	}
+
+	/**
+	 * Wait for the result of an async operation. The time spent waiting is added to the Cassandra time of the calling thread.
+	 * @param future
+	 * @return result of the operation
+	 * @throws PersistenceException if the operation failed
+	 */
+	public static <T> T getResult(Future<T> future) throws PersistenceException, InterruptedException {
+		
+		long ts1 = System.currentTimeMillis();
+		
+		try {
+			return future.get();
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof PersistenceException) {
+				throw (PersistenceException)ex.getCause();
+			}
+			throw new PersistenceException(ex.getCause() instanceof Exception ? (Exception)ex.getCause() : ex);
+		} finally {
+			long ts2 = System.currentTimeMillis();
+			CMBControllerServlet.valueAccumulator.addToCounter(AccumulatorName.CassandraTime, (ts2 - ts1));
+		}
+	}
 }
\ No newline at end of file
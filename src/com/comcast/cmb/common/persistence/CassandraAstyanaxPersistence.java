@@ -30,6 +30,10 @@ import com.comcast.cmb.common.util.CMBErrorCodes;
 import com.comcast.cmb.common.util.CMBProperties;
 import com.comcast.cmb.common.util.PersistenceException;
 import com.comcast.cmb.common.util.ValueAccumulator.AccumulatorName;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.FutureFallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.netflix.astyanax.AstyanaxContext;
 import com.netflix.astyanax.ColumnListMutation;
 import com.netflix.astyanax.Keyspace;
@@ -51,6 +55,7 @@ import com.netflix.astyanax.model.Composite;
 import com.netflix.astyanax.model.ConsistencyLevel;
 import com.netflix.astyanax.model.Row;
 import com.netflix.astyanax.model.Rows;
+import com.netflix.astyanax.query.ColumnFamilyQuery;
 import com.netflix.astyanax.query.IndexQuery;
 import com.netflix.astyanax.query.RowQuery;
 import com.netflix.astyanax.serializers.CompositeSerializer;
@@ -890,4 +895,188 @@ public class CassandraAstyanaxPersistence extends AbstractDurablePersistence {
 			CMBControllerServlet.valueAccumulator.addToCounter(AccumulatorName.CassandraRead, 1L);
 		}
 	}
+
+	@Override
+	public <K, N, V> List<CmbRow<K, N, V>> readColumnsByKeys(String keyspace,
+			String columnFamily, Map<K, List<N>> columnNamesByKey,
+			CmbSerializer keySerializer, CmbSerializer columnNameSerializer,
+			CmbSerializer valueSerializer) throws PersistenceException {
+		long ts1 = System.currentTimeMillis();	    
+		logger.debug("event=read_columns_by_keys column_family=" + columnFamily + " num_keys=" + columnNamesByKey.size());
+		try {
+			List<N> columnNames = new ArrayList<N>();
+			for (List<N> names : columnNamesByKey.values()) {
+				for (N name : names) {
+					columnNames.add((N)getComposite(name));
+				}
+			}
+			Rows<K, N> rows = 
+					((ColumnFamilyQuery<K, N>)getKeyspace(keyspace).
+					prepareQuery(getColumnFamily(columnFamily))).
+					getKeySlice(columnNamesByKey.keySet()).
+					withColumnSlice(columnNames).
+					execute().
+					getResult();
+			List<CmbRow<K, N, V>> l = new ArrayList<CmbRow<K, N, V>>();
+			for (Row<K, N> r : rows) {
+				if (!r.getColumns().isEmpty()) {
+					l.add(new CmbAstyanaxRow<K, N, V>(r));
+				}
+			}
+			return l;
+		} catch (NotFoundException ex){
+			//ignore. This might happen when C* data expired.
+			return new ArrayList<CmbRow<K, N, V>>();
+		}
+		catch (ConnectionException ex) {
+			throw new PersistenceException(ex);
+		} finally {
+			long ts2 = System.currentTimeMillis();
+			CMBControllerServlet.valueAccumulator.addToCounter(AccumulatorName.CassandraTime, (ts2 - ts1));
+			CMBControllerServlet.valueAccumulator.addToCounter(AccumulatorName.CassandraRead, 1L);
+		}
+	}
+
+	/**
+	 * Map failures of an Astyanax future to PersistenceException, optionally treating NotFoundException as a null result
+	 */
+	private static <T> ListenableFuture<T> getCmbFuture(ListenableFuture<T> future, final boolean ignoreNotFound) {
+		return Futures.withFallback(future, new FutureFallback<T>() {
+			public ListenableFuture<T> create(Throwable t) {
+				if (ignoreNotFound && t instanceof NotFoundException) {
+					return Futures.immediateFuture(null);
+				}
+				if (t instanceof ConnectionException) {
+					return Futures.immediateFailedFuture(new PersistenceException((ConnectionException)t));
+				}
+				return Futures.immediateFailedFuture(t);
+			}
+		});
+	}
+
+	private static final Function<OperationResult<Void>, Void> VOID_RESULT = new Function<OperationResult<Void>, Void>() {
+		public Void apply(OperationResult<Void> result) {
+			return null;
+		}
+	};
+
+	@Override
+	public <K, N, V> ListenableFuture<Void> updateAsync(String keyspace, String columnFamily, K key,
+			N column, V value, CmbSerializer keySerializer,
+			CmbSerializer nameSerializer, CmbSerializer valueSerializer, Integer ttl)
+			throws PersistenceException {
+		
+		logger.debug("event=update_async column_family=" + columnFamily + " key=" + key + " column=" + column + " value=" + value);
+
+		try {
+			MutationBatch m = 
+					getKeyspace(keyspace).
+					prepareMutationBatch();
+			m.withRow((ColumnFamily)getColumnFamily(columnFamily), key).
+				putColumn(getComposite(column), value, getSerializer(valueSerializer), ttl);
+			CMBControllerServlet.valueAccumulator.addToCounter(AccumulatorName.CassandraWrite, 1L);
+			return getCmbFuture(Futures.transform(m.executeAsync(), VOID_RESULT), false);
+		} catch (ConnectionException ex) {
+			throw new PersistenceException(ex);
+		}
+	}
+
+	@Override
+	public <K, N, V> ListenableFuture<CmbColumnSlice<N, V>> readColumnSliceAsync(String keyspace,
+			String columnFamily, K key, N firstColumnName, N lastColumnName,
+			int numCols, CmbSerializer keySerializer,
+			CmbSerializer columnNameSerializer, CmbSerializer valueSerializer)
+			throws PersistenceException {
+
+		logger.debug("event=read_column_slice_async cf=" + columnFamily + " key=" + key);
+
+		try {
+		    RowQuery<K, N> rq = 
+		    		getKeyspace(keyspace).
+		    		prepareQuery(getColumnFamily(columnFamily)).
+		    		getKey(key).
+		    		withColumnRange(getComposite(firstColumnName), getComposite(lastColumnName), false, numCols);
+			CMBControllerServlet.valueAccumulator.addToCounter(AccumulatorName.CassandraRead, 1L);
+			return getCmbFuture(Futures.transform(rq.executeAsync(), new Function<OperationResult<ColumnList<N>>, CmbColumnSlice<N, V>>() {
+				public CmbColumnSlice<N, V> apply(OperationResult<ColumnList<N>> result) {
+					ColumnList<N> columns = result.getResult();
+				    if (columns == null || columns.isEmpty()) {
+				    	return null;
+				    }
+					return new CmbAstyanaxColumnSlice<N, V>(columns);
+				}
+			}), true);
+		} catch (ConnectionException ex) {
+			throw new PersistenceException(ex);
+		}
+	}
+
+	@Override
+	public <K, N, V> ListenableFuture<CmbColumn<N, V>> readColumnAsync(String keyspace,
+			String columnFamily, K key, N columnName,
+			CmbSerializer keySerializer, CmbSerializer columnNameSerializer,
+			CmbSerializer valueSerializer) throws PersistenceException {
+
+		logger.debug("event=get_column_async column_family=" + columnFamily + " column_name=" + columnName);
+
+		try {
+			ListenableFuture<OperationResult<Column<N>>> future = 
+					getKeyspace(keyspace).
+					prepareQuery((ColumnFamily<K, N>)getColumnFamily(columnFamily)).
+					getKey(key).
+					getColumn((N)getComposite(columnName)).
+					executeAsync();
+			CMBControllerServlet.valueAccumulator.addToCounter(AccumulatorName.CassandraRead, 1L);
+			return getCmbFuture(Futures.transform(future, new Function<OperationResult<Column<N>>, CmbColumn<N, V>>() {
+				public CmbColumn<N, V> apply(OperationResult<Column<N>> result) {
+					return new CmbAstyanaxColumn<N, V>(result.getResult());
+				}
+			}), true);
+		} catch (ConnectionException ex) {
+			throw new PersistenceException(ex);
+		}
+	}
+
+	@Override
+	public <K, N, V> ListenableFuture<Void> insertRowAsync(String keyspace, K rowKey, 
+			String columnFamily, Map<N, V> columnValues,
+			CmbSerializer keySerializer, CmbSerializer nameSerializer,
+			CmbSerializer valueSerializer, Integer ttl) throws PersistenceException {
+		
+		logger.debug("event=insert_row_async column_family=" + columnFamily + " key=" + rowKey);
+
+		try {
+			MutationBatch m = getKeyspace(keyspace).prepareMutationBatch();
+			ColumnListMutation<N> clm = m.withRow((ColumnFamily<K, N>)getColumnFamily(columnFamily), rowKey);
+			for (N columnName : columnValues.keySet()) {
+				clm.putColumn((N)getComposite(columnName), columnValues.get(columnName), getSerializer(valueSerializer), ttl);
+				CMBControllerServlet.valueAccumulator.addToCounter(AccumulatorName.CassandraWrite, 1L);
+			}
+			return getCmbFuture(Futures.transform(m.executeAsync(), VOID_RESULT), false);
+		} catch (ConnectionException ex) {
+			throw new PersistenceException(ex);
+		}
+	}
+
+	@Override
+	public <K, N> ListenableFuture<Void> deleteAsync(String keyspace, String columnFamily, K key,
+			N column, CmbSerializer keySerializer,
+			CmbSerializer columnSerializer) throws PersistenceException {
+
+		logger.debug("event=delete_async column_family=" + columnFamily + " key=" + key + " column=" + column);
+
+		try {
+			MutationBatch m = getKeyspace(keyspace).prepareMutationBatch();
+			ColumnListMutation<N> clm = m.withRow((ColumnFamily<K, N>)getColumnFamily(columnFamily), key);
+			if (column != null) {
+				clm.deleteColumn((N)getComposite(column));
+			} else {
+				clm.delete();
+			}
+			CMBControllerServlet.valueAccumulator.addToCounter(AccumulatorName.CassandraWrite, 1L);
+			return getCmbFuture(Futures.transform(m.executeAsync(), VOID_RESULT), true);
+		} catch (ConnectionException ex) {
+			throw new PersistenceException(ex);
+		}
+	}
 }
@@ -0,0 +1,1078 @@
+/**
+ * Copyright 2012 Comcast Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.comcast.cmb.common.persistence;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import com.comcast.cmb.common.controller.CMBControllerServlet;
+import com.comcast.cmb.common.util.CMBErrorCodes;
+import com.comcast.cmb.common.util.CMBProperties;
+import com.comcast.cmb.common.util.PersistenceException;
+import com.comcast.cmb.common.util.ValueAccumulator.AccumulatorName;
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.ColumnMetadata;
+import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.HostDistance;
+import com.datastax.driver.core.KeyspaceMetadata;
+import com.datastax.driver.core.PoolingOptions;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.SocketOptions;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.TableMetadata;
+import com.datastax.driver.core.exceptions.DriverException;
+import com.datastax.driver.core.policies.DCAwareRoundRobinPolicy;
+import com.datastax.driver.core.policies.LoadBalancingPolicy;
+import com.datastax.driver.core.policies.RoundRobinPolicy;
+import com.datastax.driver.core.policies.TokenAwarePolicy;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Durable persistence over the cql native protocol using the datastax java driver. Every statement is prepared
+ * once per JVM and executed as a bound statement, so requests only carry the statement id and values. Requests are
+ * routed to a replica of their row key (token aware) and many requests are in flight on each connection at once,
+ * multi row reads and writes are issued concurrently instead of one after another.
+ *
+ * Works on the compact storage tables of schema/cassandra_1.2.cql.schema. Tables with clustering columns
+ * (key, column1[, column2], value) hold one cql row per thrift column, composite column names map to the clustering
+ * columns in order. Tables without clustering columns hold named columns, which must all be declared in the schema
+ * since the native protocol can not see columns written outside of it.
+ */
+public class CassandraCqlPersistence extends AbstractDurablePersistence {
+
+	private static Logger logger = Logger.getLogger(CassandraCqlPersistence.class);
+
+	// protocol v2 allows at most 128 concurrent requests per connection
+	private static final int MAX_REQUESTS_PER_CONNECTION = 128;
+
+	private static volatile CassandraCqlPersistence instance;
+
+	private final Cluster cluster;
+	private final Session session;
+	private final ConsistencyLevel readConsistencyLevel;
+	private final ConsistencyLevel writeConsistencyLevel;
+
+	/**
+	 * Prepared statements by cql
+	 */
+	private final ConcurrentHashMap<String, PreparedStatement> statements = new ConcurrentHashMap<String, PreparedStatement>();
+
+	/**
+	 * Table layouts by keyspace.columnFamily
+	 */
+	private final ConcurrentHashMap<String, Table> tables = new ConcurrentHashMap<String, Table>();
+
+	public static CassandraCqlPersistence getInstance() {
+		if (instance == null) {
+			synchronized (CassandraCqlPersistence.class) {
+				if (instance == null) {
+					instance = new CassandraCqlPersistence();
+				}
+			}
+		}
+		return instance;
+	}
+
+	private CassandraCqlPersistence() {
+
+		CMBProperties props = CMBProperties.getInstance();
+
+		List<String> hosts = new ArrayList<String>();
+
+		for (String host : CLUSTER_URL.split(",")) {
+			host = host.trim();
+			if (host.indexOf(":") > 0) {
+				host = host.substring(0, host.indexOf(":"));
+			}
+			if (host.length() > 0) {
+				hosts.add(host);
+			}
+		}
+
+		LoadBalancingPolicy childPolicy;
+		String dataCenter = props.getCassandraDataCenter();
+
+		if (dataCenter != null && !dataCenter.equals("")) {
+			childPolicy = new DCAwareRoundRobinPolicy(dataCenter);
+		} else {
+			childPolicy = new RoundRobinPolicy();
+		}
+
+		int connectionsPerNode = Math.max(1, props.getCQLConnectionsPerNode());
+		PoolingOptions poolingOptions = new PoolingOptions();
+		poolingOptions.setMaxConnectionsPerHost(HostDistance.LOCAL, Math.max(connectionsPerNode, poolingOptions.getCoreConnectionsPerHost(HostDistance.LOCAL)));
+		poolingOptions.setCoreConnectionsPerHost(HostDistance.LOCAL, connectionsPerNode);
+		poolingOptions.setMaxConnectionsPerHost(HostDistance.LOCAL, connectionsPerNode);
+		poolingOptions.setMaxSimultaneousRequestsPerConnectionThreshold(HostDistance.LOCAL, Math.max(1, Math.min(MAX_REQUESTS_PER_CONNECTION, props.getCQLMaxRequestsPerConnection())));
+
+		Cluster.Builder builder = Cluster.builder()
+				.addContactPoints(hosts.toArray(new String[hosts.size()]))
+				.withPort(props.getCQLNativePort())
+				.withLoadBalancingPolicy(new TokenAwarePolicy(childPolicy))
+				.withPoolingOptions(poolingOptions)
+				.withSocketOptions(new SocketOptions().setReadTimeoutMillis(props.getCassandraThriftSocketTimeOutMS()));
+
+		String username = props.getCassandraUsername();
+		String password = props.getCassandraPassword();
+
+		if (username != null && password != null) {
+			builder.withCredentials(username, password);
+		}
+
+		readConsistencyLevel = ConsistencyLevel.valueOf(props.getReadConsistencyLevel());
+		writeConsistencyLevel = ConsistencyLevel.valueOf(props.getWriteConsistencyLevel());
+
+		cluster = builder.build();
+		session = cluster.connect();
+
+		logger.info("event=cql_client_initialized hosts=" + hosts + " port=" + props.getCQLNativePort() + " connections_per_node=" + connectionsPerNode);
+	}
+
+	private static String quote(String id) {
+		return "\"" + id.replace("\"", "\"\"") + "\"";
+	}
+
+	/**
+	 * Column layout and statements of one table
+	 */
+	private static class Table {
+
+		final String name;
+		final List<DataType> clusteringTypes = new ArrayList<DataType>();
+		final Map<String, DataType> namedColumns = new HashMap<String, DataType>();
+		final List<String> sortedNamedColumns = new ArrayList<String>();
+		final DataType valueType;
+		final boolean isCounter;
+
+		final String selectColumns;
+		final String deleteRow;
+		final String selectKeys;
+		final String clusteringNames;
+		final String clusteringMarkers;
+		final String clusteringTuple;
+		final String clusteringTupleMarkers;
+		final String clusteringEquals;
+
+		Table(String keyspace, TableMetadata metadata) {
+
+			name = quote(keyspace) + "." + quote(metadata.getName());
+
+			int numPartitionKeys = metadata.getPartitionKey().size();
+			List<ColumnMetadata> primaryKey = metadata.getPrimaryKey();
+
+			for (int i = numPartitionKeys; i < primaryKey.size(); i++) {
+				clusteringTypes.add(primaryKey.get(i).getType());
+			}
+
+			DataType regularType = null;
+
+			for (ColumnMetadata c : metadata.getColumns()) {
+				if (!primaryKey.contains(c)) {
+					namedColumns.put(c.getName(), c.getType());
+					sortedNamedColumns.add(c.getName());
+					regularType = c.getType();
+				}
+			}
+
+			// thrift returns columns sorted by name
+			Collections.sort(sortedNamedColumns);
+
+			valueType = isStatic() ? DataType.text() : regularType;
+			isCounter = valueType != null && valueType.getName() == DataType.Name.COUNTER;
+
+			StringBuilder columns = new StringBuilder("key");
+
+			if (isStatic()) {
+				for (String c : sortedNamedColumns) {
+					columns.append(", ").append(quote(c)).append(", WRITETIME(").append(quote(c)).append(")");
+				}
+			} else {
+				for (int i = 1; i <= clusteringTypes.size(); i++) {
+					columns.append(", column").append(i);
+				}
+				columns.append(", value");
+				if (!isCounter) {
+					columns.append(", WRITETIME(value)");
+				}
+			}
+
+			selectColumns = "SELECT " + columns + " FROM " + name;
+			deleteRow = "DELETE FROM " + name + " WHERE key = ?";
+			selectKeys = "SELECT DISTINCT key FROM " + name + " LIMIT ?";
+
+			StringBuilder names = new StringBuilder();
+			StringBuilder markers = new StringBuilder();
+			StringBuilder equals = new StringBuilder();
+
+			for (int i = 1; i <= clusteringTypes.size(); i++) {
+				names.append(i > 1 ? ", " : "").append("column").append(i);
+				markers.append(i > 1 ? ", " : "").append("?");
+				equals.append(" AND column").append(i).append(" = ?");
+			}
+
+			clusteringNames = names.toString();
+			clusteringMarkers = markers.toString();
+			clusteringEquals = equals.toString();
+
+			// composite column ranges compare all clustering columns at once, (column1, column2) >= (?, ?)
+			if (clusteringTypes.size() > 1) {
+				clusteringTuple = "(" + clusteringNames + ")";
+				clusteringTupleMarkers = "(" + clusteringMarkers + ")";
+			} else {
+				clusteringTuple = clusteringNames;
+				clusteringTupleMarkers = clusteringMarkers;
+			}
+		}
+
+		boolean isStatic() {
+			return clusteringTypes.isEmpty();
+		}
+	}
+
+	private Table getTable(String keyspace, String columnFamily) throws PersistenceException {
+
+		String tableKey = keyspace + "." + columnFamily;
+		Table table = tables.get(tableKey);
+
+		if (table != null) {
+			return table;
+		}
+
+		try {
+			for (KeyspaceMetadata k : cluster.getMetadata().getKeyspaces()) {
+				if (k.getName().equals(keyspace)) {
+					for (TableMetadata t : k.getTables()) {
+						if (t.getName().equals(columnFamily)) {
+							table = new Table(keyspace, t);
+							tables.put(tableKey, table);
+							return table;
+						}
+					}
+				}
+			}
+		} catch (DriverException ex) {
+			throw new PersistenceException(ex);
+		}
+
+		throw new PersistenceException(CMBErrorCodes.InternalError, "Unknown table " + tableKey);
+	}
+
+	/**
+	 * Named columns of static tables must be declared, forget the layout so a column added to the schema
+	 * is picked up by the next call
+	 */
+	private DataType getNamedColumnType(String keyspace, String columnFamily, Table table, Object column) throws PersistenceException {
+		DataType type = table.namedColumns.get(column.toString());
+		if (type == null) {
+			tables.remove(keyspace + "." + columnFamily);
+			throw new PersistenceException(CMBErrorCodes.InternalError, "Column " + column + " not declared in table " + table.name);
+		}
+		return type;
+	}
+
+	private PreparedStatement prepare(String cql, boolean isWrite) throws PersistenceException {
+
+		PreparedStatement statement = statements.get(cql);
+
+		if (statement != null) {
+			return statement;
+		}
+
+		try {
+			statement = session.prepare(cql);
+			statement.setConsistencyLevel(isWrite ? writeConsistencyLevel : readConsistencyLevel);
+			PreparedStatement existing = statements.putIfAbsent(cql, statement);
+			logger.debug("event=prepared_statement cql=" + cql);
+			return existing != null ? existing : statement;
+		} catch (DriverException ex) {
+			throw new PersistenceException(ex);
+		}
+	}
+
+	private static Object toCql(DataType type, Object o) {
+		if (o == null) {
+			return null;
+		}
+		switch (type.getName()) {
+		case BIGINT:
+		case COUNTER:
+			return o instanceof Long ? o : Long.valueOf(o.toString());
+		default:
+			return o.toString();
+		}
+	}
+
+	private static Object fromCql(DataType type, Row row, int i) {
+		if (row.isNull(i)) {
+			return null;
+		}
+		switch (type.getName()) {
+		case BIGINT:
+		case COUNTER:
+			return row.getLong(i);
+		default:
+			return row.getString(i);
+		}
+	}
+
+	private static List<Object> getClusteringValues(Table table, Object columnName) {
+		List<Object> components;
+		if (columnName instanceof CmbCqlComposite) {
+			components = ((CmbCqlComposite)columnName).getComponents();
+		} else {
+			components = Collections.singletonList(columnName);
+		}
+		List<Object> values = new ArrayList<Object>(components.size());
+		for (int i = 0; i < table.clusteringTypes.size() && i < components.size(); i++) {
+			values.add(toCql(table.clusteringTypes.get(i), components.get(i)));
+		}
+		return values;
+	}
+
+	@Override
+	public CmbComposite getCmbComposite(List<?> l) {
+		return new CmbCqlComposite(l);
+	}
+
+	@Override
+	public CmbComposite getCmbComposite(Object... os) {
+		return new CmbCqlComposite(os);
+	}
+
+	public static class CmbCqlComposite extends CmbComposite {
+		private final List<Object> components;
+		public CmbCqlComposite(List<?> l) {
+			components = new ArrayList<Object>(l);
+		}
+		public CmbCqlComposite(Object... os) {
+			components = Arrays.asList(os);
+		}
+		public List<Object> getComponents() {
+			return components;
+		}
+		@Override
+		public Object get(int i) {
+			return components.get(i);
+		}
+		@Override
+		public String toString() {
+			return components.toString();
+		}
+		@Override
+		public int compareTo(CmbComposite c) {
+			List<Object> other = ((CmbCqlComposite)c).getComponents();
+			for (int i = 0; i < components.size() && i < other.size(); i++) {
+				int r = ((Comparable)components.get(i)).compareTo(other.get(i));
+				if (r != 0) {
+					return r;
+				}
+			}
+			return components.size() - other.size();
+		}
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof CmbCqlComposite)) {
+				return false;
+			}
+			return components.equals(((CmbCqlComposite)o).getComponents());
+		}
+		@Override
+		public int hashCode() {
+			return components.hashCode();
+		}
+	}
+
+	public static class CmbCqlColumn<N, V> extends CmbColumn<N, V> {
+		private final N name;
+		private final V value;
+		private final long clock;
+		public CmbCqlColumn(N name, V value, long clock) {
+			this.name = name;
+			this.value = value;
+			this.clock = clock;
+		}
+		@Override
+		public N getName() {
+			return name;
+		}
+		@Override
+		public V getValue() {
+			return value;
+		}
+		@Override
+		public long getClock() {
+			return clock;
+		}
+	}
+
+	public static class CmbCqlColumnSlice<N, V> extends CmbColumnSlice<N, V> {
+		private final List<CmbColumn<N, V>> columns;
+		private Map<N, CmbColumn<N, V>> columnsByName = null;
+		public CmbCqlColumnSlice(List<CmbColumn<N, V>> columns) {
+			this.columns = columns;
+		}
+		@Override
+		public CmbColumn<N, V> getColumnByName(N name) {
+			if (columnsByName == null) {
+				Map<N, CmbColumn<N, V>> m = new HashMap<N, CmbColumn<N, V>>();
+				for (CmbColumn<N, V> c : columns) {
+					m.put(c.getName(), c);
+				}
+				columnsByName = m;
+			}
+			return columnsByName.get(name);
+		}
+		@Override
+		public List<CmbColumn<N, V>> getColumns() {
+			return columns;
+		}
+		@Override
+		public int size() {
+			return columns.size();
+		}
+	}
+
+	public static class CmbCqlRow<K, N, V> extends CmbRow<K, N, V> {
+		private final K key;
+		private final CmbColumnSlice<N, V> slice;
+		public CmbCqlRow(K key, CmbColumnSlice<N, V> slice) {
+			this.key = key;
+			this.slice = slice;
+		}
+		@Override
+		public K getKey() {
+			return key;
+		}
+		@Override
+		public CmbColumnSlice<N, V> getColumnSlice() {
+			return slice;
+		}
+	}
+
+	/**
+	 * Columns of the cql rows of one row key, in the order returned by the select of the table
+	 */
+	private static <N, V> List<CmbColumn<N, V>> getColumns(Table table, Iterable<Row> rows, N firstColumnName, N lastColumnName, int numCols) {
+
+		List<CmbColumn<N, V>> columns = new ArrayList<CmbColumn<N, V>>();
+
+		for (Row row : rows) {
+
+			if (table.isStatic()) {
+
+				for (int i = 0; i < table.sortedNamedColumns.size() && columns.size() < numCols; i++) {
+					String name = table.sortedNamedColumns.get(i);
+					if (row.isNull(1 + 2 * i)) {
+						continue;
+					}
+					if (firstColumnName != null && name.compareTo(firstColumnName.toString()) < 0) {
+						continue;
+					}
+					if (lastColumnName != null && name.compareTo(lastColumnName.toString()) > 0) {
+						continue;
+					}
+					columns.add(new CmbCqlColumn<N, V>((N)name, (V)row.getString(1 + 2 * i), row.getLong(2 + 2 * i)));
+				}
+
+			} else {
+
+				int n = table.clusteringTypes.size();
+				Object name;
+
+				if (n == 1) {
+					name = fromCql(table.clusteringTypes.get(0), row, 1);
+				} else {
+					Object[] components = new Object[n];
+					for (int i = 0; i < n; i++) {
+						components[i] = fromCql(table.clusteringTypes.get(i), row, 1 + i);
+					}
+					name = new CmbCqlComposite(components);
+				}
+
+				long clock = table.isCounter || row.isNull(2 + n) ? 0 : row.getLong(2 + n);
+				columns.add(new CmbCqlColumn<N, V>((N)name, (V)fromCql(table.valueType, row, 1 + n), clock));
+			}
+		}
+
+		return columns;
+	}
+
+	/**
+	 * Wait for a future issued by one of the blocking methods
+	 */
+	private static <T> T waitFor(ListenableFuture<T> future) throws PersistenceException {
+		try {
+			return getResult(future);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new PersistenceException(ex);
+		}
+	}
+
+	private ListenableFuture<ResultSet> executeAsync(Statement statement) throws PersistenceException {
+		try {
+			return session.executeAsync(statement);
+		} catch (DriverException ex) {
+			throw new PersistenceException(ex);
+		}
+	}
+
+	private static final Function<ResultSet, Void> VOID_RESULT = new Function<ResultSet, Void>() {
+		public Void apply(ResultSet rs) {
+			return null;
+		}
+	};
+
+	private BoundStatement getInsert(String keyspace, String columnFamily, Table table, Object key, Object column, Object value, Integer ttl) throws PersistenceException {
+
+		int ttlSeconds = ttl == null ? 0 : ttl.intValue();
+
+		if (table.isStatic()) {
+			DataType type = getNamedColumnType(keyspace, columnFamily, table, column);
+			PreparedStatement ps = prepare("INSERT INTO " + table.name + " (key, " + quote(column.toString()) + ") VALUES (?, ?) USING TTL ?", true);
+			return ps.bind(key, toCql(type, value), ttlSeconds);
+		}
+
+		List<Object> values = new ArrayList<Object>();
+		values.add(key);
+		values.addAll(getClusteringValues(table, column));
+		values.add(toCql(table.valueType, value));
+		values.add(ttlSeconds);
+
+		PreparedStatement ps = prepare("INSERT INTO " + table.name + " (key, " + table.clusteringNames + ", value) VALUES (?, " + table.clusteringMarkers + ", ?) USING TTL ?", true);
+		return ps.bind(values.toArray());
+	}
+
+	private <N, V> Statement getRowInsert(String keyspace, String columnFamily, Table table, Object key, Map<N, V> columnValues, Integer ttl) throws PersistenceException {
+
+		// all columns of a row go to the same replicas, an unlogged batch writes them as a single mutation
+		BatchStatement batch = new BatchStatement(BatchStatement.Type.UNLOGGED);
+		batch.setConsistencyLevel(writeConsistencyLevel);
+
+		for (Map.Entry<N, V> e : columnValues.entrySet()) {
+			batch.add(getInsert(keyspace, columnFamily, table, key, e.getKey(), e.getValue(), ttl));
+			CMBControllerServlet.valueAccumulator.addToCounter(AccumulatorName.CassandraWrite, 1L);
+		}
+
+		return batch;
+	}
+
+	private BoundStatement getDelete(String keyspace, String columnFamily, Table table, Object key, Object column) throws PersistenceException {
+
+		if (column == null) {
+			return prepare(table.deleteRow, true).bind(key);
+		}
+
+		if (table.isStatic()) {
+			if (!table.namedColumns.containsKey(column.toString())) {
+				// never written through cql
+				return null;
+			}
+			return prepare("DELETE " + quote(column.toString()) + " FROM " + table.name + " WHERE key = ?", true).bind(key);
+		}
+
+		List<Object> values = new ArrayList<Object>();
+		values.add(key);
+		values.addAll(getClusteringValues(table, column));
+
+		return prepare("DELETE FROM " + table.name + " WHERE key = ?" + table.clusteringEquals, true).bind(values.toArray());
+	}
+
+	private BoundStatement getSliceQuery(Table table, Object key, Object firstColumnName, Object lastColumnName, int numCols) throws PersistenceException {
+
+		if (table.isStatic()) {
+			return prepare(table.selectColumns + " WHERE key = ?", false).bind(key);
+		}
+
+		StringBuilder cql = new StringBuilder(table.selectColumns).append(" WHERE key = ?");
+		List<Object> values = new ArrayList<Object>();
+		values.add(key);
+
+		if (firstColumnName != null) {
+			cql.append(" AND ").append(table.clusteringTuple).append(" >= ").append(table.clusteringTupleMarkers);
+			values.addAll(getClusteringValues(table, firstColumnName));
+		}
+
+		if (lastColumnName != null) {
+			cql.append(" AND ").append(table.clusteringTuple).append(" <= ").append(table.clusteringTupleMarkers);
+			values.addAll(getClusteringValues(table, lastColumnName));
+		}
+
+		cql.append(" LIMIT ?");
+		values.add(numCols);
+
+		BoundStatement statement = prepare(cql.toString(), false).bind(values.toArray());
+		statement.setFetchSize(Math.max(1, numCols));
+
+		return statement;
+	}
+
+	private BoundStatement getColumnQuery(String keyspace, String columnFamily, Table table, Object key, Object column) throws PersistenceException {
+
+		if (table.isStatic()) {
+			if (!table.namedColumns.containsKey(column.toString())) {
+				return null;
+			}
+			return prepare("SELECT key, " + quote(column.toString()) + ", WRITETIME(" + quote(column.toString()) + ") FROM " + table.name + " WHERE key = ?", false).bind(key);
+		}
+
+		List<Object> values = new ArrayList<Object>();
+		values.add(key);
+		values.addAll(getClusteringValues(table, column));
+
+		return prepare(table.selectColumns + " WHERE key = ?" + table.clusteringEquals, false).bind(values.toArray());
+	}
+
+	@Override
+	public boolean isAlive() {
+		for (Host host : cluster.getMetadata().getAllHosts()) {
+			if (host.isUp()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public <K, N, V> void update(String keyspace, String columnFamily, K key,
+			N column, V value, CmbSerializer keySerializer,
+			CmbSerializer nameSerializer, CmbSerializer valueSerializer, Integer ttl)
+			throws PersistenceException {
+		logger.debug("event=update column_family=" + columnFamily + " key=" + key + " column=" + column + " value=" + value);
+		waitFor(updateAsync(keyspace, columnFamily, key, column, value, keySerializer, nameSerializer, valueSerializer, ttl));
+	}
+
+	@Override
+	public <K, N, V> List<CmbRow<K, N, V>> readAllRows(
+			String keyspace, String columnFamily, int numRows, int numCols,
+			CmbSerializer keySerializer, CmbSerializer columnNameSerializer,
+			CmbSerializer valueSerializer)
+			throws PersistenceException {
+
+		logger.debug("event=read_next_n_non_empty_rows cf=" + columnFamily + " num_rows=" + numRows + " num_cols=" + numCols);
+
+		Table table = getTable(keyspace, columnFamily);
+		List<CmbRow<K, N, V>> l = new ArrayList<CmbRow<K, N, V>>();
+
+		if (table.isStatic()) {
+
+			// one cql row per row key
+			BoundStatement statement = prepare(table.selectColumns + " LIMIT ?", false).bind(numRows);
+			CMBControllerServlet.valueAccumulator.addToCounter(AccumulatorName.CassandraRead, 1L);
+
+			for (Row row : waitFor(executeAsync(statement))) {
+				List<CmbColumn<N, V>> columns = getColumns(table, Collections.singletonList(row), null, null, numCols);
+				if (!columns.isEmpty()) {
+					l.add(new CmbCqlRow<K, N, V>((K)row.getString(0), new CmbCqlColumnSlice<N, V>(columns)));
+				}
+			}
+
+			return l;
+		}
+
+		CMBControllerServlet.valueAccumulator.addToCounter(AccumulatorName.CassandraRead, 1L);
+		List<K> keys = new ArrayList<K>();
+
+		for (Row row : waitFor(executeAsync(prepare(table.selectKeys, false).bind(numRows)))) {
+			keys.add((K)row.getString(0));
+		}
+
+		// read the slices of all rows concurrently
+		List<ListenableFuture<CmbColumnSlice<N, V>>> futures = new ArrayList<ListenableFuture<CmbColumnSlice<N, V>>>();
+
+		for (K key : keys) {
+			futures.add(this.<K, N, V>readColumnSliceAsync(keyspace, columnFamily, key, null, null, numCols, keySerializer, columnNameSerializer, valueSerializer));
+		}
+
+		List<CmbColumnSlice<N, V>> slices = waitFor(Futures.allAsList(futures));
+
+		for (int i = 0; i < keys.size(); i++) {
+			if (slices.get(i) != null) {
+				l.add(new CmbCqlRow<K, N, V>(keys.get(i), slices.get(i)));
+			}
+		}
+
+		return l;
+	}
+
+	@Override
+	public <K, N, V> List<CmbRow<K, N, V>> readRowsByIndex(String keyspace,
+			String columnFamily, N whereColumn, V whereValue,
+			int numRows, int numCols, CmbSerializer keySerializer,
+			CmbSerializer columnNameSerializer, CmbSerializer valueSerializer)
+			throws PersistenceException {
+
+		Map<N, V> columnValues = new HashMap<N, V>();
+
+		if (whereColumn != null && whereValue != null) {
+			columnValues.put(whereColumn, whereValue);
+		}
+
+		return readRowsByIndices(keyspace, columnFamily, columnValues, numRows, numCols, keySerializer, columnNameSerializer, valueSerializer);
+	}
+
+	@Override
+	public <K, N, V> List<CmbRow<K, N, V>> readRowsByIndices(String keyspace,
+			String columnFamily, Map<N, V> columnValues,
+			int numRows, int numCols, CmbSerializer keySerializer,
+			CmbSerializer columnNameSerializer, CmbSerializer valueSerializer)
+			throws PersistenceException {
+
+		logger.debug("event=read_nextn_rows cf=" + columnFamily + " num_rows=" + numRows + " num_cols=" + numCols);
+
+		Table table = getTable(keyspace, columnFamily);
+
+		if (!table.isStatic()) {
+			throw new PersistenceException(CMBErrorCodes.InternalError, "Index reads are only supported on tables with named columns, not " + table.name);
+		}
+
+		if (columnValues == null || columnValues.isEmpty()) {
+			return readAllRows(keyspace, columnFamily, numRows, numCols, keySerializer, columnNameSerializer, valueSerializer);
+		}
+
+		// sort the conditions so the same set of columns always maps to the same prepared statement
+		Map<String, V> conditions = new TreeMap<String, V>();
+
+		for (Map.Entry<N, V> e : columnValues.entrySet()) {
+			conditions.put(e.getKey().toString(), e.getValue());
+		}
+
+		StringBuilder cql = new StringBuilder(table.selectColumns);
+		List<Object> values = new ArrayList<Object>();
+
+		for (Map.Entry<String, V> e : conditions.entrySet()) {
+			cql.append(values.isEmpty() ? " WHERE " : " AND ").append(quote(e.getKey())).append(" = ?");
+			values.add(toCql(getNamedColumnType(keyspace, columnFamily, table, e.getKey()), e.getValue()));
+		}
+
+		cql.append(" LIMIT ?");
+		values.add(numRows);
+
+		if (conditions.size() > 1) {
+			cql.append(" ALLOW FILTERING");
+		}
+
+		CMBControllerServlet.valueAccumulator.addToCounter(AccumulatorName.CassandraRead, 1L);
+		List<CmbRow<K, N, V>> l = new ArrayList<CmbRow<K, N, V>>();
+
+		for (Row row : waitFor(executeAsync(prepare(cql.toString(), false).bind(values.toArray())))) {
+			List<CmbColumn<N, V>> columns = getColumns(table, Collections.singletonList(row), null, null, numCols);
+			l.add(new CmbCqlRow<K, N, V>((K)row.getString(0), new CmbCqlColumnSlice<N, V>(columns)));
+		}
+
+		return l;
+	}
+
+	@Override
+	public <K, N, V> CmbColumnSlice<N, V> readColumnSlice(String keyspace,
+			String columnFamily, K key, N firstColumnName, N lastColumnName,
+			int numCols, CmbSerializer keySerializer,
+			CmbSerializer columnNameSerializer, CmbSerializer valueSerializer)
+			throws PersistenceException {
+		logger.debug("event=read_column_slice cf=" + columnFamily + " key=" + key);
+		return waitFor(this.<K, N, V>readColumnSliceAsync(keyspace, columnFamily, key, firstColumnName, lastColumnName, numCols, keySerializer, columnNameSerializer, valueSerializer));
+	}
+
+	@Override
+	public <K, N, V> void insertRow(String keyspace, K rowKey,
+			String columnFamily, Map<N, V> columnValues,
+			CmbSerializer keySerializer, CmbSerializer nameSerializer,
+			CmbSerializer valueSerializer, Integer ttl) throws PersistenceException {
+		logger.debug("event=insert_row column_family=" + columnFamily + " key=" + rowKey);
+		waitFor(insertRowAsync(keyspace, rowKey, columnFamily, columnValues, keySerializer, nameSerializer, valueSerializer, ttl));
+	}
+
+	@Override
+	public <K, N, V> void insertRows(String keyspace,
+			Map<K, Map<N, V>> rowColumnValues, String columnFamily,
+			CmbSerializer keySerializer, CmbSerializer nameSerializer,
+			CmbSerializer valueSerializer, Integer ttl) throws PersistenceException {
+
+		logger.debug("event=insert_rows column_family=" + columnFamily);
+
+		Table table = getTable(keyspace, columnFamily);
+		List<ListenableFuture<ResultSet>> futures = new ArrayList<ListenableFuture<ResultSet>>();
+
+		// one batch per row, each sent straight to a replica of its row instead of through a single coordinator
+		for (Map.Entry<K, Map<N, V>> e : rowColumnValues.entrySet()) {
+			futures.add(executeAsync(getRowInsert(keyspace, columnFamily, table, e.getKey(), e.getValue(), ttl)));
+		}
+
+		waitFor(Futures.allAsList(futures));
+	}
+
+	@Override
+	public <K, N> void delete(String keyspace, String columnFamily, K key,
+			N column, CmbSerializer keySerializer,
+			CmbSerializer columnSerializer) throws PersistenceException {
+		logger.debug("event=delete column_family=" + columnFamily + " key=" + key + " column=" + column);
+		waitFor(deleteAsync(keyspace, columnFamily, key, column, keySerializer, columnSerializer));
+	}
+
+	@Override
+	public <K, N> void deleteBatch(String keyspace, String columnFamily,
+			List<K> keyList, List<N> columnList, CmbSerializer keySerializer,
+			CmbSerializer columnSerializer) throws PersistenceException {
+
+		logger.debug("event=delete_batch column_family=" + columnFamily);
+
+		Table table = getTable(keyspace, columnFamily);
+		List<ListenableFuture<ResultSet>> futures = new ArrayList<ListenableFuture<ResultSet>>();
+
+		for (int i = 0; i < keyList.size(); i++) {
+			N column = columnList == null || columnList.isEmpty() ? null : columnList.get(i);
+			BoundStatement statement = getDelete(keyspace, columnFamily, table, keyList.get(i), column);
+			if (statement != null) {
+				futures.add(executeAsync(statement));
+				CMBControllerServlet.valueAccumulator.addToCounter(AccumulatorName.CassandraWrite, 1L);
+			}
+		}
+
+		waitFor(Futures.allAsList(futures));
+	}
+
+	@Override
+	public <K, N> int getCount(String keyspace, String columnFamily, K key,
+			CmbSerializer keySerializer, CmbSerializer columnNameSerializer)
+					throws PersistenceException {
+
+		logger.debug("event=get_count column_family=" + columnFamily);
+
+		Table table = getTable(keyspace, columnFamily);
+
+		if (table.isStatic()) {
+			CmbColumnSlice<String, String> slice = readColumnSlice(keyspace, columnFamily, key, null, null, Integer.MAX_VALUE, keySerializer, columnNameSerializer, null);
+			return slice == null ? 0 : slice.size();
+		}
+
+		CMBControllerServlet.valueAccumulator.addToCounter(AccumulatorName.CassandraRead, 1L);
+		Row row = waitFor(executeAsync(prepare("SELECT COUNT(*) FROM " + table.name + " WHERE key = ?", false).bind(key))).one();
+
+		return row == null ? 0 : (int)row.getLong(0);
+	}
+
+	@Override
+	public <K, N> void incrementCounter(String keyspace, String columnFamily,
+			K rowKey, String columnName, int incrementBy,
+			CmbSerializer keySerializer, CmbSerializer columnNameSerializer)
+			throws PersistenceException {
+
+		logger.debug("event=increment_counter column_family=" + columnFamily);
+
+		Table table = getTable(keyspace, columnFamily);
+
+		if (!table.isCounter) {
+			throw new PersistenceException(CMBErrorCodes.InternalError, "Not a counter table " + table.name);
+		}
+
+		List<Object> values = new ArrayList<Object>();
+		values.add((long)incrementBy);
+		values.add(rowKey);
+		values.addAll(getClusteringValues(table, columnName));
+
+		CMBControllerServlet.valueAccumulator.addToCounter(AccumulatorName.CassandraWrite, 1L);
+		waitFor(executeAsync(prepare("UPDATE " + table.name + " SET value = value + ? WHERE key = ?" + table.clusteringEquals, true).bind(values.toArray())));
+	}
+
+	@Override
+	public <K, N> void decrementCounter(String keyspace, String columnFamily,
+			K rowKey, String columnName, int decrementBy,
+			CmbSerializer keySerializer, CmbSerializer columnNameSerializer)
+			throws PersistenceException {
+		incrementCounter(keyspace, columnFamily, rowKey, columnName, -decrementBy, keySerializer, columnNameSerializer);
+	}
+
+	@Override
+	public <K, N> long getCounter(String keyspace, String columnFamily,
+			K rowKey, N columnName, CmbSerializer keySerializer,
+			CmbSerializer columnNameSerializer) throws PersistenceException {
+		logger.debug("event=get_counter column_family=" + columnFamily);
+		CmbColumn<N, Long> column = readColumn(keyspace, columnFamily, rowKey, columnName, keySerializer, columnNameSerializer, null);
+		return column == null || column.getValue() == null ? 0 : column.getValue();
+	}
+
+	@Override
+	public <K, N, V> CmbColumn<N, V> readColumn(String keyspace,
+			String columnFamily, K key, N columnName,
+			CmbSerializer keySerializer, CmbSerializer columnNameSerializer,
+			CmbSerializer valueSerializer) throws PersistenceException {
+		logger.debug("event=get_column column_family=" + columnFamily + " column_name=" + columnName);
+		return waitFor(this.<K, N, V>readColumnAsync(keyspace, columnFamily, key, columnName, keySerializer, columnNameSerializer, valueSerializer));
+	}
+
+	@Override
+	public <K, N, V> List<CmbRow<K, N, V>> readColumnsByKeys(String keyspace,
+			String columnFamily, Map<K, List<N>> columnNamesByKey,
+			CmbSerializer keySerializer, CmbSerializer columnNameSerializer,
+			CmbSerializer valueSerializer) throws PersistenceException {
+
+		logger.debug("event=read_columns_by_keys column_family=" + columnFamily + " num_keys=" + columnNamesByKey.size());
+
+		List<N> columnNames = new ArrayList<N>();
+
+		for (List<N> names : columnNamesByKey.values()) {
+			columnNames.addAll(names);
+		}
+
+		// same contract as the thrift clients: every requested column is read from every key, all reads in flight at once
+		List<K> keys = new ArrayList<K>(columnNamesByKey.keySet());
+		List<ListenableFuture<CmbColumn<N, V>>> futures = new ArrayList<ListenableFuture<CmbColumn<N, V>>>();
+
+		for (K key : keys) {
+			for (N name : columnNames) {
+				futures.add(this.<K, N, V>readColumnAsync(keyspace, columnFamily, key, name, keySerializer, columnNameSerializer, valueSerializer));
+			}
+		}
+
+		List<CmbColumn<N, V>> results = waitFor(Futures.allAsList(futures));
+		Map<K, List<CmbColumn<N, V>>> columnsByKey = new LinkedHashMap<K, List<CmbColumn<N, V>>>();
+
+		for (int i = 0; i < results.size(); i++) {
+			if (results.get(i) == null) {
+				continue;
+			}
+			K key = keys.get(i / columnNames.size());
+			List<CmbColumn<N, V>> columns = columnsByKey.get(key);
+			if (columns == null) {
+				columns = new ArrayList<CmbColumn<N, V>>();
+				columnsByKey.put(key, columns);
+			}
+			columns.add(results.get(i));
+		}
+
+		List<CmbRow<K, N, V>> l = new ArrayList<CmbRow<K, N, V>>();
+
+		for (Map.Entry<K, List<CmbColumn<N, V>>> e : columnsByKey.entrySet()) {
+			l.add(new CmbCqlRow<K, N, V>(e.getKey(), new CmbCqlColumnSlice<N, V>(e.getValue())));
+		}
+
+		return l;
+	}
+
+	@Override
+	public <K, N, V> ListenableFuture<Void> updateAsync(String keyspace, String columnFamily, K key,
+			N column, V value, CmbSerializer keySerializer,
+			CmbSerializer nameSerializer, CmbSerializer valueSerializer, Integer ttl)
+			throws PersistenceException {
+		logger.debug("event=update_async column_family=" + columnFamily + " key=" + key + " column=" + column + " value=" + value);
+		Table table = getTable(keyspace, columnFamily);
+		CMBControllerServlet.valueAccumulator.addToCounter(AccumulatorName.CassandraWrite, 1L);
+		return Futures.transform(executeAsync(getInsert(keyspace, columnFamily, table, key, column, value, ttl)), VOID_RESULT);
+	}
+
+	@Override
+	public <K, N, V> ListenableFuture<CmbColumnSlice<N, V>> readColumnSliceAsync(String keyspace,
+			String columnFamily, K key, final N firstColumnName, final N lastColumnName,
+			final int numCols, CmbSerializer keySerializer,
+			CmbSerializer columnNameSerializer, CmbSerializer valueSerializer)
+			throws PersistenceException {
+
+		logger.debug("event=read_column_slice_async cf=" + columnFamily + " key=" + key);
+
+		final Table table = getTable(keyspace, columnFamily);
+		CMBControllerServlet.valueAccumulator.addToCounter(AccumulatorName.CassandraRead, 1L);
+
+		return Futures.transform(executeAsync(getSliceQuery(table, key, firstColumnName, lastColumnName, numCols)), new Function<ResultSet, CmbColumnSlice<N, V>>() {
+			public CmbColumnSlice<N, V> apply(ResultSet rs) {
+				List<CmbColumn<N, V>> columns = CassandraCqlPersistence.<N, V>getColumns(table, rs, firstColumnName, lastColumnName, numCols);
+				if (columns.isEmpty()) {
+					return null;
+				}
+				return new CmbCqlColumnSlice<N, V>(columns);
+			}
+		});
+	}
+
+	@Override
+	public <K, N, V> ListenableFuture<CmbColumn<N, V>> readColumnAsync(String keyspace,
+			String columnFamily, K key, N columnName,
+			CmbSerializer keySerializer, CmbSerializer columnNameSerializer,
+			CmbSerializer valueSerializer) throws PersistenceException {
+
+		logger.debug("event=get_column_async column_family=" + columnFamily + " column_name=" + columnName);
+
+		final Table table = getTable(keyspace, columnFamily);
+		BoundStatement statement = getColumnQuery(keyspace, columnFamily, table, key, columnName);
+
+		if (statement == null) {
+			return Futures.immediateFuture(null);
+		}
+
+		CMBControllerServlet.valueAccumulator.addToCounter(AccumulatorName.CassandraRead, 1L);
+
+		if (table.isStatic()) {
+			final String name = columnName.toString();
+			return Futures.transform(executeAsync(statement), new Function<ResultSet, CmbColumn<N, V>>() {
+				public CmbColumn<N, V> apply(ResultSet rs) {
+					Row row = rs.one();
+					if (row == null || row.isNull(1)) {
+						return null;
+					}
+					return new CmbCqlColumn<N, V>((N)name, (V)row.getString(1), row.getLong(2));
+				}
+			});
+		}
+
+		return Futures.transform(executeAsync(statement), new Function<ResultSet, CmbColumn<N, V>>() {
+			public CmbColumn<N, V> apply(ResultSet rs) {
+				List<CmbColumn<N, V>> columns = CassandraCqlPersistence.<N, V>getColumns(table, rs, null, null, 1);
+				return columns.isEmpty() ? null : columns.get(0);
+			}
+		});
+	}
+
+	@Override
+	public <K, N, V> ListenableFuture<Void> insertRowAsync(String keyspace, K rowKey,
+			String columnFamily, Map<N, V> columnValues,
+			CmbSerializer keySerializer, CmbSerializer nameSerializer,
+			CmbSerializer valueSerializer, Integer ttl) throws PersistenceException {
+		logger.debug("event=insert_row_async column_family=" + columnFamily + " key=" + rowKey);
+		Table table = getTable(keyspace, columnFamily);
+		return Futures.transform(executeAsync(getRowInsert(keyspace, columnFamily, table, rowKey, columnValues, ttl)), VOID_RESULT);
+	}
+
+	@Override
+	public <K, N> ListenableFuture<Void> deleteAsync(String keyspace, String columnFamily, K key,
+			N column, CmbSerializer keySerializer,
+			CmbSerializer columnSerializer) throws PersistenceException {
+		logger.debug("event=delete_async column_family=" + columnFamily + " key=" + key + " column=" + column);
+		Table table = getTable(keyspace, columnFamily);
+		BoundStatement statement = getDelete(keyspace, columnFamily, table, key, column);
+		if (statement == null) {
+			return Futures.immediateFuture(null);
+		}
+		CMBControllerServlet.valueAccumulator.addToCounter(AccumulatorName.CassandraWrite, 1L);
+		return Futures.transform(executeAsync(statement), VOID_RESULT);
+	}
+}
@@ -43,12 +43,14 @@ import me.prettyprint.hector.api.beans.HColumn;
 import me.prettyprint.hector.api.beans.HCounterColumn;
 import me.prettyprint.hector.api.beans.OrderedRows;
 import me.prettyprint.hector.api.beans.Row;
+import me.prettyprint.hector.api.beans.Rows;
 import me.prettyprint.hector.api.ddl.KeyspaceDefinition;
 import me.prettyprint.hector.api.factory.HFactory;
 import me.prettyprint.hector.api.mutation.MutationResult;
 import me.prettyprint.hector.api.mutation.Mutator;
 import me.prettyprint.hector.api.query.ColumnQuery;
 import me.prettyprint.hector.api.query.CounterQuery;
+import me.prettyprint.hector.api.query.MultigetSliceQuery;
 import me.prettyprint.hector.api.query.QueryResult;
 import me.prettyprint.hector.api.query.RangeSlicesQuery;
 import me.prettyprint.hector.api.query.SliceQuery;
@@ -516,6 +518,49 @@ public class CassandraHectorPersistence extends AbstractDurablePersistence {
 		}
 	}
 
+	@Override
+	public <K, N, V> List<CmbRow<K, N, V>> readColumnsByKeys(String keyspace, String columnFamily, Map<K, List<N>> columnNamesByKey,
+			CmbSerializer keySerializer, CmbSerializer columnNameSerializer, CmbSerializer valueSerializer) throws PersistenceException {
+
+		long ts1 = System.currentTimeMillis();
+		logger.debug("event=read_columns_by_keys cf=" + columnFamily + " num_keys=" + columnNamesByKey.size());
+
+		try {
+
+			List<Object> columnNames = new ArrayList<Object>();
+
+			for (List<N> names : columnNamesByKey.values()) {
+				for (N name : names) {
+					columnNames.add(getComposite(name));
+				}
+			}
+
+			MultigetSliceQuery<K, N, V> multigetSliceQuery = HFactory.createMultigetSliceQuery(getKeyspace(keyspace), getSerializer(keySerializer), getSerializer(columnNameSerializer), getSerializer(valueSerializer))
+					.setColumnFamily(columnFamily)
+					.setKeys(columnNamesByKey.keySet())
+					.setColumnNames((N[])columnNames.toArray());
+
+			QueryResult<Rows<K, N, V>> result = multigetSliceQuery.execute();
+			List<Row<K, N, V>> rows = new ArrayList<Row<K, N, V>>();
+
+			if (result.get() != null) {
+				for (Row<K, N, V> row : result.get()) {
+					if (!row.getColumnSlice().getColumns().isEmpty()) {
+						rows.add(row);
+					}
+				}
+			}
+
+			return getRows(rows);
+
+		} finally { 
+
+			long ts2 = System.currentTimeMillis();
+			CMBControllerServlet.valueAccumulator.addToCounter(AccumulatorName.CassandraRead, 1L);
+			CMBControllerServlet.valueAccumulator.addToCounter(AccumulatorName.CassandraTime, (ts2 - ts1));      
+		}
+	}
+
 	@Override
 	public <K, N, V> void insertRow(String keyspace, K rowKey,
 			String columnFamily, Map<N, V> columnValues,
@@ -15,13 +15,51 @@
  */
 package com.comcast.cmb.common.persistence;
 
+import com.comcast.cmb.common.util.CMBProperties;
+
 public class DurablePersistenceFactory {
-	
+
+	public static final String CLIENT_ASTYANAX = "astyanax";
+	public static final String CLIENT_HECTOR = "hector";
+	public static final String CLIENT_CQL = "cql";
+
+	// the cql client depends on the datastax driver which is only on the class path of builds with -Pcql
+	private static final String CQL_PERSISTENCE_CLASS = "com.comcast.cmb.common.persistence.CassandraCqlPersistence";
+
+	private static volatile AbstractDurablePersistence instance;
+
 	private void CassandraPersistenceFactory() {
 	}
 
+	/**
+	 * @return persistence of the client configured with cmb.cassandra.client
+	 */
 	public static AbstractDurablePersistence getInstance() {
-		//return CassandraHectorPersistence.getInstance();
+		if (instance == null) {
+			instance = getInstance(CMBProperties.getInstance().getCassandraClient());
+		}
+		return instance;
+	}
+
+	/**
+	 * @param client astyanax, hector or cql
+	 * @return persistence of the given client
+	 */
+	public static AbstractDurablePersistence getInstance(String client) {
+		if (CLIENT_HECTOR.equals(client)) {
+			return CassandraHectorPersistence.getInstance();
+		} else if (CLIENT_CQL.equals(client)) {
+			try {
+				return (AbstractDurablePersistence)Class.forName(CQL_PERSISTENCE_CLASS).getMethod("getInstance").invoke(null);
+			} catch (ClassNotFoundException ex) {
+				throw new IllegalStateException("cmb.cassandra.client=cql requires a build with mvn -Pcql", ex);
+			} catch (NoClassDefFoundError ex) {
+				// class built with -Pcql but the datastax driver is missing at runtime
+				throw new IllegalStateException("cmb.cassandra.client=cql requires the datastax cassandra-driver-core on the class path", ex);
+			} catch (Exception ex) {
+				throw new IllegalStateException("Failed to initialize cql client", ex);
+			}
+		}
 		return CassandraAstyanaxPersistence.getInstance();
 	}
 }
@@ -0,0 +1,347 @@
+/**
+ * Copyright 2012 Comcast Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.comcast.cmb.common.persistence;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.log4j.Logger;
+
+import com.comcast.cmb.common.controller.CMBControllerServlet;
+import com.comcast.cmb.common.util.CMBProperties;
+import com.comcast.cmb.common.util.PersistenceException;
+import com.comcast.cmb.common.util.ValueAccumulator.AccumulatorName;
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Hedged reads for latency critical Cassandra reads. If a read has not returned after the configured percentile of
+ * recent latencies of the same operation, the same read is sent once more and the first response wins. The client's
+ * load balancing picks the host of each request, so the second read usually goes to another replica.
+ *
+ * Hedges are limited by a budget of budgetPercent of all reads, so a slow cluster does not see its load amplified.
+ * Unused budget is saved up for at most MAX_SAVED_HEDGES hedges.
+ */
+public class HedgedReads {
+
+	private static Logger logger = Logger.getLogger(HedgedReads.class);
+
+	private static final int NUM_SAMPLES = 1024;
+	private static final int MIN_SAMPLES = 50;
+	private static final long RECOMPUTE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+	private static final long MAX_SAVED_HEDGES = 10;
+
+	private static volatile HedgedReads instance;
+
+	private final boolean enabled;
+	private final int percentile;
+	private final long minDelayMicros;
+	private final long maxDelayMicros;
+	private final int budgetPercent;
+
+	/**
+	 * Hedge budget in hundredths of a hedge, every read adds budgetPercent, every hedge takes 100
+	 */
+	private final AtomicLong budget = new AtomicLong();
+
+	private final ConcurrentHashMap<String, LatencyTracker> trackers = new ConcurrentHashMap<String, LatencyTracker>();
+
+	private final AtomicLong numReads = new AtomicLong();
+	private final AtomicLong numHedges = new AtomicLong();
+	private final AtomicLong numHedgeWins = new AtomicLong();
+	private final AtomicLong numOverBudget = new AtomicLong();
+
+	private final ScheduledExecutorService scheduler;
+
+	public static HedgedReads getInstance() {
+		if (instance == null) {
+			synchronized (HedgedReads.class) {
+				if (instance == null) {
+					CMBProperties props = CMBProperties.getInstance();
+					instance = new HedgedReads(props.isCassandraHedgedReadsEnabled(), props.getCassandraHedgedReadsPercentile(), props.getCassandraHedgedReadsMinDelayMS(), props.getCassandraThriftSocketTimeOutMS(), props.getCassandraHedgedReadsBudgetPercent());
+				}
+			}
+		}
+		return instance;
+	}
+
+	public HedgedReads(boolean enabled, int percentile, int minDelayMS, int maxDelayMS, int budgetPercent) {
+
+		this.enabled = enabled;
+		this.percentile = Math.max(1, Math.min(100, percentile));
+		this.minDelayMicros = TimeUnit.MILLISECONDS.toMicros(Math.max(0, minDelayMS));
+		this.maxDelayMicros = Math.max(minDelayMicros, TimeUnit.MILLISECONDS.toMicros(maxDelayMS));
+		this.budgetPercent = Math.max(0, Math.min(100, budgetPercent));
+
+		if (enabled) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("cassandra-hedge-%d").setDaemon(true).build());
+		} else {
+			scheduler = null;
+		}
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public long getNumReads() {
+		return numReads.get();
+	}
+
+	public long getNumHedges() {
+		return numHedges.get();
+	}
+
+	public long getNumHedgeWins() {
+		return numHedgeWins.get();
+	}
+
+	public long getNumOverBudget() {
+		return numOverBudget.get();
+	}
+
+	/**
+	 * Recent latencies of one kind of read
+	 */
+	private class LatencyTracker {
+
+		private final AtomicLongArray samples = new AtomicLongArray(NUM_SAMPLES);
+		private final AtomicLong numSamples = new AtomicLong();
+		private volatile long delayMicros = -1;
+		private volatile long computedAt = 0;
+
+		void record(long micros) {
+			samples.set((int)(numSamples.getAndIncrement() % NUM_SAMPLES), micros);
+		}
+
+		/**
+		 * @return hedge delay in micros or -1 until enough reads were seen
+		 */
+		long getDelayMicros() {
+
+			long now = System.nanoTime();
+
+			if (delayMicros >= 0 && now - computedAt < RECOMPUTE_INTERVAL_NANOS) {
+				return delayMicros;
+			}
+
+			int n = (int)Math.min(numSamples.get(), NUM_SAMPLES);
+
+			if (n < MIN_SAMPLES) {
+				return -1;
+			}
+
+			long[] sorted = new long[n];
+
+			for (int i = 0; i < n; i++) {
+				sorted[i] = samples.get(i);
+			}
+
+			Arrays.sort(sorted);
+
+			long delay = sorted[Math.max(0, (int)Math.ceil(n * percentile / 100.0) - 1)];
+			delayMicros = Math.max(minDelayMicros, Math.min(maxDelayMicros, delay));
+			computedAt = now;
+
+			return delayMicros;
+		}
+	}
+
+	private LatencyTracker getTracker(String operation) {
+		LatencyTracker tracker = trackers.get(operation);
+		if (tracker == null) {
+			trackers.putIfAbsent(operation, new LatencyTracker());
+			tracker = trackers.get(operation);
+		}
+		return tracker;
+	}
+
+	private void addBudget() {
+		long max = MAX_SAVED_HEDGES * 100;
+		while (true) {
+			long b = budget.get();
+			if (b >= max || budget.compareAndSet(b, Math.min(max, b + budgetPercent))) {
+				return;
+			}
+		}
+	}
+
+	private boolean takeBudget() {
+		while (true) {
+			long b = budget.get();
+			if (b < 100) {
+				return false;
+			}
+			if (budget.compareAndSet(b, b - 100)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Result of a hedged read, completed by whichever read returns first
+	 */
+	private class HedgedFuture<T> extends AbstractFuture<T> {
+
+		volatile boolean hedged = false;
+		volatile boolean hedgeWon = false;
+		volatile ScheduledFuture<?> hedgeTask = null;
+		final AtomicInteger numLaunched = new AtomicInteger(1);
+		final AtomicInteger numFailed = new AtomicInteger();
+
+		/**
+		 * @return true if this response was the first one
+		 */
+		synchronized boolean complete(T value, boolean isHedge) {
+			if (isDone()) {
+				return false;
+			}
+			hedgeWon = isHedge;
+			if (isHedge) {
+				// count before the waiting caller is released
+				numHedgeWins.incrementAndGet();
+			}
+			set(value);
+			cancelHedge();
+			return true;
+		}
+
+		synchronized void fail(Throwable t) {
+			// only give up once every read that was sent has failed
+			if (numFailed.incrementAndGet() >= numLaunched.get() && !isDone()) {
+				setException(t);
+				cancelHedge();
+			}
+		}
+
+		private void cancelHedge() {
+			ScheduledFuture<?> task = hedgeTask;
+			if (task != null) {
+				task.cancel(false);
+			}
+		}
+	}
+
+	/**
+	 * Start a read and hedge it if it is slow
+	 * @param operation name of the kind of read, latencies are tracked per operation
+	 * @param read starts one read, called again for the hedge
+	 * @return future of the first response
+	 */
+	private <T> HedgedFuture<T> readAsync(String operation, final Callable<ListenableFuture<T>> read) throws PersistenceException {
+
+		final LatencyTracker tracker = getTracker(operation);
+		final HedgedFuture<T> result = new HedgedFuture<T>();
+		final long start = System.nanoTime();
+
+		numReads.incrementAndGet();
+		addBudget();
+
+		Futures.addCallback(call(read), new FutureCallback<T>() {
+			public void onSuccess(T value) {
+				tracker.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+				result.complete(value, false);
+			}
+			public void onFailure(Throwable t) {
+				result.fail(t);
+			}
+		});
+
+		long delay = tracker.getDelayMicros();
+
+		if (delay < 0 || result.isDone() || budget.get() < 100) {
+			return result;
+		}
+
+		result.hedgeTask = scheduler.schedule(new Runnable() {
+			public void run() {
+
+				if (result.isDone()) {
+					return;
+				}
+
+				if (!takeBudget()) {
+					numOverBudget.incrementAndGet();
+					return;
+				}
+
+				result.numLaunched.incrementAndGet();
+				result.hedged = true;
+				numHedges.incrementAndGet();
+
+				try {
+					Futures.addCallback(call(read), new FutureCallback<T>() {
+						public void onSuccess(T value) {
+							result.complete(value, true);
+						}
+						public void onFailure(Throwable t) {
+							result.fail(t);
+						}
+					});
+				} catch (PersistenceException ex) {
+					logger.warn("event=hedged_read_failed", ex);
+					result.fail(ex);
+				}
+			}
+		}, delay, TimeUnit.MICROSECONDS);
+
+		return result;
+	}
+
+	/**
+	 * Hedged read waiting for the first response. Hedges and hedges that returned first are counted in the
+	 * CassandraHedgedRead and CassandraHedgeWin accumulators of the calling thread.
+	 */
+	public <T> T read(String operation, Callable<ListenableFuture<T>> read) throws PersistenceException {
+
+		HedgedFuture<T> result = readAsync(operation, read);
+
+		try {
+			return AbstractDurablePersistence.getResult(result);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new PersistenceException(ex);
+		} finally {
+			if (result.hedged) {
+				CMBControllerServlet.valueAccumulator.addToCounter(AccumulatorName.CassandraHedgedRead, 1L);
+			}
+			if (result.hedgeWon) {
+				CMBControllerServlet.valueAccumulator.addToCounter(AccumulatorName.CassandraHedgeWin, 1L);
+			}
+		}
+	}
+
+	private static <T> ListenableFuture<T> call(Callable<ListenableFuture<T>> read) throws PersistenceException {
+		try {
+			return read.call();
+		} catch (PersistenceException ex) {
+			throw ex;
+		} catch (Exception ex) {
+			throw new PersistenceException(ex);
+		}
+	}
+}
@@ -20,6 +20,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import com.comcast.cmb.common.controller.CacheInvalidationBus;
 import com.comcast.cmb.common.model.User;
 import com.comcast.cmb.common.persistence.AbstractDurablePersistence.CMB_SERIALIZER;
 import com.comcast.cmb.common.persistence.AbstractDurablePersistence.CmbColumnSlice;
@@ -114,7 +115,15 @@ public class UserCassandraPersistence implements IUserPersistence {
 	
 	@Override
 	public void deleteUser(String userName) throws PersistenceException {
+		
+		User user = getUserByName(userName);
+		
 		cassandraHandler.delete(AbstractDurablePersistence.CMB_KEYSPACE, COLUMN_FAMILY_USERS, userName, null, CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.STRING_SERIALIZER);
+		
+		if (user != null) {
+			CacheInvalidationBus.invalidate(CacheInvalidationBus.USER_ID, user.getUserId());
+			CacheInvalidationBus.invalidate(CacheInvalidationBus.ACCESS_KEY, user.getAccessKey());
+		}
 	}
 	
 	@Override
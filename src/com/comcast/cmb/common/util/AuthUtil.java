@@ -37,11 +37,13 @@ import java.math.BigInteger;
 import java.net.URL;
 import java.net.URLEncoder;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
 
 /**
  * Utility functions for authentication
@@ -55,6 +57,45 @@ public class AuthUtil {
     private static final Random rand = new SecureRandom();
     protected static final String DEFAULT_ENCODING = "UTF-8";
     
+    // signing keys are scoped to a day, the timestamp check lets requests be off by another 15 mins
+    private static final int SIGNING_KEY_EXPIRATION_MS = 24 * 60 * 60 * 1000 + REQUEST_VALIDITY_PERIOD_MS;
+    private static final int SIGNING_KEY_CACHE_SIZE = 10000;
+    private static final int INITIAL_BUILDER_CAPACITY = 1024;
+    private static final int MAX_RETAINED_BUILDER_CAPACITY = 16 * 1024;
+    
+    private static final BoundedCache<String, SecretKeySpec> signingKeys = new BoundedCache<String, SecretKeySpec>("sigv4_signing_key", SIGNING_KEY_CACHE_SIZE);
+    
+    // Mac and MessageDigest are not thread-safe and expensive to look up, keep one per thread
+    
+    private static final ThreadLocal<Mac> hmacSha256 = new ThreadLocal<Mac>() {
+    	@Override
+    	protected Mac initialValue() {
+    		try {
+    			return Mac.getInstance(SigningAlgorithm.HmacSHA256.toString());
+    		} catch (NoSuchAlgorithmException ex) {
+    			throw new IllegalStateException(ex);
+    		}
+    	}
+    };
+    
+    private static final ThreadLocal<MessageDigest> sha256 = new ThreadLocal<MessageDigest>() {
+    	@Override
+    	protected MessageDigest initialValue() {
+    		try {
+    			return MessageDigest.getInstance("SHA-256");
+    		} catch (NoSuchAlgorithmException ex) {
+    			throw new IllegalStateException(ex);
+    		}
+    	}
+    };
+    
+    private static final ThreadLocal<StringBuilder> stringBuilder = new ThreadLocal<StringBuilder>() {
+    	@Override
+    	protected StringBuilder initialValue() {
+    		return new StringBuilder(INITIAL_BUILDER_CAPACITY);
+    	}
+    };
+    
     public static String hashPassword(String password) throws Exception {
 
     	MessageDigest digest = MessageDigest.getInstance("MD5");
@@ -233,23 +274,65 @@ public class AuthUtil {
         String contentSha256= BinaryUtils.toHex(hash(payloadString));
         Map <String, String> filteredHeaders= filterHeader(headers);
         
-        String stringToSign = getStringToSign("AWS4-"+algorithm, dateTime, scope, getCanonicalRequest(request,contentSha256, parameters, filteredHeaders ));
-
-
-        byte[] secret = ("AWS4" + accessSecret).getBytes();
-        byte[] date = sign(dateStamp, secret, SigningAlgorithm.HmacSHA256);
-        byte[] region = sign(regionName, date, SigningAlgorithm.HmacSHA256);
-        byte[] service = sign(serviceName, region, SigningAlgorithm.HmacSHA256);
-        byte[] signing = sign("aws4_request", service, SigningAlgorithm.HmacSHA256);
-
-        byte[] signatureBytes = sign(stringToSign.getBytes(), signing, SigningAlgorithm.HmacSHA256);
+        StringBuilder builder = getStringBuilder();
+        appendCanonicalRequest(builder, request, contentSha256, parameters, filteredHeaders);
+        
+        if (logger.isDebugEnabled()) {
+        	logger.debug("AWS4 Canonical Request: '\"" + builder + "\"");
+        }
+        
+        String canonicalRequestHash = BinaryUtils.toHex(hash(builder.toString()));
+        
+        builder.setLength(0);
+        builder.append("AWS4-").append(algorithm).append('\n').append(dateTime).append('\n').append(scope).append('\n').append(canonicalRequestHash);
+        
+        String stringToSign = builder.toString();
+        
+        if (logger.isDebugEnabled()) {
+        	logger.debug("AWS4 String to Sign: '\"" + stringToSign + "\"");
+        }
 
+        byte[] signatureBytes = sign(stringToSign.getBytes(DEFAULT_ENCODING), getSigningKeySpec(accessSecret, dateStamp, regionName, serviceName));
 
         String signature= BinaryUtils.toHex(signatureBytes);
         
         return signature;
     }
     
+    /**
+     * Derive the SigV4 signing key, i.e. HMAC("AWS4" + secret, date) chained with region, service and "aws4_request"
+     * @param accessSecret
+     * @param dateStamp yyyyMMdd
+     * @param regionName
+     * @param serviceName
+     * @return signing key
+     */
+    public static byte[] getSigningKey(String accessSecret, String dateStamp, String regionName, String serviceName) {
+    	return getSigningKeySpec(accessSecret, dateStamp, regionName, serviceName).getEncoded();
+    }
+    
+    private static SecretKeySpec getSigningKeySpec(final String accessSecret, final String dateStamp, final String regionName, final String serviceName) {
+    	
+    	String cacheKey = dateStamp + "/" + regionName + "/" + serviceName + "/" + accessSecret;
+    	SecretKeySpec key = signingKeys.getIfPresent(cacheKey);
+    	
+    	if (key != null) {
+    		return key;
+    	}
+    	
+    	return signingKeys.getAndSetIfNotPresent(cacheKey, new Callable<SecretKeySpec>() {
+    		@Override
+    		public SecretKeySpec call() throws UnsupportedEncodingException {
+    	        byte[] secret = ("AWS4" + accessSecret).getBytes(DEFAULT_ENCODING);
+    	        byte[] date = sign(dateStamp, secret, SigningAlgorithm.HmacSHA256);
+    	        byte[] region = sign(regionName, date, SigningAlgorithm.HmacSHA256);
+    	        byte[] service = sign(serviceName, region, SigningAlgorithm.HmacSHA256);
+    	        byte[] signing = sign("aws4_request", service, SigningAlgorithm.HmacSHA256);
+    	        return new SecretKeySpec(signing, SigningAlgorithm.HmacSHA256.toString());
+    		}
+    	}, SIGNING_KEY_EXPIRATION_MS);
+    }
+    
     public static byte[] sign(String stringData, byte[] key, SigningAlgorithm algorithm) throws AmazonClientException {
         try {
             byte[] data = stringData.getBytes("UTF-8");
@@ -260,6 +343,11 @@ public class AuthUtil {
     }
 
     protected static byte[] sign(byte[] data, byte[] key, SigningAlgorithm algorithm) throws AmazonClientException {
+        
+    	if (algorithm == SigningAlgorithm.HmacSHA256) {
+        	return sign(data, new SecretKeySpec(key, algorithm.toString()));
+        }
+    	
         try {
             Mac mac = Mac.getInstance(algorithm.toString());
             mac.init(new SecretKeySpec(key, algorithm.toString()));
@@ -269,40 +357,103 @@ public class AuthUtil {
         }
     }
     
-    protected static String getStringToSign(String algorithm, String dateTime, String scope, String canonicalRequest) {
-        String stringToSign =
-                algorithm + "\n" +
-                        dateTime + "\n" +
-                        scope + "\n" +
-                        BinaryUtils.toHex(hash(canonicalRequest));
-        logger.debug("AWS4 String to Sign: '\"" + stringToSign + "\"");
-        return stringToSign;
+    private static byte[] sign(byte[] data, SecretKeySpec key) throws AmazonClientException {
+        try {
+            Mac mac = hmacSha256.get();
+            mac.init(key);
+            return mac.doFinal(data);
+        } catch (Exception e) {
+            throw new AmazonClientException("Unable to calculate a request signature: " + e.getMessage(), e);
+        }
     }
-
+    
     public static byte[] hash(String text) throws AmazonClientException {
         try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(text.getBytes("UTF-8"));
-            return md.digest();
+            MessageDigest md = sha256.get();
+            md.reset();
+            return md.digest(text.getBytes("UTF-8"));
         } catch (Exception e) {
             throw new AmazonClientException("Unable to compute hash while signing request: " + e.getMessage(), e);
         }
     }
     
-    protected static String getCanonicalRequest(HttpServletRequest request, String contentSha256, Map<String, String> parameters, Map<String, String> headers) {
-
+    /**
+     * @return empty string builder reused by the calling thread
+     */
+    private static StringBuilder getStringBuilder() {
+    	
+    	StringBuilder builder = stringBuilder.get();
+    	
+    	// don't hold on to the buffer of an unusually large request
+    	if (builder.capacity() > MAX_RETAINED_BUILDER_CAPACITY) {
+    		builder = new StringBuilder(INITIAL_BUILDER_CAPACITY);
+    		stringBuilder.set(builder);
+    	}
+    	
+    	builder.setLength(0);
+    	
+    	return builder;
+    }
+    
+    /**
+     * Append the canonical request in one pass over the signed headers instead of building and concatenating
+     * the individual parts
+     */
+    protected static void appendCanonicalRequest(StringBuilder builder, HttpServletRequest request, String contentSha256, Map<String, String> parameters, Map<String, String> headers) {
 
+    	List<String> sortedHeaders = new ArrayList<String>(headers.keySet());
+        Collections.sort(sortedHeaders, String.CASE_INSENSITIVE_ORDER);
     	
-        String canonicalRequest = null;
-        canonicalRequest=request.getMethod() + "\n" +
-						getResourcePath(request)+"\n"+
-						getCanonicalizedQueryString(request, parameters) + "\n" +
-                        getCanonicalizedHeaderString(headers) + "\n" +
-                        getSignedHeadersString(headers) + "\n" +
-                        contentSha256;
-        logger.debug("AWS4 Canonical Request: '\"" + canonicalRequest + "\"");
+        builder.append(request.getMethod()).append('\n');
+        builder.append(getResourcePath(request)).append('\n');
+        builder.append(getCanonicalizedQueryString(request, parameters)).append('\n');
         
-        return canonicalRequest;
+        for (String header : sortedHeaders) {
+        	appendCollapsed(builder, header, true);
+        	builder.append(':');
+        	appendCollapsed(builder, headers.get(header), false);
+        	builder.append('\n');
+        }
+        
+        builder.append('\n');
+        
+        for (int i = 0; i < sortedHeaders.size(); i++) {
+        	if (i > 0) {
+        		builder.append(';');
+        	}
+        	appendLowerCase(builder, sortedHeaders.get(i));
+        }
+        
+        builder.append('\n').append(contentSha256);
+    }
+    
+    /**
+     * Append value with every run of whitespace replaced by a single space, same as replaceAll("\\s+", " ")
+     */
+    private static void appendCollapsed(StringBuilder builder, String value, boolean lowerCase) {
+    	
+    	boolean inWhitespace = false;
+    	
+    	for (int i = 0; i < value.length(); i++) {
+    		
+    		char c = value.charAt(i);
+    		
+    		if (c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r') {
+    			if (!inWhitespace) {
+    				builder.append(' ');
+    				inWhitespace = true;
+    			}
+    		} else {
+    			builder.append(lowerCase ? Character.toLowerCase(c) : c);
+    			inWhitespace = false;
+    		}
+    	}
+    }
+    
+    private static void appendLowerCase(StringBuilder builder, String value) {
+    	for (int i = 0; i < value.length(); i++) {
+    		builder.append(Character.toLowerCase(value.charAt(i)));
+    	}
     }
    
     protected static String getCanonicalizedQueryString(HttpServletRequest request, Map <String, String> parameters) {
@@ -397,35 +548,6 @@ public class AuthUtil {
         }
     }
     
-    protected static String getCanonicalizedHeaderString(Map<String, String> headers) {
-        List<String> sortedHeaders = new ArrayList<String>();
-        sortedHeaders.addAll(headers.keySet());
-        Collections.sort(sortedHeaders, String.CASE_INSENSITIVE_ORDER);
-
-        StringBuilder buffer = new StringBuilder();
-        for (String header : sortedHeaders) {
-            buffer.append(header.toLowerCase().replaceAll("\\s+", " ") + ":" + headers.get(header).replaceAll("\\s+", " "));
-            buffer.append("\n");
-        }
-
-        return buffer.toString();
-    }
-    
-    protected static String getSignedHeadersString(Map<String, String> headers) {
-        List<String> sortedHeaders = new ArrayList<String>();
-        sortedHeaders.addAll(headers.keySet());
-        Collections.sort(sortedHeaders, String.CASE_INSENSITIVE_ORDER);
-
-        StringBuilder buffer = new StringBuilder();
-        for (String header : sortedHeaders) {
-            if (buffer.length() > 0) buffer.append(";");
-            buffer.append(header.toLowerCase());
-        }
-
-        return buffer.toString();
-    }
-    
-
     private static String normalizeQueryString(Map<String, String> parameters) throws UnsupportedEncodingException {
 
         SortedMap<String, String> sorted = new TreeMap<String, String>();
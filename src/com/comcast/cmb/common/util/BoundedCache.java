@@ -0,0 +1,605 @@
+/**
+ * Copyright 2012 Comcast Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.comcast.cmb.common.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Size bounded cache of key, value pairs with an expiration on the value. Drop-in replacement for ExpiringCache
+ * which does not give up once it is full.
+ *
+ * Lookups go to a ConcurrentHashMap and only record the access in a lossy buffer. The buffer is replayed under a
+ * lock into an LRU list and a frequency sketch, together with every insert. Once the cache is over its limit the
+ * least recently used entry is evicted, unless the new entry has been requested less often than that entry, in which
+ * case the new entry is dropped instead (TinyLFU admission) so one-off keys cannot flush out hot ones. Either way the
+ * caller gets its value. Expired entries are reloaded on access and cleaned up a few at a time from the cold end of
+ * the LRU list as part of the same maintenance.
+ *
+ * Optionally entries are reloaded in the background once refreshAheadPercent of their expiration time has passed,
+ * while callers keep getting the current value, and expired entries are served for up to staleWhileRevalidateMS more
+ * while a background reload is running. A null value (not found) can be kept for a shorter negativeExpirationMS.
+ *
+ * K - the key type
+ * V - the Value type
+ *
+ * Class is thread-safe
+ */
+public final class BoundedCache<K, V> {
+
+    private static final Logger logger = Logger.getLogger(BoundedCache.class);
+
+    private static final int READ_BUFFER_SIZE = 128;
+    private static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+    private static final int EXPIRY_SCAN_LIMIT = 16;
+
+    // background reloads of all caches, reloads that do not fit are skipped and retried on a later access
+    private static final ThreadPoolExecutor refreshExecutor = new ThreadPoolExecutor(2, 2, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(1000), new ThreadFactoryBuilder().setNameFormat("cache-refresh-%d").setDaemon(true).build());
+
+    private final String name;
+    private final int cacheKeysLimit;
+    private final int refreshAheadPercent;
+    private final int staleWhileRevalidateMS;
+    private final int negativeExpirationMS;
+
+    private final ConcurrentHashMap<K, Node<K, V>> cache = new ConcurrentHashMap<K, Node<K, V>>();
+
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    // guarded by evictionLock
+    private final Node<K, V> lru = new Node<K, V>(null, null, 0, 0);
+    private final FrequencySketch sketch;
+    private int numLinked = 0;
+
+    private final AtomicReferenceArray<Node<K, V>> readBuffer = new AtomicReferenceArray<Node<K, V>>(READ_BUFFER_SIZE);
+    private final AtomicLong readBufferWrites = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+
+    /**
+     * @param name name of the cache used in logs and stats
+     * @param cacheKeysLimit The maximum number of keys in the cache
+     */
+    public BoundedCache(String name, int cacheKeysLimit) {
+        this(name, cacheKeysLimit, 0, 0, -1);
+    }
+
+    /**
+     * @param name name of the cache used in logs and stats
+     * @param cacheKeysLimit The maximum number of keys in the cache
+     * @param refreshAheadPercent reload in the background after this percentage of the expiration time, 0 to disable
+     * @param staleWhileRevalidateMS serve expired values for this long while reloading in the background, 0 to disable
+     * @param negativeExpirationMS expiration time in milliseconds of null values if shorter than the regular one, -1 to disable
+     */
+    public BoundedCache(String name, int cacheKeysLimit, int refreshAheadPercent, int staleWhileRevalidateMS, int negativeExpirationMS) {
+        this.name = name;
+        this.cacheKeysLimit = Math.max(1, cacheKeysLimit);
+        this.refreshAheadPercent = Math.max(0, Math.min(100, refreshAheadPercent));
+        this.staleWhileRevalidateMS = Math.max(0, staleWhileRevalidateMS);
+        this.negativeExpirationMS = negativeExpirationMS;
+        this.sketch = new FrequencySketch(this.cacheKeysLimit);
+        lru.prev = lru;
+        lru.next = lru;
+    }
+
+    private static final class Node<K, V> {
+
+        final K key;
+        final FutureTask<V> future;
+        final long createdTimestamp;
+        volatile int exp;
+        final AtomicBoolean refreshing = new AtomicBoolean();
+
+        // guarded by evictionLock
+        Node<K, V> prev;
+        Node<K, V> next;
+
+        Node(K key, FutureTask<V> future, long createdTimestamp, int exp) {
+            this.key = key;
+            this.future = future;
+            this.createdTimestamp = createdTimestamp;
+            this.exp = exp;
+        }
+
+        boolean isExpired(long now) {
+            return createdTimestamp + exp < now;
+        }
+
+        /**
+         * @return true if the value was loaded without an exception and is not null
+         */
+        boolean hasValue() {
+            if (!future.isDone()) {
+                return false;
+            }
+            try {
+                return future.get() != null;
+            } catch (Exception ex) {
+                return false;
+            }
+        }
+
+        boolean isLinked() {
+            return next != null;
+        }
+    }
+
+    /**
+     * Count-min sketch of 4 bit counters approximating how often each key was requested recently. All counters are
+     * halved after 10 * width additions so old popularity fades. Not thread-safe, only used under evictionLock.
+     */
+    private static final class FrequencySketch {
+
+        private static final int MAX_WIDTH = 1 << 16;
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = { 0x97cb3127, 0xc3a5c85c, 0x9ae16a3b, 0x2f90404f };
+
+        private final byte[][] table;
+        private final int mask;
+        private final int sampleSize;
+        private int additions = 0;
+
+        FrequencySketch(int maximumSize) {
+            int width = Integer.highestOneBit(Math.max(16, Math.min(MAX_WIDTH, maximumSize)) - 1) << 1;
+            table = new byte[SEEDS.length][width];
+            mask = width - 1;
+            sampleSize = 10 * width;
+        }
+
+        private int indexOf(int hash, int row) {
+            int h = hash * SEEDS[row];
+            h ^= h >>> 17;
+            return h & mask;
+        }
+
+        void increment(Object key) {
+
+            int hash = key.hashCode();
+
+            for (int i = 0; i < SEEDS.length; i++) {
+                int idx = indexOf(hash, i);
+                if (table[i][idx] < MAX_COUNT) {
+                    table[i][idx]++;
+                }
+            }
+
+            if (++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        int frequency(Object key) {
+
+            int hash = key.hashCode();
+            int frequency = MAX_COUNT;
+
+            for (int i = 0; i < SEEDS.length; i++) {
+                frequency = Math.min(frequency, table[i][indexOf(hash, i)]);
+            }
+
+            return frequency;
+        }
+
+        private void reset() {
+
+            for (byte[] row : table) {
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = (byte)(row[i] >>> 1);
+                }
+            }
+
+            additions /= 2;
+        }
+    }
+
+    /**
+     * @param key
+     * @return true if cache contains key whose value has not yet expired, false otherwise
+     */
+    public boolean containsKey(K key) {
+        Node<K, V> node = cache.get(key);
+        return node != null && !node.isExpired(System.currentTimeMillis());
+    }
+
+    /**
+     * Look up a key without loading it. Unlike getAndSetIfNotPresent this needs no Callable and does not
+     * start a refresh, so hot paths can try it first without allocating.
+     * @param key
+     * @return the cached value or null if key is not cached, expired, still loading or failed to load
+     */
+    public V getIfPresent(K key) {
+
+        Node<K, V> node = cache.get(key);
+
+        if (node == null || node.isExpired(System.currentTimeMillis()) || !node.future.isDone()) {
+            return null;
+        }
+
+        V value;
+
+        try {
+            value = node.future.get();
+        } catch (Exception ex) {
+            return null;
+        }
+
+        if (value != null) {
+            hits.incrementAndGet();
+            afterRead(node);
+        }
+
+        return value;
+    }
+
+    /**
+     * Remove a key from the cache
+     * @param key
+     */
+    public void remove(K key) {
+
+        if (key == null) {
+            return;
+        }
+
+        Node<K, V> node = cache.remove(key);
+
+        if (node != null) {
+            evictionLock.lock();
+            try {
+                unlink(node);
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return number of keys currently in the cache, including expired keys not yet cleaned up
+     */
+    public int size() {
+        return cache.size();
+    }
+
+    /**
+     * @param key THe key
+     * @param valueGetter The Caller that will get the V value if none is cached or if previous one expired
+     * @param exp THe expiration time in milliseconds
+     * @return The Value V that was cached or that just got loaded
+     * Note: method will block if we need to call valueGetter, concurrent callers for the same key wait for the same call
+     */
+    public V getAndSetIfNotPresent(K key, Callable<V> valueGetter, int exp) {
+
+        while (true) {
+
+            long now = System.currentTimeMillis();
+            Node<K, V> existing = cache.get(key);
+
+            if (existing != null && !existing.isExpired(now)) {
+                hits.incrementAndGet();
+                afterRead(existing);
+                if (refreshAheadPercent > 0 && now - existing.createdTimestamp >= (long)existing.exp * refreshAheadPercent / 100) {
+                    refresh(existing, valueGetter, exp);
+                }
+                return getValue(existing, valueGetter);
+            }
+
+            if (existing != null && now <= existing.createdTimestamp + existing.exp + staleWhileRevalidateMS && existing.hasValue()) {
+                staleHits.incrementAndGet();
+                afterRead(existing);
+                refresh(existing, valueGetter, exp);
+                return getValue(existing, valueGetter);
+            }
+
+            Node<K, V> node = new Node<K, V>(key, new FutureTask<V>(valueGetter), now, exp);
+
+            if (existing == null) {
+                existing = cache.putIfAbsent(key, node);
+                if (existing != null) {
+                    // someone else is loading this key, wait for theirs
+                    hits.incrementAndGet();
+                    afterRead(existing);
+                    return getValue(existing, valueGetter);
+                }
+            } else if (cache.replace(key, existing, node)) {
+                expirations.incrementAndGet();
+            } else {
+                // someone beat us to it. Lets do this again
+                continue;
+            }
+
+            misses.incrementAndGet();
+            afterWrite(existing, node);
+            load(node);
+
+            return getValue(node, valueGetter);
+        }
+    }
+
+    private void load(Node<K, V> node) {
+
+        node.future.run();
+
+        if (negativeExpirationMS >= 0 && node.future.isDone() && !node.hasValue()) {
+            try {
+                if (node.future.get() == null) {
+                    node.exp = Math.min(node.exp, negativeExpirationMS);
+                }
+            } catch (Exception ex) {
+                // failed loads keep the regular expiration
+            }
+        }
+    }
+
+    /**
+     * Reload node in the background and swap in the new value unless the key was removed or replaced meanwhile.
+     * At most one reload per node runs at a time.
+     */
+    private void refresh(final Node<K, V> node, final Callable<V> valueGetter, final int exp) {
+
+        if (!node.future.isDone() || !node.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+
+            refreshExecutor.execute(new Runnable() {
+                public void run() {
+
+                    Node<K, V> fresh = new Node<K, V>(node.key, new FutureTask<V>(valueGetter), System.currentTimeMillis(), exp);
+                    load(fresh);
+
+                    try {
+                        fresh.future.get();
+                    } catch (Exception ex) {
+                        // keep the current value until it expires, a later access will try again
+                        logger.warn("event=cache_refresh_failed cache=" + name + " key=" + node.key, ex);
+                        node.refreshing.set(false);
+                        return;
+                    }
+
+                    if (cache.replace(node.key, node, fresh)) {
+                        refreshes.incrementAndGet();
+                        afterWrite(node, fresh);
+                    }
+                }
+            });
+
+        } catch (RejectedExecutionException ex) {
+            node.refreshing.set(false);
+        }
+    }
+
+    private V getValue(Node<K, V> node, Callable<V> valueGetter) {
+        try {
+            return node.future.get(); //will block till valueGetter returns a value
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for value from Callable:" + valueGetter, e);
+        } catch (ExecutionException e) {
+            logger.error("event=no_value_getter_from_callable cache=" + name, e);
+            throw new IllegalStateException("Could not get value from user passed Callable:" + valueGetter, e);
+        }
+    }
+
+    private void afterRead(Node<K, V> node) {
+
+        long idx = readBufferWrites.getAndIncrement();
+        readBuffer.lazySet((int)(idx & READ_BUFFER_MASK), node);
+
+        // replay once per buffer length, if the lock is busy the next writer or reader will do it
+        if ((idx & READ_BUFFER_MASK) == READ_BUFFER_MASK && evictionLock.tryLock()) {
+            try {
+                drainReadBuffer();
+                expireColdEntries();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    private void afterWrite(Node<K, V> replaced, Node<K, V> node) {
+
+        evictionLock.lock();
+
+        try {
+
+            drainReadBuffer();
+
+            if (replaced != null) {
+                unlink(replaced);
+            }
+
+            sketch.increment(node.key);
+
+            // node may already have been removed again by a concurrent remove
+            if (cache.get(node.key) == node) {
+                linkLast(node);
+            }
+
+            expireColdEntries();
+            evict(node);
+
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    // guarded by evictionLock
+    private void drainReadBuffer() {
+
+        for (int i = 0; i < READ_BUFFER_SIZE; i++) {
+
+            Node<K, V> node = readBuffer.getAndSet(i, null);
+
+            if (node != null) {
+
+                sketch.increment(node.key);
+
+                if (node.isLinked()) {
+                    unlink(node);
+                    linkLast(node);
+                }
+            }
+        }
+    }
+
+    // guarded by evictionLock
+    private void expireColdEntries() {
+
+        long now = System.currentTimeMillis();
+        Node<K, V> node = lru.next;
+
+        for (int i = 0; i < EXPIRY_SCAN_LIMIT && node != lru; i++) {
+
+            Node<K, V> next = node.next;
+
+            if (node.isExpired(now)) {
+                unlink(node);
+                if (cache.remove(node.key, node)) {
+                    expirations.incrementAndGet();
+                }
+            }
+
+            node = next;
+        }
+    }
+
+    // guarded by evictionLock
+    private void evict(Node<K, V> candidate) {
+
+        while (numLinked > cacheKeysLimit) {
+
+            Node<K, V> victim = lru.next;
+
+            if (candidate.isLinked() && victim != candidate && sketch.frequency(candidate.key) <= sketch.frequency(victim.key)) {
+                // the new key is not more popular than the coldest one, keep the cold one
+                victim = candidate;
+                rejections.incrementAndGet();
+            } else {
+                evictions.incrementAndGet();
+            }
+
+            unlink(victim);
+            cache.remove(victim.key, victim);
+        }
+    }
+
+    // guarded by evictionLock
+    private void linkLast(Node<K, V> node) {
+        node.prev = lru.prev;
+        node.next = lru;
+        lru.prev.next = node;
+        lru.prev = node;
+        numLinked++;
+    }
+
+    // guarded by evictionLock
+    private void unlink(Node<K, V> node) {
+
+        if (!node.isLinked()) {
+            return;
+        }
+
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = null;
+        node.next = null;
+        numLinked--;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return number of cached keys removed to make room for new ones
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * @return number of new keys not kept because they were requested less often than the coldest cached key
+     */
+    public long getRejectionCount() {
+        return rejections.get();
+    }
+
+    public long getExpirationCount() {
+        return expirations.get();
+    }
+
+    /**
+     * @return number of values reloaded in the background
+     */
+    public long getRefreshCount() {
+        return refreshes.get();
+    }
+
+    /**
+     * @return number of expired values served while reloading in the background
+     */
+    public long getStaleHitCount() {
+        return staleHits.get();
+    }
+
+    /**
+     * @return size, hits, misses, evictions, rejections, expirations, refreshes and stale hits of this cache
+     */
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<String, Long>();
+        stats.put("size", (long)size());
+        stats.put("hits", getHitCount());
+        stats.put("misses", getMissCount());
+        stats.put("evictions", getEvictionCount());
+        stats.put("rejections", getRejectionCount());
+        stats.put("expirations", getExpirationCount());
+        stats.put("refreshes", getRefreshCount());
+        stats.put("staleHits", getStaleHitCount());
+        return stats;
+    }
+}
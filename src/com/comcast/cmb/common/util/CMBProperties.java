@@ -158,6 +158,10 @@ public class CMBProperties {
     
     private final int cqsCacheExpiring;
     private final int cqsCacheSizeLimit;
+    
+    private final int cacheRefreshAheadPercent;
+    private final int cacheStaleWhileRevalidate;
+    private final int cacheNegativeExpiringMS;
 
     private final int rollingWindowTimeSec;    
     
@@ -168,10 +172,38 @@ public class CMBProperties {
     private volatile int redisRevisibleFrequencySec;
     private final int redisRevisibleSetFrequencySec;
     private final int redisExpireTTLSec;
+    private final int redisRetentionSweepFrequencySec;
+    private final boolean redisMessageCountersEnabled;
+    private final int redisMessageCountersFlushMS;
+    private final int redisMessageCountersReconcileSec;
+    private final int redisCacheStateLeaseMS;
+    private final boolean redisCompactMemIds;
+    private final int redisFillerConcurrency;
+    private final int redisFillerBatchSize;
+    private final boolean redisPayloadCacheEnabled;
+    private final int redisPayloadCacheMaxMessageSize;
+    private final boolean cqsCompactMessageFormat;
+    private final String cqsCompressionCodec;
+    private final int cqsCompressionMinSize;
+    private final boolean cqsGroupCommitEnabled;
+    private final int cqsGroupCommitMaxDelayMS;
+    private final int cqsGroupCommitMaxMessages;
+    private final int cqsGroupCommitThreads;
+    private final int cqsPartitionBucketMinutes;
+    private final long cqsPartitionBucketLegacyCutoverMS;
     
     private final int cassandraThriftSocketTimeOutMS;
+    private final int cassandraAsyncThreads;
     private final int astyanaxMaxConnectionsPerNode;
     private final int astyanaxConnectionWaitTimeOutMS;
+    private final String cassandraClient;
+    private final int cqlNativePort;
+    private final int cqlConnectionsPerNode;
+    private final int cqlMaxRequestsPerConnection;
+    private final boolean cassandraHedgedReadsEnabled;
+    private final int cassandraHedgedReadsPercentile;
+    private final int cassandraHedgedReadsMinDelayMS;
+    private final int cassandraHedgedReadsBudgetPercent;
     
     private final int cqsNumberOfQueuePartitions;
         
@@ -352,6 +384,10 @@ public class CMBProperties {
             cqsCacheExpiring = Integer.parseInt(props.getProperty("cmb.cqs.cacheExpiringInSeconds", "60"));
             cqsCacheSizeLimit = Integer.parseInt(props.getProperty("cmb.cqs.cacheSizeLimit", "1000"));
             
+            cacheRefreshAheadPercent = Integer.parseInt(props.getProperty("cmb.cache.refreshAheadPercent", "80"));
+            cacheStaleWhileRevalidate = Integer.parseInt(props.getProperty("cmb.cache.staleWhileRevalidateInSeconds", "10"));
+            cacheNegativeExpiringMS = Integer.parseInt(props.getProperty("cmb.cache.negativeExpiringMS", "500"));
+            
             cqsNumberOfQueuePartitions = Integer.parseInt(props.getProperty("cmb.cqs.numberOfQueuePartitions", "100"));
             
             rollingWindowTimeSec = Integer.parseInt(props.getProperty("cmb.rollingWindowSizeSec", "600"));
@@ -361,12 +397,40 @@ public class CMBProperties {
             redisFillerThreads = Integer.parseInt(props.getProperty("cmb.redis.fillerThreads", "5"));
             redisRevisibleThreads = Integer.parseInt(props.getProperty("cmb.redis.revisibleThreads", "3"));
             redisExpireTTLSec = Integer.parseInt(props.getProperty("cmb.redis.expireTTLSec", "1209600"));
+            redisRetentionSweepFrequencySec = Integer.parseInt(props.getProperty("cmb.redis.retentionSweepFrequencySec", "5"));
+            redisMessageCountersEnabled = Boolean.parseBoolean(props.getProperty("cmb.redis.messageCountersEnabled", "false"));
+            redisMessageCountersFlushMS = Integer.parseInt(props.getProperty("cmb.redis.messageCountersFlushMS", "1000"));
+            redisMessageCountersReconcileSec = Integer.parseInt(props.getProperty("cmb.redis.messageCountersReconcileSec", "60"));
+            redisCacheStateLeaseMS = Integer.parseInt(props.getProperty("cmb.redis.cacheStateLeaseMS", "2000"));
+            redisCompactMemIds = Boolean.parseBoolean(props.getProperty("cmb.redis.compactMemIds", "false"));
+            redisFillerConcurrency = Integer.parseInt(props.getProperty("cmb.redis.fillerConcurrency", "4"));
+            redisFillerBatchSize = Integer.parseInt(props.getProperty("cmb.redis.fillerBatchSize", "1000"));
+            redisPayloadCacheEnabled = Boolean.parseBoolean(props.getProperty("cmb.redis.payloadCacheEnabled", "false"));
+            redisPayloadCacheMaxMessageSize = Integer.parseInt(props.getProperty("cmb.redis.payloadCacheMaxMessageSize", "8192"));
+            cqsCompactMessageFormat = Boolean.parseBoolean(props.getProperty("cmb.cqs.compactMessageFormat", "false"));
+            cqsCompressionCodec = props.getProperty("cmb.cqs.compressionCodec", "LZ4");
+            cqsCompressionMinSize = Integer.parseInt(props.getProperty("cmb.cqs.compressionMinSize", "512"));
+            cqsGroupCommitEnabled = Boolean.parseBoolean(props.getProperty("cmb.cqs.groupCommitEnabled", "false"));
+            cqsGroupCommitMaxDelayMS = Integer.parseInt(props.getProperty("cmb.cqs.groupCommitMaxDelayMS", "2"));
+            cqsGroupCommitMaxMessages = Integer.parseInt(props.getProperty("cmb.cqs.groupCommitMaxMessages", "100"));
+            cqsGroupCommitThreads = Integer.parseInt(props.getProperty("cmb.cqs.groupCommitThreads", "4"));
+            cqsPartitionBucketMinutes = Integer.parseInt(props.getProperty("cmb.cqs.partitionBucketMinutes", "0"));
+            cqsPartitionBucketLegacyCutoverMS = Long.parseLong(props.getProperty("cmb.cqs.partitionBucketLegacyCutoverMS", "0"));
             redisRevisibleFrequencySec = Integer.parseInt(props.getProperty("cmb.redis.revisibleFrequencySec", "10"));
             redisRevisibleSetFrequencySec = Integer.parseInt(props.getProperty("cmb.redis.revisibleSetFrequencySec", "1"));
             
             cassandraThriftSocketTimeOutMS = Integer.parseInt(props.getProperty("cmb.cassandra.thriftSocketTimeOutMS", "10000"));
+            cassandraAsyncThreads = Integer.parseInt(props.getProperty("cmb.cassandra.asyncThreads", "16"));
             astyanaxMaxConnectionsPerNode = Integer.parseInt(props.getProperty("cmb.astyanax.maxConnectionsPerNode", "10"));
             astyanaxConnectionWaitTimeOutMS = Integer.parseInt(props.getProperty("cmb.astyanax.connectionWaitTimeOutMS","2000"));
+            cassandraClient = props.getProperty("cmb.cassandra.client", "astyanax");
+            cqlNativePort = Integer.parseInt(props.getProperty("cmb.cql.nativePort", "9042"));
+            cqlConnectionsPerNode = Integer.parseInt(props.getProperty("cmb.cql.connectionsPerNode", "2"));
+            cqlMaxRequestsPerConnection = Integer.parseInt(props.getProperty("cmb.cql.maxRequestsPerConnection", "128"));
+            cassandraHedgedReadsEnabled = Boolean.parseBoolean(props.getProperty("cmb.cassandra.hedgedReads.enabled", "false"));
+            cassandraHedgedReadsPercentile = Integer.parseInt(props.getProperty("cmb.cassandra.hedgedReads.percentile", "95"));
+            cassandraHedgedReadsMinDelayMS = Integer.parseInt(props.getProperty("cmb.cassandra.hedgedReads.minDelayMS", "5"));
+            cassandraHedgedReadsBudgetPercent = Integer.parseInt(props.getProperty("cmb.cassandra.hedgedReads.budgetPercent", "5"));
             
             numEPPubJobProducers = Integer.parseInt(props.getProperty("cmb.cns.publisher.numProducers", "8"));
             numEPPubJobConsumers = Integer.parseInt(props.getProperty("cmb.cns.publisher.numConsumers", "4"));
@@ -609,6 +673,18 @@ public class CMBProperties {
 	public int getCQSCacheSizeLimit() {
 		return cqsCacheSizeLimit;
 	}
+
+	public int getCacheRefreshAheadPercent() {
+		return cacheRefreshAheadPercent;
+	}
+
+	public int getCacheStaleWhileRevalidate() {
+		return cacheStaleWhileRevalidate;
+	}
+
+	public int getCacheNegativeExpiringMS() {
+		return cacheNegativeExpiringMS;
+	}
 	
 	public String getHectorBalancingPolicy(){
 		return hectorBalancingPolicy;
@@ -626,6 +702,10 @@ public class CMBProperties {
         return cassandraThriftSocketTimeOutMS;
     }
 
+    public int getCassandraAsyncThreads() {
+        return cassandraAsyncThreads;
+    }
+
     public int getAstyanaxMaxConnectionsPerNode() {
         return astyanaxMaxConnectionsPerNode;
     }
@@ -634,6 +714,38 @@ public class CMBProperties {
         return astyanaxConnectionWaitTimeOutMS;
     }
     
+    public String getCassandraClient() {
+        return cassandraClient;
+    }
+    
+    public int getCQLNativePort() {
+        return cqlNativePort;
+    }
+    
+    public int getCQLConnectionsPerNode() {
+        return cqlConnectionsPerNode;
+    }
+    
+    public int getCQLMaxRequestsPerConnection() {
+        return cqlMaxRequestsPerConnection;
+    }
+    
+    public boolean isCassandraHedgedReadsEnabled() {
+        return cassandraHedgedReadsEnabled;
+    }
+    
+    public int getCassandraHedgedReadsPercentile() {
+        return cassandraHedgedReadsPercentile;
+    }
+    
+    public int getCassandraHedgedReadsMinDelayMS() {
+        return cassandraHedgedReadsMinDelayMS;
+    }
+    
+    public int getCassandraHedgedReadsBudgetPercent() {
+        return cassandraHedgedReadsBudgetPercent;
+    }
+    
     public int getCNSNumPublishJobQueues() {
         return numPublishJobQs;
     }
@@ -895,4 +1007,80 @@ public class CMBProperties {
 	public boolean useInlineApiCalls() {
 		return cmbUseInlineApiCalls;
 	}
+	
+	public int getRedisRetentionSweepFrequencySec() {
+		return redisRetentionSweepFrequencySec;
+	}
+	
+	public boolean isRedisMessageCountersEnabled() {
+		return redisMessageCountersEnabled;
+	}
+	
+	public int getRedisMessageCountersFlushMS() {
+		return redisMessageCountersFlushMS;
+	}
+	
+	public int getRedisMessageCountersReconcileSec() {
+		return redisMessageCountersReconcileSec;
+	}
+	
+	public int getRedisCacheStateLeaseMS() {
+		return redisCacheStateLeaseMS;
+	}
+	
+	public boolean isRedisCompactMemIds() {
+		return redisCompactMemIds;
+	}
+
+	public int getRedisFillerConcurrency() {
+		return redisFillerConcurrency;
+	}
+
+	public int getRedisFillerBatchSize() {
+		return redisFillerBatchSize;
+	}
+
+	public boolean isRedisPayloadCacheEnabled() {
+		return redisPayloadCacheEnabled;
+	}
+
+	public int getRedisPayloadCacheMaxMessageSize() {
+		return redisPayloadCacheMaxMessageSize;
+	}
+
+	public boolean isCQSCompactMessageFormat() {
+		return cqsCompactMessageFormat;
+	}
+
+	public String getCQSCompressionCodec() {
+		return cqsCompressionCodec;
+	}
+
+	public int getCQSCompressionMinSize() {
+		return cqsCompressionMinSize;
+	}
+
+	public boolean isCQSGroupCommitEnabled() {
+		return cqsGroupCommitEnabled;
+	}
+
+	public int getCQSGroupCommitMaxDelayMS() {
+		return cqsGroupCommitMaxDelayMS;
+	}
+
+	public int getCQSGroupCommitMaxMessages() {
+		return cqsGroupCommitMaxMessages;
+	}
+
+	public int getCQSGroupCommitThreads() {
+		return cqsGroupCommitThreads;
+	}
+
+	public int getCQSPartitionBucketMinutes() {
+		return cqsPartitionBucketMinutes;
+	}
+
+	public long getCQSPartitionBucketLegacyCutoverMS() {
+		return cqsPartitionBucketLegacyCutoverMS;
+	}
 }
@@ -32,7 +32,9 @@ import org.apache.log4j.Logger;
  * 
  * @author aseem
  * Class ia thread-safe
+ * @deprecated stops caching new keys once full, use BoundedCache
  */
+@Deprecated
 public final class ExpiringCache<K, V> {    
     
     private static final Logger logger = Logger.getLogger(ExpiringCache.class);    
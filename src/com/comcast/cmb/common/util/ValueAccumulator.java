@@ -31,6 +31,8 @@ public final class ValueAccumulator {
         CassandraTime,
         CassandraWrite,
         CassandraRead,
+        CassandraHedgedRead,
+        CassandraHedgeWin,
         RedisTime,
         CQSMonitorTime,
         CMBControllerPreHandleAction,
@@ -56,6 +56,6 @@ public abstract class CNSAction extends Action {
             return false;
         }
         
-        return policy.isAllowed(user, service + ":" + this.actionName);
+        return policy.isAllowed(user, service, this.actionName);
     }
 }
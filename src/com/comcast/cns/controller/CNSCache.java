@@ -16,13 +16,15 @@
 package com.comcast.cns.controller;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
 
+import com.comcast.cmb.common.controller.CacheInvalidationBus;
 import com.comcast.cmb.common.persistence.PersistenceFactory;
 import com.comcast.cmb.common.util.CMBProperties;
-import com.comcast.cmb.common.util.ExpiringCache;
-import com.comcast.cmb.common.util.ExpiringCache.CacheFullException;
+import com.comcast.cmb.common.util.BoundedCache;
 import com.comcast.cns.model.CNSSubscription;
 import com.comcast.cns.model.CNSTopic;
 import com.comcast.cns.model.CNSTopicAttributes;
@@ -36,15 +38,36 @@ import com.comcast.cns.persistence.ICNSTopicPersistence;
  */
 public class CNSCache {
 	
-    private static volatile ExpiringCache<String, CNSTopicAttributes> attributeCache = new ExpiringCache<String, CNSTopicAttributes>(CMBProperties.getInstance().getCNSCacheSizeLimit());
+    private static volatile BoundedCache<String, CNSTopicAttributes> attributeCache = new BoundedCache<String, CNSTopicAttributes>("cns_topic_attributes", CMBProperties.getInstance().getCNSCacheSizeLimit(), 
+    		CMBProperties.getInstance().getCacheRefreshAheadPercent(), CMBProperties.getInstance().getCacheStaleWhileRevalidate() * 1000, CMBProperties.getInstance().getCacheNegativeExpiringMS());
 	private static volatile ICNSAttributesPersistence attributeHandler = PersistenceFactory.getCNSAttributePersistence();
 
-    private static volatile ExpiringCache<String, List<CNSSubscription>> confirmedSubscriptionsCache = new ExpiringCache<String, List<CNSSubscription>>(CMBProperties.getInstance().getCNSCacheSizeLimit());
+    private static volatile BoundedCache<String, List<CNSSubscription>> confirmedSubscriptionsCache = new BoundedCache<String, List<CNSSubscription>>("cns_confirmed_subscriptions", CMBProperties.getInstance().getCNSCacheSizeLimit(), 
+    		CMBProperties.getInstance().getCacheRefreshAheadPercent(), CMBProperties.getInstance().getCacheStaleWhileRevalidate() * 1000, CMBProperties.getInstance().getCacheNegativeExpiringMS());
 	private static volatile ICNSSubscriptionPersistence subscriptionHandler = PersistenceFactory.getSubscriptionPersistence();
 	
-    private static ExpiringCache<String, CNSTopic> topicCache = new ExpiringCache<String, CNSTopic>(CMBProperties.getInstance().getCNSCacheSizeLimit());
+    private static BoundedCache<String, CNSTopic> topicCache = new BoundedCache<String, CNSTopic>("cns_topic", CMBProperties.getInstance().getCNSCacheSizeLimit(), 
+    		CMBProperties.getInstance().getCacheRefreshAheadPercent(), CMBProperties.getInstance().getCacheStaleWhileRevalidate() * 1000, CMBProperties.getInstance().getCacheNegativeExpiringMS());
     private static ICNSTopicPersistence topicHandler = PersistenceFactory.getTopicPersistence();
     
+    static {
+    	CacheInvalidationBus.register(CacheInvalidationBus.TOPIC, new CacheInvalidationBus.Invalidator() {
+    		public void invalidate(String topicArn) {
+    			removeTopic(topicArn);
+    		}
+    	});
+    	CacheInvalidationBus.register(CacheInvalidationBus.TOPIC_ATTRIBUTES, new CacheInvalidationBus.Invalidator() {
+    		public void invalidate(String topicArn) {
+    			removeTopicAttributes(topicArn);
+    		}
+    	});
+    	CacheInvalidationBus.register(CacheInvalidationBus.TOPIC_SUBSCRIPTIONS, new CacheInvalidationBus.Invalidator() {
+    		public void invalidate(String topicArn) {
+    			removeConfirmedSubscriptions(topicArn);
+    		}
+    	});
+    }
+    
 	
     private static class CNSTopicCallable implements Callable<CNSTopic> {
     	
@@ -168,18 +191,38 @@ public class CNSCache {
         }
     }
 
+    /**
+     * 
+     * @param topicArn
+     */
+    public static void removeConfirmedSubscriptions(String topicArn) {
+    	if (topicArn == null) {
+    		return;
+    	}
+    	confirmedSubscriptionsCache.remove(topicArn);
+    }
+
     public static List<CNSSubscription> getConfirmedSubscriptions(String topicArn) throws Exception {
 
     	List<CNSSubscription> subscriptions = null;
 
 		try {
 			subscriptions = confirmedSubscriptionsCache.getAndSetIfNotPresent(topicArn, new SubscriptionCallable(topicArn), CMBProperties.getInstance().getCNSCacheExpiring() * 1000);
-        } catch (CacheFullException ex1) {
-        	subscriptions = new SubscriptionCallable(topicArn).call();
-        } catch (Exception ex2) {
+        } catch (Exception ex) {
         	subscriptions = null;
         }
         
         return subscriptions;
     }
+    
+    /**
+     * @return hit, miss and eviction counts of each cache by cache name
+     */
+    public static Map<String, Map<String, Long>> getCacheStats() {
+    	Map<String, Map<String, Long>> stats = new LinkedHashMap<String, Map<String, Long>>();
+    	stats.put(topicCache.getName(), topicCache.getStats());
+    	stats.put(attributeCache.getName(), attributeCache.getStats());
+    	stats.put(confirmedSubscriptionsCache.getName(), confirmedSubscriptionsCache.getStats());
+    	return stats;
+    }
 }
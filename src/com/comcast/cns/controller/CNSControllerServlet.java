@@ -231,7 +231,7 @@ public class CNSControllerServlet extends CMBControllerServlet {
             
     		CNSTopicAttributes attributes = CNSCache.getTopicAttributes(topicArn);	        
             if (attributes != null) {
-                if (!actionMap.get(action).isActionAllowed(user, request, "CNS", new CMBPolicy(attributes.getPolicy()))) {
+                if (!actionMap.get(action).isActionAllowed(user, request, "CNS", CMBPolicy.getCachedPolicy(attributes.getPolicy()))) {
                     throw new CMBException(CMBErrorCodes.AccessDenied, "You don't have permission for " + actionMap.get(action).getName());
                 }
             }
@@ -50,5 +50,10 @@ public class CNSMonitor implements CNSMonitorMBean {
 	@Override
 	public void resetCallStats() {
 		CMBControllerServlet.initStats();
-	}	
+	}
+
+	@Override
+	public Map<String, Map<String, Long>> getCacheStats() {
+		return CNSCache.getCacheStats();
+	}
 }
@@ -41,4 +41,10 @@ public interface CNSMonitorMBean {
      * 
      */
     public void resetCallStats();
+    
+    /**
+     * 
+     * @return size, hits, misses, evictions, rejections and expirations of the topic and subscription caches
+     */
+    public Map<String, Map<String, Long>> getCacheStats();
 }
@@ -21,12 +21,12 @@ import java.util.Map;
 import org.apache.log4j.Logger;
 import org.json.JSONObject;
 
+import com.comcast.cmb.common.controller.CacheInvalidationBus;
 import com.comcast.cmb.common.persistence.AbstractDurablePersistence;
 import com.comcast.cmb.common.persistence.AbstractDurablePersistence.CMB_SERIALIZER;
 import com.comcast.cmb.common.persistence.AbstractDurablePersistence.CmbColumnSlice;
 import com.comcast.cmb.common.persistence.DurablePersistenceFactory;
 import com.comcast.cmb.common.persistence.PersistenceFactory;
-import com.comcast.cns.controller.CNSCache;
 import com.comcast.cns.model.CNSSubscription;
 import com.comcast.cns.model.CNSSubscriptionAttributes;
 import com.comcast.cns.model.CNSSubscriptionDeliveryPolicy;
@@ -58,7 +58,7 @@ public class CNSAttributesCassandraPersistence implements ICNSAttributesPersiste
 			PersistenceFactory.getTopicPersistence().updateTopicDisplayName(topicArn, topicAttributes.getDisplayName());
 		}
 		
-		CNSCache.removeTopicAttributes(topicArn);
+		CacheInvalidationBus.invalidate(CacheInvalidationBus.TOPIC_ATTRIBUTES, topicArn);
 	}
 
 	private Map<String, String> getColumnValues(CNSTopicAttributes topicAttributes) {
@@ -151,7 +151,7 @@ public class CNSAttributesCassandraPersistence implements ICNSAttributesPersiste
 
 		cassandraHandler.insertRow(AbstractDurablePersistence.CNS_KEYSPACE, subscriptionArn, columnFamilySubscriptionAttributes, getColumnValues(subscriptionAtributes), CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.STRING_SERIALIZER, null);
 		String topicArn = com.comcast.cns.util.Util.getCnsTopicArn(subscriptionArn);
-		CNSCache.removeTopicAttributes(topicArn);
+		CacheInvalidationBus.invalidate(CacheInvalidationBus.TOPIC_ATTRIBUTES, topicArn);
 	}
 
 	private Map<String, String> getColumnValues(CNSSubscriptionAttributes subscriptionAttributes) {
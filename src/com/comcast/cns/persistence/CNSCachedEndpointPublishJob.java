@@ -28,8 +28,7 @@ import org.apache.log4j.Logger;
 import com.comcast.cmb.common.persistence.PersistenceFactory;
 import com.comcast.cmb.common.util.CMBErrorCodes;
 import com.comcast.cmb.common.util.CMBException;
-import com.comcast.cmb.common.util.ExpiringCache;
-import com.comcast.cmb.common.util.ExpiringCache.CacheFullException;
+import com.comcast.cmb.common.util.BoundedCache;
 import com.comcast.cns.model.CNSEndpointPublishJob;
 import com.comcast.cns.model.CNSMessage;
 import com.comcast.cns.model.CNSSubscription;
@@ -48,7 +47,7 @@ import com.comcast.cns.util.Util;
 public class CNSCachedEndpointPublishJob extends CNSEndpointPublishJob {
 	
     private static Logger logger = Logger.getLogger(CNSCachedEndpointPublishJob.class);
-    private static final ExpiringCache<String, LinkedHashMap<String, CNSCachedEndpointSubscriptionInfo>> cache = new ExpiringCache<String, LinkedHashMap<String,CNSCachedEndpointSubscriptionInfo>>(1000);
+    private static final BoundedCache<String, LinkedHashMap<String, CNSCachedEndpointSubscriptionInfo>> cache = new BoundedCache<String, LinkedHashMap<String,CNSCachedEndpointSubscriptionInfo>>("cns_endpoint_subscription_infos", 1000);
     
     /**
      * 
@@ -60,8 +59,6 @@ public class CNSCachedEndpointPublishJob extends CNSEndpointPublishJob {
         LinkedHashMap<String, CNSCachedEndpointSubscriptionInfo> arnToSubInfo;
         try {
             arnToSubInfo = cache.getAndSetIfNotPresent(topicArn, new CachePopulator(topicArn), 60000);
-        } catch (CacheFullException e) {
-            arnToSubInfo = new CachePopulator(topicArn).call();
         } catch(IllegalStateException e) {
             if ((e.getCause() instanceof ExecutionException) && 
                 (e.getCause().getCause() instanceof TopicNotFoundException)) {
@@ -111,8 +108,6 @@ public class CNSCachedEndpointPublishJob extends CNSEndpointPublishJob {
                 HashMap<String, CNSCachedEndpointSubscriptionInfo> arnToSubInfo;
                 try {
                     arnToSubInfo = cache.getAndSetIfNotPresent(topicArn, new CachePopulator(topicArn), 60000);
-                } catch (CacheFullException e) {
-                    arnToSubInfo = new CachePopulator(topicArn).call();
                 } catch(IllegalStateException e) {
                     if ((e.getCause() instanceof ExecutionException) && 
                         (e.getCause().getCause() instanceof TopicNotFoundException)) {
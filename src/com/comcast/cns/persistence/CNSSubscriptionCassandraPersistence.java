@@ -29,6 +29,7 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONWriter;
 
+import com.comcast.cmb.common.controller.CacheInvalidationBus;
 import com.comcast.cmb.common.persistence.AbstractDurablePersistence;
 import com.comcast.cmb.common.persistence.AbstractDurablePersistence.CMB_SERIALIZER;
 import com.comcast.cmb.common.persistence.AbstractDurablePersistence.CmbColumn;
@@ -338,6 +339,10 @@ public class CNSSubscriptionCassandraPersistence implements ICNSSubscriptionPers
 
 		CNSSubscriptionAttributes attributes = new CNSSubscriptionAttributes(topicArn, subscription.getArn(), userId);
 		PersistenceFactory.getCNSAttributePersistence().setSubscriptionAttributes(attributes, subscription.getArn());
+		
+		if (subscription.isConfirmed()) {
+			CacheInvalidationBus.invalidate(CacheInvalidationBus.TOPIC_SUBSCRIPTIONS, topicArn);
+		}
 
 		return subscription;
 	}
@@ -656,6 +661,8 @@ public class CNSSubscriptionCassandraPersistence implements ICNSSubscriptionPers
         
 		cassandraHandler.decrementCounter(AbstractDurablePersistence.CNS_KEYSPACE, columnFamilyTopicStats, s.getTopicArn(), "subscriptionPending", 1, CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.STRING_SERIALIZER);
 		cassandraHandler.incrementCounter(AbstractDurablePersistence.CNS_KEYSPACE, columnFamilyTopicStats, s.getTopicArn(), "subscriptionConfirmed", 1, CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.STRING_SERIALIZER);
+		
+		CacheInvalidationBus.invalidate(CacheInvalidationBus.TOPIC_SUBSCRIPTIONS, s.getTopicArn());
         
         return s;
 	}
@@ -698,6 +705,10 @@ public class CNSSubscriptionCassandraPersistence implements ICNSSubscriptionPers
 			}
 			
 			cassandraHandler.incrementCounter(AbstractDurablePersistence.CNS_KEYSPACE, columnFamilyTopicStats, s.getTopicArn(), "subscriptionDeleted", 1, CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.STRING_SERIALIZER);
+			
+			if (s.isConfirmed()) {
+				CacheInvalidationBus.invalidate(CacheInvalidationBus.TOPIC_SUBSCRIPTIONS, s.getTopicArn());
+			}
 		}
 	}
 	
@@ -748,6 +759,7 @@ public class CNSSubscriptionCassandraPersistence implements ICNSSubscriptionPers
 		}
 
 		cassandraHandler.delete(AbstractDurablePersistence.CNS_KEYSPACE, columnFamilySubscriptions, topicArn, null, CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.STRING_SERIALIZER);
+		CacheInvalidationBus.invalidate(CacheInvalidationBus.TOPIC_SUBSCRIPTIONS, topicArn);
     }
 
 	@Override
@@ -757,6 +769,7 @@ public class CNSSubscriptionCassandraPersistence implements ICNSSubscriptionPers
 		if (sub != null) {
 			sub.setRawMessageDelivery(rawMessageDelivery);
 			insertOrUpdateSubsAndIndexes(sub, null);
+			CacheInvalidationBus.invalidate(CacheInvalidationBus.TOPIC_SUBSCRIPTIONS, sub.getTopicArn());
 		}
 	}
 }
@@ -26,6 +26,7 @@ import javax.management.ObjectName;
 import org.apache.log4j.Logger;
 
 import com.comcast.cmb.common.controller.CMBControllerServlet;
+import com.comcast.cmb.common.controller.CacheInvalidationBus;
 import com.comcast.cmb.common.persistence.AbstractDurablePersistence;
 import com.comcast.cmb.common.persistence.DurablePersistenceFactory;
 import com.comcast.cmb.common.util.CMBProperties;
@@ -109,6 +110,7 @@ public class CNSPublisher {
     	
         Util.initLog4j();
     	modes = parseMode(mode);
+    	CacheInvalidationBus.start();
 
     	logger.info("event=startup version=" + CMBControllerServlet.VERSION + " ip=" + InetAddress.getLocalHost().getHostAddress() + " io_mode=" + CMBProperties.getInstance().getCNSIOMode() + " mode=" + modes);
         
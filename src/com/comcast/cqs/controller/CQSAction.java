@@ -52,6 +52,6 @@ public abstract class CQSAction extends Action {
             return false;
         }
         
-        return policy.isAllowed(user, service + ":" + this.actionName);
+        return policy.isAllowed(user, service, this.actionName);
     }
 }
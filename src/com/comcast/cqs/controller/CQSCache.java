@@ -1,17 +1,18 @@
 package com.comcast.cqs.controller;
 
+import java.util.Map;
 import java.util.concurrent.Callable;
 
 import javax.servlet.http.HttpServletRequest;
 
 import org.apache.log4j.Logger;
 
+import com.comcast.cmb.common.controller.CacheInvalidationBus;
 import com.comcast.cmb.common.model.User;
 import com.comcast.cmb.common.persistence.PersistenceFactory;
 import com.comcast.cmb.common.util.CMBProperties;
-import com.comcast.cmb.common.util.ExpiringCache;
+import com.comcast.cmb.common.util.BoundedCache;
 import com.comcast.cmb.common.util.PersistenceException;
-import com.comcast.cmb.common.util.ExpiringCache.CacheFullException;
 import com.comcast.cqs.model.CQSQueue;
 import com.comcast.cqs.persistence.ICQSQueuePersistence;
 import com.comcast.cqs.util.CQSConstants;
@@ -19,10 +20,19 @@ import com.comcast.cqs.util.CQSErrorCodes;
 
 public class CQSCache {
 
-    protected static ExpiringCache<String, CQSQueue> queueCache = new ExpiringCache<String, CQSQueue>(CMBProperties.getInstance().getCQSCacheSizeLimit());
+    protected static BoundedCache<String, CQSQueue> queueCache = new BoundedCache<String, CQSQueue>("cqs_queue", CMBProperties.getInstance().getCQSCacheSizeLimit(),
+    		CMBProperties.getInstance().getCacheRefreshAheadPercent(), CMBProperties.getInstance().getCacheStaleWhileRevalidate() * 1000, CMBProperties.getInstance().getCacheNegativeExpiringMS());
     protected static volatile ICQSQueuePersistence queuePersistence = PersistenceFactory.getQueuePersistence();
     
     private static Logger logger = Logger.getLogger(CQSCache.class);
+    
+    static {
+    	CacheInvalidationBus.register(CacheInvalidationBus.QUEUE, new CacheInvalidationBus.Invalidator() {
+    		public void invalidate(String relativeQueueUrl) {
+    			removeQueue(relativeQueueUrl);
+    		}
+    	});
+    }
 
     public static class QueueCallable implements Callable<CQSQueue> {
         
@@ -55,11 +65,14 @@ public class CQSCache {
      * @throws Exception
      */
     public static CQSQueue getCachedQueue(String relativeQueueUrl) throws Exception {
-        try {
-            return queueCache.getAndSetIfNotPresent(relativeQueueUrl, new QueueCallable(relativeQueueUrl), CMBProperties.getInstance().getCQSCacheExpiring() * 1000);
-        } catch (CacheFullException e) {
-            return new QueueCallable(relativeQueueUrl).call();
-        } 
+        return queueCache.getAndSetIfNotPresent(relativeQueueUrl, new QueueCallable(relativeQueueUrl), CMBProperties.getInstance().getCQSCacheExpiring() * 1000);
+    }
+    
+    /**
+     * @return hit, miss and eviction counts of the queue cache
+     */
+    public static Map<String, Long> getCacheStats() {
+    	return queueCache.getStats();
     }
     
     /**
@@ -102,13 +102,24 @@ public class CQSChangeMessageVisibilityBatchAction extends CQSAction {
         }
 
         List<String> successList = new ArrayList<String>();
+        List<String> suppliedIds = new ArrayList<String>(idMap.size());
+        List<String> receiptHandles = new ArrayList<String>(idMap.size());
+        List<Integer> visibilityTOs = new ArrayList<Integer>(idMap.size());
         
         for (Map.Entry<String, List<String>> entry : idMap.entrySet()) {
+        	suppliedIds.add(entry.getKey());
+        	receiptHandles.add(entry.getValue().get(0));
+        	visibilityTOs.add(Integer.parseInt(entry.getValue().get(1)));
+        }
+        
+        List<Boolean> results = PersistenceFactory.getCQSMessagePersistence().changeMessageVisibilityBatch(queue, receiptHandles, visibilityTOs);
+        
+        for (int i = 0; i < suppliedIds.size(); i++) {
         	
-            if (PersistenceFactory.getCQSMessagePersistence().changeMessageVisibility(queue, entry.getValue().get(0), Integer.parseInt(entry.getValue().get(1)))) {
-                successList.add(entry.getKey());
+            if (results.get(i)) {
+                successList.add(suppliedIds.get(i));
             } else {
-                failedList.add(new CQSBatchResultErrorEntry(entry.getKey(), true, "ReceiptHandleIsInvalid", "The input receipt handle is invalid."));
+                failedList.add(new CQSBatchResultErrorEntry(suppliedIds.get(i), true, "ReceiptHandleIsInvalid", "The input receipt handle is invalid."));
             }
         }
         
@@ -222,11 +222,7 @@ public class CQSControllerServlet extends CMBControllerServlet {
 
         if (isAuthenticationRequired(action)) {
         
-            CMBPolicy policy = new CMBPolicy();
-            
-            if (queue != null) {
-            	policy.fromString(queue.getPolicy());
-            }
+            CMBPolicy policy = CMBPolicy.getCachedPolicy(queue != null ? queue.getPolicy() : null);
             
             if (!actionMap.get(action).isActionAllowed(user, request, "CQS", policy)) {
                 throw new CMBException(CMBErrorCodes.AccessDenied, "You don't have permission for " + actionMap.get(action).getName());
@@ -32,6 +32,7 @@ import com.comcast.cqs.io.CQSQueuePopulator;
 import com.comcast.cqs.model.CQSQueue;
 import com.comcast.cqs.util.CQSConstants;
 import com.comcast.cqs.util.CQSErrorCodes;
+import com.comcast.cqs.util.CompressionCodec;
 
 /**
  * Create queue action
@@ -250,6 +251,19 @@ public class CQSCreateQueueAction extends CQSAction {
             	boolean isCompressed = Boolean.parseBoolean(attributeValue);
             	newQueue.setCompressed(isCompressed);
 
+            } else if (attributeName.equals(CQSConstants.COMPRESSION_CODEC)) {
+            	
+            	CompressionCodec codec;
+            	
+            	try {
+            		codec = CompressionCodec.fromName(attributeValue);
+            	} catch (IllegalArgumentException ex) {
+                    throw new CMBException(CMBErrorCodes.InvalidParameterValue, CQSConstants.COMPRESSION_CODEC + " should be one of NONE, DEFLATE, LZ4 or SNAPPY");
+            	}
+            	
+            	newQueue.setCompressionCodec(codec);
+            	newQueue.setCompressed(codec != CompressionCodec.NONE);
+
             } else {
                 throw new CMBException(CMBErrorCodes.InvalidRequest, "Attribute: " + attributeName + " is not a valid attribute");
             }
@@ -27,6 +27,7 @@ import com.comcast.cqs.io.CQSMessagePopulator;
 import com.comcast.cqs.model.CQSQueue;
 import com.comcast.cqs.util.CQSConstants;
 import com.comcast.cqs.util.CQSErrorCodes;
+import com.comcast.cqs.util.MemIdCodec;
 /**
  * Delete message
  * @author baosen, vvenkatraman, bwolf
@@ -40,24 +41,7 @@ public class CQSDeleteMessageAction extends CQSAction {
 	
 	private boolean isValidReceiptHandle(String receiptHandle) {
 
-		if (receiptHandle == null) {
-			return false;
-		}
-		
-		String elements[] = receiptHandle.split(":"); 
-		
-		if (elements.length < 3) {
-			return false;
-		}
-		
-		try {
-			Long.parseLong(elements[elements.length-1]);
-			Long.parseLong(elements[elements.length-2]);
-		} catch (Exception ex) {
-			return false;
-		}
-		
-		return true;
+		return MemIdCodec.isValid(receiptHandle);
 	}
 	
 	@Override
@@ -46,6 +46,7 @@ import com.comcast.cmb.common.util.ValueAccumulator.AccumulatorName;
 import com.comcast.cqs.io.CQSMessagePopulator;
 import com.comcast.cqs.model.CQSMessage;
 import com.comcast.cqs.model.CQSQueue;
+import com.comcast.cqs.persistence.CacheStateLeaseTable;
 
 public class CQSLongPollReceiver {
 	
@@ -115,7 +116,13 @@ public class CQSLongPollReceiver {
 				
 				if (c == ';') {
 
-					processNotification(queueArn.toString(), e.getRemoteAddress() != null ? e.getRemoteAddress().toString() : "");
+					String message = queueArn.toString();
+					
+					if (message.startsWith(CacheStateLeaseTable.INVALIDATION_PREFIX)) {
+						CacheStateLeaseTable.getInstance().invalidate(message.substring(CacheStateLeaseTable.INVALIDATION_PREFIX.length()));
+					} else {
+						processNotification(message, e.getRemoteAddress() != null ? e.getRemoteAddress().toString() : "");
+					}
 					
 					// start reading new message
 			        
@@ -375,6 +375,30 @@ public class CQSLongPollSender {
 		pendingNotifications.add(queueArn);
 	}
 	
+	/**
+	 * Write a control message to all other api servers over the established long poll channels.
+	 * Unlike send() this bypasses the notification queue and does not try to reconnect dead 
+	 * channels, which is left to the connection maintainer.
+	 * @param message must not contain ';'
+	 */
+	public static void broadcast(String message) {
+		
+		if (!initialized) {
+			return;
+		}
+		
+		for (String endpoint : activeCQSApiServers.keySet()) {
+			
+			Channel clientChannel = activeCQSApiServers.get(endpoint);
+			
+			if (clientChannel != null && clientChannel.isConnected() && clientChannel.isOpen() && clientChannel.isWritable()) {
+				ChannelBuffer buf = ChannelBuffers.copiedBuffer(message + ";", Charset.forName("UTF-8"));
+				clientChannel.write(buf);
+				logger.debug("event=longpoll_broadcast_sent endpoint=" + endpoint + " message=" + message);
+			}
+		}
+	}
+	
 	public static void send(String queueArn, int messageNum) {
 		
 		if (!initialized) {
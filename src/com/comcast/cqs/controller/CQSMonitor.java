@@ -29,6 +29,7 @@ import org.apache.log4j.Logger;
 
 import com.comcast.cmb.common.controller.CMB;
 import com.comcast.cmb.common.controller.CMBControllerServlet;
+import com.comcast.cmb.common.model.CMBPolicy;
 import com.comcast.cmb.common.persistence.PersistenceFactory;
 import com.comcast.cmb.common.util.CMBProperties;
 import com.comcast.cmb.common.util.PersistenceException;
@@ -86,6 +87,9 @@ public class CQSMonitor implements CQSMonitorMBean {
     ConcurrentHashMap<String, RollingWindowCapture<MessageNumberDynamicPayLoad>> numMessagesRw = new ConcurrentHashMap<String, RollingWindowCapture<MessageNumberDynamicPayLoad>>();
     ConcurrentHashMap<String, RollingWindowCapture<MessageNumberDynamicPayLoad>> numMessagesDeleted = new ConcurrentHashMap<String, RollingWindowCapture<MessageNumberDynamicPayLoad>>();
     ConcurrentHashMap<String, RollingWindowCapture<MessageNumberDynamicPayLoad>> numEmptyRespRW = new ConcurrentHashMap<String, RollingWindowCapture<MessageNumberDynamicPayLoad>>();
+    ConcurrentHashMap<String, RollingWindowCapture<MessageNumberDynamicPayLoad>> numMessagesExpiredRW = new ConcurrentHashMap<String, RollingWindowCapture<MessageNumberDynamicPayLoad>>();
+    
+    private final AtomicLong numMessagesExpired = new AtomicLong(0);
     
     /**
      * Note should only be called by unit-tests
@@ -97,6 +101,8 @@ public class CQSMonitor implements CQSMonitorMBean {
         pCacheHitRatioRW.clear();
         numMessagesRw.clear();
         numMessagesDeleted.clear();
+        numMessagesExpiredRW.clear();
+        numMessagesExpired.set(0);
     }
 
     class CountMessagesDynamicVisitor implements RollingWindowCapture.Visitor<MessageNumberDynamicPayLoad> {
@@ -256,6 +262,24 @@ public class CQSMonitor implements CQSMonitorMBean {
         addNumberOfMessages(queueUrl, num, numEmptyRespRW);
     }
 
+    @Override
+    public int getRecentNumberOfExpiredMessages(String queueUrl) {
+        return getNumberOfMessages(queueUrl, numMessagesExpiredRW);
+    }
+
+    @Override
+    public long getNumberOfExpiredMessages() {
+        return numMessagesExpired.get();
+    }
+    
+    /**
+     * @param num The number of expired messages reclaimed from the cache by the retention sweeper
+     */
+    public void registerExpiredMessages(String queueUrl, int num) {
+        addNumberOfMessages(queueUrl, num, numMessagesExpiredRW);
+        numMessagesExpired.addAndGet(num);
+    }
+
     @Override
     public Long getOldestAvailableMessageTS(String queueUrl) {
 
@@ -450,4 +474,14 @@ public class CQSMonitor implements CQSMonitorMBean {
     	}
 		return numberOfMessages;
 	}
+
+	@Override
+	public Map<String, Long> getQueueCacheStats() {
+		return CQSCache.getCacheStats();
+	}
+
+	@Override
+	public Map<String, Long> getPolicyCacheStats() {
+		return CMBPolicy.getPolicyCacheStats();
+	}
 }
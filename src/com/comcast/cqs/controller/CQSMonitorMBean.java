@@ -58,9 +58,21 @@ public interface CQSMonitorMBean {
      * @return number of empty responses in rolling-window
      */
     public int getRecentNumberOfEmptyReceives(String queueUrl);
+    
+    /**
+     * 
+     * @param queueUrl
+     * @return number of expired messages reclaimed from the cache in rolling-window
+     */
+    public int getRecentNumberOfExpiredMessages(String queueUrl);
 
     //----------End of rolling window metrics
     
+    /**
+     * @return total number of expired messages reclaimed from the cache across all queues since startup
+     */
+    public long getNumberOfExpiredMessages();
+    
     /**
      * @return number of open connections to redis
      */
@@ -183,4 +195,16 @@ public interface CQSMonitorMBean {
 	 * @return
 	 */
 	boolean isJettyCNSRequestHandlerPoolLowOnThreads();
+
+	/**
+	 * 
+	 * @return size, hits, misses, evictions, rejections and expirations of the queue cache
+	 */
+	public Map<String, Long> getQueueCacheStats();
+
+	/**
+	 * 
+	 * @return size, hits, misses, evictions, rejections and expirations of the cache of parsed queue and topic policies
+	 */
+	public Map<String, Long> getPolicyCacheStats();
 }
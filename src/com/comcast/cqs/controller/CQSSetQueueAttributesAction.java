@@ -33,6 +33,7 @@ import com.comcast.cns.controller.CNSCreateTopicAction;
 import com.comcast.cqs.io.CQSQueuePopulator;
 import com.comcast.cqs.model.CQSQueue;
 import com.comcast.cqs.util.CQSConstants;
+import com.comcast.cqs.util.CompressionCodec;
 import com.comcast.cqs.util.Util;
 /**
  * Set queue attributes
@@ -194,6 +195,21 @@ public class CQSSetQueueAttributesAction extends CQSAction {
             	queue.setCompressed(isCompressed);
                 postVars.put(CQSConstants.COL_COMPRESSED, value);
             	
+            } else if (attributeName.equals(CQSConstants.COMPRESSION_CODEC)) {
+            	
+            	CompressionCodec codec;
+            	
+            	try {
+            		codec = CompressionCodec.fromName(value);
+            	} catch (IllegalArgumentException ex) {
+                    throw new CMBException(CMBErrorCodes.InvalidParameterValue, CQSConstants.COMPRESSION_CODEC + " should be one of NONE, DEFLATE, LZ4 or SNAPPY");
+            	}
+            	
+            	queue.setCompressionCodec(codec);
+            	queue.setCompressed(codec != CompressionCodec.NONE);
+                postVars.put(CQSConstants.COL_COMPRESSION_CODEC, codec.name());
+                postVars.put(CQSConstants.COL_COMPRESSED, "" + queue.isCompressed());
+            	
             } else {
                 throw new CMBException(CMBErrorCodes.InvalidAttributeName, "Attribute.Name: " + attributeName + " is not a valid attribute");
             }
@@ -98,6 +98,7 @@ public class CQSQueuePopulator extends CQSPopulator {
             out.append("\t\t").append(fillAttribute(CQSConstants.APPROXIMATE_NUMBER_OF_MESSAGES_NOTVISIBLE, "" + PersistenceFactory.getCQSMessagePersistence().getQueueNotVisibleMessageCount(queue.getRelativeUrl(), true))).append("\n");
             out.append("\t\t").append(fillAttribute(CQSConstants.APPROXIMATE_NUMBER_OF_MESSAGES_DELAYED, "" + PersistenceFactory.getCQSMessagePersistence().getQueueDelayedMessageCount(queue.getRelativeUrl(), true))).append("\n");
             out.append("\t\t").append(fillAttribute(CQSConstants.IS_COMPRESSED, "" + queue.isCompressed())).append("\n");
+            out.append("\t\t").append(fillAttribute(CQSConstants.COMPRESSION_CODEC, "" + queue.getCompressionCodec())).append("\n");
 
         } else {
         
@@ -141,6 +142,9 @@ public class CQSQueuePopulator extends CQSPopulator {
                 if (attributeName.equals(CQSConstants.IS_COMPRESSED)) {
                     out.append("\t\t").append(fillAttribute(attributeName, "" + queue.isCompressed())).append("\n");
                 }
+                if (attributeName.equals(CQSConstants.COMPRESSION_CODEC)) {
+                    out.append("\t\t").append(fillAttribute(attributeName, "" + queue.getCompressionCodec())).append("\n");
+                }
             }
         }
         
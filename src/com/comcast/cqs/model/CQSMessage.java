@@ -63,6 +63,9 @@ public final class CQSMessage implements Serializable {
 	transient private String suppliedMessageId;
 
 	private transient Object timebasedId; 
+	
+	// value the message was written to cassandra with, set by the persistence layer on send
+	private transient String columnValue;
 
 	public CQSMessage(String body, Map<String, String> attributes) throws NoSuchAlgorithmException, UnsupportedEncodingException {
 		
@@ -214,6 +217,14 @@ public final class CQSMessage implements Serializable {
 		this.timebasedId = timebasedId;
 	}
 	
+	public String getColumnValue() {
+		return columnValue;
+	}
+
+	public void setColumnValue(String columnValue) {
+		this.columnValue = columnValue;
+	}
+	
 	private String getMD5(String message) throws NoSuchAlgorithmException, UnsupportedEncodingException {
 		
 		MessageDigest digest = MessageDigest.getInstance("MD5");
@@ -18,6 +18,7 @@ package com.comcast.cqs.model;
 import org.apache.log4j.Logger;
 
 import com.comcast.cmb.common.util.CMBProperties;
+import com.comcast.cqs.util.CompressionCodec;
 import com.comcast.cqs.util.Util;
 
 /**
@@ -49,6 +50,7 @@ public class CQSQueue {
     private int numberOfPartitions = 100;
     private int numberOfShards = 1;
     private boolean compressed = false;
+    private CompressionCodec compressionCodec = null;
     
 	public CQSQueue(String name, String ownerId) {
     	
@@ -74,6 +76,30 @@ public class CQSQueue {
 		this.compressed = compressed;
 	}
 
+	/**
+	 * @return codec explicitly configured for this queue or null if the default codec is used
+	 */
+	public CompressionCodec getConfiguredCompressionCodec() {
+		return compressionCodec;
+	}
+
+	/**
+	 * @return codec message bodies are compressed with, NONE if the queue is not compressed
+	 */
+	public CompressionCodec getCompressionCodec() {
+		if (!compressed) {
+			return CompressionCodec.NONE;
+		}
+		if (compressionCodec != null) {
+			return compressionCodec;
+		}
+		return CompressionCodec.fromName(CMBProperties.getInstance().getCQSCompressionCodec());
+	}
+
+	public void setCompressionCodec(CompressionCodec compressionCodec) {
+		this.compressionCodec = compressionCodec;
+	}
+
 	@Override 
 	public Object clone() throws CloneNotSupportedException {
 		CQSQueue queue = (CQSQueue)super.clone();
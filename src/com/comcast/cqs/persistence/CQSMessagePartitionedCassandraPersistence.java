@@ -16,15 +16,12 @@
 package com.comcast.cqs.persistence;
 
 import java.io.IOException;
-import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
-import java.io.Writer;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -32,14 +29,13 @@ import java.util.Set;
 
 import org.apache.log4j.Logger;
 import org.json.JSONException;
-import org.json.JSONObject;
-import org.json.JSONWriter;
 
 import com.comcast.cmb.common.persistence.AbstractDurablePersistence;
 import com.comcast.cmb.common.persistence.AbstractDurablePersistence.CMB_SERIALIZER;
 import com.comcast.cmb.common.persistence.AbstractDurablePersistence.CmbColumn;
 import com.comcast.cmb.common.persistence.AbstractDurablePersistence.CmbColumnSlice;
 import com.comcast.cmb.common.persistence.AbstractDurablePersistence.CmbComposite;
+import com.comcast.cmb.common.persistence.AbstractDurablePersistence.CmbRow;
 import com.comcast.cmb.common.persistence.DurablePersistenceFactory;
 import com.comcast.cmb.common.util.CMBErrorCodes;
 import com.comcast.cmb.common.util.CMBException;
@@ -47,13 +43,17 @@ import com.comcast.cmb.common.util.CMBProperties;
 import com.comcast.cmb.common.util.PersistenceException;
 import com.comcast.cqs.controller.CQSCache;
 import com.comcast.cqs.model.CQSMessage;
-import com.comcast.cqs.model.CQSMessageAttribute;
 import com.comcast.cqs.model.CQSQueue;
 import com.comcast.cqs.util.CQSConstants;
 import com.comcast.cqs.util.CQSErrorCodes;
+import com.comcast.cqs.util.CompressionCodec;
+import com.comcast.cqs.util.MessageCodec;
 import com.comcast.cqs.util.RandomNumberCollection;
 import com.comcast.cqs.util.Util;
 import com.eaio.uuid.UUIDGen;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 
 /**
  * Cassandra persistence for CQS Message
@@ -75,6 +75,66 @@ public class CQSMessagePartitionedCassandraPersistence implements ICQSMessagePer
 	@Override
 	public String sendMessage(CQSQueue queue, int shard, CQSMessage message) throws PersistenceException, IOException, InterruptedException, NoSuchAlgorithmException, JSONException {
 		
+		CmbComposite columnName = assignMessageId(queue, shard, message);
+		String value = getMessageColumnValue(queue, message);
+		message.setColumnValue(value);
+		
+		if (CMBProperties.getInstance().isCQSGroupCommitEnabled()) {
+			AbstractDurablePersistence.getResult(GroupCommitWriter.getInstance().write(getRowKey(message.getMessageId()), columnName, value, queue.getMsgRetentionPeriod()));
+			return message.getMessageId();
+		}
+		
+		cassandraHandler.update(AbstractDurablePersistence.CQS_KEYSPACE, COLUMN_FAMILY_PARTITIONED_QUEUE_MESSAGES, getRowKey(message.getMessageId()), columnName, value,
+				CMB_SERIALIZER.STRING_SERIALIZER,
+				CMB_SERIALIZER.COMPOSITE_SERIALIZER,
+				CMB_SERIALIZER.STRING_SERIALIZER, queue.getMsgRetentionPeriod());
+
+		return message.getMessageId();
+	}
+	
+	/**
+	 * Same as sendMessage() but does not wait for the write. The message id is assigned before this method returns,
+	 * so callers can do other work and then wait for the write with AbstractDurablePersistence.getResult().
+	 * @param queue
+	 * @param shard
+	 * @param message
+	 * @return future holding the message id once the message is persisted
+	 */
+	public ListenableFuture<String> sendMessageAsync(CQSQueue queue, int shard, CQSMessage message) throws PersistenceException, IOException, NoSuchAlgorithmException, JSONException {
+		
+		CmbComposite columnName = assignMessageId(queue, shard, message);
+		String value = getMessageColumnValue(queue, message);
+		message.setColumnValue(value);
+		ListenableFuture<Void> future;
+		
+		if (CMBProperties.getInstance().isCQSGroupCommitEnabled()) {
+			future = GroupCommitWriter.getInstance().write(getRowKey(message.getMessageId()), columnName, value, queue.getMsgRetentionPeriod());
+		} else {
+			future = cassandraHandler.updateAsync(AbstractDurablePersistence.CQS_KEYSPACE, COLUMN_FAMILY_PARTITIONED_QUEUE_MESSAGES, getRowKey(message.getMessageId()), columnName, value,
+					CMB_SERIALIZER.STRING_SERIALIZER,
+					CMB_SERIALIZER.COMPOSITE_SERIALIZER,
+					CMB_SERIALIZER.STRING_SERIALIZER, queue.getMsgRetentionPeriod());
+		}
+		
+		final String messageId = message.getMessageId();
+
+		return Futures.transform(future, new Function<Void, String>() {
+			public String apply(Void v) {
+				return messageId;
+			}
+		});
+	}
+	
+	private static String getRowKey(String messageId) {
+		return messageId.substring(0, messageId.indexOf(':'));
+	}
+	
+	/**
+	 * Validate the message and set its id, which encodes the row key and column name it is stored under
+	 * @return column name
+	 */
+	private CmbComposite assignMessageId(CQSQueue queue, int shard, CQSMessage message) throws PersistenceException, NoSuchAlgorithmException, UnsupportedEncodingException {
+		
 		if (queue == null) {
 			throw new PersistenceException(CQSErrorCodes.NonExistentQueue, "The supplied queue does not exist");
 		}
@@ -93,22 +153,13 @@ public class CQSMessagePartitionedCassandraPersistence implements ICQSMessagePer
 		CmbComposite columnName = cassandraHandler.getCmbComposite(AbstractDurablePersistence.newTime(ts, false), UUIDGen.getClockSeqAndNode());
 		int ttl = queue.getMsgRetentionPeriod();
 		int partition = rand.nextInt(queue.getNumberOfPartitions());
-		String key = Util.hashQueueUrl(queue.getRelativeUrl()) + "_" + shard + "_" + partition;
+		String key = PartitionBuckets.getRowKey(Util.hashQueueUrl(queue.getRelativeUrl()) + "_" + shard + "_" + partition, PartitionBuckets.getInstance().getBucket(ts));
 		
-		if (queue.isCompressed()) {
-			message.setBody(Util.compress(message.getBody()));
-		}
-
 		message.setMessageId(key + ":" + columnName.get(0) + ":" + columnName.get(1));
 
 		logger.debug("event=send_message ttl=" + ttl + " delay_sec=" + delaySeconds + " msg_id=" + message.getMessageId() + " key=" + key + " col=" + columnName);
 		
-		cassandraHandler.update(AbstractDurablePersistence.CQS_KEYSPACE, COLUMN_FAMILY_PARTITIONED_QUEUE_MESSAGES, key, columnName, getMessageJSON(message),
-				CMB_SERIALIZER.STRING_SERIALIZER,
-				CMB_SERIALIZER.COMPOSITE_SERIALIZER,
-				CMB_SERIALIZER.STRING_SERIALIZER, ttl);
-
-		return message.getMessageId();
+		return columnName;
 	}
 	
 	public List<CQSMessage> extractMessagesFromColumnSlice(String queueUrl, int length, CmbComposite previousHandle, CmbComposite nextHandle, CmbColumnSlice<CmbComposite, String> columnSlice, boolean ignoreFirstLastColumn) throws NoSuchAlgorithmException, IOException, JSONException, PersistenceException  {
@@ -130,7 +181,7 @@ public class CQSMessagePartitionedCassandraPersistence implements ICQSMessagePer
 					continue;
 				}
 				
-				CQSMessage message = extractMessageFromJSON(queueUrl, column);
+				CQSMessage message = extractMessageFromColumn(queueUrl, column);
 				messageList.add(message);
 			}
 			
@@ -142,10 +193,22 @@ public class CQSMessagePartitionedCassandraPersistence implements ICQSMessagePer
 		return messageList;
 	}
 	
-	private CQSMessage extractMessageFromJSON(String queueUrl, CmbColumn column) throws JSONException, IOException, PersistenceException {
+	private CQSMessage extractMessageFromColumn(String queueUrl, CmbColumn column) throws JSONException, IOException, PersistenceException {
+		CQSMessage m = getMessageFromColumnValue(queueUrl, (String)column.getValue());
+		m.setTimebasedId(column.getName());
+		return m;
+	}
+
+	/**
+	 * Parse a message stored with getMessageColumnValue(), also used by the redis payload cache.
+	 * Both the compact format and legacy JSON are understood, see MessageCodec.
+	 * @param queueUrl
+	 * @param value
+	 * @return message with the body decompressed
+	 */
+	static CQSMessage getMessageFromColumnValue(String queueUrl, String value) throws JSONException, IOException, PersistenceException {
 		
 		CQSQueue queue = null;
-		CQSMessage m = new CQSMessage();
 		
 		try {
 			queue = CQSCache.getCachedQueue(queueUrl);
@@ -157,59 +220,32 @@ public class CQSMessagePartitionedCassandraPersistence implements ICQSMessagePer
 			throw new PersistenceException(CMBErrorCodes.InternalError, "Unknown queue " + queueUrl);
 		}
 		
-		JSONObject json = new JSONObject((String)column.getValue());
-
-		m.setMessageId(json.getString("MessageId"));
-		m.setReceiptHandle(json.getString("MessageId"));
-		m.setMD5OfBody(json.getString("MD5OfBody"));
-		m.setBody(json.getString("Body"));
-		
-		if (m.getAttributes() == null) {
-			m.setAttributes(new HashMap<String, String>());
-		}
-		
-		if (json.has(CQSConstants.SENT_TIMESTAMP)) {
-			m.getAttributes().put(CQSConstants.SENT_TIMESTAMP, json.getString(CQSConstants.SENT_TIMESTAMP));
-		}
-		
-		if (json.has(CQSConstants.APPROXIMATE_RECEIVE_COUNT)) {
-			m.getAttributes().put(CQSConstants.APPROXIMATE_RECEIVE_COUNT, json.getString(CQSConstants.APPROXIMATE_RECEIVE_COUNT));
-		}
-
-		if (json.has(CQSConstants.SENDER_ID)) {
-			m.getAttributes().put(CQSConstants.SENDER_ID, json.getString(CQSConstants.SENDER_ID));
-		}
+		CQSMessage m;
 		
-		if (json.has("MessageAttributes")) {
-			m.setMD5OfMessageAttributes(json.getString("MD5OfMessageAttributes"));
-			JSONObject messageAttributes = json.getJSONObject("MessageAttributes");
-			Map<String, CQSMessageAttribute> ma = new HashMap<String, CQSMessageAttribute>();
-			Iterator<String> iter = messageAttributes.keys();
-			while (iter.hasNext()) {
-				String key = iter.next();
-				ma.put(key, new CQSMessageAttribute(messageAttributes.getJSONObject(key).getString("StringValue"), messageAttributes.getJSONObject(key).getString("DataType")));
-			}
-			m.setMessageAttributes(ma);
+		try {
+			m = MessageCodec.decode(value);
+		} catch (IllegalArgumentException ex) {
+			throw new PersistenceException(CMBErrorCodes.InternalError, "Corrupt message: " + ex.getMessage());
 		}
 		
-		m.setTimebasedId(column.getName());
-		
-		if (queue.isCompressed()) {
+		// version 2 values carry their codec, version 1 values are never compressed (bodies below
+		// cmb.cqs.compressionMinSize), only legacy JSON values of compressed queues are gzipped
+		if (queue.isCompressed() && MessageCodec.isLegacy(value)) {
 			m.setBody(Util.decompress(m.getBody()));
 		}
 		
 	    return m;
 	}
 	
-	private String getMessageJSON(CQSMessage message) throws JSONException {
-		
-		Writer writer = new StringWriter(); 
-    	JSONWriter jw = new JSONWriter(writer);
-
-    	jw = jw.object();
-    	jw.key("MessageId").value(message.getMessageId());
-    	jw.key("MD5OfBody").value(message.getMD5OfBody());
-    	jw.key("Body").value(message.getBody());
+	/**
+	 * Serialize a message for the column value, the body is compressed if the queue is compressed.
+	 * With the compact format the codec of the queue is used for bodies of at least cmb.cqs.compressionMinSize
+	 * characters, with legacy JSON bodies are always gzipped. The message itself is not modified.
+	 * @param queue
+	 * @param message
+	 * @return column value
+	 */
+	static String getMessageColumnValue(CQSQueue queue, CQSMessage message) throws JSONException, IOException {
 		
 		if (message.getAttributes() == null) {
 			message.setAttributes(new HashMap<String, String>());
@@ -223,38 +259,29 @@ public class CQSMessagePartitionedCassandraPersistence implements ICQSMessagePer
 			message.getAttributes().put(CQSConstants.APPROXIMATE_RECEIVE_COUNT, "0");
 		}
 		
-		if (message.getAttributes() != null) {
-			for (String key : message.getAttributes().keySet()) {
-				String value = message.getAttributes().get(key);
-				if (value == null || value.isEmpty()) {
-					value = "";
-				}
-				jw.key(key).value(value);
+		if (CMBProperties.getInstance().isCQSCompactMessageFormat()) {
+			
+			CompressionCodec codec = queue.getCompressionCodec();
+			
+			if (codec != CompressionCodec.NONE && message.getBody() != null && message.getBody().length() >= CMBProperties.getInstance().getCQSCompressionMinSize()) {
+				return MessageCodec.encode(message, codec);
 			}
+			
+			return MessageCodec.encode(message);
 		}
 		
-		if (message.getMessageAttributes() != null && message.getMessageAttributes().size() > 0) {
-	    	jw.key("MD5OfMessageAttributes").value(message.getMD5OfMessageAttributes());
-			jw.key("MessageAttributes");
-			jw.object();
-			for (String key : message.getMessageAttributes().keySet()) {
-				jw.key(key);
-				jw.object();
-				CQSMessageAttribute messageAttribute = message.getMessageAttributes().get(key);
-				if (messageAttribute.getStringValue() != null) {
-					jw.key("StringValue").value(messageAttribute.getStringValue());
-				} else if (messageAttribute.getBinaryValue() != null) {
-					jw.key("BinaryValue").value(messageAttribute.getBinaryValue());
-				}
-				jw.key("DataType").value(messageAttribute.getDataType());
-				jw.endObject();
-			}
-			jw.endObject();
+		if (!queue.isCompressed()) {
+			return MessageCodec.encodeLegacy(message);
 		}
-
-		jw.endObject();
 		
-		return writer.toString();
+		String body = message.getBody();
+		
+		try {
+			message.setBody(Util.compress(body));
+			return MessageCodec.encodeLegacy(message);
+		} finally {
+			message.setBody(body);
+		}
 	}
 
 	@Override
@@ -268,10 +295,10 @@ public class CQSMessagePartitionedCassandraPersistence implements ICQSMessagePer
 			throw new PersistenceException(CQSErrorCodes.InvalidQueryParameter,	"No messages are supplied.");
 		}
 		
-		Map<CmbComposite, String> messageDataMap = new HashMap<CmbComposite, String>();
+		Map<String, Map<CmbComposite, String>> rows = new HashMap<String, Map<CmbComposite, String>>();
 		Map<String, String> ret = new HashMap<String, String>();
 		int ttl = queue.getMsgRetentionPeriod();
-		String key = Util.hashQueueUrl(queue.getRelativeUrl()) + "_" + shard + "_" + rand.nextInt(queue.getNumberOfPartitions());
+		String partitionKey = Util.hashQueueUrl(queue.getRelativeUrl()) + "_" + shard + "_" + rand.nextInt(queue.getNumberOfPartitions());
 		
 		for (CQSMessage message : messages) {
 
@@ -279,10 +306,6 @@ public class CQSMessagePartitionedCassandraPersistence implements ICQSMessagePer
 				throw new PersistenceException(CQSErrorCodes.InvalidMessageContents, "The supplied message is invalid");
 			}
 			
-			if (queue.isCompressed()) {
-				message.setBody(Util.compress(message.getBody()));
-			}
-			
 			int delaySeconds = 0;
 			
 			if (message.getAttributes().containsKey(CQSConstants.DELAY_SECONDS)) {
@@ -291,20 +314,39 @@ public class CQSMessagePartitionedCassandraPersistence implements ICQSMessagePer
 			
 			long ts = System.currentTimeMillis() + delaySeconds*1000;
 			CmbComposite columnName = cassandraHandler.getCmbComposite(AbstractDurablePersistence.newTime(ts, false), UUIDGen.getClockSeqAndNode());
+			String key = PartitionBuckets.getRowKey(partitionKey, PartitionBuckets.getInstance().getBucket(ts));
 
 			message.setMessageId(key + ":" + columnName.get(0) + ":" + columnName.get(1));
 			
 			logger.debug("event=send_message_batch msg_id=" + message.getMessageId() + " ttl=" + ttl + " delay_sec=" + delaySeconds + " key=" + key + " col=" + columnName);
 			
-			String messageJson = getMessageJSON(message);
-			messageDataMap.put(columnName, messageJson);
+			String messageValue = getMessageColumnValue(queue, message);
+			message.setColumnValue(messageValue);
+			Map<CmbComposite, String> messageDataMap = rows.get(key);
+			
+			if (messageDataMap == null) {
+				messageDataMap = new HashMap<CmbComposite, String>();
+				rows.put(key, messageDataMap);
+			}
+			
+			messageDataMap.put(columnName, messageValue);
 			ret.put(message.getSuppliedMessageId(), message.getMessageId());
 		}
 
-		cassandraHandler.insertRow(AbstractDurablePersistence.CQS_KEYSPACE, key, COLUMN_FAMILY_PARTITIONED_QUEUE_MESSAGES, messageDataMap,
-				CMB_SERIALIZER.STRING_SERIALIZER,
-				CMB_SERIALIZER.COMPOSITE_SERIALIZER,
-				CMB_SERIALIZER.STRING_SERIALIZER, ttl);
+		// messages with different delays may fall into different time buckets
+		
+		if (rows.size() == 1) {
+			Map.Entry<String, Map<CmbComposite, String>> row = rows.entrySet().iterator().next();
+			cassandraHandler.insertRow(AbstractDurablePersistence.CQS_KEYSPACE, row.getKey(), COLUMN_FAMILY_PARTITIONED_QUEUE_MESSAGES, row.getValue(),
+					CMB_SERIALIZER.STRING_SERIALIZER,
+					CMB_SERIALIZER.COMPOSITE_SERIALIZER,
+					CMB_SERIALIZER.STRING_SERIALIZER, ttl);
+		} else {
+			cassandraHandler.insertRows(AbstractDurablePersistence.CQS_KEYSPACE, rows, COLUMN_FAMILY_PARTITIONED_QUEUE_MESSAGES,
+					CMB_SERIALIZER.STRING_SERIALIZER,
+					CMB_SERIALIZER.COMPOSITE_SERIALIZER,
+					CMB_SERIALIZER.STRING_SERIALIZER, ttl);
+		}
 		
 		return ret;
 	}
@@ -332,6 +374,44 @@ public class CQSMessagePartitionedCassandraPersistence implements ICQSMessagePer
 		}
 	}
 
+	@Override
+	public void deleteMessageBatch(String queueUrl, List<String> receiptHandles) throws PersistenceException {
+		
+		List<String> keys = new ArrayList<String>(receiptHandles.size());
+		List<CmbComposite> columnNames = new ArrayList<CmbComposite>(receiptHandles.size());
+		
+		for (String receiptHandle : receiptHandles) {
+			
+			if (receiptHandle == null) {
+				logger.error("event=delete_message_batch event=no_receipt_handle queue_url=" + queueUrl);
+				continue;
+			}
+			
+			String[] receiptHandleParts = receiptHandle.split(":");
+			
+			if (receiptHandleParts.length != 3) {
+				logger.error("event=delete_message_batch event=invalid_receipt_handle queue_url=" + queueUrl + " receipt_handle=" + receiptHandle);
+				continue;
+			}
+			
+			CmbComposite columnName = cassandraHandler.getCmbComposite(Arrays.asList(Long.parseLong(receiptHandleParts[1]), Long.parseLong(receiptHandleParts[2])));
+			
+			if (columnName != null) {
+				keys.add(receiptHandleParts[0]);
+				columnNames.add(columnName);
+			}
+		}
+		
+		if (keys.isEmpty()) {
+			return;
+		}
+		
+		// one mutation covering all shards and partitions touched by the batch
+		
+		logger.debug("event=delete_message_batch queue_url=" + queueUrl + " num_messages=" + keys.size());
+		cassandraHandler.deleteBatch(AbstractDurablePersistence.CQS_KEYSPACE, COLUMN_FAMILY_PARTITIONED_QUEUE_MESSAGES, keys, columnNames, CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.COMPOSITE_SERIALIZER);
+	}
+
 	@Override
 	public List<CQSMessage> receiveMessage(CQSQueue queue, Map<String, String> receiveAttributes) throws PersistenceException, IOException, NoSuchAlgorithmException, InterruptedException {
 		throw new UnsupportedOperationException("ReceiveMessage is not supported, please call getMessages instead");
@@ -342,6 +422,11 @@ public class CQSMessagePartitionedCassandraPersistence implements ICQSMessagePer
 		throw new UnsupportedOperationException("ChangeMessageVisibility is not supported");
 	}
 
+	@Override
+	public List<Boolean> changeMessageVisibilityBatch(CQSQueue queue, List<String> receiptHandles, List<Integer> visibilityTOs) throws PersistenceException, IOException, NoSuchAlgorithmException, InterruptedException {
+		throw new UnsupportedOperationException("ChangeMessageVisibilityBatch is not supported");
+	}
+
 	@Override
 	public List<CQSMessage> peekQueue(String queueUrl, int shard, String previousReceiptHandle, String nextReceiptHandle, int length) throws IOException, NoSuchAlgorithmException, JSONException, PersistenceException {
 		
@@ -386,13 +471,14 @@ public class CQSMessagePartitionedCassandraPersistence implements ICQSMessagePer
 		
 		String[] queueParts = key.split("_");
 		
-		if (queueParts.length != 3) {
+		if (queueParts.length != 3 && queueParts.length != 4) {
 			logger.error("event=peek_queue error_code=invalid_queue_key key=" + key);
 			throw new IllegalArgumentException("Invalid queue key " + key);
 		}
 		
 		int shardNumber = Integer.parseInt(queueParts[1]);
 		int partitionNumber = Integer.parseInt(queueParts[2]);
+		long bucket = queueParts.length == 4 ? Long.parseLong(queueParts[3]) : PartitionBuckets.LEGACY_BUCKET;
 		
 		if (partitionNumber < 0 || partitionNumber > numberPartitions-1) {
 			logger.error("event=peek_queue error_code=invalid_partition_number partition_number=" + partitionNumber);
@@ -404,19 +490,20 @@ public class CQSMessagePartitionedCassandraPersistence implements ICQSMessagePer
 			throw new IllegalArgumentException("Invalid queue shard number " + shardNumber);			
 		}
 
+		// with time buckets each partition spans several rows, paging moves through the buckets of a partition
+		// before moving on to the next partition
+		
+		PartitionBuckets partitionBuckets = PartitionBuckets.getInstance();
+		int retentionPeriod = getRetentionPeriod(queueUrl);
+		String partitionKey = queueHash + "_" + shardNumber + "_" + partitionNumber;
+		List<Long> buckets = partitionBuckets.getBuckets(partitionKey, retentionPeriod, System.currentTimeMillis());
+		int bucketIndex = getBucketIndex(buckets, bucket, nextHandle == null);
+		int firstLiveIndex = 0;
+		boolean wholeRow = previousHandle == null && nextHandle == null;
+
 		while (messageList.size() < length && -1 < partitionNumber && partitionNumber < numberPartitions) {
 			
-			key = queueHash + "_" + shardNumber + "_" + partitionNumber;
-			
-			CmbColumnSlice<CmbComposite, String> columnSlice = cassandraHandler.readColumnSlice(
-					AbstractDurablePersistence.CQS_KEYSPACE, COLUMN_FAMILY_PARTITIONED_QUEUE_MESSAGES, key, previousHandle,
-					nextHandle, length-messageList.size()+1, CMB_SERIALIZER.STRING_SERIALIZER,
-					CMB_SERIALIZER.COMPOSITE_SERIALIZER,
-					CMB_SERIALIZER.STRING_SERIALIZER);
-			
-			messageList.addAll(extractMessagesFromColumnSlice(queueUrl, length-messageList.size(), previousHandle, nextHandle, columnSlice, true));
-			
-			if (messageList.size() < length && -1 < partitionNumber && partitionNumber < numberPartitions) {
+			if (bucketIndex < 0 || bucketIndex >= buckets.size()) {
 				
 				if (previousHandle != null) {
 					
@@ -437,12 +524,125 @@ public class CQSMessagePartitionedCassandraPersistence implements ICQSMessagePer
 				} else {
 					partitionNumber++;
 				}
+				
+				partitionKey = queueHash + "_" + shardNumber + "_" + partitionNumber;
+				buckets = partitionBuckets.getBuckets(partitionKey, retentionPeriod, System.currentTimeMillis());
+				bucketIndex = nextHandle == null ? 0 : buckets.size() - 1;
+				firstLiveIndex = 0;
+				wholeRow = true;
+				continue;
+			}
+			
+			key = PartitionBuckets.getRowKey(partitionKey, buckets.get(bucketIndex));
+			
+			CmbColumnSlice<CmbComposite, String> columnSlice = cassandraHandler.readColumnSliceHedged(
+					AbstractDurablePersistence.CQS_KEYSPACE, COLUMN_FAMILY_PARTITIONED_QUEUE_MESSAGES, key, previousHandle,
+					nextHandle, length-messageList.size()+1, CMB_SERIALIZER.STRING_SERIALIZER,
+					CMB_SERIALIZER.COMPOSITE_SERIALIZER,
+					CMB_SERIALIZER.STRING_SERIALIZER);
+			
+			if (wholeRow && columnSlice == null && bucketIndex == firstLiveIndex && partitionBuckets.markDrained(partitionKey, buckets.get(bucketIndex), System.currentTimeMillis())) {
+				firstLiveIndex++;
+			}
+			
+			messageList.addAll(extractMessagesFromColumnSlice(queueUrl, length-messageList.size(), previousHandle, nextHandle, columnSlice, true));
+			
+			if (messageList.size() < length) {
+				
+				if (previousHandle != null) {
+					previousHandle = cassandraHandler.getCmbComposite(Arrays.asList(AbstractDurablePersistence.newTime(System.currentTimeMillis()-1209600000, false), UUIDGen.getClockSeqAndNode()));
+				} else if (nextHandle != null) {
+					nextHandle = cassandraHandler.getCmbComposite(Arrays.asList(AbstractDurablePersistence.newTime(System.currentTimeMillis()+1209600000, false), UUIDGen.getClockSeqAndNode()));
+				}
+				
+				bucketIndex += nextHandle == null ? 1 : -1;
+				wholeRow = true;
 			}
 		}
 		
 		return messageList;
 	}
 
+	/**
+	 * Page through a single partition of a queue shard. Unlike peekQueue() this never continues into
+	 * the next partition, so the cache filler can read all partitions of a shard in parallel.
+	 * @param queueUrl
+	 * @param shard
+	 * @param partition
+	 * @param previousReceiptHandle message id of the last message of the previous page or null to start at the beginning
+	 * @param length
+	 * @return up to length messages following previousReceiptHandle
+	 */
+	public List<CQSMessage> peekPartition(String queueUrl, int shard, int partition, String previousReceiptHandle, int length) throws IOException, NoSuchAlgorithmException, JSONException, PersistenceException {
+
+		String partitionKey = Util.hashQueueUrl(queueUrl) + "_" + shard + "_" + partition;
+		CmbComposite previousHandle = null;
+		long previousBucket = PartitionBuckets.LEGACY_BUCKET;
+
+		if (previousReceiptHandle != null) {
+
+			String[] handleParts = previousReceiptHandle.split(":");
+
+			if (handleParts.length != 3 || !(handleParts[0].equals(partitionKey) || handleParts[0].startsWith(partitionKey + "_"))) {
+				logger.error("event=peek_partition error_code=corrupt_receipt_handle receipt_handle=" + previousReceiptHandle + " key=" + partitionKey);
+				throw new IllegalArgumentException("Corrupt receipt handle " + previousReceiptHandle);
+			}
+
+			previousBucket = PartitionBuckets.getBucketFromRowKey(handleParts[0]);
+			previousHandle = cassandraHandler.getCmbComposite(Arrays.asList(Long.parseLong(handleParts[1]), Long.parseLong(handleParts[2])));
+		}
+
+		// keep reading buckets until the page is full, the filler takes an empty page as the end of the partition
+
+		PartitionBuckets partitionBuckets = PartitionBuckets.getInstance();
+		List<Long> buckets = partitionBuckets.getBuckets(partitionKey, getRetentionPeriod(queueUrl), System.currentTimeMillis());
+		List<CQSMessage> messageList = new ArrayList<CQSMessage>();
+		int firstLiveIndex = 0;
+
+		for (int i = getBucketIndex(buckets, previousBucket, true); i < buckets.size() && messageList.size() < length; i++) {
+
+			long bucket = buckets.get(i);
+			CmbComposite startHandle = bucket == previousBucket ? previousHandle : null;
+
+			CmbColumnSlice<CmbComposite, String> columnSlice = cassandraHandler.readColumnSliceHedged(
+					AbstractDurablePersistence.CQS_KEYSPACE, COLUMN_FAMILY_PARTITIONED_QUEUE_MESSAGES, PartitionBuckets.getRowKey(partitionKey, bucket), startHandle,
+					null, length-messageList.size()+1, CMB_SERIALIZER.STRING_SERIALIZER,
+					CMB_SERIALIZER.COMPOSITE_SERIALIZER,
+					CMB_SERIALIZER.STRING_SERIALIZER);
+
+			if (startHandle == null && columnSlice == null && i == firstLiveIndex && partitionBuckets.markDrained(partitionKey, bucket, System.currentTimeMillis())) {
+				firstLiveIndex++;
+			}
+
+			messageList.addAll(extractMessagesFromColumnSlice(queueUrl, length-messageList.size(), startHandle, null, columnSlice, true));
+		}
+
+		return messageList;
+	}
+
+	/**
+	 * @param buckets ascending buckets of a partition
+	 * @param bucket bucket of a receipt handle, which may have been drained since
+	 * @param forward
+	 * @return index of the bucket to continue paging at, -1 or buckets.size() if there is none
+	 */
+	private static int getBucketIndex(List<Long> buckets, long bucket, boolean forward) {
+
+		if (forward) {
+			int i = 0;
+			while (i < buckets.size() && buckets.get(i) < bucket) {
+				i++;
+			}
+			return i;
+		}
+
+		int i = buckets.size() - 1;
+		while (i >= 0 && buckets.get(i) > bucket) {
+			i--;
+		}
+		return i;
+	}
+
 	@Override
 	public void clearQueue(String queueUrl, int shard) throws PersistenceException, NoSuchAlgorithmException, UnsupportedEncodingException {
 		
@@ -450,10 +650,15 @@ public class CQSMessagePartitionedCassandraPersistence implements ICQSMessagePer
 		
 		logger.debug("event=clear_queue queue_url=" + queueUrl + " num_partitions=" + numberPartitions);
 		
+		int retentionPeriod = getRetentionPeriod(queueUrl);
+		
 		for (int i=0; i<numberPartitions; i++) {
-			String key = Util.hashQueueUrl(queueUrl) + "_" + shard + "_" + i;
-			//cassandraHandler.deleteSuperColumn(COLUMN_FAMILY_PARTITIONED_QUEUE_MESSAGES, key, null, CMB_SERIALIZER.STRING_SERIALIZER, CompositeSerializer.get());
-			cassandraHandler.delete(AbstractDurablePersistence.CQS_KEYSPACE, COLUMN_FAMILY_PARTITIONED_QUEUE_MESSAGES, key, null, CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.STRING_SERIALIZER);
+			String partitionKey = Util.hashQueueUrl(queueUrl) + "_" + shard + "_" + i;
+			for (long bucket : PartitionBuckets.getInstance().getBuckets(partitionKey, retentionPeriod, System.currentTimeMillis())) {
+				String key = PartitionBuckets.getRowKey(partitionKey, bucket);
+				//cassandraHandler.deleteSuperColumn(COLUMN_FAMILY_PARTITIONED_QUEUE_MESSAGES, key, null, CMB_SERIALIZER.STRING_SERIALIZER, CompositeSerializer.get());
+				cassandraHandler.delete(AbstractDurablePersistence.CQS_KEYSPACE, COLUMN_FAMILY_PARTITIONED_QUEUE_MESSAGES, key, null, CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.STRING_SERIALIZER);
+			}
 		}
 	}
 
@@ -470,6 +675,10 @@ public class CQSMessagePartitionedCassandraPersistence implements ICQSMessagePer
 			return getMessagesBulk(queueUrl, ids);
 		}
 		
+		// group the requested columns by partition row and read them all in one round trip
+		
+		Map<String, List<CmbComposite>> columnNamesByKey = new HashMap<String, List<CmbComposite>>();
+		
 		for (String id: ids) {
 			
 			String[] idParts = id.split(":");
@@ -479,20 +688,37 @@ public class CQSMessagePartitionedCassandraPersistence implements ICQSMessagePer
 				throw new IllegalArgumentException("Invalid message id " + id);
 			}
 			
-			CmbComposite columnName = cassandraHandler.getCmbComposite(Arrays.asList(Long.parseLong(idParts[1]), Long.parseLong(idParts[2])));
+			List<CmbComposite> columnNames = columnNamesByKey.get(idParts[0]);
 			
-			CmbColumn<CmbComposite, String> column = cassandraHandler.readColumn(AbstractDurablePersistence.CQS_KEYSPACE, COLUMN_FAMILY_PARTITIONED_QUEUE_MESSAGES, 
-					idParts[0], columnName, CMB_SERIALIZER.STRING_SERIALIZER, 
-					CMB_SERIALIZER.COMPOSITE_SERIALIZER,
-					CMB_SERIALIZER.STRING_SERIALIZER);
+			if (columnNames == null) {
+				columnNames = new ArrayList<CmbComposite>();
+				columnNamesByKey.put(idParts[0], columnNames);
+			}
 			
-			CQSMessage message = null;
+			columnNames.add(cassandraHandler.getCmbComposite(Arrays.asList(Long.parseLong(idParts[1]), Long.parseLong(idParts[2]))));
+			messageMap.put(id, null);
+		}
+		
+		List<CmbRow<String, CmbComposite, String>> rows = cassandraHandler.readColumnsByKeysHedged(AbstractDurablePersistence.CQS_KEYSPACE, COLUMN_FAMILY_PARTITIONED_QUEUE_MESSAGES, 
+				columnNamesByKey, CMB_SERIALIZER.STRING_SERIALIZER, 
+				CMB_SERIALIZER.COMPOSITE_SERIALIZER,
+				CMB_SERIALIZER.STRING_SERIALIZER);
+		
+		for (CmbRow<String, CmbComposite, String> row : rows) {
 			
-			if (column != null) {
-				message = extractMessageFromJSON(queueUrl, column);
+			for (CmbColumn<CmbComposite, String> column : row.getColumnSlice().getColumns()) {
+				
+				if (column.getValue() == null || column.getValue().length() == 0) {
+					continue;
+				}
+				
+				// every row is asked for all column names, only keep what was requested
+				CQSMessage message = extractMessageFromColumn(queueUrl, column);
+				
+				if (messageMap.containsKey(message.getMessageId())) {
+					messageMap.put(message.getMessageId(), message);
+				}
 			}
-			
-			messageMap.put(id, message);
 		}
 		
 		return messageMap;
@@ -517,7 +743,7 @@ public class CQSMessagePartitionedCassandraPersistence implements ICQSMessagePer
 			String firstParts[] = firstLastForPartition.get("First").split(":");
 			String lastParts[] = firstLastForPartition.get("Last").split(":");
 			
-			CmbColumnSlice<CmbComposite, String> columnSlice = cassandraHandler.readColumnSlice(
+			CmbColumnSlice<CmbComposite, String> columnSlice = cassandraHandler.readColumnSliceHedged(
 					AbstractDurablePersistence.CQS_KEYSPACE, COLUMN_FAMILY_PARTITIONED_QUEUE_MESSAGES, queuePartition, cassandraHandler.getCmbComposite(Arrays.asList(Long.parseLong(firstParts[0]), Long.parseLong(firstParts[1]))),
 					cassandraHandler.getCmbComposite(Arrays.asList(Long.parseLong(lastParts[0]), Long.parseLong(lastParts[1]))), messageCount, CMB_SERIALIZER.STRING_SERIALIZER,
 					CMB_SERIALIZER.COMPOSITE_SERIALIZER,
@@ -616,6 +842,25 @@ public class CQSMessagePartitionedCassandraPersistence implements ICQSMessagePer
 		return numberShards;
 	}
 
+	private int getRetentionPeriod(String queueUrl) {
+
+		int retentionPeriod = CMBProperties.getInstance().getCQSMaxMessageRetentionPeriod();
+		
+		try {
+			
+			CQSQueue queue = CQSCache.getCachedQueue(queueUrl);
+			
+			if (queue != null) {
+				retentionPeriod = queue.getMsgRetentionPeriod();
+			}
+			
+		} catch (Exception ex) {
+			logger.warn("event=queue_cache_failure queue_url=" + queueUrl, ex);
+		}
+
+		return retentionPeriod;
+	}
+
 	@Override
     public List<CQSMessage> peekQueueRandom(String queueUrl, int shard, int length) throws IOException, NoSuchAlgorithmException, JSONException, PersistenceException {
         
@@ -639,22 +884,39 @@ public class CQSMessagePartitionedCassandraPersistence implements ICQSMessagePer
             // note: as a simplification we may return less messages than length if not all rows contain messages
             
         	RandomNumberCollection rc = new RandomNumberCollection(numberPartitions);
+        	PartitionBuckets partitionBuckets = PartitionBuckets.getInstance();
+        	int retentionPeriod = getRetentionPeriod(queueUrl);
             int numFound = 0;
             
             for (int i = 0; i < numberPartitions && numFound < length; i++) {
                 
             	int partition = rc.getNext();
-                String key = queueHash + "_" + shard + "_" + partition;
+                String partitionKey = queueHash + "_" + shard + "_" + partition;
+                List<Long> buckets = partitionBuckets.getBuckets(partitionKey, retentionPeriod, System.currentTimeMillis());
+                int firstLiveIndex = 0;
+                
+                // oldest message of the partition, skipping buckets known to be drained
                 
-                CmbColumnSlice<CmbComposite, String> columnSlice = cassandraHandler.readColumnSlice(
-                		AbstractDurablePersistence.CQS_KEYSPACE, COLUMN_FAMILY_PARTITIONED_QUEUE_MESSAGES, key, null, null, 1, 
-                        CMB_SERIALIZER.STRING_SERIALIZER,
-                        CMB_SERIALIZER.COMPOSITE_SERIALIZER,
-                        CMB_SERIALIZER.STRING_SERIALIZER);
-               
-                List<CQSMessage> messages = extractMessagesFromColumnSlice(queueUrl, 1, null, null, columnSlice, false);
-                numFound += messages.size();
-                messageList.addAll(messages);
+                for (int j = 0; j < buckets.size(); j++) {
+                	
+                	CmbColumnSlice<CmbComposite, String> columnSlice = cassandraHandler.readColumnSliceHedged(
+                			AbstractDurablePersistence.CQS_KEYSPACE, COLUMN_FAMILY_PARTITIONED_QUEUE_MESSAGES, PartitionBuckets.getRowKey(partitionKey, buckets.get(j)), null, null, 1, 
+                			CMB_SERIALIZER.STRING_SERIALIZER,
+                			CMB_SERIALIZER.COMPOSITE_SERIALIZER,
+                			CMB_SERIALIZER.STRING_SERIALIZER);
+                	
+                	if (columnSlice == null && j == firstLiveIndex && partitionBuckets.markDrained(partitionKey, buckets.get(j), System.currentTimeMillis())) {
+                		firstLiveIndex++;
+                	}
+                	
+                	List<CQSMessage> messages = extractMessagesFromColumnSlice(queueUrl, 1, null, null, columnSlice, false);
+                	
+                	if (messages.size() > 0) {
+                		numFound += messages.size();
+                		messageList.addAll(messages);
+                		break;
+                	}
+                }
             }
             
             return messageList;
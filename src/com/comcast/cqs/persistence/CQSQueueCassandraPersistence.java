@@ -23,6 +23,7 @@ import java.util.Map;
 
 import org.apache.log4j.Logger;
 
+import com.comcast.cmb.common.controller.CacheInvalidationBus;
 import com.comcast.cmb.common.persistence.AbstractDurablePersistence;
 import com.comcast.cmb.common.persistence.AbstractDurablePersistence.CMB_SERIALIZER;
 import com.comcast.cmb.common.persistence.AbstractDurablePersistence.CmbColumn;
@@ -34,6 +35,7 @@ import com.comcast.cmb.common.util.PersistenceException;
 import com.comcast.cqs.model.CQSQueue;
 import com.comcast.cqs.util.CQSConstants;
 import com.comcast.cqs.util.CQSErrorCodes;
+import com.comcast.cqs.util.CompressionCodec;
 import com.comcast.cqs.util.Util;
 /**
  * Cassandra persistence for queues
@@ -74,14 +76,19 @@ public class CQSQueueCassandraPersistence implements ICQSQueuePersistence {
 		queueData.put(CQSConstants.COL_NUMBER_PARTITIONS, (new Long(queue.getNumberOfPartitions())).toString());
 		queueData.put(CQSConstants.COL_NUMBER_SHARDS, (new Long(queue.getNumberOfShards())).toString());
 		queueData.put(CQSConstants.COL_COMPRESSED, (new Boolean(queue.isCompressed())).toString());
+		queueData.put(CQSConstants.COL_COMPRESSION_CODEC, queue.getConfiguredCompressionCodec() == null ? "" : queue.getConfiguredCompressionCodec().name());
 
 		cassandraHandler.insertRow(AbstractDurablePersistence.CQS_KEYSPACE, queue.getRelativeUrl(), COLUMN_FAMILY_QUEUES, queueData, CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.STRING_SERIALIZER, null);
 		cassandraHandler.update(AbstractDurablePersistence.CQS_KEYSPACE, COLUMN_FAMILY_QUEUES_BY_USER, queue.getOwnerUserId(), queue.getArn(), "", CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.STRING_SERIALIZER, null);
+		
+		// drop cached not-found results for this queue url
+		CacheInvalidationBus.invalidate(CacheInvalidationBus.QUEUE, queue.getRelativeUrl());
 	}
 	
 	@Override
 	public void updateQueueAttribute(String queueURL, Map<String, String> queueData) throws PersistenceException {
 		cassandraHandler.insertRow(AbstractDurablePersistence.CQS_KEYSPACE, queueURL, COLUMN_FAMILY_QUEUES, queueData, CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.STRING_SERIALIZER, null);
+		CacheInvalidationBus.invalidate(CacheInvalidationBus.QUEUE, queueURL);
 	}
 
 	@Override
@@ -94,6 +101,7 @@ public class CQSQueueCassandraPersistence implements ICQSQueuePersistence {
 		
 		cassandraHandler.delete(AbstractDurablePersistence.CQS_KEYSPACE, COLUMN_FAMILY_QUEUES, queueUrl, null, CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.STRING_SERIALIZER);
 		cassandraHandler.delete(AbstractDurablePersistence.CQS_KEYSPACE, COLUMN_FAMILY_QUEUES_BY_USER, Util.getUserIdForRelativeQueueUrl(queueUrl), Util.getArnForRelativeQueueUrl(queueUrl), CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.STRING_SERIALIZER);
+		CacheInvalidationBus.invalidate(CacheInvalidationBus.QUEUE, queueUrl);
 	}
 
 	@Override
@@ -210,6 +218,7 @@ public class CQSQueueCassandraPersistence implements ICQSQueuePersistence {
 			long createdTime = (new Long(slice.getColumnByName(CQSConstants.COL_CREATED_TIME).getValue())).longValue();
 			String hostName = slice.getColumnByName(CQSConstants.COL_HOST_NAME) == null ? null : slice.getColumnByName(CQSConstants.COL_HOST_NAME).getValue();
 			boolean isCompressed = slice.getColumnByName(CQSConstants.COL_COMPRESSED) == null ? false : (new Boolean(slice.getColumnByName(CQSConstants.COL_COMPRESSED).getValue())).booleanValue();
+			String compressionCodec = slice.getColumnByName(CQSConstants.COL_COMPRESSION_CODEC) == null ? null : slice.getColumnByName(CQSConstants.COL_COMPRESSION_CODEC).getValue();
 			CQSQueue queue = new CQSQueue(name, ownerUserId);
 			queue.setRelativeUrl(url);
 			queue.setServiceEndpoint(hostName);
@@ -225,6 +234,9 @@ public class CQSQueueCassandraPersistence implements ICQSQueuePersistence {
 			queue.setNumberOfShards(numShards);
 			queue.setCreatedTime(createdTime);
 			queue.setCompressed(isCompressed);
+			if (compressionCodec != null && !compressionCodec.isEmpty()) {
+				queue.setCompressionCodec(CompressionCodec.fromName(compressionCodec));
+			}
 			return queue;
 		} catch (Exception ex) {
 			return null;
@@ -232,7 +244,7 @@ public class CQSQueueCassandraPersistence implements ICQSQueuePersistence {
 	}
 
 	private CQSQueue getQueueByUrl(String queueUrl) throws PersistenceException {
-		CmbColumnSlice<String, String> slice = cassandraHandler.readColumnSlice(AbstractDurablePersistence.CQS_KEYSPACE, COLUMN_FAMILY_QUEUES, queueUrl, null, null, 15, CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.STRING_SERIALIZER);
+		CmbColumnSlice<String, String> slice = cassandraHandler.readColumnSlice(AbstractDurablePersistence.CQS_KEYSPACE, COLUMN_FAMILY_QUEUES, queueUrl, null, null, 20, CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.STRING_SERIALIZER);
 		if (slice == null) {		    
 			return null;
 		}
@@ -257,6 +269,7 @@ public class CQSQueueCassandraPersistence implements ICQSQueuePersistence {
 			return false;
 		}
 		cassandraHandler.update(AbstractDurablePersistence.CQS_KEYSPACE, COLUMN_FAMILY_QUEUES, queueUrl, CQSConstants.COL_POLICY, policy, CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.STRING_SERIALIZER, null);
+		CacheInvalidationBus.invalidate(CacheInvalidationBus.QUEUE, queueUrl);
 		return true;
 	}
 }
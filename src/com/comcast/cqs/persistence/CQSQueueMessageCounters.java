@@ -0,0 +1,522 @@
+/**
+ * Copyright 2012 Comcast Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.comcast.cqs.persistence;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.ShardedJedis;
+import redis.clients.jedis.ShardedJedisPipeline;
+import redis.clients.jedis.exceptions.JedisException;
+
+import com.comcast.cmb.common.persistence.AbstractDurablePersistence;
+import com.comcast.cmb.common.util.CMBProperties;
+import com.comcast.cqs.controller.CQSCache;
+import com.comcast.cqs.model.CQSQueue;
+import com.comcast.cqs.persistence.RedisSortedSetPersistence.QCacheState;
+import com.comcast.cqs.util.CQSConstants;
+import com.comcast.cqs.util.MemIdCodec;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Approximate message counters per queue, kept in the Redis hash <queueUrl>-N with the fields T (all messages),
+ * I (in flight) and D (delayed), so message counts are answered with a single HGETALL instead of counting the
+ * sorted set of every queue shard.
+ *
+ * Sends, receives, deletes and expired messages update the counters. Updates are buffered per queue and written
+ * with one HINCRBY per field every messageCountersFlushMS. Delayed messages becoming visible and in flight messages
+ * whose visibility timeout ran out do not cause any update, so every messageCountersReconcileSec one api server
+ * recounts each queue in use from its sorted sets and overwrites the counters. Recounting uses ZCOUNT, only a
+ * bounded sample of the not visible messages is read to estimate how many of them are delayed. Counters which were never
+ * reconciled are not used.
+ */
+public class CQSQueueMessageCounters {
+
+	private static Logger logger = Logger.getLogger(CQSQueueMessageCounters.class);
+
+	public static final String TOTAL = "T";
+	public static final String IN_FLIGHT = "I";
+	public static final String DELAYED = "D";
+	public static final String RECONCILED_TS = "TS";
+
+	/**
+	 * Number of not visible messages per shard read to tell delayed from in flight messages
+	 */
+	private static final int RECONCILE_SAMPLE_SIZE = 100;
+
+	private static volatile CQSQueueMessageCounters instance;
+
+	/**
+	 * Message counts of a queue
+	 */
+	public static class Counts {
+
+		private final long total;
+		private final long inFlight;
+		private final long delayed;
+
+		public Counts(long total, long inFlight, long delayed) {
+			this.total = total;
+			this.inFlight = inFlight;
+			this.delayed = delayed;
+		}
+
+		public long getTotal() {
+			return total;
+		}
+
+		public long getInFlight() {
+			return inFlight;
+		}
+
+		public long getDelayed() {
+			return delayed;
+		}
+
+		public long getNotVisible() {
+			return inFlight + delayed;
+		}
+
+		public long getVisible() {
+			return Math.max(0, total - inFlight - delayed);
+		}
+	}
+
+	private static class Delta {
+		final AtomicLong total = new AtomicLong();
+		final AtomicLong inFlight = new AtomicLong();
+		final AtomicLong delayed = new AtomicLong();
+	}
+
+	private final ConcurrentHashMap<String, Delta> deltas = new ConcurrentHashMap<String, Delta>();
+
+	/**
+	 * Queues used by this api server and when they were last used, only these are reconciled
+	 */
+	private final ConcurrentHashMap<String, Long> activeQueues = new ConcurrentHashMap<String, Long>();
+
+	private final int reconcileSec;
+	private ScheduledExecutorService scheduler;
+
+	public static CQSQueueMessageCounters getInstance() {
+		if (instance == null) {
+			synchronized (CQSQueueMessageCounters.class) {
+				if (instance == null) {
+					CQSQueueMessageCounters counters = new CQSQueueMessageCounters(CMBProperties.getInstance().getRedisMessageCountersReconcileSec());
+					if (CMBProperties.getInstance().isRedisMessageCountersEnabled()) {
+						counters.start(CMBProperties.getInstance().getRedisMessageCountersFlushMS());
+					}
+					instance = counters;
+				}
+			}
+		}
+		return instance;
+	}
+
+	public CQSQueueMessageCounters(int reconcileSec) {
+		this.reconcileSec = Math.max(1, reconcileSec);
+	}
+
+	/**
+	 * Start flushing buffered changes every flushMS milliseconds and reconciling active queues every
+	 * reconcileSec seconds, changes are only buffered once started
+	 * @param flushMS
+	 */
+	public void start(int flushMS) {
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("CQSQueueMessageCounters-%d").setDaemon(true).build());
+
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					flush();
+				} catch (Throwable t) {
+					logger.warn("event=message_counters_flush_failed", t);
+				}
+			}
+		}, flushMS, Math.max(1, flushMS), TimeUnit.MILLISECONDS);
+
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					reconcileAll();
+				} catch (Throwable t) {
+					logger.warn("event=message_counters_reconcile_failed", t);
+				}
+			}
+		}, reconcileSec, reconcileSec, TimeUnit.SECONDS);
+	}
+
+	public boolean isEnabled() {
+		return scheduler != null;
+	}
+
+	/**
+	 * @return number of queues with buffered changes
+	 */
+	public int getNumPendingQueues() {
+		return deltas.size();
+	}
+
+	/**
+	 * @return number of queues reconciled by this api server
+	 */
+	public int getNumActiveQueues() {
+		return activeQueues.size();
+	}
+
+	/**
+	 * Buffer a change of the counters of a queue
+	 * @param queueUrl
+	 * @param total change of the number of messages
+	 * @param inFlight change of the number of in flight messages
+	 * @param delayed change of the number of delayed messages
+	 */
+	public void add(String queueUrl, long total, long inFlight, long delayed) {
+
+		if (!isEnabled()) {
+			return;
+		}
+
+		Delta delta = deltas.get(queueUrl);
+
+		if (delta == null) {
+			Delta d = new Delta();
+			delta = deltas.putIfAbsent(queueUrl, d);
+			if (delta == null) {
+				delta = d;
+			}
+		}
+
+		delta.total.addAndGet(total);
+		delta.inFlight.addAndGet(inFlight);
+		delta.delayed.addAndGet(delayed);
+		activeQueues.put(queueUrl, System.currentTimeMillis());
+	}
+
+	/**
+	 * Buffer the result of a visibility timeout change, messages whose visibility timeout was set to 0 are no
+	 * longer in flight
+	 * @param queueUrl
+	 * @param visibilityTOs new visibility timeouts in seconds
+	 * @param changed whether the visibility of the message at the same index was changed
+	 */
+	public void addVisibilityChanges(String queueUrl, List<Integer> visibilityTOs, List<Boolean> changed) {
+
+		long visible = 0;
+
+		for (int i = 0; i < changed.size(); i++) {
+			if (Boolean.TRUE.equals(changed.get(i)) && visibilityTOs.get(i) == 0) {
+				visible++;
+			}
+		}
+
+		if (visible > 0) {
+			add(queueUrl, 0, -visible, 0);
+		}
+	}
+
+	/**
+	 * @return buffered changes since the last call, by queue url
+	 */
+	public Map<String, Counts> drainDeltas() {
+
+		Map<String, Counts> drained = new HashMap<String, Counts>();
+
+		for (Map.Entry<String, Delta> e : deltas.entrySet()) {
+
+			Delta delta = e.getValue();
+			long total = delta.total.getAndSet(0);
+			long inFlight = delta.inFlight.getAndSet(0);
+			long delayed = delta.delayed.getAndSet(0);
+
+			if (total == 0 && inFlight == 0 && delayed == 0) {
+				deltas.remove(e.getKey(), delta);
+			} else {
+				drained.put(e.getKey(), new Counts(total, inFlight, delayed));
+			}
+		}
+
+		return drained;
+	}
+
+	/**
+	 * Write buffered changes to Redis. Changes are dropped if Redis is not available, the next reconciliation
+	 * corrects the counters.
+	 */
+	public void flush() {
+
+		Map<String, Counts> drained = drainDeltas();
+
+		if (drained.isEmpty()) {
+			return;
+		}
+
+		write(drained);
+	}
+
+	protected void write(Map<String, Counts> drained) {
+
+		ShardedJedis jedis = null;
+		boolean brokenJedis = false;
+
+		try {
+			jedis = RedisSortedSetPersistence.getResource();
+			ShardedJedisPipeline p = jedis.pipelined();
+			for (Map.Entry<String, Counts> e : drained.entrySet()) {
+				String key = e.getKey() + "-N";
+				Counts c = e.getValue();
+				if (c.getTotal() != 0) {
+					p.hincrBy(key, TOTAL, c.getTotal());
+				}
+				if (c.getInFlight() != 0) {
+					p.hincrBy(key, IN_FLIGHT, c.getInFlight());
+				}
+				if (c.getDelayed() != 0) {
+					p.hincrBy(key, DELAYED, c.getDelayed());
+				}
+			}
+			p.sync();
+			logger.debug("event=message_counters_flushed num_queues=" + drained.size());
+		} catch (JedisException ex) {
+			brokenJedis = true;
+			logger.warn("event=message_counters_flush_failed num_queues=" + drained.size(), ex);
+		} finally {
+			if (jedis != null) {
+				RedisSortedSetPersistence.returnResource(jedis, brokenJedis);
+			}
+		}
+	}
+
+	/**
+	 * @param queueUrl
+	 * @return approximate counts of the queue including changes not yet flushed, or null if the counters are
+	 * disabled or have not been reconciled yet
+	 */
+	public Counts getCounts(String queueUrl) {
+
+		if (!isEnabled()) {
+			return null;
+		}
+
+		activeQueues.put(queueUrl, System.currentTimeMillis());
+		Map<String, String> hash;
+		ShardedJedis jedis = null;
+		boolean brokenJedis = false;
+
+		try {
+			jedis = RedisSortedSetPersistence.getResource();
+			hash = jedis.hgetAll(queueUrl + "-N");
+		} catch (JedisException ex) {
+			brokenJedis = true;
+			logger.warn("event=message_counters_read_failed queue_url=" + queueUrl, ex);
+			return null;
+		} finally {
+			if (jedis != null) {
+				RedisSortedSetPersistence.returnResource(jedis, brokenJedis);
+			}
+		}
+
+		Delta delta = deltas.get(queueUrl);
+		return merge(hash, delta == null ? null : new Counts(delta.total.get(), delta.inFlight.get(), delta.delayed.get()));
+	}
+
+	/**
+	 * @param hash counters as stored in Redis
+	 * @param pending changes not yet written to Redis or null
+	 * @return counts clamped to consistent values or null if the counters were never reconciled
+	 */
+	public static Counts merge(Map<String, String> hash, Counts pending) {
+
+		if (hash == null || !hash.containsKey(RECONCILED_TS)) {
+			return null;
+		}
+
+		long total = getLong(hash, TOTAL);
+		long inFlight = getLong(hash, IN_FLIGHT);
+		long delayed = getLong(hash, DELAYED);
+
+		if (pending != null) {
+			total += pending.getTotal();
+			inFlight += pending.getInFlight();
+			delayed += pending.getDelayed();
+		}
+
+		total = Math.max(0, total);
+		inFlight = Math.min(total, Math.max(0, inFlight));
+		delayed = Math.min(total - inFlight, Math.max(0, delayed));
+
+		return new Counts(total, inFlight, delayed);
+	}
+
+	private static long getLong(Map<String, String> hash, String field) {
+		String value = hash.get(field);
+		return value == null ? 0 : Long.parseLong(value);
+	}
+
+	/**
+	 * Drop the counters of a queue, for example after it was cleared. Counts are unknown until the next
+	 * reconciliation.
+	 * @param queueUrl
+	 */
+	public void reset(String queueUrl) {
+
+		deltas.remove(queueUrl);
+
+		if (!isEnabled()) {
+			return;
+		}
+
+		ShardedJedis jedis = null;
+		boolean brokenJedis = false;
+
+		try {
+			jedis = RedisSortedSetPersistence.getResource();
+			jedis.del(queueUrl + "-N");
+		} catch (JedisException ex) {
+			brokenJedis = true;
+			logger.warn("event=message_counters_reset_failed queue_url=" + queueUrl, ex);
+		} finally {
+			if (jedis != null) {
+				RedisSortedSetPersistence.returnResource(jedis, brokenJedis);
+			}
+		}
+	}
+
+	/**
+	 * @param memId
+	 * @param now
+	 * @return true if a message with a score after now was never visible yet, the time encoded in memIds includes
+	 * the delay, while in flight messages were created before they were received
+	 */
+	public static boolean isDelayed(String memId, long now) {
+		return AbstractDurablePersistence.getTimestampFromHash(MemIdCodec.getTime(memId)) > now;
+	}
+
+	private void reconcileAll() {
+
+		flush();
+		long now = System.currentTimeMillis();
+
+		for (Map.Entry<String, Long> e : activeQueues.entrySet()) {
+
+			if (now - e.getValue() > 2000L * reconcileSec) {
+				activeQueues.remove(e.getKey(), e.getValue());
+				continue;
+			}
+
+			try {
+				reconcile(e.getKey());
+			} catch (Exception ex) {
+				logger.warn("event=message_counters_reconcile_failed queue_url=" + e.getKey(), ex);
+			}
+		}
+	}
+
+	/**
+	 * Recount a queue from its sorted sets unless another api server did so during the last reconcileSec seconds
+	 */
+	protected void reconcile(String queueUrl) throws Exception {
+
+		CQSQueue queue = CQSCache.getCachedQueue(queueUrl);
+
+		if (queue == null) {
+			activeQueues.remove(queueUrl);
+			return;
+		}
+
+		ShardedJedis jedis = null;
+		boolean brokenJedis = false;
+
+		try {
+
+			jedis = RedisSortedSetPersistence.getResource();
+			String lockKey = queueUrl + "-NR";
+
+			if (jedis.set(lockKey, "Y", "NX", "EX", reconcileSec) == null) {
+				return; // someone else reconciled recently
+			}
+
+			long now = System.currentTimeMillis();
+			long total = 0, inFlight = 0, delayed = 0;
+
+			for (int shard = 0; shard < queue.getNumberOfShards(); shard++) {
+
+				// only read the state, a shard that is not cached is left to the next send or receive to fill
+				String state = jedis.hget(queueUrl + "-" + shard + "-" + CQSConstants.REDIS_STATE, CQSConstants.REDIS_STATE);
+
+				if (!QCacheState.OK.name().equals(state)) {
+					logger.debug("event=message_counters_reconcile_skipped reason=cache_not_ok queue_url=" + queueUrl + " shard=" + shard + " cache_state=" + state);
+					return;
+				}
+
+				String key = queueUrl + "-" + shard + "-Q";
+				Jedis j = jedis.getShard(key);
+				total += j.zcount(key, String.valueOf(now - queue.getMsgRetentionPeriod() * 1000L), "+inf");
+				long notVisible = j.zcount(key, String.valueOf(now + 1), "+inf");
+
+				if (notVisible == 0) {
+					continue;
+				}
+
+				// split the not visible messages by a bounded sample, exact for shards with few of them
+				Set<String> sample = j.zrangeByScore(key, String.valueOf(now + 1), "+inf", 0, RECONCILE_SAMPLE_SIZE);
+				long sampleDelayed = 0;
+
+				for (String memId : sample) {
+					if (isDelayed(memId, now)) {
+						sampleDelayed++;
+					}
+				}
+
+				long shardDelayed = sample.isEmpty() ? 0 : Math.round((double)notVisible * sampleDelayed / sample.size());
+				delayed += shardDelayed;
+				inFlight += notVisible - shardDelayed;
+			}
+
+			Map<String, String> hash = new HashMap<String, String>();
+			hash.put(TOTAL, String.valueOf(total));
+			hash.put(IN_FLIGHT, String.valueOf(inFlight));
+			hash.put(DELAYED, String.valueOf(delayed));
+			hash.put(RECONCILED_TS, String.valueOf(now));
+
+			String countersKey = queueUrl + "-N";
+			jedis.hmset(countersKey, hash);
+			// counters of queues nobody uses anymore go away on their own
+			jedis.expire(countersKey, 10 * reconcileSec);
+
+			logger.debug("event=message_counters_reconciled queue_url=" + queueUrl + " total=" + total + " in_flight=" + inFlight + " delayed=" + delayed);
+
+		} catch (JedisException ex) {
+			brokenJedis = true;
+			throw ex;
+		} finally {
+			if (jedis != null) {
+				RedisSortedSetPersistence.returnResource(jedis, brokenJedis);
+			}
+		}
+	}
+}
@@ -0,0 +1,198 @@
+/**
+ * Copyright 2012 Comcast Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.comcast.cqs.persistence;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.comcast.cqs.controller.CQSLongPollSender;
+
+/**
+ * In-JVM table remembering which queue shards were recently seen in cache state OK, so the
+ * redis persistence classes can skip reading <Q>-S on every api call. An OK lease is only
+ * valid for a short time. Any transition away from OK invalidates the local entry right
+ * away and is broadcast to all other api servers, which invalidate their entries as well.
+ *
+ * Every entry carries a version which is bumped on invalidation. A caller that read the
+ * state from redis may only install a lease if the version has not changed since before
+ * the read, so a concurrent invalidation can never be overwritten by a stale OK.
+ *
+ * Keys are <queueUrl>-<shard>. Entries whose lease ended more than PRUNE_AFTER_MS ago are removed by
+ * a sweep piggybacked on lease(), so the table does not grow with every queue shard ever seen.
+ */
+public class CacheStateLeaseTable {
+
+	private static Logger logger = Logger.getLogger(CacheStateLeaseTable.class);
+
+	public static final String INVALIDATION_PREFIX = "!cachestate:";
+
+	/**
+	 * Entries are kept this long after their lease ended or they were invalidated, much longer than a reader
+	 * takes between getVersion() and lease(), so dropping the version can not let a stale OK through
+	 */
+	private static final long PRUNE_AFTER_MS = 60000;
+
+	private static final CacheStateLeaseTable instance = new CacheStateLeaseTable();
+
+	private static class Entry {
+
+		final long version;
+		final long leaseExpiresMS;
+		final long createdMS;
+
+		Entry(long version, long leaseExpiresMS) {
+			this.version = version;
+			this.leaseExpiresMS = leaseExpiresMS;
+			this.createdMS = System.currentTimeMillis();
+		}
+	}
+
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private final AtomicLong lastPruneMS = new AtomicLong(System.currentTimeMillis());
+
+	public static CacheStateLeaseTable getInstance() {
+		return instance;
+	}
+
+	/**
+	 * @param key
+	 * @return true if the queue shard is known to be in cache state OK
+	 */
+	public boolean isLeased(String key) {
+		Entry e = entries.get(key);
+		return e != null && e.leaseExpiresMS > System.currentTimeMillis();
+	}
+
+	/**
+	 * Read the version before reading the cache state from redis and pass it to lease() afterwards
+	 * @param key
+	 * @return current version
+	 */
+	public long getVersion(String key) {
+		Entry e = entries.get(key);
+		return e == null ? 0 : e.version;
+	}
+
+	/**
+	 * Remember cache state OK for leaseMS milliseconds unless the entry was invalidated since
+	 * expectedVersion was read.
+	 * @param key
+	 * @param expectedVersion
+	 * @param leaseMS
+	 * @return true if the lease was installed
+	 */
+	public boolean lease(String key, long expectedVersion, long leaseMS) {
+
+		if (leaseMS <= 0) {
+			return false;
+		}
+
+		long now = System.currentTimeMillis();
+		long lastPrune = lastPruneMS.get();
+
+		if (now - lastPrune > PRUNE_AFTER_MS && lastPruneMS.compareAndSet(lastPrune, now)) {
+			prune(now);
+		}
+
+		Entry leased = new Entry(expectedVersion, now + leaseMS);
+
+		while (true) {
+
+			Entry e = entries.get(key);
+
+			if (e == null) {
+				if (expectedVersion != 0) {
+					return false;
+				}
+				if (entries.putIfAbsent(key, leased) == null) {
+					return true;
+				}
+			} else {
+				if (e.version != expectedVersion) {
+					return false;
+				}
+				if (entries.replace(key, e, leased)) {
+					return true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Remove entries whose lease ended and which were not changed for PRUNE_AFTER_MS
+	 * @param now
+	 * @return number of entries removed
+	 */
+	public int prune(long now) {
+
+		int numPruned = 0;
+
+		for (Map.Entry<String, Entry> e : entries.entrySet()) {
+
+			Entry entry = e.getValue();
+
+			if (entry.leaseExpiresMS <= now && Math.max(entry.leaseExpiresMS, entry.createdMS) < now - PRUNE_AFTER_MS && entries.remove(e.getKey(), entry)) {
+				numPruned++;
+			}
+		}
+
+		if (numPruned > 0) {
+			logger.debug("event=prune_cache_state_leases num_pruned=" + numPruned + " num_entries=" + entries.size());
+		}
+
+		return numPruned;
+	}
+
+	/**
+	 * @return number of queue shards in the table
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Drop any lease on the queue shard locally
+	 * @param key
+	 */
+	public void invalidate(String key) {
+
+		while (true) {
+
+			Entry e = entries.get(key);
+
+			if (e == null) {
+				if (entries.putIfAbsent(key, new Entry(1, 0)) == null) {
+					return;
+				}
+			} else if (entries.replace(key, e, new Entry(e.version + 1, 0))) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Drop any lease on the queue shard locally and on all other api servers
+	 * @param key
+	 */
+	public void invalidateEverywhere(String key) {
+		invalidate(key);
+		CQSLongPollSender.broadcast(INVALIDATION_PREFIX + key);
+		logger.debug("event=invalidate_cache_state_lease key=" + key);
+	}
+}
@@ -0,0 +1,246 @@
+/**
+ * Copyright 2012 Comcast Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.comcast.cqs.persistence;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.comcast.cmb.common.persistence.AbstractDurablePersistence;
+import com.comcast.cmb.common.persistence.AbstractDurablePersistence.CMB_SERIALIZER;
+import com.comcast.cmb.common.persistence.AbstractDurablePersistence.CmbComposite;
+import com.comcast.cmb.common.persistence.DurablePersistenceFactory;
+import com.comcast.cmb.common.util.CMBProperties;
+import com.comcast.cmb.common.util.PersistenceException;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Group commit for message writes. Concurrent sends are collected for at most maxDelayMS or until
+ * maxMessages are pending and then written to Cassandra as one batch mutation per ttl. The future
+ * returned by write() completes only after the batch holding the message was acknowledged, so
+ * callers waiting on it get the same durability as with a single update.
+ *
+ * Each flusher thread builds and writes its own batch, so several batches can be in flight at once.
+ * The flusher threads are started by start(), not by the constructor, so subclasses are fully
+ * constructed before insertRows() can be called.
+ */
+public class GroupCommitWriter {
+
+	private static Logger logger = Logger.getLogger(GroupCommitWriter.class);
+
+	private static final String COLUMN_FAMILY_PARTITIONED_QUEUE_MESSAGES = "CQSPartitionedQueueMessages";
+
+	private static volatile GroupCommitWriter instance;
+
+	private static class PendingWrite {
+
+		final String rowKey;
+		final CmbComposite columnName;
+		final String value;
+		final int ttl;
+		final SettableFuture<Void> future = SettableFuture.create();
+
+		PendingWrite(String rowKey, CmbComposite columnName, String value, int ttl) {
+			this.rowKey = rowKey;
+			this.columnName = columnName;
+			this.value = value;
+			this.ttl = ttl;
+		}
+	}
+
+	private final LinkedBlockingQueue<PendingWrite> pending = new LinkedBlockingQueue<PendingWrite>();
+	private final long maxDelayNanos;
+	private final int maxMessages;
+	private final int numFlushers;
+	private final List<Thread> flushers = new ArrayList<Thread>();
+	private volatile boolean running = true;
+
+	public static GroupCommitWriter getInstance() {
+		if (instance == null) {
+			synchronized (GroupCommitWriter.class) {
+				if (instance == null) {
+					GroupCommitWriter writer = new GroupCommitWriter(CMBProperties.getInstance().getCQSGroupCommitMaxDelayMS(), CMBProperties.getInstance().getCQSGroupCommitMaxMessages(), CMBProperties.getInstance().getCQSGroupCommitThreads());
+					writer.start();
+					instance = writer;
+				}
+			}
+		}
+		return instance;
+	}
+
+	public GroupCommitWriter(int maxDelayMS, int maxMessages, int numFlushers) {
+
+		this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMS);
+		this.maxMessages = Math.max(1, maxMessages);
+		this.numFlushers = Math.max(1, numFlushers);
+	}
+
+	/**
+	 * Start the flusher threads, writes queued before are picked up by the first batch
+	 */
+	public synchronized void start() {
+
+		if (!flushers.isEmpty()) {
+			return;
+		}
+
+		for (int i = 0; i < numFlushers; i++) {
+			Thread t = new Thread(new Runnable() {
+				public void run() {
+					flushLoop();
+				}
+			}, "GroupCommitWriter-" + i);
+			t.setDaemon(true);
+			t.start();
+			flushers.add(t);
+		}
+	}
+
+	/**
+	 * Queue a message column for the next batch
+	 * @param rowKey
+	 * @param columnName
+	 * @param value
+	 * @param ttl
+	 * @return future completing once the batch with this column was written
+	 */
+	public ListenableFuture<Void> write(String rowKey, CmbComposite columnName, String value, int ttl) {
+		PendingWrite w = new PendingWrite(rowKey, columnName, value, ttl);
+		if (!running) {
+			w.future.setException(new IllegalStateException("Group commit writer is shut down"));
+			return w.future;
+		}
+		pending.add(w);
+		return w.future;
+	}
+
+	public void shutdown() {
+		running = false;
+		for (Thread t : flushers) {
+			t.interrupt();
+		}
+		PendingWrite w;
+		while ((w = pending.poll()) != null) {
+			w.future.setException(new IllegalStateException("Group commit writer is shut down"));
+		}
+	}
+
+	private void flushLoop() {
+
+		List<PendingWrite> batch = new ArrayList<PendingWrite>(maxMessages);
+
+		while (running) {
+
+			try {
+
+				batch.add(pending.take());
+				long deadline = System.nanoTime() + maxDelayNanos;
+
+				while (batch.size() < maxMessages) {
+					if (pending.drainTo(batch, maxMessages - batch.size()) > 0) {
+						continue;
+					}
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						break;
+					}
+					PendingWrite w = pending.poll(remaining, TimeUnit.NANOSECONDS);
+					if (w == null) {
+						break;
+					}
+					batch.add(w);
+				}
+
+				flush(batch);
+
+			} catch (InterruptedException ex) {
+				for (PendingWrite w : batch) {
+					w.future.setException(ex);
+				}
+				if (!running) {
+					return;
+				}
+			} catch (Throwable t) {
+				logger.error("event=group_commit_flush_failed", t);
+				for (PendingWrite w : batch) {
+					w.future.setException(t);
+				}
+			} finally {
+				batch.clear();
+			}
+		}
+	}
+
+	/**
+	 * Write one batch mutation per distinct ttl and complete the futures of the writes in it
+	 */
+	private void flush(List<PendingWrite> batch) {
+
+		Map<Integer, List<PendingWrite>> writesByTtl = new HashMap<Integer, List<PendingWrite>>();
+
+		for (PendingWrite w : batch) {
+			List<PendingWrite> l = writesByTtl.get(w.ttl);
+			if (l == null) {
+				l = new ArrayList<PendingWrite>();
+				writesByTtl.put(w.ttl, l);
+			}
+			l.add(w);
+		}
+
+		for (Map.Entry<Integer, List<PendingWrite>> e : writesByTtl.entrySet()) {
+
+			Map<String, Map<CmbComposite, String>> rows = new HashMap<String, Map<CmbComposite, String>>();
+
+			for (PendingWrite w : e.getValue()) {
+				Map<CmbComposite, String> columns = rows.get(w.rowKey);
+				if (columns == null) {
+					columns = new HashMap<CmbComposite, String>();
+					rows.put(w.rowKey, columns);
+				}
+				columns.put(w.columnName, w.value);
+			}
+
+			try {
+				insertRows(rows, e.getKey());
+				logger.debug("event=group_commit_flushed num_messages=" + e.getValue().size() + " num_rows=" + rows.size() + " ttl=" + e.getKey());
+				for (PendingWrite w : e.getValue()) {
+					w.future.set(null);
+				}
+			} catch (Exception ex) {
+				logger.warn("event=group_commit_flush_failed num_messages=" + e.getValue().size() + " ttl=" + e.getKey(), ex);
+				for (PendingWrite w : e.getValue()) {
+					w.future.setException(ex);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write a batch to Cassandra, overridden in tests
+	 */
+	protected void insertRows(Map<String, Map<CmbComposite, String>> rows, int ttl) throws PersistenceException {
+		DurablePersistenceFactory.getInstance().insertRows(AbstractDurablePersistence.CQS_KEYSPACE, rows, COLUMN_FAMILY_PARTITIONED_QUEUE_MESSAGES,
+				CMB_SERIALIZER.STRING_SERIALIZER,
+				CMB_SERIALIZER.COMPOSITE_SERIALIZER,
+				CMB_SERIALIZER.STRING_SERIALIZER, ttl);
+	}
+}
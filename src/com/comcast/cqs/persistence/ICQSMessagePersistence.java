@@ -105,6 +105,14 @@ public interface ICQSMessagePersistence {
      */
     public void deleteMessage(String queueUrl, String receiptHandle) throws PersistenceException;
     
+    /**
+     * Delete a batch of messages given their receipt handles. Handles may span shards and partitions.
+     * @param queueUrl The URL of the queue
+     * @param receiptHandles The receipt handles of the messages
+     * @throws PersistenceException
+     */
+    public void deleteMessageBatch(String queueUrl, List<String> receiptHandles) throws PersistenceException;
+    
     /**
      * Receive the next set of messages from the Queue. Receives from random shard and random partition.
      * @param queue The queue which contains the messages.
@@ -131,6 +139,19 @@ public interface ICQSMessagePersistence {
      */
     public boolean changeMessageVisibility(CQSQueue queue, String receiptHandle, int visibilityTO) throws PersistenceException, IOException, NoSuchAlgorithmException, InterruptedException;
 
+    /**
+     * Change the message visibility timeout of a batch of messages. Messages which are no longer in the queue are not re-added.
+     * @param queue The queue which contains the messages.
+     * @param receiptHandles The receipt handles of the messages
+     * @param visibilityTOs the visibility timeout of each message, in the same order as receiptHandles
+     * @throws PersistenceException
+     * @throws IOException 
+     * @throws NoSuchAlgorithmException 
+     * @throws InterruptedException
+     * @return true for each message changed successfully, false otherwise, in the same order as receiptHandles 
+     */
+    public List<Boolean> changeMessageVisibilityBatch(CQSQueue queue, List<String> receiptHandles, List<Integer> visibilityTOs) throws PersistenceException, IOException, NoSuchAlgorithmException, InterruptedException;
+
     /**
      * Peek the queue with the given Queue URL for the next set of messages
      * @param queueUrl The URL of the Queue
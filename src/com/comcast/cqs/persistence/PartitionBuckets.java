@@ -0,0 +1,285 @@
+/**
+ * Copyright 2012 Comcast Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.comcast.cqs.persistence;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import redis.clients.jedis.ShardedJedis;
+import redis.clients.jedis.exceptions.JedisException;
+
+import com.comcast.cmb.common.util.CMBProperties;
+
+/**
+ * Time buckets for queue partition rows. With buckets enabled a partition <hash>_<shard>_<partition> is stored
+ * in one row per bucket, <hash>_<shard>_<partition>_<bucket>, where the bucket is the minute since the epoch at
+ * which the bucket starts. A message goes into the bucket of its column time, so reading the buckets of a
+ * partition in ascending order returns its messages in the same order as a single row would.
+ *
+ * Deleted messages leave their tombstones behind in old buckets instead of at the head of an ever growing row.
+ * A bucket that has ended can not receive any new messages, so once a reader finds it empty it is skipped by
+ * all later reads. The first live bucket of a partition is shared through Redis, so a restarted server does
+ * not walk the whole retention period again.
+ *
+ * The row without bucket written before buckets were enabled is read before the buckets. Servers not yet
+ * upgraded keep writing it, so it is only dropped from reads once found empty after
+ * cmb.cqs.partitionBucketLegacyCutoverMS.
+ */
+public class PartitionBuckets {
+
+	private static Logger logger = Logger.getLogger(PartitionBuckets.class);
+
+	public static final long LEGACY_BUCKET = -1;
+
+	/**
+	 * Writers with clocks behind ours may still write into a bucket for this long after it ended
+	 */
+	private static final long CLOCK_SKEW_MS = 60000;
+
+	/**
+	 * Expiration of the shared first live bucket, the longest message retention period
+	 */
+	private static final int FIRST_LIVE_BUCKET_EXP_SEC = 1209600;
+
+	/**
+	 * First live bucket of a partition not known, neither locally nor in Redis
+	 */
+	private static final long UNKNOWN = Long.MIN_VALUE;
+
+	private static volatile PartitionBuckets instance;
+
+	private final int bucketMinutes;
+	private final int maxDelaySeconds;
+	private final long legacyCutoverMS;
+
+	/**
+	 * First bucket of each partition which may still hold messages, UNKNOWN if there is nothing to skip.
+	 * Partitions without an entry have not been looked up in Redis yet.
+	 */
+	private final ConcurrentHashMap<String, Long> firstLiveBuckets = new ConcurrentHashMap<String, Long>();
+
+	/**
+	 * Partitions whose legacy row was found empty after the cutover
+	 */
+	private final ConcurrentHashMap<String, Boolean> drainedLegacyRows = new ConcurrentHashMap<String, Boolean>();
+
+	public static PartitionBuckets getInstance() {
+		if (instance == null) {
+			synchronized (PartitionBuckets.class) {
+				if (instance == null) {
+					instance = new PartitionBuckets(CMBProperties.getInstance().getCQSPartitionBucketMinutes(), CMBProperties.getInstance().getCQSMaxMessageDelaySeconds(), CMBProperties.getInstance().getCQSPartitionBucketLegacyCutoverMS());
+				}
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * @param bucketMinutes
+	 * @param maxDelaySeconds
+	 * @param legacyCutoverMS time after which no server writes legacy rows anymore, 0 to always read them
+	 */
+	public PartitionBuckets(int bucketMinutes, int maxDelaySeconds, long legacyCutoverMS) {
+		this.bucketMinutes = Math.max(0, bucketMinutes);
+		this.maxDelaySeconds = maxDelaySeconds;
+		this.legacyCutoverMS = legacyCutoverMS;
+	}
+
+	public boolean isEnabled() {
+		return bucketMinutes > 0;
+	}
+
+	/**
+	 * @param ts message time in ms including any delay
+	 * @return bucket of a message with this time or LEGACY_BUCKET if buckets are disabled
+	 */
+	public long getBucket(long ts) {
+		if (!isEnabled()) {
+			return LEGACY_BUCKET;
+		}
+		return ts / 60000 / bucketMinutes * bucketMinutes;
+	}
+
+	/**
+	 * @param partitionKey <hash>_<shard>_<partition>
+	 * @param bucket
+	 * @return row key of the bucket
+	 */
+	public static String getRowKey(String partitionKey, long bucket) {
+		if (bucket == LEGACY_BUCKET) {
+			return partitionKey;
+		}
+		return partitionKey + "_" + bucket;
+	}
+
+	/**
+	 * @param rowKey <hash>_<shard>_<partition> or <hash>_<shard>_<partition>_<bucket>
+	 * @return bucket of the row key or LEGACY_BUCKET
+	 */
+	public static long getBucketFromRowKey(String rowKey) {
+		int u1 = rowKey.indexOf('_');
+		int u2 = rowKey.indexOf('_', u1 + 1);
+		int u3 = u2 < 0 ? -1 : rowKey.indexOf('_', u2 + 1);
+		if (u1 < 0 || u3 < 0) {
+			return LEGACY_BUCKET;
+		}
+		return Long.parseLong(rowKey.substring(u3 + 1));
+	}
+
+	/**
+	 * @param partitionKey <hash>_<shard>_<partition>
+	 * @param retentionPeriod message retention period of the queue in seconds
+	 * @param now
+	 * @return buckets which may hold messages in ascending order, starting with LEGACY_BUCKET if the legacy row
+	 * was not found drained after the cutover
+	 */
+	public List<Long> getBuckets(String partitionKey, int retentionPeriod, long now) {
+
+		List<Long> buckets = new ArrayList<Long>();
+
+		if (!isEnabled() || !drainedLegacyRows.containsKey(partitionKey)) {
+			buckets.add(LEGACY_BUCKET);
+		}
+
+		if (!isEnabled()) {
+			return buckets;
+		}
+
+		long from = getBucket(now - retentionPeriod * 1000L);
+		long firstLive = getFirstLiveBucket(partitionKey);
+
+		if (firstLive > from) {
+			from = firstLive;
+		}
+
+		long to = getBucket(now + maxDelaySeconds * 1000L + CLOCK_SKEW_MS);
+
+		for (long bucket = from; bucket <= to; bucket += bucketMinutes) {
+			buckets.add(bucket);
+		}
+
+		return buckets;
+	}
+
+	/**
+	 * Record that a bucket was read from start to end without finding a message. Callers must only pass the
+	 * first bucket returned by getBuckets(), buckets that have not ended yet are never marked.
+	 * @param partitionKey
+	 * @param bucket
+	 * @param now
+	 * @return true if the bucket holds no messages from now on, so the caller may go on with the next bucket.
+	 * The legacy row may still be read before the cutover.
+	 */
+	public boolean markDrained(String partitionKey, long bucket, long now) {
+
+		if (!isEnabled()) {
+			return false;
+		}
+
+		if (bucket == LEGACY_BUCKET) {
+			// ordering of the buckets does not depend on the legacy row, only on the first live bucket
+			if (legacyCutoverMS > 0 && now > legacyCutoverMS + CLOCK_SKEW_MS) {
+				drainedLegacyRows.put(partitionKey, Boolean.TRUE);
+			}
+			return true;
+		}
+
+		long next = bucket + bucketMinutes;
+
+		if (next * 60000 + CLOCK_SKEW_MS > now) {
+			return false;
+		}
+
+		while (true) {
+
+			long current = getFirstLiveBucket(partitionKey);
+
+			if (current >= next) {
+				return true;
+			}
+
+			if (firstLiveBuckets.replace(partitionKey, current, next)) {
+				storeFirstLiveBucket(partitionKey, next);
+				return true;
+			}
+		}
+	}
+
+	private long getFirstLiveBucket(String partitionKey) {
+
+		Long firstLive = firstLiveBuckets.get(partitionKey);
+
+		if (firstLive == null) {
+			// first read of this partition since startup, continue where other servers got to
+			Long stored = loadFirstLiveBucket(partitionKey);
+			firstLiveBuckets.putIfAbsent(partitionKey, stored == null ? UNKNOWN : stored);
+			firstLive = firstLiveBuckets.get(partitionKey);
+		}
+
+		return firstLive;
+	}
+
+	/**
+	 * @param partitionKey
+	 * @return first live bucket of the partition stored by any server, null if none, overridden in tests
+	 */
+	protected Long loadFirstLiveBucket(String partitionKey) {
+
+		ShardedJedis jedis = null;
+		boolean brokenJedis = false;
+
+		try {
+			jedis = RedisSortedSetPersistence.getResource();
+			String value = jedis.get(partitionKey + "-FL");
+			return value == null ? null : Long.parseLong(value);
+		} catch (JedisException ex) {
+			brokenJedis = true;
+			logger.warn("event=load_first_live_bucket_failed partition_key=" + partitionKey, ex);
+			return null;
+		} finally {
+			if (jedis != null) {
+				RedisSortedSetPersistence.returnResource(jedis, brokenJedis);
+			}
+		}
+	}
+
+	/**
+	 * Share a new first live bucket with the other servers. Concurrent updates may store an older bucket,
+	 * which only costs a few extra reads.
+	 * @param partitionKey
+	 * @param bucket
+	 */
+	protected void storeFirstLiveBucket(String partitionKey, long bucket) {
+
+		ShardedJedis jedis = null;
+		boolean brokenJedis = false;
+
+		try {
+			jedis = RedisSortedSetPersistence.getResource();
+			jedis.setex(partitionKey + "-FL", FIRST_LIVE_BUCKET_EXP_SEC, String.valueOf(bucket));
+		} catch (JedisException ex) {
+			brokenJedis = true;
+			logger.warn("event=store_first_live_bucket_failed partition_key=" + partitionKey, ex);
+		} finally {
+			if (jedis != null) {
+				RedisSortedSetPersistence.returnResource(jedis, brokenJedis);
+			}
+		}
+	}
+}
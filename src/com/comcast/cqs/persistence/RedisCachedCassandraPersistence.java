@@ -42,7 +42,9 @@ import org.json.JSONException;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPoolConfig;
 import redis.clients.jedis.JedisShardInfo;
+import redis.clients.jedis.Response;
 import redis.clients.jedis.ShardedJedis;
+import redis.clients.jedis.ShardedJedisPipeline;
 import redis.clients.jedis.ShardedJedisPool;
 import redis.clients.jedis.Transaction;
 import redis.clients.jedis.exceptions.JedisConnectionException;
@@ -60,6 +62,7 @@ import com.comcast.cqs.model.CQSMessage;
 import com.comcast.cqs.model.CQSQueue;
 import com.comcast.cqs.persistence.RedisSortedSetPersistence.QCacheState;
 import com.comcast.cqs.util.CQSConstants;
+import com.comcast.cqs.util.MemIdCodec;
 import com.comcast.cqs.util.Util;
 
 /**
@@ -98,6 +101,7 @@ public class RedisCachedCassandraPersistence implements ICQSMessagePersistence {
 	private volatile static AtomicLong lastCheckMS = new AtomicLong(0);
 	private volatile static AtomicBoolean redisDown = new AtomicBoolean(false);
 	private static final long redisCheckFrequencyMS = 5000;
+	private static final CacheStateLeaseTable cacheStateLeases = CacheStateLeaseTable.getInstance();
 
 	static {
 		initializeInstance();
@@ -182,6 +186,7 @@ public class RedisCachedCassandraPersistence implements ICQSMessagePersistence {
 			 ShardedJedis jedis = getResource();
 			 try {
 				 jedis.del("testQueue-0-" + CQSConstants.REDIS_STATE);
+				 cacheStateLeases.invalidate("testQueue-0");
 				 jedis.del("testQueue-0-Q");
 				 jedis.del("testQueue-0-H");
 				 jedis.del("testQueue-0-R");
@@ -284,6 +289,11 @@ public class RedisCachedCassandraPersistence implements ICQSMessagePersistence {
 	  */
 	 private void setCacheState(String queueUrl, int shard, QCacheState state, QCacheState oldState, boolean checkOldState) throws SetFailedException {
 
+		 if (state != QCacheState.OK) {
+			 // drop leases before the transition so no api server keeps using a cache that is about to be refilled
+			 cacheStateLeases.invalidateEverywhere(queueUrl + "-" + shard);
+		 }
+
 		 long ts1 = System.currentTimeMillis();
 		 boolean brokenJedis = false;
 		 ShardedJedis jedis = getResource();
@@ -482,21 +492,18 @@ public class RedisCachedCassandraPersistence implements ICQSMessagePersistence {
 	 //below are helper methods for encoding Cassandra-message-id into in-memory message-id
 
 	 /**
-	  * In memory message has format addedTS:initialDelay:<messge-id>
-	  * example - 1335302314:0:ABCDEFGHIJK
+	  * In memory message id is either the compact binary format or the legacy format 0:0:0_<shard>_<partition>:<time>:<clock>,
+	  * see MemIdCodec
 	  * @param messageId The Cassandra message-id
 	  * @return The in-memory message-id
 	  */
 	 private String getMemQueueMessage(String messageId) {
-		 if (messageId.length() == 0) {
-			 throw new IllegalArgumentException("Messge Id cannot be an empty string");
-		 }
 		 //messageID is like 45c1596598f85ce59f060dc2b8ec4ebb_0_72:2923737900040323074:-8763141905575923938
-		 //the first part 45c1596598f85ce59f060dc2b8ec4ebb is hash of queue url, so replace it with 0 to save space in Redis
-		 //return example: 0:0:0_0_72:2923737900040323074:-8763141905575923938
-		 StringBuffer sb = new StringBuffer();
-		 sb.append("0").append(':').append("0").append(":0").append(messageId.substring(messageId.indexOf("_")));
-		 return sb.toString();
+		 //the first part 45c1596598f85ce59f060dc2b8ec4ebb is hash of queue url, which is never stored in Redis
+		 if (CMBProperties.getInstance().isRedisCompactMemIds()) {
+			 return MemIdCodec.encode(messageId);
+		 }
+		 return MemIdCodec.encodeLegacy(messageId);
 	 }
 
 	 /**
@@ -506,11 +513,7 @@ public class RedisCachedCassandraPersistence implements ICQSMessagePersistence {
 	  */
 	 //Example 0:0:0_0_72:2923737900040323074:-8763141905575923938
 	 public long getMemQueueMessageCreatedTS(String memId) {
-		 String []arr = memId.split(":");
-		 if (arr.length < 5) {
-			 throw new IllegalArgumentException("Bad format for memId. Must be of the form 0:0:<messge-id>. Got: " + memId);
-		 }
-		 return AbstractDurablePersistence.getTimestampFromHash(Long.parseLong(arr[3]));        
+		 return AbstractDurablePersistence.getTimestampFromHash(MemIdCodec.getTime(memId));        
 	 }
 
 	 /**
@@ -519,11 +522,7 @@ public class RedisCachedCassandraPersistence implements ICQSMessagePersistence {
 	  * @return The initial delay encoded in the memId
 	  */
 	 private int getMemQueueMessageInitialDelay(String memId) {
-		 String []arr = memId.split(":");
-		 if (arr.length < 3) {
-			 throw new IllegalArgumentException("Bad format for memId. Must be of the form 0:0:<messge-id>. Got: " + memId);
-		 }
-		 return Integer.parseInt(arr[1]);                
+		 return MemIdCodec.getInitialDelay(memId);                
 	 }
 
 	 /**
@@ -531,18 +530,7 @@ public class RedisCachedCassandraPersistence implements ICQSMessagePersistence {
 	  * @return The message-id encoded in memId
 	  */
 	 static String getMemQueueMessageMessageId(String queueUrlHash, String memId) {        
-		 String []arr = memId.split(":");
-		 if (arr.length < 3) {
-			 throw new IllegalArgumentException("Bad format for memId. Must be of the form 0:0:<messge-id>. Got: " + memId);
-		 }
-		 //memId example: 0:0:0_0_72:2923737900040323074:-8763141905575923938
-		 //replace arr[2] first 0 to queueUrlHash and return example: 45c1596598f85ce59f060dc2b8ec4ebb_0_72:2923737900040323074:-8763141905575923938
-		 StringBuffer sb = new StringBuffer(queueUrlHash);
-		 sb.append(arr[2].substring(arr[2].indexOf("_")));
-		 for (int i = 3; i < arr.length; i++) {
-			 sb.append(":").append(arr[i]);
-		 }
-		 return sb.toString();
+		 return MemIdCodec.getMessageId(queueUrlHash, memId);
 	 }
 
 	 /**
@@ -579,15 +567,16 @@ public class RedisCachedCassandraPersistence implements ICQSMessagePersistence {
 				 jedis.del(queueUrl + "-" + shard + "-H");
 				 jedis.del(queueUrl + "-" + shard + "-R");
 				 String previousReceiptHandle = null;
-				 List<CQSMessage> messages = persistenceStorage.peekQueue(queueUrl, shard, null, null, 1000);
+				 int batchSize = CMBProperties.getInstance().getRedisFillerBatchSize();
+				 List<CQSMessage> messages = persistenceStorage.peekQueue(queueUrl, shard, null, null, batchSize);
 				 int totalCached = 0;
 				 while (messages.size() != 0) {
-					 for (CQSMessage message : messages) {
-						 addMessageToCache(queueUrl, shard, message, jedis);
-						 totalCached++;
-					 }
+					 // the list must stay in queue order, so pages are appended one after the other
+					 addMessagesToCache(queueUrl, shard, messages, jedis);
+					 totalCached += messages.size();
+					 logger.debug("event=cache_filler_progress queue_url=" + queueUrl + " shard=" + shard + " num_cached=" + totalCached);
 					 previousReceiptHandle = messages.get(messages.size() - 1).getMessageId();
-					 messages = persistenceStorage.peekQueue(queueUrl, shard, previousReceiptHandle, null, 1000); //note: shard parameter should be in sync with receipt handle here
+					 messages = persistenceStorage.peekQueue(queueUrl, shard, previousReceiptHandle, null, batchSize); //note: shard parameter should be in sync with receipt handle here
 				 }
 				 setCacheState(queueUrl, shard, QCacheState.OK, null, false);
 				 setCacheFillerProcessing(queueUrl, shard, 0);
@@ -697,6 +686,12 @@ public class RedisCachedCassandraPersistence implements ICQSMessagePersistence {
 			 if (redisDown.get() && System.currentTimeMillis() - lastCheckMS.longValue() <= RedisCachedCassandraPersistence.redisCheckFrequencyMS) {
 				 return false;
 			 }
+			 // steady state: the queue shard was seen OK very recently, skip the round trip to redis
+			 String leaseKey = queueUrl + "-" + shard;
+			 if (cacheStateLeases.isLeased(leaseKey)) {
+				 return true;
+			 }
+			 long leaseVersion = cacheStateLeases.getVersion(leaseKey);
 			 lastCheckMS.set(System.currentTimeMillis());
 			 QCacheState state = getCacheState(queueUrl, shard);
 			 redisDown.set(false);
@@ -731,6 +726,7 @@ public class RedisCachedCassandraPersistence implements ICQSMessagePersistence {
 				 }
 				 return false;
 			 }
+			 cacheStateLeases.lease(leaseKey, leaseVersion, CMBProperties.getInstance().getRedisCacheStateLeaseMS());
 			 return true;
 		 } catch (JedisConnectionException e) {
 			 logger.warn("event=check_cache_consistency error_code=redis_unavailable num_connections=" + numRedisConnections.get());
@@ -740,13 +736,17 @@ public class RedisCachedCassandraPersistence implements ICQSMessagePersistence {
 	 }
 
 	 /**
-	  * Add message to in-memory-queue. creationTS is now
+	  * Append a page of messages to in-memory-queue with a single RPUSH. creationTS is now
 	  * @param queueUrl
-	  * @param message
+	  * @param messages
 	  */
-	 private void addMessageToCache(String queueUrl, int shard, CQSMessage message, ShardedJedis jedis) {
+	 private void addMessagesToCache(String queueUrl, int shard, List<CQSMessage> messages, ShardedJedis jedis) {
 		 long ts1 = System.currentTimeMillis();
-		 Long newLen = jedis.rpush(queueUrl + "-" + shard + "-Q", getMemQueueMessage(message.getMessageId())); //TODO: currently initialDelay is always 0
+		 String[] memIds = new String[messages.size()];
+		 for (int i = 0; i < memIds.length; i++) {
+			 memIds[i] = getMemQueueMessage(messages.get(i).getMessageId()); //TODO: currently initialDelay is always 0
+		 }
+		 Long newLen = jedis.rpush(queueUrl + "-" + shard + "-Q", memIds);
 		 if (newLen.longValue() == 0) {
 			 throw new IllegalStateException("Could not add memId to queue");
 		 }
@@ -941,6 +941,75 @@ public class RedisCachedCassandraPersistence implements ICQSMessagePersistence {
 		 persistenceStorage.deleteMessage(queueUrl, messageId);
 	 }
 
+	 @Override
+	 public void deleteMessageBatch(String queueUrl, List<String> receiptHandles) throws PersistenceException {
+
+		 String queueUrlHash = Util.getQueueUrlHashFromCache(queueUrl);
+		 //receiptHandle is memId
+
+		 List<String> messageIds = new ArrayList<String>(receiptHandles.size());
+		 Map<Integer, List<String>> memIdsByShard = new HashMap<Integer, List<String>>();
+
+		 for (String receiptHandle : receiptHandles) {
+			 messageIds.add(getMemQueueMessageMessageId(queueUrlHash, receiptHandle));
+			 int shard = Util.getShardFromReceiptHandle(receiptHandle);
+			 List<String> memIds = memIdsByShard.get(shard);
+			 if (memIds == null) {
+				 memIds = new ArrayList<String>();
+				 memIdsByShard.put(shard, memIds);
+			 }
+			 memIds.add(receiptHandle);
+		 }
+
+		 // one consistency check per shard, redis commands are pipelined across the shards of the sharded pool
+
+		 for (Entry<Integer, List<String>> entry : memIdsByShard.entrySet()) {
+
+			 int shard = entry.getKey();
+
+			 if (!checkCacheConsistency(queueUrl, shard, false)) {
+				 continue;
+			 }
+
+			 ShardedJedis jedis = null;
+			 boolean brokenJedis = false;
+
+			 try {
+				 jedis = getResource();
+				 long ts1 = System.currentTimeMillis();
+				 ShardedJedisPipeline p = jedis.pipelined();
+				 Response<Long> numDeleted = p.hdel(queueUrl + "-" + shard + "-H", entry.getValue().toArray(new String[entry.getValue().size()]));
+				 List<Response<Long>> numAttributesDeleted = new ArrayList<Response<Long>>(entry.getValue().size());
+				 for (String memId : entry.getValue()) {
+					 numAttributesDeleted.add(p.del(queueUrl + "-" + shard + "-A-" + memId));
+				 }
+				 p.sync();
+				 if (numDeleted.get() != entry.getValue().size()) {
+					 logger.warn("event=delete_message_batch error_code=could_not_delelete_hidden_set queue_url=" + queueUrl + " shard=" + shard + " num_deleted=" + numDeleted.get() + " num_requested=" + entry.getValue().size());
+				 }
+				 for (int i = 0; i < numAttributesDeleted.size(); i++) {
+					 if (numAttributesDeleted.get(i).get() == 0) {
+						 logger.warn("event=delete_message_batch error_code=could_not_delete_attributes queue_url=" + queueUrl + " shard=" + shard + " mem_id=" + entry.getValue().get(i));
+					 }
+				 }
+				 long ts2 = System.currentTimeMillis();
+				 CQSControllerServlet.valueAccumulator.addToCounter(AccumulatorName.RedisTime, (ts2 - ts1));
+			 } catch (JedisConnectionException e) {
+				 logger.error("event=delete_message_batch error_code=redis_unavailable num_connections=" + numRedisConnections.get());
+				 brokenJedis = true;
+				 trySettingCacheState(queueUrl, shard, QCacheState.Unavailable);
+			 } finally {
+				 if (jedis != null) {
+					 returnResource(jedis, brokenJedis);
+				 }
+			 }
+		 }
+
+		 //delete from underlying persistence layer
+
+		 persistenceStorage.deleteMessageBatch(queueUrl, messageIds);
+	 }
+
 	 /**
 	  * 
 	  * @param queue
@@ -1222,6 +1291,20 @@ public class RedisCachedCassandraPersistence implements ICQSMessagePersistence {
 		 }
 	 }
 
+	 @Override
+	 public List<Boolean> changeMessageVisibilityBatch(CQSQueue queue, List<String> receiptHandles, List<Integer> visibilityTOs) throws PersistenceException, IOException, NoSuchAlgorithmException, InterruptedException {
+
+		 // hidden set and visible list have to be updated together per message, so there is nothing to gain from batching here
+
+		 List<Boolean> ret = new ArrayList<Boolean>(receiptHandles.size());
+
+		 for (int i = 0; i < receiptHandles.size(); i++) {
+			 ret.add(changeMessageVisibility(queue, receiptHandles.get(i), visibilityTOs.get(i)));
+		 }
+
+		 return ret;
+	 }
+
 	 /**
 	  * Note: If cache is unavailable, we will return different id for a message than when the cache is available,
 	  * so we will have duplicates in that case. Also, we currently don't respect nextReceiptHandle rather only previousReceiptHandle and length.
@@ -1319,6 +1402,7 @@ public class RedisCachedCassandraPersistence implements ICQSMessagePersistence {
 				 long ts1 = System.currentTimeMillis();
 				 jedis = getResource();
 				 Long num = jedis.del(queueUrl + "-" + shard + "-" + CQSConstants.REDIS_STATE);
+				 cacheStateLeases.invalidateEverywhere(queueUrl + "-" + shard);
 				 logger.debug("num removed=" + num);
 				 num = jedis.del(queueUrl + "-" + shard + "-Q");
 				 logger.debug("num removed=" + num);
@@ -22,15 +22,18 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -41,6 +44,8 @@ import org.json.JSONException;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPoolConfig;
 import redis.clients.jedis.JedisShardInfo;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
 import redis.clients.jedis.ShardedJedis;
 import redis.clients.jedis.ShardedJedisPool;
 import redis.clients.jedis.Transaction;
@@ -58,9 +63,12 @@ import com.comcast.cqs.controller.CQSControllerServlet;
 import com.comcast.cqs.controller.CQSMonitor;
 import com.comcast.cqs.controller.CQSMonitor.CacheType;
 import com.comcast.cqs.model.CQSMessage;
+import com.comcast.cqs.model.CQSMessageAttribute;
 import com.comcast.cqs.model.CQSQueue;
 import com.comcast.cqs.util.CQSConstants;
+import com.comcast.cqs.util.MemIdCodec;
 import com.comcast.cqs.util.Util;
+import com.google.common.util.concurrent.ListenableFuture;
 
 public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 
@@ -69,10 +77,16 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 	private static RedisSortedSetPersistence instance;
 
 	public static ExecutorService executor;
+	private static ExecutorService fillerPartitionExecutor;
+
+	private static final int FILLER_PROCESSING_SEC = 20 * 60;
+	// fill progress must outlive <Q>-F, a crashed filler is only replaced after <Q>-F expired
+	private static final int FILLER_PROGRESS_SEC = 3 * FILLER_PROCESSING_SEC;
 
 	public final TestInterface testInterface = new TestInterface();
 
-	/*    Lua script for fetching from sorted set and changing score to be higher
+	/*    Lua script for receiving messages: fetches visible message ids from the sorted set, changes their score to be higher
+	 and updates the receive attributes of each message, all in a single round trip
      keys -
        KEYS[1] name of the sorted set
      arguments
@@ -82,23 +96,96 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
     messages that should not be visible yet
        ARGV[3] limit/max number to return
        ARGV[4] new score value (going to be epoch time +
-    invisibilityTimeout)
+    invisibilityTimeout), 0 means leave the score unchanged
+       ARGV[5] prefix of the attribute hash of a message (<Q>-<shard>-A-)
+       ARGV[6] current timestamp to use as first receive timestamp
+       ARGV[7] expiration of the attribute hash in seconds
+     returns
+       flat list of memId, first receive timestamp, receive count triplets followed by the
+       number of messages still visible in the sorted set
 
 	local messages = redis.call("ZRANGEBYSCORE",KEYS[1],ARGV[1],
 	ARGV[2],"LIMIT","0",ARGV[3])
+	local ret = {}
 	for i=1,#messages do
-	  redis.call("ZADD",KEYS[1],ARGV[4],messages[i])
+	  if ARGV[4] ~= "0" then
+	    redis.call("ZADD",KEYS[1],ARGV[4],messages[i])
+	  end
+	  local attrKey = ARGV[5] .. messages[i]
+	  local firstRecvTS = redis.call("HGET",attrKey,"AFRTS")
+	  if not firstRecvTS then
+	    firstRecvTS = ARGV[6]
+	    redis.call("HSET",attrKey,"AFRTS",firstRecvTS)
+	  end
+	  local recvCount = redis.call("HINCRBY",attrKey,"ARC",1)
+	  redis.call("EXPIRE",attrKey,ARGV[7])
+	  ret[#ret+1] = messages[i]
+	  ret[#ret+1] = firstRecvTS
+	  ret[#ret+1] = tostring(recvCount)
 	end
-	return messages
+	ret[#ret+1] = tostring(redis.call("ZCOUNT",KEYS[1],ARGV[1],ARGV[2]))
+	return ret
 	 */
 
-	private static String luaChangeScoreToHigher = "local messages = redis.call(\"ZRANGEBYSCORE\",KEYS[1],ARGV[1],ARGV[2],\"LIMIT\",\"0\",ARGV[3]) for i=1, "
-			+ "#messages do "
+	private static String luaReceiveMessages = "local messages = redis.call(\"ZRANGEBYSCORE\",KEYS[1],ARGV[1],ARGV[2],\"LIMIT\",\"0\",ARGV[3]) "
+			+ "local ret = {} "
+			+ "for i=1, #messages do "
+			+ "if ARGV[4] ~= \"0\" then "
 			+ "redis.call(\"ZADD\",KEYS[1],ARGV[4],messages[i]) "
 			+ "end "
-			+ "return messages";
+			+ "local attrKey = ARGV[5] .. messages[i] "
+			+ "local firstRecvTS = redis.call(\"HGET\",attrKey,\"" + CQSConstants.REDIS_APPROXIMATE_FIRST_RECEIVE_TIMESTAMP + "\") "
+			+ "if not firstRecvTS then "
+			+ "firstRecvTS = ARGV[6] "
+			+ "redis.call(\"HSET\",attrKey,\"" + CQSConstants.REDIS_APPROXIMATE_FIRST_RECEIVE_TIMESTAMP + "\",firstRecvTS) "
+			+ "end "
+			+ "local recvCount = redis.call(\"HINCRBY\",attrKey,\"" + CQSConstants.REDIS_APPROXIMATE_RECEIVE_COUNT + "\",1) "
+			+ "redis.call(\"EXPIRE\",attrKey,ARGV[7]) "
+			+ "ret[#ret+1] = messages[i] "
+			+ "ret[#ret+1] = firstRecvTS "
+			+ "ret[#ret+1] = tostring(recvCount) "
+			+ "end "
+			+ "ret[#ret+1] = tostring(redis.call(\"ZCOUNT\",KEYS[1],ARGV[1],ARGV[2])) "
+			+ "return ret";
 	
-	private static String luaChangeScoreToHigherSHA = "  ";
+	private static String luaReceiveMessagesSHA = "  ";
+
+	/*    Lua script for changing the visibility of a batch of messages: updates the score of each message that is
+	 still in the sorted set (ZADD XX semantics) so deleted or expired messages are not resurrected
+     keys -
+       KEYS[1] name of the sorted set
+     arguments
+       ARGV[2i-1] new score value (epoch time + visibilityTimeout) of the i-th message
+       ARGV[2i] memId of the i-th message
+     returns
+       list with 1 for each message whose score was updated and 0 for each message that was not found
+
+	local ret = {}
+	for i=1,#ARGV,2 do
+	  if redis.call("ZSCORE",KEYS[1],ARGV[i+1]) then
+	    redis.call("ZADD",KEYS[1],ARGV[i],ARGV[i+1])
+	    ret[#ret+1] = 1
+	  else
+	    ret[#ret+1] = 0
+	  end
+	end
+	return ret
+	 */
+
+	private static String luaChangeVisibility = "local ret = {} "
+			+ "for i=1,#ARGV,2 do "
+			+ "if redis.call(\"ZSCORE\",KEYS[1],ARGV[i+1]) then "
+			+ "redis.call(\"ZADD\",KEYS[1],ARGV[i],ARGV[i+1]) "
+			+ "ret[#ret+1] = 1 "
+			+ "else "
+			+ "ret[#ret+1] = 0 "
+			+ "end "
+			+ "end "
+			+ "return ret";
+
+	private static String luaChangeVisibilitySHA = "  ";
+
+	private static final int attributeExpireSec = 3600 * 24 * 14; //14 days expiration if not deleted
 	
 	/**
 	 * 
@@ -113,6 +200,13 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 	private volatile static AtomicLong lastCheckMS = new AtomicLong(0);
 	private volatile static AtomicBoolean redisDown = new AtomicBoolean(false);
 	private static final long redisCheckFrequencyMS = 5000;
+	private static final CacheStateLeaseTable cacheStateLeases = CacheStateLeaseTable.getInstance();
+	private static final CQSQueueMessageCounters messageCounters = CQSQueueMessageCounters.getInstance();
+	private static final ConcurrentHashMap<String, Long> lastRetentionSweepMS = new ConcurrentHashMap<String, Long>();
+	private static final AtomicLong lastRetentionSweepPruneMS = new AtomicLong(0);
+	private static final ConcurrentHashMap<String, ShardHint> shardHints = new ConcurrentHashMap<String, ShardHint>();
+	private static final long shardHintTTLMS = 1000;
+	private static final int maxFallbackShardsPerReceive = 2;
 	
 	static {
 		initializeInstance();
@@ -162,6 +256,7 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 
 		 pool = new ShardedJedisPool(config, shardInfos);
 		 executor = Executors.newFixedThreadPool(CMBProperties.getInstance().getRedisFillerThreads());
+		 fillerPartitionExecutor = Executors.newFixedThreadPool(CMBProperties.getInstance().getRedisFillerConcurrency());
 		 logger.info("event=initialize_redis pools_size=" + shardInfos.size() + " max_total=" + config.getMaxTotal() + " server_list=" + serverList);
 	 }
 
@@ -199,8 +294,10 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 			 ShardedJedis jedis = getResource();
 			 try {
 				 jedis.del("testQueue-0-" + CQSConstants.REDIS_STATE);
+				 cacheStateLeases.invalidate("testQueue-0");
 				 jedis.del("testQueue-0-Q");
 				 jedis.del("testQueue-0-F");
+				 jedis.del("testQueue-0-P");
 			 } finally {
 				 returnResource(jedis);
 			 }
@@ -292,6 +389,11 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 	  */
 	 private void setCacheState(String queueUrl, int shard, QCacheState state, QCacheState oldState, boolean checkOldState) throws SetFailedException {
 
+		 if (state != QCacheState.OK) {
+			 // drop leases before the transition so no api server keeps using a cache that is about to be refilled
+			 cacheStateLeases.invalidateEverywhere(queueUrl + "-" + shard);
+		 }
+
 		 long ts1 = System.currentTimeMillis();
 		 boolean brokenJedis = false;
 		 ShardedJedis jedis = getResource();
@@ -361,21 +463,18 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 	 //below are helper methods for encoding Cassandra-message-id into in-memory message-id
 
 	 /**
-	  * In memory message has format addedTS:initialDelay:<messge-id>
-	  * example - 1335302314:0:ABCDEFGHIJK
+	  * In memory message id is either the compact binary format or the legacy format 0:0:0_<shard>_<partition>:<time>:<clock>,
+	  * see MemIdCodec
 	  * @param messageId The Cassandra message-id
 	  * @return The in-memory message-id
 	  */
 	 private String getMemQueueMessage(String messageId) {
-		 if (messageId.length() == 0) {
-			 throw new IllegalArgumentException("Messge Id cannot be an empty string");
-		 }
 		 //messageID is like 45c1596598f85ce59f060dc2b8ec4ebb_0_72:2923737900040323074:-8763141905575923938
-		 //the first part 45c1596598f85ce59f060dc2b8ec4ebb is hash of queue url, so replace it with 0 to save space in Redis
-		 //return example: 0:0:0_0_72:2923737900040323074:-8763141905575923938
-		 StringBuffer sb = new StringBuffer();
-		 sb.append("0").append(':').append("0").append(":0").append(messageId.substring(messageId.indexOf("_")));
-		 return sb.toString();
+		 //the first part 45c1596598f85ce59f060dc2b8ec4ebb is hash of queue url, which is never stored in Redis
+		 if (CMBProperties.getInstance().isRedisCompactMemIds()) {
+			 return MemIdCodec.encode(messageId);
+		 }
+		 return MemIdCodec.encodeLegacy(messageId);
 	 }
 
 	 /**
@@ -385,11 +484,7 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 	  */
 	 //Example 0:0:0_0_72:2923737900040323074:-8763141905575923938
 	 public long getMemQueueMessageCreatedTS(String memId) {
-		 String []arr = memId.split(":");
-		 if (arr.length < 5) {
-			 throw new IllegalArgumentException("Bad format for memId. Must be of the form 0:0:<messge-id>. Got: " + memId);
-		 }
-		 return AbstractDurablePersistence.getTimestampFromHash(Long.parseLong(arr[3]));        
+		 return AbstractDurablePersistence.getTimestampFromHash(MemIdCodec.getTime(memId));        
 	 }
 
 	 /**
@@ -398,11 +493,7 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 	  * @return The initial delay encoded in the memId
 	  */
 	 private int getMemQueueMessageInitialDelay(String memId) {
-		 String []arr = memId.split(":");
-		 if (arr.length < 3) {
-			 throw new IllegalArgumentException("Bad format for memId. Must be of the form 0:0:<messge-id>. Got: " + memId);
-		 }
-		 return Integer.parseInt(arr[1]);                
+		 return MemIdCodec.getInitialDelay(memId);                
 	 }
 
 	 /**
@@ -410,28 +501,27 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 	  * @return The message-id encoded in memId
 	  */
 	 static String getMemQueueMessageMessageId(String queueUrlHash, String memId) {        
-		 String []arr = memId.split(":");
-		 if (arr.length < 3) {
-			 throw new IllegalArgumentException("Bad format for memId. Must be of the form 0:0:<messge-id>. Got: " + memId);
-		 }
-		 //memId example: 0:0:0_0_72:2923737900040323074:-8763141905575923938
-		 //replace arr[2] first 0 to queueUrlHash and return example: 45c1596598f85ce59f060dc2b8ec4ebb_0_72:2923737900040323074:-8763141905575923938
-		 StringBuffer sb = new StringBuffer(queueUrlHash);
-		 sb.append(arr[2].substring(arr[2].indexOf("_")));
-		 for (int i = 3; i < arr.length; i++) {
-			 sb.append(":").append(arr[i]);
-		 }
-		 return sb.toString();
+		 return MemIdCodec.getMessageId(queueUrlHash, memId);
 	 }
 
 	 /**
-	  * Class clears and then fills the cache for a given queue
+	  * Class fills the cache for a given queue shard. Partitions are streamed from Cassandra in parallel on
+	  * fillerPartitionExecutor, which bounds the number of concurrent partition reads across all fillers
+	  * of this API server, and each page is written with a single pipelined multi-member ZADD.
 	  * When its done, it updates the following cache keys are available:
 	  *  <Q>-S = OK
 	  *  <Q>-Q = The in-memory sorted set ("queue") of message ids
 	  *  <Q>-F = Existence implies currently running CacheFiller
+	  *  <Q>-P = Fill progress, maps each partition to the message id of the last message cached.
+	  *    If a filler dies the next one keeps <Q>-Q and resumes every partition from here instead of starting over.
+	  *    Finished partitions are read again from their last message too, messages sent while the cache was
+	  *    unavailable are not in <Q>-Q. Lives on the same Redis shard as <Q>-Q and expires FILLER_PROGRESS_SEC
+	  *    after the last page, well after <Q>-F, so the filler replacing a crashed one still finds it.
+	  *  <Q>-X = Existence implies recent retention sweep, see RetentionSweeper
 	  *  <Q>-A-<messageId> = The attributes for a message in a queue. Note, this requires that the messageId remain the same
-	  *    throughout the life-time of a message.
+	  *    throughout the life-time of a message. Attributes are always stored on the same Redis shard as <Q>-Q.
+	  *  <Q>-B-<messageId> = The payload of a message as stored in Cassandra if the payload cache is enabled. Written on send
+	  *    only, not by the filler, and always stored on the same Redis shard as <Q>-Q.
 	  */
 	 private class CacheFiller implements Runnable {
 		 final String queueUrl;
@@ -443,35 +533,55 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 		 @Override
 		 public void run() {
 			 CQSControllerServlet.valueAccumulator.initializeAllCounters();            
-			 //clear all existing in-memQueue and hidden set
 			 boolean brokenJedis = false;
 			 long ts1 = System.currentTimeMillis();
 			 ShardedJedis jedis = getResource();
 			 try {
-				 logger.info("event=cache_filler_started queue_url=" + queueUrl + " shard=" + shard);
-				 jedis.del(queueUrl + "-" + shard + "-Q");
-				 String previousReceiptHandle = null;
-				 List<CQSMessage> messages = persistenceStorage.peekQueue(queueUrl, shard, null, null, 1000);
-				 int totalCached = 0;
-				 while (messages.size() != 0) {
-					 for (CQSMessage message : messages) {
-						 addMessageToCache(queueUrl, shard, message, jedis);
-						 totalCached++;
+				 String key = queueUrl + "-" + shard + "-Q";
+				 String progressKey = queueUrl + "-" + shard + "-P";
+				 Map<String, String> progress = jedis.getShard(key).hgetAll(progressKey);
+				 if (progress.isEmpty()) {
+					 //no previous run to resume, clear all existing in-memQueue
+					 jedis.del(key);
+				 }
+				 logger.info("event=cache_filler_started queue_url=" + queueUrl + " shard=" + shard + " resumed=" + !progress.isEmpty());
+				 List<Integer> partitions = new ArrayList<Integer>();
+				 if (persistenceStorage instanceof CQSMessagePartitionedCassandraPersistence) {
+					 CQSQueue queue = CQSCache.getCachedQueue(queueUrl);
+					 int numPartitions = (queue == null) ? CMBProperties.getInstance().getCQSNumberOfQueuePartitions() : queue.getNumberOfPartitions();
+					 for (int i = 0; i < numPartitions; i++) {
+						 partitions.add(i);
+					 }
+				 } else {
+					 partitions.add(-1); //single sequential stream over all partitions
+				 }
+				 AtomicInteger totalCached = new AtomicInteger();
+				 AtomicInteger partitionsDone = new AtomicInteger();
+				 List<Future<?>> futures = new ArrayList<Future<?>>();
+				 for (int partition : partitions) {
+					 String previousReceiptHandle = progress.get(String.valueOf(partition));
+					 futures.add(fillerPartitionExecutor.submit(new PartitionFiller(queueUrl, shard, partition, previousReceiptHandle, partitions.size(), totalCached, partitionsDone)));
+				 }
+				 try {
+					 for (Future<?> future : futures) {
+						 future.get();
+					 }
+				 } catch (ExecutionException e) {
+					 for (Future<?> future : futures) {
+						 future.cancel(true);
 					 }
-					 previousReceiptHandle = messages.get(messages.size() - 1).getMessageId();
-					 messages = persistenceStorage.peekQueue(queueUrl, shard, previousReceiptHandle, null, 1000); //note: shard parameter should be in sync with receipt handle here
+					 throw e.getCause() instanceof Exception ? (Exception)e.getCause() : e;
 				 }
 				 setCacheState(queueUrl, shard, QCacheState.OK, null, false);
+				 jedis.del(progressKey);
 				 setCacheFillerProcessing(queueUrl, shard, 0);
 				 long ts3 = System.currentTimeMillis();
-				 //logger.debug("event=filled_cache  queue_url=" + queueUrl + " shard=" + shard +" num_cached=" + totalCached + " res_ms=" + (ts3 - ts1) + " redis_ms=" + CQSControllerServlet.valueAccumulator.getCounter(AccumulatorName.RedisTime));
-				 logger.info("event=cache_filler_finished  queue_url=" + queueUrl + " shard=" + shard +" num_cached=" + totalCached + " total_ms=" + (ts3 - ts1) + " redis_ms=" + CQSControllerServlet.valueAccumulator.getCounter(AccumulatorName.RedisTime) + " cass_ms=" + CQSControllerServlet.valueAccumulator.getCounter(AccumulatorName.CassandraTime));
+				 logger.info("event=cache_filler_finished  queue_url=" + queueUrl + " shard=" + shard +" num_cached=" + totalCached.get() + " num_partitions=" + partitions.size() + " total_ms=" + (ts3 - ts1) + " redis_ms=" + CQSControllerServlet.valueAccumulator.getCounter(AccumulatorName.RedisTime) + " cass_ms=" + CQSControllerServlet.valueAccumulator.getCounter(AccumulatorName.CassandraTime));
 			 } catch (Exception e) {
 				 if (e instanceof JedisException) {
 					 brokenJedis = true;
 				 }
-				 //logger.error("event=cache_filler", e);
-				 logger.error("event=cache_filler_failed", e);
+				 logger.error("event=cache_filler_failed queue_url=" + queueUrl + " shard=" + shard, e);
 				 trySettingCacheState(queueUrl, shard, QCacheState.Unavailable);
 			 } finally {
 				 returnResource(jedis, brokenJedis);
@@ -480,6 +590,171 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 		 }
 	 }
 
+	 /**
+	  * Class copies one partition of a queue shard from Cassandra into <Q>-Q page by page, recording
+	  * its progress in <Q>-P after every page. Partition -1 pages through all partitions sequentially
+	  * using peekQueue() for persistence layers without per partition reads.
+	  */
+	 private class PartitionFiller implements Callable<Void> {
+		 final String queueUrl;
+		 final int shard;
+		 final int partition;
+		 final int numPartitions;
+		 final AtomicInteger totalCached;
+		 final AtomicInteger partitionsDone;
+		 String previousReceiptHandle;
+		 public PartitionFiller(String queueUrl, int shard, int partition, String previousReceiptHandle, int numPartitions, AtomicInteger totalCached, AtomicInteger partitionsDone) {
+			 this.queueUrl = queueUrl;
+			 this.shard = shard;
+			 this.partition = partition;
+			 this.previousReceiptHandle = previousReceiptHandle;
+			 this.numPartitions = numPartitions;
+			 this.totalCached = totalCached;
+			 this.partitionsDone = partitionsDone;
+		 }
+		 @Override
+		 public Void call() throws Exception {
+			 CQSControllerServlet.valueAccumulator.initializeAllCounters();
+			 boolean brokenJedis = false;
+			 ShardedJedis jedis = getResource();
+			 try {
+				 String key = queueUrl + "-" + shard + "-Q";
+				 String progressKey = queueUrl + "-" + shard + "-P";
+				 String field = String.valueOf(partition);
+				 int batchSize = CMBProperties.getInstance().getRedisFillerBatchSize();
+				 Jedis j = jedis.getShard(key);
+				 while (true) {
+					 if (Thread.currentThread().isInterrupted()) {
+						 throw new InterruptedException("Cache filler for queue " + queueUrl + " shard " + shard + " cancelled");
+					 }
+					 List<CQSMessage> messages = readPage(batchSize);
+					 long ts1 = System.currentTimeMillis();
+					 Pipeline p = j.pipelined();
+					 if (messages.size() > 0) {
+						 Map<String, Double> members = new HashMap<String, Double>(messages.size() * 2);
+						 for (CQSMessage message : messages) {
+							 String memId = getMemQueueMessage(message.getMessageId());
+							 members.put(memId, (double)getMemQueueMessageCreatedTS(memId));
+						 }
+						 p.zadd(key, members);
+						 previousReceiptHandle = messages.get(messages.size() - 1).getMessageId();
+					 }
+					 boolean done = messages.size() == 0;
+					 if (previousReceiptHandle != null) {
+						 p.hset(progressKey, field, previousReceiptHandle);
+						 p.expire(progressKey, FILLER_PROGRESS_SEC);
+					 }
+					 p.sync();
+					 // keep the sentinel alive for long running fills, it may live on another redis shard
+					 jedis.expire(queueUrl + "-" + shard + "-F", FILLER_PROCESSING_SEC);
+					 CQSControllerServlet.valueAccumulator.addToCounter(AccumulatorName.RedisTime, System.currentTimeMillis() - ts1);
+					 if (done) {
+						 logger.debug("event=cache_filler_progress queue_url=" + queueUrl + " shard=" + shard + " partition=" + partition + " num_cached=" + totalCached.get() + " partitions_done=" + partitionsDone.incrementAndGet() + " num_partitions=" + numPartitions);
+						 return null;
+					 }
+					 logger.debug("event=cache_filler_progress queue_url=" + queueUrl + " shard=" + shard + " partition=" + partition + " num_cached=" + totalCached.addAndGet(messages.size()) + " partitions_done=" + partitionsDone.get() + " num_partitions=" + numPartitions);
+				 }
+			 } catch (JedisException e) {
+				 brokenJedis = true;
+				 throw e;
+			 } finally {
+				 returnResource(jedis, brokenJedis);
+				 CQSControllerServlet.valueAccumulator.deleteAllCounters();
+			 }
+		 }
+		 private List<CQSMessage> readPage(int batchSize) throws Exception {
+			 if (partition < 0) {
+				 //note: shard parameter should be in sync with receipt handle here
+				 return persistenceStorage.peekQueue(queueUrl, shard, previousReceiptHandle, null, batchSize);
+			 }
+			 return ((CQSMessagePartitionedCassandraPersistence)persistenceStorage).peekPartition(queueUrl, shard, partition, previousReceiptHandle, batchSize);
+		 }
+	 }
+
+	 /**
+	  * Class trims expired messages from the sorted set of a queue shard. The <Q>-X flag is set for
+	  * retentionSweepFrequencySec seconds by whoever sweeps, so only one API server trims a given
+	  * queue shard per interval.
+	  */
+	 private class RetentionSweeper implements Runnable {
+		 final String queueUrl;
+		 final int shard;
+		 final int retentionPeriod;
+		 public RetentionSweeper(String queueUrl, int shard, int retentionPeriod) {
+			 this.queueUrl = queueUrl;
+			 this.shard = shard;
+			 this.retentionPeriod = retentionPeriod;
+		 }
+		 @Override
+		 public void run() {
+			 boolean brokenJedis = false;
+			 ShardedJedis jedis = null;
+			 try {
+				 jedis = getResource();
+				 String key = queueUrl + "-" + shard + "-Q";
+				 Jedis j = jedis.getShard(key);
+				 // flag lives on the same shard as the sorted set
+				 if (j.set(queueUrl + "-" + shard + "-X", "Y", "NX", "EX", CMBProperties.getInstance().getRedisRetentionSweepFrequencySec()) == null) {
+					 return; // someone else swept recently
+				 }
+				 long numExpired = j.zremrangeByScore(key, "-inf", String.valueOf(System.currentTimeMillis() - (retentionPeriod * 1000L)));
+				 if (numExpired > 0) {
+					 messageCounters.add(queueUrl, -numExpired, 0, 0);
+					 CQSMonitor.getInstance().registerExpiredMessages(queueUrl, (int)numExpired);
+					 logger.debug("event=retention_sweep queue_url=" + queueUrl + " shard=" + shard + " num_expired=" + numExpired);
+				 }
+			 } catch (Exception e) {
+				 if (e instanceof JedisException) {
+					 brokenJedis = true;
+				 }
+				 logger.warn("event=retention_sweep_failed queue_url=" + queueUrl + " shard=" + shard, e);
+			 } finally {
+				 if (jedis != null) {
+					 returnResource(jedis, brokenJedis);
+				 }
+			 }
+		 }
+	 }
+
+	 /**
+	  * Queue a retention sweep for the queue shard unless this API server did so within the
+	  * last retentionSweepFrequencySec seconds.
+	  * @param queue
+	  * @param shard
+	  */
+	 private void scheduleRetentionSweep(CQSQueue queue, int shard) {
+		 String sweepKey = queue.getRelativeUrl() + "-" + shard;
+		 long now = System.currentTimeMillis();
+		 Long lastSweep = lastRetentionSweepMS.get(sweepKey);
+		 if (lastSweep != null && now - lastSweep < CMBProperties.getInstance().getRedisRetentionSweepFrequencySec() * 1000L) {
+			 return;
+		 }
+		 boolean claimed = (lastSweep == null) ? lastRetentionSweepMS.putIfAbsent(sweepKey, now) == null : lastRetentionSweepMS.replace(sweepKey, lastSweep, now);
+		 if (claimed) {
+			 executor.submit(new RetentionSweeper(queue.getRelativeUrl(), shard, queue.getMsgRetentionPeriod()));
+			 pruneRetentionSweeps(now);
+		 }
+	 }
+
+	 /**
+	  * Drop sweep timestamps older than the sweep frequency, they no longer hold back a sweep. Without this,
+	  * queues deleted through other api servers would stay in lastRetentionSweepMS forever. Runs at most once
+	  * per sweep frequency.
+	  * @param now
+	  */
+	 private static void pruneRetentionSweeps(long now) {
+		 long frequencyMS = CMBProperties.getInstance().getRedisRetentionSweepFrequencySec() * 1000L;
+		 long lastPrune = lastRetentionSweepPruneMS.get();
+		 if (now - lastPrune < frequencyMS || !lastRetentionSweepPruneMS.compareAndSet(lastPrune, now)) {
+			 return;
+		 }
+		 for (Entry<String, Long> entry : lastRetentionSweepMS.entrySet()) {
+			 if (now - entry.getValue() >= frequencyMS) {
+				 lastRetentionSweepMS.remove(entry.getKey(), entry.getValue());
+			 }
+		 }
+	 }
+
 	 /**
 	  * Check if the queue is in the cache and in ok state. Else kick off initialization
 	  * and return false. 
@@ -494,16 +769,25 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 			 if (redisDown.get() && System.currentTimeMillis() - lastCheckMS.longValue() <= RedisSortedSetPersistence.redisCheckFrequencyMS) {
 				 return false;
 			 }
+			 // steady state: the queue shard was seen OK very recently, skip the round trip to redis
+			 String leaseKey = queueUrl + "-" + shard;
+			 if (cacheStateLeases.isLeased(leaseKey)) {
+				 return true;
+			 }
+			 long leaseVersion = cacheStateLeases.getVersion(leaseKey);
 			 lastCheckMS.set(System.currentTimeMillis());
 			 QCacheState state = getCacheState(queueUrl, shard);
 			 redisDown.set(false);
 			 if (state == null || state == QCacheState.Unavailable) {
 				 try {
-					 setCacheFillerProcessing(queueUrl, shard, 20 * 60); // this must be before setCacheState or else a race-condition                    
+					 setCacheFillerProcessing(queueUrl, shard, FILLER_PROCESSING_SEC); // this must be before setCacheState or else a race-condition                    
 					 setCacheState(queueUrl, shard, QCacheState.Filling, state, true);
 					 // we successfully set the state to filling, so we queue up filling job
 					 executor.submit(new CacheFiller(queueUrl, shard));
-					 logger.debug("event=initialize_queue_cache cache_state=" + (state == null ? "null" : state.name()) + " queue_url=" + queueUrl + " shard=" + shard);                        
+					 logger.debug("event=initialize_queue_cache cache_state=" + (state == null ? "null" : state.name()) + " queue_url=" + queueUrl + " shard=" + shard);
+					 // same as for everyone else who finds the cache filling, a sender must add its message itself
+					 // as the filler may have read the partition before the message was written
+					 return trueOnFiller;
 				 } catch (SetFailedException e) {
 					 // someone beat us to it, so we return false for now and check again next time
 					 logger.debug("event=initialize_queue_cache cache_state=" + (state == null ? "null" : state.name()) + " queue_url=" + queueUrl + " shard=" + shard);
@@ -528,6 +812,7 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 				 }
 				 return false;
 			 }
+			 cacheStateLeases.lease(leaseKey, leaseVersion, CMBProperties.getInstance().getRedisCacheStateLeaseMS());
 			 return true;
 		 } catch (JedisConnectionException e) {
 			 logger.warn("event=check_cache_consistency error_code=redis_unavailable num_connections=" + numRedisConnections.get());
@@ -703,6 +988,12 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 	 public long getQueueMessageCount(String queueUrl) {
 		 long messageCount = 0;
 
+		 CQSQueueMessageCounters.Counts counts = messageCounters.getCounts(queueUrl);
+
+		 if (counts != null) {
+			 return counts.getTotal();
+		 }
+
 		 try {
 			 messageCount = getQueueMessageCount(queueUrl, MessageCountType.ALL);
 		 } catch (Exception ex) {
@@ -730,6 +1021,11 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 	 public long getQueueNotVisibleMessageCount(String queueUrl) {
 
 		 long messageCount = 0;
+		 CQSQueueMessageCounters.Counts counts = messageCounters.getCounts(queueUrl);
+
+		 if (counts != null) {
+			 return counts.getNotVisible();
+		 }
 
 		 try {
 			 messageCount = getQueueMessageCount(queueUrl, MessageCountType.INVISIBLE);
@@ -846,12 +1142,26 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 	 @Override
 	 public String sendMessage(CQSQueue queue, int shard, CQSMessage message) throws PersistenceException, IOException, InterruptedException, NoSuchAlgorithmException, JSONException {
 		 // first persist to Cassandra and get message-id to put into cache        
-		 String messageId = persistenceStorage.sendMessage(queue, shard, message);        
+		 String messageId;
+		 boolean cacheAvailable;
+		 if (persistenceStorage instanceof CQSMessagePartitionedCassandraPersistence) {
+			 // check the cache state in Redis while the Cassandra write is in flight, the message is only added to the cache once it is persisted
+			 ListenableFuture<String> pendingMessageId = ((CQSMessagePartitionedCassandraPersistence)persistenceStorage).sendMessageAsync(queue, shard, message);
+			 try {
+				 cacheAvailable = checkCacheConsistency(queue.getRelativeUrl(), shard, true); //set in cache even if its filling
+			 } finally {
+				 // never leave the write running behind an exception, a failed write takes precedence over the redis error
+				 messageId = AbstractDurablePersistence.getResult(pendingMessageId);
+			 }
+		 } else {
+			 messageId = persistenceStorage.sendMessage(queue, shard, message);
+			 cacheAvailable = checkCacheConsistency(queue.getRelativeUrl(), shard, true); //set in cache even if its filling
+		 }
 		 if (messageId == null) {
 			 throw new IllegalStateException("Could not get id from Cassandra");
 		 }
-		 boolean cacheAvailable = checkCacheConsistency(queue.getRelativeUrl(), shard, true); //set in cache even if its filling
 		 String memId = getMemQueueMessage(messageId);
+		 String payload = cacheAvailable ? getPayloadForCache(queue, message) : null;
 		 boolean brokenJedis = false;
 		 ShardedJedis jedis = null;
 		 long ts1 = System.currentTimeMillis();
@@ -865,10 +1175,21 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 					 delaySeconds = Integer.parseInt(message.getAttributes().get(CQSConstants.DELAY_SECONDS));
 				 }
 				 jedis = getResource();
-				 jedis.zadd(queue.getRelativeUrl() + "-" + shard + "-Q", System.currentTimeMillis() + (delaySeconds * 1000), memId); //insert or update already existing            	    
-				 //expire old message
-				 jedis.zremrangeByScore(queue.getRelativeUrl() + "-" + shard + "-Q","-inf",String.valueOf(System.currentTimeMillis() -
-						 (queue.getMsgRetentionPeriod() * 1000)));
+				 String key = queue.getRelativeUrl() + "-" + shard + "-Q";
+				 if (payload == null) {
+					 jedis.zadd(key, System.currentTimeMillis() + (delaySeconds * 1000), memId); //insert or update already existing
+				 } else {
+					 Pipeline p = jedis.getShard(key).pipelined();
+					 p.zadd(key, System.currentTimeMillis() + (delaySeconds * 1000), memId); //insert or update already existing
+					 p.setex(queue.getRelativeUrl() + "-" + shard + "-B-" + memId, queue.getMsgRetentionPeriod(), payload);
+					 p.sync();
+				 }
+				 //expire old messages in the background
+				 scheduleRetentionSweep(queue, shard);
+				 messageCounters.add(queue.getRelativeUrl(), 1, 0, delaySeconds > 0 ? 1 : 0);
+				 if (delaySeconds == 0) {
+					 addToShardHint(queue.getRelativeUrl(), shard, 1);
+				 }
 				 logger.debug("event=send_message cache_available=true msg_id= " + memId + " queue_url=" + queue.getAbsoluteUrl() + " shard=" + shard);
 			 } else {
 				 logger.debug("event=send_message cache_available=false msg_id= " + memId + " queue_url=" + queue.getAbsoluteUrl() + " shard=" + shard);
@@ -890,49 +1211,69 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 	 @Override
 	 public Map<String, String> sendMessageBatch(CQSQueue queue, int shard, List<CQSMessage> messages) throws PersistenceException, IOException, InterruptedException, NoSuchAlgorithmException, JSONException {
 
+		 // redis rejects a zadd without members
+		 if (messages == null || messages.isEmpty()) {
+			 return new HashMap<String, String>();
+		 }
+
 		 persistenceStorage.sendMessageBatch(queue, shard, messages);
 		 Map<String, String> memIds = new HashMap<String, String>();
+		 Map<String, Double> scoreMembers = new HashMap<String, Double>();
+		 Map<String, String> payloads = new HashMap<String, String>();
 		 boolean cacheAvailable = checkCacheConsistency(queue.getRelativeUrl(), shard, true);//set in cache even if its filling
-		 ShardedJedis jedis = null;
+		 long now = System.currentTimeMillis();
 
-		 if (cacheAvailable) {
-			 try {
-				 jedis = getResource();
-			 } catch (JedisConnectionException e) {
-				 cacheAvailable = false;
-				 trySettingCacheState(queue.getRelativeUrl(), shard, QCacheState.Unavailable);
+		 for (CQSMessage message : messages) {
+			 int delaySeconds = 0;
+			 if (queue.getDelaySeconds() > 0) {
+				 delaySeconds = queue.getDelaySeconds();
+			 }
+			 if (message.getAttributes().containsKey(CQSConstants.DELAY_SECONDS)) {
+				 delaySeconds = Integer.parseInt(message.getAttributes().get(CQSConstants.DELAY_SECONDS));
 			 }
+			 String clientId = message.getSuppliedMessageId();
+			 String memId = getMemQueueMessage(message.getMessageId());
+			 scoreMembers.put(memId, (double) (now + (delaySeconds * 1000)));
+			 memIds.put(clientId, memId);            
+			 String payload = cacheAvailable ? getPayloadForCache(queue, message) : null;
+			 if (payload != null) {
+				 payloads.put(memId, payload);
+			 }
+		 }
+
+		 if (!cacheAvailable) {
+			 logger.debug("event=send_message_batch cache_available=false num_messages=" + memIds.size() + " queue_url=" + queue.getAbsoluteUrl() + " shard=" + shard);
+			 return memIds;
 		 }
-		 // add messages in the same order as messages list
+
+		 // add all messages with one multi-member zadd, pipelined on the shard owning the sorted set
+		 ShardedJedis jedis = null;
 		 boolean brokenJedis = false;
 		 long ts1 = System.currentTimeMillis();
 		 try {
-			 for (CQSMessage message : messages) {
-				 int delaySeconds = 0;
-				 if (queue.getDelaySeconds() > 0) {
-					 delaySeconds = queue.getDelaySeconds();
-				 }
-				 if (message.getAttributes().containsKey(CQSConstants.DELAY_SECONDS)) {
-					 delaySeconds = Integer.parseInt(message.getAttributes().get(CQSConstants.DELAY_SECONDS));
-				 }
-				 String clientId = message.getSuppliedMessageId();
-				 String messageId = message.getMessageId();
-				 String memId = getMemQueueMessage(messageId);
-				 if (cacheAvailable) {      
-					 try {
-						 jedis.zadd(queue.getRelativeUrl() + "-" + shard + "-Q", System.currentTimeMillis() + (delaySeconds * 1000), memId); //insert or update already existing
-						 //expire old message
-						 jedis.zremrangeByScore(queue.getRelativeUrl() + "-" + shard + "-Q","-inf",String.valueOf(System.currentTimeMillis() -
-								 (queue.getMsgRetentionPeriod() * 1000)));
-					 } catch (JedisConnectionException e) {
-						 trySettingCacheState(queue.getRelativeUrl(), shard, QCacheState.Unavailable);
-					 }
-					 logger.debug("event=send_message_batch cache_available=true msg_id= " + memId + " queue_url=" + queue.getAbsoluteUrl() + " shard=" + shard);
-				 } else {
-					 logger.debug("event=send_message_batch cache_available=false msg_id= " + memId + " queue_url=" + queue.getAbsoluteUrl() + " shard=" + shard);
+			 jedis = getResource();
+			 String key = queue.getRelativeUrl() + "-" + shard + "-Q";
+			 Pipeline p = jedis.getShard(key).pipelined();
+			 p.zadd(key, scoreMembers); //insert or update already existing
+			 for (Entry<String, String> payload : payloads.entrySet()) {
+				 p.setex(queue.getRelativeUrl() + "-" + shard + "-B-" + payload.getKey(), queue.getMsgRetentionPeriod(), payload.getValue());
+			 }
+			 p.sync();
+			 //expire old messages in the background
+			 scheduleRetentionSweep(queue, shard);
+			 int numVisible = 0;
+			 for (Double score : scoreMembers.values()) {
+				 if (score <= now) {
+					 numVisible++;
 				 }
-				 memIds.put(clientId, memId);            
 			 }
+			 addToShardHint(queue.getRelativeUrl(), shard, numVisible);
+			 messageCounters.add(queue.getRelativeUrl(), scoreMembers.size(), 0, scoreMembers.size() - numVisible);
+			 logger.debug("event=send_message_batch cache_available=true num_messages=" + memIds.size() + " queue_url=" + queue.getAbsoluteUrl() + " shard=" + shard);
+		 } catch (JedisConnectionException e) {
+			 logger.warn("event=send_message_batch error_code=redis_unavailable num_connections=" + numRedisConnections.get());
+			 brokenJedis = true;
+			 trySettingCacheState(queue.getRelativeUrl(), shard, QCacheState.Unavailable);
 		 } catch (JedisException e) {
 			 brokenJedis = true;
 			 throw e;
@@ -963,13 +1304,20 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 			 try {
 				 jedis = getResource();
 				 long ts1 = System.currentTimeMillis();
-				 long numDeleted = jedis.zrem(queueUrl + "-" + shard + "-Q",receiptHandle);
+				 // message attributes live on the same Redis shard as the sorted set, see luaReceiveMessages
+				 Jedis j = jedis.getShard(queueUrl + "-" + shard + "-Q");
+				 long numDeleted = j.zrem(queueUrl + "-" + shard + "-Q",receiptHandle);
+				 // almost all deleted messages were received before
+				 messageCounters.add(queueUrl, -numDeleted, -numDeleted, 0);
 				 if (numDeleted != 1) {
 					 logger.warn("event=delete_message error_code=could_not_delelete_hidden_set queue_url=" + queueUrl + " shard=" + shard + " mem_id=" + receiptHandle);
 				 }
-				 if (jedis.del(queueUrl + "-" + shard + "-A-" + receiptHandle) == 0) {
+				 if (j.del(queueUrl + "-" + shard + "-A-" + receiptHandle) == 0) {
 					 logger.warn("event=delete_message error_code=could_not_delete_attributes queue_url=" + queueUrl + " shard=" + shard + " mem_id=" + receiptHandle);
 				 }
+				 if (CMBProperties.getInstance().isRedisPayloadCacheEnabled()) {
+					 j.del(queueUrl + "-" + shard + "-B-" + receiptHandle);
+				 }
 				 long ts2 = System.currentTimeMillis();
 				 CQSControllerServlet.valueAccumulator.addToCounter(AccumulatorName.RedisTime, (ts2 - ts1));
 			 } catch (JedisConnectionException e) {
@@ -989,10 +1337,87 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 		 persistenceStorage.deleteMessage(queueUrl, messageId);
 	 }
 
+	 @Override
+	 public void deleteMessageBatch(String queueUrl, List<String> receiptHandles) throws PersistenceException {
+
+		 String queueUrlHash = Util.getQueueUrlHashFromCache(queueUrl);
+		 //receiptHandle is memId
+
+		 List<String> messageIds = new ArrayList<String>(receiptHandles.size());
+		 Map<Integer, List<String>> memIdsByShard = new HashMap<Integer, List<String>>();
+
+		 for (String receiptHandle : receiptHandles) {
+			 messageIds.add(getMemQueueMessageMessageId(queueUrlHash, receiptHandle));
+			 int shard = Util.getShardFromReceiptHandle(receiptHandle);
+			 List<String> memIds = memIdsByShard.get(shard);
+			 if (memIds == null) {
+				 memIds = new ArrayList<String>();
+				 memIdsByShard.put(shard, memIds);
+			 }
+			 memIds.add(receiptHandle);
+		 }
+
+		 // one consistency check and one pipeline per shard, message attributes live on the same Redis shard as the sorted set
+
+		 for (Entry<Integer, List<String>> entry : memIdsByShard.entrySet()) {
+
+			 int shard = entry.getKey();
+
+			 if (!checkCacheConsistency(queueUrl, shard, false)) {
+				 continue;
+			 }
+
+			 String key = queueUrl + "-" + shard + "-Q";
+			 String[] memIds = entry.getValue().toArray(new String[entry.getValue().size()]);
+			 String[] attributeKeys = new String[memIds.length];
+			 String[] payloadKeys = new String[memIds.length];
+
+			 for (int i = 0; i < memIds.length; i++) {
+				 attributeKeys[i] = queueUrl + "-" + shard + "-A-" + memIds[i];
+				 payloadKeys[i] = queueUrl + "-" + shard + "-B-" + memIds[i];
+			 }
+
+			 ShardedJedis jedis = null;
+			 boolean brokenJedis = false;
+
+			 try {
+				 jedis = getResource();
+				 long ts1 = System.currentTimeMillis();
+				 Pipeline p = jedis.getShard(key).pipelined();
+				 Response<Long> numDeleted = p.zrem(key, memIds);
+				 Response<Long> numAttributesDeleted = p.del(attributeKeys);
+				 if (CMBProperties.getInstance().isRedisPayloadCacheEnabled()) {
+					 p.del(payloadKeys);
+				 }
+				 p.sync();
+				 messageCounters.add(queueUrl, -numDeleted.get(), -numDeleted.get(), 0);
+				 if (numDeleted.get() != memIds.length) {
+					 logger.warn("event=delete_message_batch error_code=could_not_delelete_hidden_set queue_url=" + queueUrl + " shard=" + shard + " num_deleted=" + numDeleted.get() + " num_requested=" + memIds.length);
+				 }
+				 if (numAttributesDeleted.get() != memIds.length) {
+					 logger.warn("event=delete_message_batch error_code=could_not_delete_attributes queue_url=" + queueUrl + " shard=" + shard + " num_deleted=" + numAttributesDeleted.get() + " num_requested=" + memIds.length);
+				 }
+				 long ts2 = System.currentTimeMillis();
+				 CQSControllerServlet.valueAccumulator.addToCounter(AccumulatorName.RedisTime, (ts2 - ts1));
+			 } catch (JedisConnectionException e) {
+				 logger.warn("event=delete_message_batch error_code=redis_unavailable num_connections=" + numRedisConnections.get());
+				 brokenJedis = true;
+				 trySettingCacheState(queueUrl, shard, QCacheState.Unavailable);
+			 } finally {
+				 if (jedis != null) {
+					 returnResource(jedis, brokenJedis);
+				 }
+			 }
+		 }
+
+		 //delete from underlying persistence layer
+
+		 persistenceStorage.deleteMessageBatch(queueUrl, messageIds);
+	 }
+
 	 @Override
 	 public List<CQSMessage> receiveMessage(CQSQueue queue, Map<String, String> receiveAttributes) throws PersistenceException, IOException, NoSuchAlgorithmException, InterruptedException,	JSONException {
 
-		 int shard = rand.nextInt(queue.getNumberOfShards());
 		 int maxNumberOfMessages = 1;
 		 int visibilityTO = queue.getVisibilityTO();
 
@@ -1005,6 +1430,102 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 			 }
 		 }
 
+		 List<CQSMessage> ret = new LinkedList<CQSMessage>();
+
+		 // fill up from further shards if the most promising one does not have enough visible messages,
+		 // shards that have to be read from cassandra are limited to maxFallbackShardsPerReceive
+
+		 AtomicInteger numFallbackReads = new AtomicInteger();
+
+		 for (int shard : getShardsForReceive(queue)) {
+			 ret.addAll(receiveMessage(queue, shard, maxNumberOfMessages - ret.size(), visibilityTO, numFallbackReads));
+			 if (ret.size() >= maxNumberOfMessages) {
+				 break;
+			 }
+		 }
+
+		 if (ret.size() == 0) {
+			 CQSMonitor.getInstance().registerEmptyResp(queue.getRelativeUrl(), 1);
+		 }
+
+		 return ret;
+	 }
+
+	 /**
+	  * Class represents the number of visible messages in a queue shard as last seen by this api server
+	  */
+	 private static class ShardHint {
+		 final long numVisible;
+		 final long timestampMS;
+		 ShardHint(long numVisible, long timestampMS) {
+			 this.numVisible = numVisible;
+			 this.timestampMS = timestampMS;
+		 }
+	 }
+
+	 private static void setShardHint(String queueUrl, int shard, long numVisible) {
+		 shardHints.put(queueUrl + "-" + shard, new ShardHint(numVisible, System.currentTimeMillis()));
+	 }
+
+	 private static void addToShardHint(String queueUrl, int shard, long numAdded) {
+		 ShardHint hint = shardHints.get(queueUrl + "-" + shard);
+		 if (hint != null) {
+			 // keep the timestamp, the hint still only lives for shardHintTTLMS after redis was last asked
+			 shardHints.put(queueUrl + "-" + shard, new ShardHint(hint.numVisible + numAdded, hint.timestampMS));
+		 }
+	 }
+
+	 /**
+	  * Order in which receiveMessage visits the shards of a queue. Starting from a random shard, shards recently seen
+	  * with visible messages come first, then shards without a recent hint. Shards seen empty within the last
+	  * shardHintTTLMS are skipped, unless all shards were, then only the random first shard is visited.
+	  * @param queue
+	  * @return shard numbers to visit
+	  */
+	 private List<Integer> getShardsForReceive(CQSQueue queue) {
+
+		 int numShards = queue.getNumberOfShards();
+		 int first = rand.nextInt(numShards);
+
+		 if (numShards == 1) {
+			 return Collections.singletonList(first);
+		 }
+
+		 List<Integer> nonEmpty = new ArrayList<Integer>(numShards);
+		 List<Integer> unknown = new ArrayList<Integer>(numShards);
+		 long now = System.currentTimeMillis();
+
+		 for (int i = 0; i < numShards; i++) {
+			 int shard = (first + i) % numShards;
+			 ShardHint hint = shardHints.get(queue.getRelativeUrl() + "-" + shard);
+			 if (hint == null || now - hint.timestampMS > shardHintTTLMS) {
+				 unknown.add(shard);
+			 } else if (hint.numVisible > 0) {
+				 nonEmpty.add(shard);
+			 }
+		 }
+
+		 nonEmpty.addAll(unknown);
+
+		 if (nonEmpty.isEmpty()) {
+			 // messages sent through other api servers are not in our hints, keep looking at one shard
+			 return Collections.singletonList(first);
+		 }
+
+		 return nonEmpty;
+	 }
+
+	 /**
+	  * Receive up to maxNumberOfMessages messages from a single shard of the queue
+	  * @param queue
+	  * @param shard
+	  * @param maxNumberOfMessages
+	  * @param visibilityTO
+	  * @param numFallbackReads number of shards of this receive read from cassandra so far, shared by all shards
+	  * @return list of messages, empty if the shard has no visible messages
+	  */
+	 private List<CQSMessage> receiveMessage(CQSQueue queue, int shard, int maxNumberOfMessages, int visibilityTO, AtomicInteger numFallbackReads) throws PersistenceException, IOException, NoSuchAlgorithmException, InterruptedException, JSONException {
+
 		 boolean cacheAvailable = checkCacheConsistency(queue.getRelativeUrl(), shard, false);
 		 List<CQSMessage> ret = new LinkedList<CQSMessage>();
 
@@ -1021,54 +1542,45 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 				 String key = queue.getRelativeUrl() + "-" + shard + "-Q";
 				 Jedis j = jedis.getShard(key);
 				 boolean done = false;
-				 Set <String> memIds;
 				 while (!done) {
 
-					 boolean emptyQueue = false;
-					 HashMap<String, String> messageIdToMemId = new HashMap<String, String>();
+					 Map<String, String> messageIdToMemId = new HashMap<String, String>();
+					 Map<String, List<String>> memIdToAttrs = new HashMap<String, List<String>>();
 					 List<String> messageIds = new LinkedList<String>();
 
-					 //use lua script if visibilityTO > 0
-					 if (visibilityTO > 0) {
-						 List <String> keys = new LinkedList <String>();
-						 keys.add(key);
-						 List <String> args = new LinkedList <String>();
-						 args.add(String.valueOf(System.currentTimeMillis() - queue.getMsgRetentionPeriod() * 1000));//min
-						 args.add(String.valueOf(System.currentTimeMillis()));//max
-						 args.add(String.valueOf(maxNumberOfMessages));//number of message
-						 args.add(String.valueOf(System.currentTimeMillis()+visibilityTO*1000)); //new score
-						 long ts1 = System.currentTimeMillis();
-						 try {
-							 memIds = new HashSet<String>((List <String>)j.evalsha(luaChangeScoreToHigherSHA, keys, args));
-						 } catch (JedisDataException e) {
-							 if (e.getMessage().startsWith("NOSCRIPT")) {
-								 luaChangeScoreToHigherSHA = new String(j.scriptLoad(luaChangeScoreToHigher.getBytes()));
-								 memIds = new HashSet<String>((List <String>)j.evalsha(luaChangeScoreToHigherSHA, keys, args));
-							 } else {
-								 throw e;
-							 }
-						 }
-						 long ts2 = System.currentTimeMillis();
-						 CQSControllerServlet.valueAccumulator.addToCounter(AccumulatorName.RedisTime, (ts2 - ts1));
-					 }
-					 else {
-						 long ts1 = System.currentTimeMillis();
-						 memIds = jedis.zrangeByScore(key, System.currentTimeMillis() - queue.getMsgRetentionPeriod() * 1000, System.currentTimeMillis(), 0, maxNumberOfMessages);
-						 long ts2 = System.currentTimeMillis();
-						 CQSControllerServlet.valueAccumulator.addToCounter(AccumulatorName.RedisTime, (ts2 - ts1));
-						 if (memIds == null || memIds.equals("nil")) { //done
-							 emptyQueue = true;
-						 }
-
-					 }
-					 for (String memId: memIds) {
+					 // claim messages, bump receive attributes and refresh their expiration in a single script call,
+					 // the score is only changed if visibilityTO > 0
+					 long now = System.currentTimeMillis();
+					 List <String> keys = new LinkedList <String>();
+					 keys.add(key);
+					 List <String> args = new LinkedList <String>();
+					 args.add(String.valueOf(now - queue.getMsgRetentionPeriod() * 1000L));//min
+					 args.add(String.valueOf(now));//max
+					 args.add(String.valueOf(maxNumberOfMessages));//number of message
+					 args.add(visibilityTO > 0 ? String.valueOf(now + visibilityTO * 1000L) : "0"); //new score
+					 args.add(queue.getRelativeUrl() + "-" + shard + "-A-"); //attribute key prefix
+					 args.add(String.valueOf(now)); //first receive timestamp
+					 args.add(String.valueOf(attributeExpireSec));
+					 long ts1 = System.currentTimeMillis();
+					 List<String> reply = evalReceiveMessages(j, keys, args);
+					 long ts2 = System.currentTimeMillis();
+					 CQSControllerServlet.valueAccumulator.addToCounter(AccumulatorName.RedisTime, (ts2 - ts1));
+
+					 for (int i = 0; i + 2 < reply.size(); i += 3) {
+						 String memId = reply.get(i);
 						 String messageId = getMemQueueMessageMessageId(queue.getRelativeUrlHash(),memId); 
 						 messageIds.add(messageId);
 						 messageIdToMemId.put(messageId, memId);
+						 memIdToAttrs.put(memId, reply.subList(i + 1, i + 3));
+					 }
+					 if (reply.size() % 3 == 1) {
+						 setShardHint(queue.getRelativeUrl(), shard, Long.parseLong(reply.get(reply.size() - 1)));
+					 }
+					 if (visibilityTO > 0) {
+						 messageCounters.add(queue.getRelativeUrl(), 0, messageIds.size(), 0);
 					 }
 					 if (messageIds.size() == 0) {
-						 CQSMonitor.getInstance().registerEmptyResp(queue.getRelativeUrl(), 1);
-						 return Collections.emptyList();
+						 return ret;
 					 }
 
 					 // By here messageIds have Underlying layer's messageids.
@@ -1080,49 +1592,51 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 
 					 try {
 
-						 Map<String, CQSMessage> persisMap = persistenceStorage.getMessages(queue.getRelativeUrl(), messageIds);
+						 Map<String, CQSMessage> persisMap = getMessagesFromPayloadCache(queue, shard, j, messageIds, messageIdToMemId);
 
-						 for (Entry<String, CQSMessage> messageIdToMessage : persisMap.entrySet()) {
-
-							 String memId = messageIdToMemId.get(messageIdToMessage.getKey());
+						 if (persisMap.size() < messageIds.size()) {
+							 List<String> missedIds = new LinkedList<String>();
+							 for (String messageId : messageIds) {
+								 if (!persisMap.containsKey(messageId)) {
+									 missedIds.add(messageId);
+								 }
+							 }
+							 persisMap.putAll(persistenceStorage.getMessages(queue.getRelativeUrl(), missedIds));
+						 }
 
-							 if (memId == null) {
+						 for (String messageId : persisMap.keySet()) {
+							 if (!messageIdToMemId.containsKey(messageId)) {
 								 throw new IllegalStateException("Underlying storage layer returned a message that was not requested");
 							 }
+						 }
 
-							 CQSMessage message = messageIdToMessage.getValue();
+						 // return messages in the order they were claimed from the sorted set
+						 for (String messageId : messageIds) {
+
+							 if (!persisMap.containsKey(messageId)) {
+								 continue;
+							 }
+
+							 String memId = messageIdToMemId.get(messageId);
+							 CQSMessage message = persisMap.get(messageId);
 
 							 if (message == null) {
-								 logger.warn("event=message_is_null msg_id=" + messageIdToMessage.getKey());
+								 logger.warn("event=message_is_null msg_id=" + messageId);
 								 //underlying layer does not have this message, remove it from Redis layer
-								 jedis.zrem(key,memId);
+								 j.zrem(key, memId);
+								 j.del(queue.getRelativeUrl() + "-" + shard + "-A-" + memId);
+								 j.del(queue.getRelativeUrl() + "-" + shard + "-B-" + memId);
 								 continue;
 							 }
 
 							 message.setMessageId(memId);
 							 message.setReceiptHandle(memId);
 
-							 //get message-attributes and populate in message
+							 //populate message-attributes returned by the script
 							 Map<String, String> msgAttrs = (message.getAttributes() != null) ?  message.getAttributes() : new HashMap<String, String>();
-							 List<String> attrs = jedis.hmget(queue.getRelativeUrl() + "-" + shard + "-A-" + memId, CQSConstants.REDIS_APPROXIMATE_FIRST_RECEIVE_TIMESTAMP, CQSConstants.REDIS_APPROXIMATE_RECEIVE_COUNT);
-
-							 if (attrs.get(0) == null) {
-								 String firstRecvTS = Long.toString(System.currentTimeMillis());
-								 jedis.hset(queue.getRelativeUrl() + "-" + shard + "-A-" + memId, CQSConstants.REDIS_APPROXIMATE_FIRST_RECEIVE_TIMESTAMP, firstRecvTS);
-								 msgAttrs.put(CQSConstants.APPROXIMATE_FIRST_RECEIVE_TIMESTAMP, firstRecvTS);
-							 } else {                            
-								 msgAttrs.put(CQSConstants.APPROXIMATE_FIRST_RECEIVE_TIMESTAMP, attrs.get(0));
-							 }
-
-							 int recvCount = 1;
-
-							 if (attrs.get(1) != null) {
-								 recvCount = Integer.parseInt(attrs.get(1)) + 1;
-							 }
-
-							 jedis.hset(queue.getRelativeUrl() + "-" + shard + "-A-" + memId, CQSConstants.REDIS_APPROXIMATE_RECEIVE_COUNT, Integer.toString(recvCount));
-							 jedis.expire(queue.getRelativeUrl() + "-" + shard +  "-A-" + memId, 3600 * 24 * 14); //14 days expiration if not deleted
-							 msgAttrs.put(CQSConstants.APPROXIMATE_RECEIVE_COUNT, Integer.toString(recvCount));
+							 List<String> attrs = memIdToAttrs.get(memId);
+							 msgAttrs.put(CQSConstants.APPROXIMATE_FIRST_RECEIVE_TIMESTAMP, attrs.get(0));
+							 msgAttrs.put(CQSConstants.APPROXIMATE_RECEIVE_COUNT, attrs.get(1));
 							 message.setAttributes(msgAttrs);
 							 ret.add(message);
 						 }
@@ -1140,10 +1654,11 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 					 } catch (PersistenceException e1) { //If cassandra exception, push messages back
 						 logger.error("event=persistence_exception num_messages=" + messageIds.size() + " action=pushing_messages_back_to_redis");
 						 if (visibilityTO > 0) {
+							 Map<String, Double> scoreMembers = new HashMap<String, Double>();
 							 for (String messageId : messageIds) {
-								 String memId = messageIdToMemId.get(messageId);
-								 jedis.zadd(queue.getRelativeUrl() + "-" + shard + "-Q", System.currentTimeMillis() , memId);
+								 scoreMembers.put(messageIdToMemId.get(messageId), (double) System.currentTimeMillis());
 							 }
+							 j.zadd(key, scoreMembers);
 						 }
 						 throw e1;
 					 }
@@ -1164,6 +1679,11 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 
 		 } else { //get form underlying layer
 
+			 if (numFallbackReads.incrementAndGet() > maxFallbackShardsPerReceive) {
+				 // one empty receive must not cost a cassandra read per shard
+				 return ret;
+			 }
+
 			 List<CQSMessage> messages = persistenceStorage.peekQueueRandom(queue.getRelativeUrl(), shard, maxNumberOfMessages);
 
 			 for (CQSMessage msg : messages) {
@@ -1176,14 +1696,191 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 				 msg.setAttributes(msgAttrs);
 				 ret.add(msg);
 			 }
+			 if (ret.size() < maxNumberOfMessages) {
+				 setShardHint(queue.getRelativeUrl(), shard, 0);
+			 }
 			 // in this case there is no message hiding          
 			 CQSMonitor.getInstance().registerCacheHit(queue.getRelativeUrl(), 0, ret.size(), CacheType.QCache); //all ids missed cache
 			 logger.debug("event=messages_found cache=unavailable num_messages=" + ret.size());
 		 }
 
-		 if (ret.size() == 0) {
-			 CQSMonitor.getInstance().registerEmptyResp(queue.getRelativeUrl(), 1);
+		 return ret;
+	 }
+
+	 /**
+	  * @param queue
+	  * @param message message after it was persisted to Cassandra
+	  * @return the message serialized for the payload cache or null if it should not be cached
+	  */
+	 private String getPayloadForCache(CQSQueue queue, CQSMessage message) {
+		 if (!CMBProperties.getInstance().isRedisPayloadCacheEnabled()) {
+			 return null;
+		 }
+		 int maxSize = CMBProperties.getInstance().getRedisPayloadCacheMaxMessageSize();
+		 // reject large messages by their raw size before looking at the encoded value
+		 if (getMessageSize(message) > maxSize) {
+			 return null;
+		 }
+		 // the value written to cassandra, only set by CQSMessagePartitionedCassandraPersistence
+		 String payload = message.getColumnValue();
+		 if (payload == null || payload.length() > maxSize) {
+			 return null;
+		 }
+		 return payload;
+	 }
+
+	 /**
+	  * @param message
+	  * @return number of characters of body and message attributes
+	  */
+	 private static int getMessageSize(CQSMessage message) {
+		 int size = message.getBody() == null ? 0 : message.getBody().length();
+		 if (message.getMessageAttributes() != null) {
+			 for (Entry<String, CQSMessageAttribute> attribute : message.getMessageAttributes().entrySet()) {
+				 size += attribute.getKey().length() + attribute.getValue().size();
+			 }
+		 }
+		 return size;
+	 }
+
+	 /**
+	  * Read the payloads of claimed messages from the payload cache with a single MGET on the Redis shard of the sorted set
+	  * @param queue
+	  * @param shard
+	  * @param j the Redis shard of the sorted set
+	  * @param messageIds Cassandra message ids
+	  * @param messageIdToMemId
+	  * @return messages found in the payload cache keyed by Cassandra message id, misses are left out
+	  */
+	 private Map<String, CQSMessage> getMessagesFromPayloadCache(CQSQueue queue, int shard, Jedis j, List<String> messageIds, Map<String, String> messageIdToMemId) {
+		 Map<String, CQSMessage> messages = new HashMap<String, CQSMessage>();
+		 if (!CMBProperties.getInstance().isRedisPayloadCacheEnabled()) {
+			 return messages;
+		 }
+		 String[] payloadKeys = new String[messageIds.size()];
+		 for (int i = 0; i < payloadKeys.length; i++) {
+			 payloadKeys[i] = queue.getRelativeUrl() + "-" + shard + "-B-" + messageIdToMemId.get(messageIds.get(i));
+		 }
+		 long ts1 = System.currentTimeMillis();
+		 List<String> payloads = j.mget(payloadKeys);
+		 CQSControllerServlet.valueAccumulator.addToCounter(AccumulatorName.RedisTime, System.currentTimeMillis() - ts1);
+		 for (int i = 0; i < payloads.size(); i++) {
+			 if (payloads.get(i) == null) {
+				 continue;
+			 }
+			 try {
+				 messages.put(messageIds.get(i), CQSMessagePartitionedCassandraPersistence.getMessageFromColumnValue(queue.getRelativeUrl(), payloads.get(i)));
+			 } catch (Exception e) {
+				 logger.warn("event=get_messages_from_payload_cache error_code=corrupt_payload msg_id=" + messageIds.get(i), e);
+			 }
+		 }
+		 CQSMonitor.getInstance().registerCacheHit(queue.getRelativeUrl(), messages.size(), messageIds.size(), CacheType.PayloadCache);
+		 return messages;
+	 }
+
+	 /**
+	  * Run the receive script on the Redis shard owning the queue's sorted set, loading it first if necessary
+	  * @param j the Redis shard of the sorted set
+	  * @param keys
+	  * @param args
+	  * @return flat list of memId, first receive timestamp and receive count triplets followed by the visible count
+	  */
+	 @SuppressWarnings("unchecked")
+	 private static List<String> evalReceiveMessages(Jedis j, List<String> keys, List<String> args) {
+		 try {
+			 return (List<String>)j.evalsha(luaReceiveMessagesSHA, keys, args);
+		 } catch (JedisDataException e) {
+			 if (e.getMessage().startsWith("NOSCRIPT")) {
+				 luaReceiveMessagesSHA = j.scriptLoad(luaReceiveMessages);
+				 return (List<String>)j.evalsha(luaReceiveMessagesSHA, keys, args);
+			 } else {
+				 throw e;
+			 }
 		 }
+	 }
+
+	 /**
+	  * Run the change visibility script on the Redis shard owning the queue's sorted set, loading it first if necessary
+	  * @param j the Redis shard of the sorted set
+	  * @param keys
+	  * @param args
+	  * @return 1 or 0 for each memId depending on whether it was found
+	  */
+	 @SuppressWarnings("unchecked")
+	 private static List<Long> evalChangeVisibility(Jedis j, List<String> keys, List<String> args) {
+		 try {
+			 return (List<Long>)j.evalsha(luaChangeVisibilitySHA, keys, args);
+		 } catch (JedisDataException e) {
+			 if (e.getMessage().startsWith("NOSCRIPT")) {
+				 luaChangeVisibilitySHA = j.scriptLoad(luaChangeVisibility);
+				 return (List<Long>)j.evalsha(luaChangeVisibilitySHA, keys, args);
+			 } else {
+				 throw e;
+			 }
+		 }
+	 }
+
+	 @Override
+	 public List<Boolean> changeMessageVisibilityBatch(CQSQueue queue, List<String> receiptHandles, List<Integer> visibilityTOs) throws PersistenceException, IOException, NoSuchAlgorithmException, InterruptedException {
+
+		 List<Boolean> ret = new ArrayList<Boolean>(Collections.nCopies(receiptHandles.size(), Boolean.FALSE));
+		 Map<Integer, List<Integer>> indexesByShard = new HashMap<Integer, List<Integer>>();
+
+		 for (int i = 0; i < receiptHandles.size(); i++) {
+			 int shard = Util.getShardFromReceiptHandle(receiptHandles.get(i));
+			 List<Integer> indexes = indexesByShard.get(shard);
+			 if (indexes == null) {
+				 indexes = new ArrayList<Integer>();
+				 indexesByShard.put(shard, indexes);
+			 }
+			 indexes.add(i);
+		 }
+
+		 // one script evaluation per shard updates the scores of all of the shard's messages in a single round trip
+
+		 for (Entry<Integer, List<Integer>> entry : indexesByShard.entrySet()) {
+
+			 int shard = entry.getKey();
+
+			 if (!checkCacheConsistency(queue.getRelativeUrl(), shard, false)) {
+				 continue;
+			 }
+
+			 String key = queue.getRelativeUrl() + "-" + shard + "-Q";
+			 List<String> args = new ArrayList<String>(2 * entry.getValue().size());
+			 long now = System.currentTimeMillis();
+
+			 for (int i : entry.getValue()) {
+				 args.add(String.valueOf(now + (visibilityTOs.get(i) * 1000L)));
+				 args.add(receiptHandles.get(i));
+			 }
+
+			 ShardedJedis jedis = null;
+			 boolean brokenJedis = false;
+
+			 try {
+				 jedis = getResource();
+				 long ts1 = System.currentTimeMillis();
+				 List<Long> updated = evalChangeVisibility(jedis.getShard(key), Collections.singletonList(key), args);
+				 long ts2 = System.currentTimeMillis();
+				 CQSControllerServlet.valueAccumulator.addToCounter(AccumulatorName.RedisTime, (ts2 - ts1));
+				 for (int i = 0; i < updated.size(); i++) {
+					 ret.set(entry.getValue().get(i), updated.get(i) == 1);
+				 }
+			 } catch (JedisConnectionException e) {
+				 logger.warn("event=change_message_visibility_batch reason=redis_unavailable num_connections=" + numRedisConnections.get());
+				 brokenJedis = true;
+			 } catch (JedisException e) {
+				 brokenJedis = true;
+				 throw e;
+			 } finally {
+				 if (jedis != null) {
+					 returnResource(jedis, brokenJedis);
+				 }
+			 }
+		 }
+
+		 messageCounters.addVisibilityChanges(queue.getRelativeUrl(), visibilityTOs, ret);
 
 		 return ret;
 	 }
@@ -1204,6 +1901,9 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 				 jedis = getResource();
 				 long ts1 = System.currentTimeMillis();
 				 jedis.zadd(queue.getRelativeUrl() + "-" + shard + "-Q", System.currentTimeMillis() + (visibilityTO * 1000), receiptHandle); //insert or update already existing            	                    
+				 if (visibilityTO == 0) {
+					 messageCounters.add(queue.getRelativeUrl(), 0, -1, 0);
+				 }
 				 long ts2 = System.currentTimeMillis();
 				 CQSControllerServlet.valueAccumulator.addToCounter(AccumulatorName.RedisTime, (ts2 - ts1));
 				 return true; 
@@ -1247,6 +1947,7 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 			 try {
 
 				 jedis = getResource();
+				 Jedis j = jedis.getShard(queueUrl + "-" + shard + "-Q");
 
 				 for (String memId : memIdsRet) {
 
@@ -1257,7 +1958,7 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 						 // get message-attributes and populate in message
 
 						 Map<String, String> msgAttrs = (message.getAttributes() != null) ?  message.getAttributes() : new HashMap<String, String>();
-						 List<String> attrs = jedis.hmget(queueUrl + "-" + shard + "-A-" + memId, CQSConstants.REDIS_APPROXIMATE_FIRST_RECEIVE_TIMESTAMP, CQSConstants.REDIS_APPROXIMATE_RECEIVE_COUNT);
+						 List<String> attrs = j.hmget(queueUrl + "-" + shard + "-A-" + memId, CQSConstants.REDIS_APPROXIMATE_FIRST_RECEIVE_TIMESTAMP, CQSConstants.REDIS_APPROXIMATE_RECEIVE_COUNT);
 
 						 if (attrs.get(0) != null) {
 							 msgAttrs.put(CQSConstants.APPROXIMATE_FIRST_RECEIVE_TIMESTAMP, attrs.get(0));
@@ -1326,11 +2027,15 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 				 long ts1 = System.currentTimeMillis();
 				 jedis = getResource();
 				 Long num = jedis.del(queueUrl + "-" + shard + "-" + CQSConstants.REDIS_STATE);
+				 cacheStateLeases.invalidateEverywhere(queueUrl + "-" + shard);
 				 logger.debug("num removed=" + num);
 				 num = jedis.del(queueUrl + "-" + shard + "-Q");
 				 logger.debug("num removed=" + num);
 				 num = jedis.del(queueUrl + "-" + shard + "-F");
 				 logger.debug("num removed=" + num);
+				 num = jedis.del(queueUrl + "-" + shard + "-P");
+				 logger.debug("num removed=" + num);
+				 messageCounters.reset(queueUrl);
 				 long ts2 = System.currentTimeMillis();
 				 CQSControllerServlet.valueAccumulator.addToCounter(AccumulatorName.RedisTime, (ts2 - ts1));
 				 logger.debug("event=cleared_queue queue_url=" + queueUrl + " shard=" + shard);
@@ -1346,6 +2051,8 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 			 }
 		 }
 
+		 lastRetentionSweepMS.remove(queueUrl + "-" + shard);
+
 		 //clear queue from underlying layer
 
 		 persistenceStorage.clearQueue(queueUrl, shard);        
@@ -1382,18 +2089,6 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 		 return ret;
 	 }
 
-	 /**
-	  * Add message to in-memory-queue. creationTS is now
-	  * @param queueUrl
-	  * @param message
-	  */
-	 private void addMessageToCache(String queueUrl, int shard, CQSMessage message, ShardedJedis jedis) {
-		 long ts1 = System.currentTimeMillis();
-		 jedis.zadd(queueUrl + "-" + shard + "-Q", getMemQueueMessageCreatedTS(getMemQueueMessage(message.getMessageId())), getMemQueueMessage(message.getMessageId()));
-		 long ts2 = System.currentTimeMillis();
-		 CQSControllerServlet.valueAccumulator.addToCounter(AccumulatorName.RedisTime, (ts2 - ts1));
-	 }
-
 	 /**
 	  * Method tries to set cache state and swallows all exceptions that are thrown
 	  * @param queueUrl
@@ -1409,8 +2104,8 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 	 @Override
 	 public long getQueueDelayedMessageCount(String queueUrl,
 			 boolean visibilityProcessFlag) throws Exception {
-		 // TODO Auto-generated method stub
-		 return 0;
+		 CQSQueueMessageCounters.Counts counts = messageCounters.getCounts(queueUrl);
+		 return counts == null ? 0 : counts.getDelayed();
 	 }
 
 	 /**
@@ -1535,5 +2230,6 @@ public class RedisSortedSetPersistence implements ICQSMessagePersistence {
 
 	 public void shutdown() {
 		 executor.shutdown();
+		 fillerPartitionExecutor.shutdown();
 	 }
 }
@@ -51,6 +51,7 @@ public class CQSConstants {
 	public static final String NUMBER_OF_PARTITIONS = "NumberOfPartitions";
 	public static final String NUMBER_OF_SHARDS = "NumberOfShards";
 	public static final String IS_COMPRESSED = "IsCompressed";
+	public static final String COMPRESSION_CODEC = "CompressionCodec";
 	public static final String MESSAGE_ATTRIBUTE = "MessageAttribute";
 	public static final String MESSAGE_ATTRIBUTES = "MessageAttributes";
 
@@ -74,4 +75,5 @@ public class CQSConstants {
 	public static final String COL_NUMBER_PARTITIONS = "numPartitions";
 	public static final String COL_NUMBER_SHARDS = "numShards";
 	public static final String COL_COMPRESSED = "compressed";
+	public static final String COL_COMPRESSION_CODEC = "compressionCodec";
 }
@@ -0,0 +1,188 @@
+/**
+ * Copyright 2012 Comcast Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.comcast.cqs.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+
+import org.xerial.snappy.Snappy;
+
+/**
+ * Codecs for compressing message bodies of compressed queues. Each codec has a single character id
+ * which is written into version 2 message column values (see MessageCodec), so messages can always be
+ * read back regardless of the codec the queue is configured with today.
+ *
+ * Messages written before codecs existed are GZIP compressed and base64 encoded and are handled by
+ * Util.compress() and Util.decompress().
+ */
+public enum CompressionCodec {
+
+	NONE('0') {
+		@Override
+		public byte[] compress(byte[] data) {
+			return data;
+		}
+		@Override
+		public byte[] decompress(byte[] data) {
+			return data;
+		}
+	},
+
+	DEFLATE('D') {
+		@Override
+		public byte[] compress(byte[] data) {
+			Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			try {
+				deflater.setInput(data);
+				deflater.finish();
+				ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 16);
+				byte[] buffer = new byte[4096];
+				while (!deflater.finished()) {
+					int n = deflater.deflate(buffer);
+					out.write(buffer, 0, n);
+				}
+				return out.toByteArray();
+			} finally {
+				deflater.end();
+			}
+		}
+		@Override
+		public byte[] decompress(byte[] data) throws IOException {
+			Inflater inflater = new Inflater();
+			try {
+				inflater.setInput(data);
+				ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 3);
+				byte[] buffer = new byte[4096];
+				while (!inflater.finished()) {
+					int n = inflater.inflate(buffer);
+					if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+						throw new IOException("Truncated deflate stream");
+					}
+					out.write(buffer, 0, n);
+				}
+				return out.toByteArray();
+			} catch (DataFormatException ex) {
+				throw new IOException(ex);
+			} finally {
+				inflater.end();
+			}
+		}
+	},
+
+	/**
+	 * LZ4 block format prefixed with the uncompressed length as 4 byte big endian int
+	 */
+	LZ4('L') {
+		@Override
+		public byte[] compress(byte[] data) {
+			LZ4Compressor compressor = LZ4Factory.fastestInstance().fastCompressor();
+			byte[] out = new byte[4 + compressor.maxCompressedLength(data.length)];
+			out[0] = (byte)(data.length >>> 24);
+			out[1] = (byte)(data.length >>> 16);
+			out[2] = (byte)(data.length >>> 8);
+			out[3] = (byte)data.length;
+			int n = compressor.compress(data, 0, data.length, out, 4);
+			byte[] result = new byte[4 + n];
+			System.arraycopy(out, 0, result, 0, result.length);
+			return result;
+		}
+		@Override
+		public byte[] decompress(byte[] data) throws IOException {
+			if (data.length < 4) {
+				throw new IOException("Truncated lz4 block");
+			}
+			int length = ((data[0] & 0xff) << 24) | ((data[1] & 0xff) << 16) | ((data[2] & 0xff) << 8) | (data[3] & 0xff);
+			// lz4 can not expand a block by more than 255 times, do not trust the stored length beyond that
+			if (length < 0 || length > MAX_UNCOMPRESSED_LENGTH || length > (data.length - 4) * 255L + 16) {
+				throw new IOException("Bad lz4 block length " + length);
+			}
+			byte[] out = new byte[length];
+			try {
+				LZ4Factory.fastestInstance().decompressor().decompress(data, 4, out, 0, length);
+			} catch (RuntimeException ex) {
+				throw new IOException(ex);
+			}
+			return out;
+		}
+	},
+
+	SNAPPY('S') {
+		@Override
+		public byte[] compress(byte[] data) throws IOException {
+			return Snappy.compress(data);
+		}
+		@Override
+		public byte[] decompress(byte[] data) throws IOException {
+			return Snappy.uncompress(data);
+		}
+	};
+
+	/**
+	 * Upper bound for decompressed bodies, far above the largest message body
+	 */
+	private static final int MAX_UNCOMPRESSED_LENGTH = 16 * 1024 * 1024;
+
+	private final char id;
+
+	private CompressionCodec(char id) {
+		this.id = id;
+	}
+
+	/**
+	 * @return the id written into message column values
+	 */
+	public char getId() {
+		return id;
+	}
+
+	public abstract byte[] compress(byte[] data) throws IOException;
+
+	public abstract byte[] decompress(byte[] data) throws IOException;
+
+	/**
+	 * @param id
+	 * @return codec with the given id
+	 * @throws IllegalArgumentException if the id is unknown
+	 */
+	public static CompressionCodec fromId(char id) {
+		for (CompressionCodec codec : values()) {
+			if (codec.id == id) {
+				return codec;
+			}
+		}
+		throw new IllegalArgumentException("Unknown compression codec id " + id);
+	}
+
+	/**
+	 * @param name case insensitive codec name, for example LZ4
+	 * @return codec with the given name
+	 * @throws IllegalArgumentException if the name is unknown
+	 */
+	public static CompressionCodec fromName(String name) {
+		for (CompressionCodec codec : values()) {
+			if (codec.name().equalsIgnoreCase(name)) {
+				return codec;
+			}
+		}
+		throw new IllegalArgumentException("Unknown compression codec " + name);
+	}
+}
@@ -0,0 +1,406 @@
+/**
+ * Copyright 2012 Comcast Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.comcast.cqs.util;
+
+/**
+ * Encodes Cassandra message ids into the in-memory message ids (memIds) kept in Redis, which are also
+ * handed out as receipt handles.
+ *
+ * Legacy memIds are strings of the form 0:0:0_<shard>_<partition>:<time>:<clockSeqAndNode>, for example
+ * 0:0:0_0_72:2923737900040323074:-8763141905575923938.
+ *
+ * Version 1 memIds are 21 bytes encoded as 28 characters of unpadded base64url:
+ *
+ *   byte 0       version (1)
+ *   bytes 1-2    shard
+ *   bytes 3-4    partition
+ *   bytes 5-12   time column name part
+ *   bytes 13-20  clock sequence and node column name part
+ *
+ * Version 2 memIds are used for message ids with time bucketed row keys <hash>_<shard>_<partition>_<bucket>
+ * and are 27 bytes encoded as 36 characters:
+ *
+ *   byte 0       version (2)
+ *   bytes 1-2    shard
+ *   bytes 3-4    partition
+ *   bytes 5-10   bucket
+ *   bytes 11-18  time column name part
+ *   bytes 19-26  clock sequence and node column name part
+ *
+ * Since base64url has no ':' legacy and compact formats can be told apart by looking for a colon. All getters
+ * accept any format and parse compact memIds without allocating.
+ */
+public final class MemIdCodec {
+
+	public static final byte VERSION_1 = 1;
+	public static final byte VERSION_2 = 2;
+
+	private static final int V1_BYTES = 21;
+	private static final int V1_CHARS = 28;
+	private static final int V2_BYTES = 27;
+	private static final int V2_CHARS = 36;
+	private static final long MAX_BUCKET = 0xffffffffffffL;
+
+	private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+	private static final int[] SEXTETS = new int[128];
+
+	static {
+		for (int i = 0; i < SEXTETS.length; i++) {
+			SEXTETS[i] = -1;
+		}
+		for (int i = 0; i < ALPHABET.length; i++) {
+			SEXTETS[ALPHABET[i]] = i;
+		}
+	}
+
+	private MemIdCodec() {
+	}
+
+	/**
+	 * @param messageId Cassandra message id like 45c1596598f85ce59f060dc2b8ec4ebb_0_72:2923737900040323074:-8763141905575923938
+	 * @return version 1 memId, version 2 memId if the row key has a bucket, or the legacy memId if the message id
+	 * does not fit into either
+	 */
+	public static String encode(String messageId) {
+
+		if (messageId.length() == 0) {
+			throw new IllegalArgumentException("Messge Id cannot be an empty string");
+		}
+
+		int u1 = messageId.indexOf('_');
+		int u2 = messageId.indexOf('_', u1 + 1);
+		int c1 = messageId.indexOf(':', u2 + 1);
+		int c2 = messageId.indexOf(':', c1 + 1);
+
+		if (u1 < 0 || u2 < 0 || c1 < 0 || c2 < 0 || messageId.indexOf(':', c2 + 1) >= 0) {
+			return encodeLegacy(messageId);
+		}
+
+		int u3 = messageId.indexOf('_', u2 + 1);
+		boolean bucketed = u3 >= 0 && u3 < c1;
+		long shard, partition, bucket = 0, time, clock;
+
+		try {
+			shard = parseLong(messageId, u1 + 1, u2);
+			partition = parseLong(messageId, u2 + 1, bucketed ? u3 : c1);
+			if (bucketed) {
+				bucket = parseLong(messageId, u3 + 1, c1);
+			}
+			time = parseLong(messageId, c1 + 1, c2);
+			clock = parseLong(messageId, c2 + 1, messageId.length());
+		} catch (NumberFormatException ex) {
+			return encodeLegacy(messageId);
+		}
+
+		if (shard < 0 || shard > 0xffff || partition < 0 || partition > 0xffff || bucket < 0 || bucket > MAX_BUCKET) {
+			return encodeLegacy(messageId);
+		}
+
+		byte[] b = new byte[bucketed ? V2_BYTES : V1_BYTES];
+		b[0] = bucketed ? VERSION_2 : VERSION_1;
+		b[1] = (byte)(shard >>> 8);
+		b[2] = (byte)shard;
+		b[3] = (byte)(partition >>> 8);
+		b[4] = (byte)partition;
+		int offset = 5;
+
+		if (bucketed) {
+			for (int i = 0; i < 6; i++) {
+				b[offset++] = (byte)(bucket >>> (40 - 8 * i));
+			}
+		}
+
+		for (int i = 0; i < 8; i++) {
+			b[offset + i] = (byte)(time >>> (56 - 8 * i));
+			b[offset + 8 + i] = (byte)(clock >>> (56 - 8 * i));
+		}
+
+		char[] out = new char[bucketed ? V2_CHARS : V1_CHARS];
+		int o = 0;
+
+		// 21 and 27 bytes are exactly 7 and 9 groups of 3 bytes, so there is never any padding
+		for (int i = 0; i < b.length; i += 3) {
+			int v = ((b[i] & 0xff) << 16) | ((b[i + 1] & 0xff) << 8) | (b[i + 2] & 0xff);
+			out[o++] = ALPHABET[(v >>> 18) & 0x3f];
+			out[o++] = ALPHABET[(v >>> 12) & 0x3f];
+			out[o++] = ALPHABET[(v >>> 6) & 0x3f];
+			out[o++] = ALPHABET[v & 0x3f];
+		}
+
+		return new String(out);
+	}
+
+	/**
+	 * @param messageId Cassandra message id
+	 * @return legacy memId, the queue url hash is replaced by 0 to save space in Redis
+	 */
+	public static String encodeLegacy(String messageId) {
+		if (messageId.length() == 0) {
+			throw new IllegalArgumentException("Messge Id cannot be an empty string");
+		}
+		StringBuilder sb = new StringBuilder();
+		sb.append("0").append(':').append("0").append(":0").append(messageId.substring(messageId.indexOf("_")));
+		return sb.toString();
+	}
+
+	/**
+	 * @param memId
+	 * @return true if memId is a well formed version 1 memId
+	 */
+	public static boolean isVersion1(String memId) {
+		return getCompactVersion(memId) == VERSION_1;
+	}
+
+	/**
+	 * @param memId
+	 * @return true if memId is a well formed version 2 memId
+	 */
+	public static boolean isVersion2(String memId) {
+		return getCompactVersion(memId) == VERSION_2;
+	}
+
+	/**
+	 * @return version of a well formed compact memId or 0
+	 */
+	private static int getCompactVersion(String memId) {
+
+		if (memId == null || (memId.length() != V1_CHARS && memId.length() != V2_CHARS)) {
+			return 0;
+		}
+
+		for (int i = 0; i < memId.length(); i++) {
+			char c = memId.charAt(i);
+			if (c >= SEXTETS.length || SEXTETS[c] < 0) {
+				return 0;
+			}
+		}
+
+		int version = byteAt(memId, 0);
+
+		if ((version == VERSION_1 && memId.length() == V1_CHARS) || (version == VERSION_2 && memId.length() == V2_CHARS)) {
+			return version;
+		}
+
+		return 0;
+	}
+
+	/**
+	 * @param memId
+	 * @return true if memId is either a well formed compact memId or looks like a legacy memId
+	 */
+	public static boolean isValid(String memId) {
+
+		if (memId == null) {
+			return false;
+		}
+
+		if (memId.indexOf(':') < 0) {
+			return getCompactVersion(memId) != 0;
+		}
+
+		int c1 = memId.lastIndexOf(':');
+		int c2 = memId.lastIndexOf(':', c1 - 1);
+
+		if (c2 < 0 || memId.lastIndexOf(':', c2 - 1) < 0) {
+			return false;
+		}
+
+		try {
+			parseLong(memId, c2 + 1, c1);
+			parseLong(memId, c1 + 1, memId.length());
+		} catch (NumberFormatException ex) {
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * @param memId
+	 * @return The shard encoded in the memId
+	 */
+	public static int getShard(String memId) {
+
+		if (memId.indexOf(':') < 0) {
+			checkCompact(memId);
+			return (byteAt(memId, 1) << 8) | byteAt(memId, 2);
+		}
+
+		// legacy <initial-delay>:<ts>:<hash>_<shard>_<partition>:..., the shard is between the first two '_'
+		int c1 = memId.indexOf(':');
+		int c2 = memId.indexOf(':', c1 + 1);
+
+		if (c2 < 0 || c2 == memId.length() - 1) {
+			throw new IllegalArgumentException("Bad format for memId. Must be of the form 0:0:<messge-id>. Got: " + memId);
+		}
+
+		int end = memId.indexOf(':', c2 + 1);
+
+		if (end < 0) {
+			end = memId.length();
+		}
+
+		int u1 = memId.indexOf('_', c2 + 1);
+		int u2 = u1 < 0 ? -1 : memId.indexOf('_', u1 + 1);
+
+		// no partition after the shard
+		if (u2 < 0 || u2 >= end - 1) {
+			return -1;
+		}
+
+		return (int)parseLong(memId, u1 + 1, u2);
+	}
+
+	/**
+	 * @param memId
+	 * @return The time column name part encoded in the memId
+	 */
+	public static long getTime(String memId) {
+
+		if (memId.indexOf(':') < 0) {
+			return longAt(memId, checkCompact(memId) == VERSION_2 ? 11 : 5);
+		}
+
+		int c2 = memId.indexOf(':', memId.indexOf(':', memId.indexOf(':') + 1) + 1);
+		int c3 = c2 < 0 ? -1 : memId.indexOf(':', c2 + 1);
+
+		if (c3 < 0) {
+			throw new IllegalArgumentException("Bad format for memId. Must be of the form 0:0:<messge-id>. Got: " + memId);
+		}
+
+		return parseLong(memId, c2 + 1, c3);
+	}
+
+	/**
+	 * @param memId
+	 * @return The initial delay encoded in the memId, compact memIds do not carry one
+	 */
+	public static int getInitialDelay(String memId) {
+
+		if (memId.indexOf(':') < 0) {
+			checkCompact(memId);
+			return 0;
+		}
+
+		int c0 = memId.indexOf(':');
+		int c1 = memId.indexOf(':', c0 + 1);
+
+		if (c1 < 0) {
+			throw new IllegalArgumentException("Bad format for memId. Must be of the form 0:0:<messge-id>. Got: " + memId);
+		}
+
+		return (int)parseLong(memId, c0 + 1, c1);
+	}
+
+	/**
+	 * @param queueUrlHash
+	 * @param memId
+	 * @return The Cassandra message id encoded in memId
+	 */
+	public static String getMessageId(String queueUrlHash, String memId) {
+
+		if (memId.indexOf(':') < 0) {
+			int offset = 5;
+			StringBuilder sb = new StringBuilder(queueUrlHash.length() + 68);
+			sb.append(queueUrlHash).append('_').append((byteAt(memId, 1) << 8) | byteAt(memId, 2));
+			sb.append('_').append((byteAt(memId, 3) << 8) | byteAt(memId, 4));
+			if (checkCompact(memId) == VERSION_2) {
+				long bucket = 0;
+				for (int i = 0; i < 6; i++) {
+					bucket = (bucket << 8) | byteAt(memId, offset++);
+				}
+				sb.append('_').append(bucket);
+			}
+			sb.append(':').append(longAt(memId, offset)).append(':').append(longAt(memId, offset + 8));
+			return sb.toString();
+		}
+
+		//memId example: 0:0:0_0_72:2923737900040323074:-8763141905575923938
+		//replace the first 0 of the third part with queueUrlHash, example: 45c1596598f85ce59f060dc2b8ec4ebb_0_72:2923737900040323074:-8763141905575923938
+		int c0 = memId.indexOf(':');
+		int c1 = c0 < 0 ? -1 : memId.indexOf(':', c0 + 1);
+		int u = c1 < 0 ? -1 : memId.indexOf('_', c1 + 1);
+
+		if (c1 < 0 || u < 0) {
+			throw new IllegalArgumentException("Bad format for memId. Must be of the form 0:0:<messge-id>. Got: " + memId);
+		}
+
+		return queueUrlHash + memId.substring(u);
+	}
+
+	private static int checkCompact(String memId) {
+		int version = getCompactVersion(memId);
+		if (version == 0) {
+			throw new IllegalArgumentException("Bad format for memId. Unknown version or length. Got: " + memId);
+		}
+		return version;
+	}
+
+	/**
+	 * Decode the i-th byte of a base64url string without decoding the rest
+	 */
+	private static int byteAt(String s, int i) {
+		int bitPos = 8 * i;
+		int c = bitPos / 6;
+		int v = (SEXTETS[s.charAt(c)] << 6) | SEXTETS[s.charAt(c + 1)];
+		return (v >>> (4 - bitPos % 6)) & 0xff;
+	}
+
+	private static long longAt(String s, int offset) {
+		long v = 0;
+		for (int i = 0; i < 8; i++) {
+			v = (v << 8) | byteAt(s, offset + i);
+		}
+		return v;
+	}
+
+	/**
+	 * Long.parseLong on a range of s without creating a substring
+	 */
+	private static long parseLong(String s, int start, int end) {
+
+		if (start >= end) {
+			throw new NumberFormatException("Empty number in " + s);
+		}
+
+		boolean negative = s.charAt(start) == '-';
+		int i = negative ? start + 1 : start;
+
+		if (i >= end) {
+			throw new NumberFormatException("Bad number in " + s);
+		}
+
+		long v = 0;
+
+		// accumulate negatively so Long.MIN_VALUE can be parsed
+		for (; i < end; i++) {
+			int d = s.charAt(i) - '0';
+			if (d < 0 || d > 9 || v < (Long.MIN_VALUE + d) / 10) {
+				throw new NumberFormatException("Bad number in " + s);
+			}
+			v = v * 10 - d;
+		}
+
+		if (!negative) {
+			if (v == Long.MIN_VALUE) {
+				throw new NumberFormatException("Bad number in " + s);
+			}
+			return -v;
+		}
+
+		return v;
+	}
+}
@@ -0,0 +1,345 @@
+/**
+ * Copyright 2012 Comcast Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.comcast.cqs.util;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.commons.codec.binary.Base64;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONWriter;
+
+import com.comcast.cqs.model.CQSMessage;
+import com.comcast.cqs.model.CQSMessageAttribute;
+
+/**
+ * Encodes messages into the column values of CQSPartitionedQueueMessages.
+ *
+ * Legacy values are JSON documents and always start with '{'.
+ *
+ * Version 1 values start with the character \u0001 followed by a sequence of length prefixed fields.
+ * Each field is written as <length>:<chars>, where length is the number of chars in decimal, or as -1:
+ * for a missing value. The fields are, in this order:
+ *
+ *   message id, md5 of body, body, SentTimestamp, ApproximateReceiveCount, SenderId,
+ *   md5 of message attributes, number of message attributes n,
+ *   followed by n times name, data type and value of a message attribute
+ *
+ * Binary message attributes are held base64 encoded in CQSMessageAttribute, that string is written as the
+ * value in all formats so binary attributes round trip unchanged.
+ *
+ * Nothing is escaped, so bodies are copied as they are in both directions. The column family is
+ * validated as UTF8Type which is why the format is made of chars rather than raw bytes.
+ *
+ * Version 2 values start with the character \u0002 followed by the id of the CompressionCodec of the
+ * body and then the same fields as version 1. The body field holds the compressed UTF-8 bytes of the
+ * body, base64 encoded to keep the value valid UTF-8.
+ */
+public final class MessageCodec {
+
+	public static final char VERSION_1 = '\u0001';
+	public static final char VERSION_2 = '\u0002';
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final String[] SYSTEM_ATTRIBUTES = { CQSConstants.SENT_TIMESTAMP, CQSConstants.APPROXIMATE_RECEIVE_COUNT, CQSConstants.SENDER_ID };
+
+	private MessageCodec() {
+	}
+
+	/**
+	 * @param message
+	 * @return version 1 column value
+	 */
+	public static String encode(CQSMessage message) {
+		return encode(message, VERSION_1, CompressionCodec.NONE, message.getBody());
+	}
+
+	/**
+	 * @param message
+	 * @param codec codec to compress the body with
+	 * @return version 2 column value, or version 1 if codec is NONE
+	 */
+	public static String encode(CQSMessage message, CompressionCodec codec) throws IOException {
+
+		if (codec == CompressionCodec.NONE || message.getBody() == null) {
+			return encode(message);
+		}
+
+		String body = Base64.encodeBase64String(codec.compress(message.getBody().getBytes(UTF8)));
+		return encode(message, VERSION_2, codec, body);
+	}
+
+	private static String encode(CQSMessage message, char version, CompressionCodec codec, String body) {
+
+		Map<String, String> attributes = message.getAttributes();
+		Map<String, CQSMessageAttribute> messageAttributes = message.getMessageAttributes();
+
+		int size = 64 + length(message.getMessageId()) + length(message.getMD5OfBody()) + length(body);
+
+		if (messageAttributes != null) {
+			for (Map.Entry<String, CQSMessageAttribute> e : messageAttributes.entrySet()) {
+				size += 24 + e.getKey().length() + length(e.getValue().getStringValue());
+			}
+		}
+
+		StringBuilder sb = new StringBuilder(size);
+		sb.append(version);
+
+		if (version == VERSION_2) {
+			sb.append(codec.getId());
+		}
+
+		appendField(sb, message.getMessageId());
+		appendField(sb, message.getMD5OfBody());
+		appendField(sb, body);
+
+		for (String name : SYSTEM_ATTRIBUTES) {
+			appendField(sb, attributes == null ? null : attributes.get(name));
+		}
+
+		if (messageAttributes != null && messageAttributes.size() > 0) {
+			appendField(sb, message.getMD5OfMessageAttributes());
+			appendField(sb, String.valueOf(messageAttributes.size()));
+			for (Map.Entry<String, CQSMessageAttribute> e : messageAttributes.entrySet()) {
+				appendField(sb, e.getKey());
+				appendField(sb, e.getValue().getDataType());
+				appendField(sb, e.getValue().getStringValue());
+			}
+		} else {
+			appendField(sb, null);
+			appendField(sb, "0");
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * @param message
+	 * @return legacy JSON column value
+	 */
+	public static String encodeLegacy(CQSMessage message) throws JSONException {
+
+		Writer writer = new StringWriter();
+		JSONWriter jw = new JSONWriter(writer);
+
+		jw = jw.object();
+		jw.key("MessageId").value(message.getMessageId());
+		jw.key("MD5OfBody").value(message.getMD5OfBody());
+		jw.key("Body").value(message.getBody());
+
+		if (message.getAttributes() != null) {
+			for (String key : message.getAttributes().keySet()) {
+				String value = message.getAttributes().get(key);
+				if (value == null || value.isEmpty()) {
+					value = "";
+				}
+				jw.key(key).value(value);
+			}
+		}
+
+		if (message.getMessageAttributes() != null && message.getMessageAttributes().size() > 0) {
+			jw.key("MD5OfMessageAttributes").value(message.getMD5OfMessageAttributes());
+			jw.key("MessageAttributes");
+			jw.object();
+			for (String key : message.getMessageAttributes().keySet()) {
+				jw.key(key);
+				jw.object();
+				CQSMessageAttribute messageAttribute = message.getMessageAttributes().get(key);
+				// base64 for binary attributes, getBinaryValue() would write the ByteBuffer's toString()
+				if (messageAttribute.getStringValue() != null) {
+					jw.key("StringValue").value(messageAttribute.getStringValue());
+				}
+				jw.key("DataType").value(messageAttribute.getDataType());
+				jw.endObject();
+			}
+			jw.endObject();
+		}
+
+		jw.endObject();
+
+		return writer.toString();
+	}
+
+	/**
+	 * @param value column value in either format
+	 * @return true if value is in the version 1 format
+	 */
+	public static boolean isVersion1(String value) {
+		return value != null && value.length() > 0 && value.charAt(0) == VERSION_1;
+	}
+
+	/**
+	 * @param value column value in any format
+	 * @return true if value is in the version 2 format
+	 */
+	public static boolean isVersion2(String value) {
+		return value != null && value.length() > 1 && value.charAt(0) == VERSION_2;
+	}
+
+	/**
+	 * @param value column value in any format
+	 * @return true if value is legacy JSON, only such values of compressed queues hold a gzipped body
+	 */
+	public static boolean isLegacy(String value) {
+		return !isVersion1(value) && !isVersion2(value);
+	}
+
+	/**
+	 * @param value column value in any format
+	 * @return decoded message, the receipt handle is set to the message id. Bodies of version 2 values
+	 * are decompressed, bodies of legacy and version 1 values are returned as stored.
+	 */
+	public static CQSMessage decode(String value) throws JSONException, IOException {
+
+		boolean version2 = isVersion2(value);
+
+		if (!version2 && !isVersion1(value)) {
+			return decodeLegacy(value);
+		}
+
+		CompressionCodec codec = version2 ? CompressionCodec.fromId(value.charAt(1)) : CompressionCodec.NONE;
+		CQSMessage m = new CQSMessage();
+		int[] pos = { version2 ? 2 : 1 };
+
+		m.setMessageId(readField(value, pos));
+		m.setReceiptHandle(m.getMessageId());
+		m.setMD5OfBody(readField(value, pos));
+
+		String body = readField(value, pos);
+
+		if (body != null && codec != CompressionCodec.NONE) {
+			body = new String(codec.decompress(Base64.decodeBase64(body)), UTF8);
+		}
+
+		m.setBody(body);
+		m.setAttributes(new HashMap<String, String>());
+
+		for (String name : SYSTEM_ATTRIBUTES) {
+			String attribute = readField(value, pos);
+			if (attribute != null) {
+				m.getAttributes().put(name, attribute);
+			}
+		}
+
+		String md5OfMessageAttributes = readField(value, pos);
+		int numMessageAttributes = Integer.parseInt(readField(value, pos));
+
+		if (numMessageAttributes > 0) {
+			m.setMD5OfMessageAttributes(md5OfMessageAttributes);
+			Map<String, CQSMessageAttribute> ma = new HashMap<String, CQSMessageAttribute>();
+			for (int i = 0; i < numMessageAttributes; i++) {
+				String name = readField(value, pos);
+				String dataType = readField(value, pos);
+				ma.put(name, new CQSMessageAttribute(readField(value, pos), dataType));
+			}
+			m.setMessageAttributes(ma);
+		}
+
+		return m;
+	}
+
+	private static CQSMessage decodeLegacy(String value) throws JSONException {
+
+		CQSMessage m = new CQSMessage();
+		JSONObject json = new JSONObject(value);
+
+		m.setMessageId(json.getString("MessageId"));
+		m.setReceiptHandle(json.getString("MessageId"));
+		m.setMD5OfBody(json.getString("MD5OfBody"));
+		m.setBody(json.getString("Body"));
+
+		if (m.getAttributes() == null) {
+			m.setAttributes(new HashMap<String, String>());
+		}
+
+		for (String name : SYSTEM_ATTRIBUTES) {
+			if (json.has(name)) {
+				m.getAttributes().put(name, json.getString(name));
+			}
+		}
+
+		if (json.has("MessageAttributes")) {
+			m.setMD5OfMessageAttributes(json.getString("MD5OfMessageAttributes"));
+			JSONObject messageAttributes = json.getJSONObject("MessageAttributes");
+			Map<String, CQSMessageAttribute> ma = new HashMap<String, CQSMessageAttribute>();
+			Iterator<String> iter = messageAttributes.keys();
+			while (iter.hasNext()) {
+				String key = iter.next();
+				JSONObject messageAttribute = messageAttributes.getJSONObject(key);
+				String attributeValue = messageAttribute.has("StringValue") ? messageAttribute.getString("StringValue") : null;
+				ma.put(key, new CQSMessageAttribute(attributeValue, messageAttribute.getString("DataType")));
+			}
+			m.setMessageAttributes(ma);
+		}
+
+		return m;
+	}
+
+	private static int length(String s) {
+		return s == null ? 0 : s.length();
+	}
+
+	private static void appendField(StringBuilder sb, String s) {
+		if (s == null) {
+			sb.append("-1:");
+		} else {
+			sb.append(s.length()).append(':').append(s);
+		}
+	}
+
+	/**
+	 * Read the field starting at pos[0] and advance pos[0] past it
+	 */
+	private static String readField(String value, int[] pos) {
+
+		int colon = value.indexOf(':', pos[0]);
+
+		if (colon < 0 || colon == pos[0] || colon - pos[0] > 10) {
+			throw new IllegalArgumentException("Bad format for message. Truncated field at " + pos[0]);
+		}
+
+		if (value.charAt(pos[0]) == '-') {
+			pos[0] = colon + 1;
+			return null;
+		}
+
+		int length = 0;
+
+		for (int i = pos[0]; i < colon; i++) {
+			int d = value.charAt(i) - '0';
+			if (d < 0 || d > 9) {
+				throw new IllegalArgumentException("Bad format for message. Bad field length at " + pos[0]);
+			}
+			length = length * 10 + d;
+		}
+
+		int end = colon + 1 + length;
+
+		if (end > value.length()) {
+			throw new IllegalArgumentException("Bad format for message. Field of length " + length + " exceeds value at " + pos[0]);
+		}
+
+		pos[0] = end;
+		return value.substring(colon + 1, end);
+	}
+}
@@ -39,9 +39,6 @@ import javax.servlet.http.HttpServletRequest;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.log4j.Logger;
 
-import com.comcast.cmb.common.persistence.AbstractDurablePersistence;
-import com.comcast.cmb.common.persistence.AbstractDurablePersistence.CMB_SERIALIZER;
-import com.comcast.cmb.common.persistence.DurablePersistenceFactory;
 import com.comcast.cmb.common.util.CMBErrorCodes;
 import com.comcast.cmb.common.util.CMBException;
 import com.comcast.cmb.common.util.CMBProperties;
@@ -608,55 +605,22 @@ public class Util {
 		return message;
 	}*/
 	
-	public static long getQueueMessageCount(CQSQueue queue) throws NoSuchAlgorithmException, UnsupportedEncodingException, PersistenceException {
-		
-		int numberOfPartitions = queue.getNumberOfPartitions();
-		AbstractDurablePersistence cassandraHandler = DurablePersistenceFactory.getInstance();
-		String queueHash = Util.hashQueueUrl(queue.getRelativeUrl());
-		long messageCount = 0;
-		
-		for (int i=0; i<numberOfPartitions; i++) {
-			String queueKey = queueHash + "_" + i;
-			long partitionCount = cassandraHandler.getCount(CMBProperties.getInstance().getCQSKeyspace(), "CQSPartitionedQueueMessages", queueKey, CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.COMPOSITE_SERIALIZER);
-			messageCount += partitionCount;
-		}
-		
-		return messageCount;
-	}
-
-	public static List<Long> getPartitionMessageCounts(CQSQueue queue) throws NoSuchAlgorithmException, UnsupportedEncodingException, PersistenceException {
-		
-		int numberOfPartitions = queue.getNumberOfPartitions();
-		AbstractDurablePersistence cassandraHandler = DurablePersistenceFactory.getInstance();
-		String queueHash = Util.hashQueueUrl(queue.getRelativeUrl());
-		List<Long> messageCounts = new ArrayList<Long>();
-		
-		for (int i=0; i<numberOfPartitions; i++) {
-			String queueKey = queueHash + "_" + i;
-			long partitionCount = cassandraHandler.getCount(CMBProperties.getInstance().getCQSKeyspace(), "CQSPartitionedQueueMessages", queueKey, CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.COMPOSITE_SERIALIZER);
-			messageCounts.add(partitionCount);
-		}
-		
-		return messageCounts;
-	}
-	
     public static int getShardFromReceiptHandle(String receiptHandle) throws PersistenceException {
 
-    	String handleParts[] = receiptHandle.split(":");
+    	int shard;
     	
-    	if (handleParts.length < 3) {
+    	try {
+    		shard = MemIdCodec.getShard(receiptHandle);
+    	} catch (IllegalArgumentException ex) {
     		throw new PersistenceException(CMBErrorCodes.InternalError, "Invalid receipt handle " + receiptHandle);
     	}
     	
-    	String keyParts[] = handleParts[2].split("_");
-
-    	if (keyParts.length < 3) {
-    		//throw new PersistenceException(CMBErrorCodes.InternalError, "Invalid receipt handle " + receiptHandle);
+    	if (shard < 0) {
     		logger.warn("event=missing_shard_info receipt_handle=" + receiptHandle + " action=default_to_zero");
     		return 0;
     	}
     	
-    	return Integer.parseInt(keyParts[1]);
+    	return shard;
     }
     
     public static String compress(String decompressed) throws IOException{
@@ -27,6 +27,7 @@ import org.junit.Test;
 import com.comcast.cmb.common.controller.CMBControllerServlet;
 import com.comcast.cmb.common.model.CMBPolicy;
 import com.comcast.cmb.common.model.CMBStatement;
+import com.comcast.cmb.common.model.User;
 import com.comcast.cmb.common.util.Util;
 
 public class CMBPolicyTest {
@@ -67,6 +68,71 @@ public class CMBPolicyTest {
 		}
     }
     
+    @Test
+    public void testIsAllowed() throws Exception {
+    	
+        CMBPolicy policy = new CMBPolicy();
+        
+        policy.addStatement(CMBPolicy.SERVICE.CQS, "send", "Allow", Arrays.asList("111"), Arrays.asList("SendMessage"), "arn:cmb:cqs:ccp:331770435817:MyQueue", null);
+        policy.addStatement(CMBPolicy.SERVICE.CQS, "everyone", "Allow", Arrays.asList("*"), Arrays.asList("ReceiveMessage"), "arn:cmb:cqs:ccp:331770435817:MyQueue", null);
+        policy.addStatement(CMBPolicy.SERVICE.CQS, "all", "Allow", Arrays.asList("222"), Arrays.asList("*"), "arn:cmb:cqs:ccp:331770435817:MyQueue", null);
+        policy.addStatement(CMBPolicy.SERVICE.CQS, "deny", "Deny", Arrays.asList("222"), Arrays.asList("DeleteQueue"), "arn:cmb:cqs:ccp:331770435817:MyQueue", null);
+        policy.addStatement(CMBPolicy.SERVICE.CQS, "denyAll", "Deny", Arrays.asList("333"), Arrays.asList("*"), "arn:cmb:cqs:ccp:331770435817:MyQueue", null);
+        
+        User user1 = new User("111", "user1", "", "", "");
+        User user2 = new User("222", "user2", "", "", "");
+        User user3 = new User("333", "user3", "", "", "");
+        
+        CMBPolicy parsed = CMBPolicy.getCachedPolicy(policy.toString());
+        
+        for (CMBPolicy p : Arrays.asList(policy, parsed)) {
+        	
+            assertTrue(p.isAllowed(user1, "CQS:SendMessage"));
+            assertTrue(p.isAllowed(user1, "CQS", "SendMessage"));
+            assertFalse(p.isAllowed(user1, "CQS", "DeleteMessage"));
+            assertFalse(p.isAllowed(user1, "CNS", "SendMessage"));
+            assertTrue(p.isAllowed(user1, "CQS", "ReceiveMessage"));
+            assertTrue(p.isAllowed(user2, "CQS", "DeleteMessage"));
+            assertFalse(p.isAllowed(user2, "CQS", "DeleteQueue"));
+            
+            // deny wins over allow to everyone
+            assertFalse(p.isAllowed(user3, "CQS", "ReceiveMessage"));
+            assertFalse(p.isAllowed(user3, "CQS:ReceiveMessage"));
+        }
+        
+        // changes to a policy are reflected
+        policy.removeStatement("deny");
+        assertTrue(policy.isAllowed(user2, "CQS", "DeleteQueue"));
+        
+        assertFalse(new CMBPolicy().isAllowed(user1, "CQS", "SendMessage"));
+        assertFalse(CMBPolicy.getCachedPolicy(null).isAllowed(user1, "CQS", "SendMessage"));
+    }
+    
+    @Test
+    public void testCachedPolicy() throws Exception {
+    	
+        CMBPolicy policy = new CMBPolicy();
+        policy.addStatement(CMBPolicy.SERVICE.CNS, "publish", "Allow", Arrays.asList("*"), Arrays.asList("Publish"), "arn:cmb:cns:ccp:331770435817:MyTopic", null);
+        
+        String policyString = policy.toString();
+        
+        assertSame(CMBPolicy.getCachedPolicy(policyString), CMBPolicy.getCachedPolicy(policyString));
+        assertTrue(CMBPolicy.getCachedPolicy(policyString).isAllowed(new User("111", "user1", "", "", ""), "CNS", "Publish"));
+        
+        try {
+            CMBPolicy.getCachedPolicy("{\"Statement\": [], \"Foo\": \"bar\"}");
+            fail("expected invalid policy");
+        } catch (Exception ex) {
+            // invalid policies fail the same way on every call
+        }
+        
+        try {
+            CMBPolicy.getCachedPolicy("{\"Statement\": [], \"Foo\": \"bar\"}");
+            fail("expected invalid policy");
+        } catch (Exception ex) {
+        }
+    }
+    
     @After    
     public void tearDown() {
         CMBControllerServlet.valueAccumulator.deleteAllCounters();
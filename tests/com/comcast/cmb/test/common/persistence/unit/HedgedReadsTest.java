@@ -0,0 +1,196 @@
+/**
+ * Copyright 2012 Comcast Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.comcast.cmb.test.common.persistence.unit;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.comcast.cmb.common.controller.CMBControllerServlet;
+import com.comcast.cmb.common.persistence.HedgedReads;
+import com.comcast.cmb.common.util.CMBErrorCodes;
+import com.comcast.cmb.common.util.PersistenceException;
+import com.comcast.cmb.common.util.ValueAccumulator.AccumulatorName;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+public class HedgedReadsTest {
+
+	/**
+	 * First call returns a read that never completes, later calls return value immediately
+	 */
+	private static class SlowFirstRead implements Callable<ListenableFuture<String>> {
+
+		final AtomicInteger numCalls = new AtomicInteger();
+		final SettableFuture<String> slow = SettableFuture.create();
+		final ListenableFuture<String> fast;
+
+		SlowFirstRead(ListenableFuture<String> fast) {
+			this.fast = fast;
+		}
+
+		public ListenableFuture<String> call() {
+			return numCalls.incrementAndGet() == 1 ? slow : fast;
+		}
+	}
+
+	private static Callable<ListenableFuture<String>> immediate(final String value) {
+		return new Callable<ListenableFuture<String>>() {
+			public ListenableFuture<String> call() {
+				return Futures.immediateFuture(value);
+			}
+		};
+	}
+
+	private static void warmUp(HedgedReads hedgedReads, int n) throws Exception {
+		for (int i = 0; i < n; i++) {
+			assertEquals("warm", hedgedReads.read("op", immediate("warm")));
+		}
+	}
+
+	@Before
+	public void setup() {
+		CMBControllerServlet.valueAccumulator.initializeAllCounters();
+	}
+
+	@After
+	public void tearDown() {
+		CMBControllerServlet.valueAccumulator.deleteAllCounters();
+	}
+
+	@Test
+	public void testSlowReadIsHedged() throws Exception {
+
+		HedgedReads hedgedReads = new HedgedReads(true, 95, 1, 10000, 10);
+		warmUp(hedgedReads, 100);
+
+		SlowFirstRead read = new SlowFirstRead(Futures.immediateFuture("hedge"));
+		assertEquals("hedge", hedgedReads.read("op", read));
+
+		assertEquals(2, read.numCalls.get());
+		assertEquals(1, hedgedReads.getNumHedges());
+		assertEquals(1, hedgedReads.getNumHedgeWins());
+		assertEquals(1, CMBControllerServlet.valueAccumulator.getCounter(AccumulatorName.CassandraHedgedRead));
+		assertEquals(1, CMBControllerServlet.valueAccumulator.getCounter(AccumulatorName.CassandraHedgeWin));
+	}
+
+	@Test
+	public void testNoHedgeBeforeEnoughSamples() throws Exception {
+
+		HedgedReads hedgedReads = new HedgedReads(true, 95, 1, 10000, 100);
+		warmUp(hedgedReads, 10);
+
+		final SlowFirstRead read = new SlowFirstRead(Futures.immediateFuture("hedge"));
+
+		new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException ex) {
+				}
+				read.slow.set("primary");
+			}
+		}.start();
+
+		assertEquals("primary", hedgedReads.read("op", read));
+		assertEquals(1, read.numCalls.get());
+		assertEquals(0, hedgedReads.getNumHedges());
+	}
+
+	@Test
+	public void testBudgetLimitsHedges() throws Exception {
+
+		// 10% budget: 100 reads earn 10 hedges, which is also the most that can be saved up
+		HedgedReads hedgedReads = new HedgedReads(true, 95, 1, 10000, 10);
+		warmUp(hedgedReads, 100);
+
+		for (int i = 0; i < 11; i++) {
+			SlowFirstRead read = new SlowFirstRead(Futures.immediateFuture("hedge"));
+			assertEquals("hedge", hedgedReads.read("op", read));
+			assertEquals(2, read.numCalls.get());
+		}
+
+		assertEquals(11, hedgedReads.getNumHedges());
+
+		// out of budget, slow primaries are waited for without a hedge
+		for (int i = 0; i < 5; i++) {
+
+			final SlowFirstRead read = new SlowFirstRead(Futures.immediateFuture("hedge"));
+
+			new Thread() {
+				public void run() {
+					try {
+						Thread.sleep(50);
+					} catch (InterruptedException ex) {
+					}
+					read.slow.set("primary");
+				}
+			}.start();
+
+			assertEquals("primary", hedgedReads.read("op", read));
+			assertEquals(1, read.numCalls.get());
+		}
+
+		assertEquals(11, hedgedReads.getNumHedges());
+		assertEquals(11, hedgedReads.getNumHedgeWins());
+	}
+
+	@Test
+	public void testFailureWaitsForHedge() throws Exception {
+
+		HedgedReads hedgedReads = new HedgedReads(true, 95, 1, 10000, 10);
+		warmUp(hedgedReads, 100);
+
+		final SlowFirstRead read = new SlowFirstRead(SettableFuture.<String>create());
+
+		new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException ex) {
+				}
+				read.slow.setException(new PersistenceException(CMBErrorCodes.InternalError, "primary failed"));
+				((SettableFuture<String>)read.fast).set("hedge");
+			}
+		}.start();
+
+		assertEquals("hedge", hedgedReads.read("op", read));
+		assertEquals(1, hedgedReads.getNumHedgeWins());
+	}
+
+	@Test
+	public void testFailureOfAllReads() throws Exception {
+
+		HedgedReads hedgedReads = new HedgedReads(true, 95, 1, 10000, 10);
+
+		try {
+			hedgedReads.read("op", new Callable<ListenableFuture<String>>() {
+				public ListenableFuture<String> call() {
+					return Futures.immediateFailedFuture(new PersistenceException(CMBErrorCodes.InternalError, "failed"));
+				}
+			});
+			fail("expected PersistenceException");
+		} catch (PersistenceException ex) {
+			assertEquals("failed", ex.getMessage());
+		}
+	}
+}
@@ -18,14 +18,22 @@ package com.comcast.cmb.test.common.util.unit;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.amazonaws.util.BinaryUtils;
 import com.comcast.cmb.common.controller.CMBControllerServlet;
 import com.comcast.cmb.common.util.AuthUtil;
 import com.comcast.cmb.common.util.AuthenticationException;
 import com.comcast.cmb.common.util.CMBErrorCodes;
 import com.comcast.cmb.common.util.Util;
+import com.comcast.cmb.test.tools.SimpleHttpServletRequest;
+import com.comcast.cqs.controller.CQSHttpServletRequest;
 
+import java.net.URL;
 import java.text.SimpleDateFormat;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.TimeZone;
 
 import static org.junit.Assert.*;
@@ -101,4 +109,77 @@ public class AuthUtilTest {
             assertEquals(ex.getCMBCode(), CMBErrorCodes.RequestExpired.getCMBCode());
         }
     }
+    
+    @Test
+    public void testSigningKey() throws Exception {
+    	
+        // example from the aws signature version 4 documentation
+        String secret = "wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY";
+        String expected = "f4780e2d9f65fa895f9c67b32ce1baf0b0d8a43505a000a1a9e090d414db404d";
+        
+        assertEquals(expected, BinaryUtils.toHex(AuthUtil.getSigningKey(secret, "20120215", "us-east-1", "iam")));
+        assertEquals(expected, BinaryUtils.toHex(AuthUtil.getSigningKey(secret, "20120215", "us-east-1", "iam")));
+        
+        assertFalse(expected.equals(BinaryUtils.toHex(AuthUtil.getSigningKey(secret, "20120216", "us-east-1", "iam"))));
+        assertFalse(expected.equals(BinaryUtils.toHex(AuthUtil.getSigningKey(secret + "x", "20120215", "us-east-1", "iam"))));
+    }
+    
+    @Test
+    public void testHash() throws Exception {
+        assertEquals("e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855", BinaryUtils.toHex(AuthUtil.hash("")));
+        assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", BinaryUtils.toHex(AuthUtil.hash("abc")));
+        assertEquals("e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855", BinaryUtils.toHex(AuthUtil.hash("")));
+    }
+    
+    /**
+     * Sign a GET / request without a body like the requests of the aws signature version 4 test suite
+     */
+    private static String signV4(Map<String, String> headers) throws Exception {
+    	
+    	SimpleHttpServletRequest raw = new SimpleHttpServletRequest();
+    	raw.setMethod("GET");
+    	raw.setRequestUrl("http://example.amazonaws.com/");
+    	
+    	for (Map.Entry<String, String> header : headers.entrySet()) {
+    		raw.addHeader(header.getKey(), header.getValue());
+    		raw.addHeader(header.getKey().toLowerCase(), header.getValue());
+    	}
+    	
+    	CQSHttpServletRequest request = new CQSHttpServletRequest(raw) {
+    		
+    		@Override
+    		public String getRequestURI() {
+    			return "/";
+    		}
+    		
+    		@Override
+    		public Enumeration<String> getPostParameterNames() {
+    			return Collections.enumeration(Collections.<String>emptyList());
+    		}
+    	};
+    	
+    	return AuthUtil.generateSignatureV4(request, new URL("http://example.amazonaws.com/"), new HashMap<String, String>(), headers, "4", "HMAC-SHA256", "wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY");
+    }
+    
+    @Test
+    public void testGenerateSignatureV4() throws Exception {
+    	
+    	// get-vanilla from the aws signature version 4 test suite
+    	Map<String, String> headers = new HashMap<String, String>();
+    	headers.put("Host", "example.amazonaws.com");
+    	headers.put("X-Amz-Date", "20150830T123600Z");
+    	headers.put("Authorization", "AWS4-HMAC-SHA256 Credential=AKIDEXAMPLE/20150830/us-east-1/service/aws4_request, SignedHeaders=host;x-amz-date, Signature=5fa00fa31553b73ebf1942676e86291e8372ff2a2260956d9b8aae1d763fbf31");
+    	
+    	assertEquals("5fa00fa31553b73ebf1942676e86291e8372ff2a2260956d9b8aae1d763fbf31", signV4(headers));
+    	
+    	// get-header-value-trim: runs of spaces inside a header value are signed as a single space
+    	headers = new HashMap<String, String>();
+    	headers.put("Host", "example.amazonaws.com");
+    	headers.put("My-Header1", "value1");
+    	headers.put("My-Header2", "\"a   b   c\"");
+    	headers.put("X-Amz-Date", "20150830T123600Z");
+    	headers.put("Authorization", "AWS4-HMAC-SHA256 Credential=AKIDEXAMPLE/20150830/us-east-1/service/aws4_request, SignedHeaders=host;my-header1;my-header2;x-amz-date, Signature=acc3ed3afb60bb290fc8d2dd0098b9911fcaa05412b367055dee359757a9c736");
+    	
+    	assertEquals("acc3ed3afb60bb290fc8d2dd0098b9911fcaa05412b367055dee359757a9c736", signV4(headers));
+    }
 }
@@ -0,0 +1,238 @@
+/**
+ * Copyright 2012 Comcast Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.comcast.cmb.test.common.util.unit;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.comcast.cmb.common.util.BoundedCache;
+import com.comcast.cmb.common.util.Util;
+
+public class BoundedCacheTest {
+
+    @Before
+    public void setup() throws Exception {
+        Util.initLog4jTest();
+    }
+
+    static class CountingCallable implements Callable<Integer> {
+
+        final AtomicInteger numTimesCalled = new AtomicInteger();
+        final int value;
+
+        CountingCallable(int value) {
+            this.value = value;
+        }
+
+        @Override
+        public Integer call() throws Exception {
+            numTimesCalled.incrementAndGet();
+            return value;
+        }
+    }
+
+    @Test
+    public void testSetGetExpire() throws Exception {
+
+        BoundedCache<String, Integer> cache = new BoundedCache<String, Integer>("test", 10);
+        CountingCallable c = new CountingCallable(1);
+
+        assertEquals(1, (int)cache.getAndSetIfNotPresent("test", c, 100));
+        assertEquals(1, (int)cache.getAndSetIfNotPresent("test", c, 100));
+        assertEquals(1, c.numTimesCalled.get());
+        assertTrue(cache.containsKey("test"));
+
+        Thread.sleep(101);
+
+        assertFalse(cache.containsKey("test"));
+        assertEquals(1, (int)cache.getAndSetIfNotPresent("test", c, 100));
+        assertEquals(2, c.numTimesCalled.get());
+
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(1, cache.getExpirationCount());
+
+        cache.remove("test");
+        assertFalse(cache.containsKey("test"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testNoCliffWhenFull() throws Exception {
+
+        BoundedCache<Integer, Integer> cache = new BoundedCache<Integer, Integer>("test", 100);
+
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, (int)cache.getAndSetIfNotPresent(i, new CountingCallable(i), 60000));
+            assertTrue(cache.size() <= 100);
+        }
+
+        assertEquals(900, cache.getEvictionCount() + cache.getRejectionCount());
+
+        // keys requested again after the cache filled up still make it in
+        CountingCallable c = new CountingCallable(-1);
+
+        for (int i = 0; i < 5; i++) {
+            cache.getAndSetIfNotPresent(-1, c, 60000);
+        }
+
+        assertTrue(cache.containsKey(-1));
+        assertTrue(c.numTimesCalled.get() < 5);
+    }
+
+    @Test
+    public void testHotKeysSurviveScan() throws Exception {
+
+        BoundedCache<Integer, Integer> cache = new BoundedCache<Integer, Integer>("test", 1000);
+        CountingCallable hot = new CountingCallable(0);
+
+        for (int i = 0; i < 20; i++) {
+            for (int j = 0; j < 10; j++) {
+                cache.getAndSetIfNotPresent(j, hot, 60000);
+            }
+        }
+
+        // each key of the scan is only requested once
+        for (int i = 1000; i < 6000; i++) {
+            cache.getAndSetIfNotPresent(i, new CountingCallable(i), 60000);
+        }
+
+        for (int j = 0; j < 10; j++) {
+            assertTrue("hot key " + j + " was evicted", cache.containsKey(j));
+        }
+
+        assertEquals(10, hot.numTimesCalled.get());
+        assertTrue(cache.getRejectionCount() > 0);
+    }
+
+    static class VersionCallable implements Callable<Integer> {
+
+        final AtomicInteger version = new AtomicInteger();
+
+        @Override
+        public Integer call() throws Exception {
+            return version.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void testRefreshAhead() throws Exception {
+
+        BoundedCache<String, Integer> cache = new BoundedCache<String, Integer>("test", 10, 50, 0, -1);
+        VersionCallable c = new VersionCallable();
+
+        assertEquals(1, (int)cache.getAndSetIfNotPresent("test", c, 200));
+
+        // past half of the expiration the current value is returned and a reload starts in the background
+        Thread.sleep(120);
+        assertEquals(1, (int)cache.getAndSetIfNotPresent("test", c, 200));
+        Thread.sleep(50);
+
+        assertEquals(2, (int)cache.getAndSetIfNotPresent("test", c, 200));
+        assertEquals(1, cache.getRefreshCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testStaleWhileRevalidate() throws Exception {
+
+        BoundedCache<String, Integer> cache = new BoundedCache<String, Integer>("test", 10, 0, 1000, -1);
+        VersionCallable c = new VersionCallable();
+
+        assertEquals(1, (int)cache.getAndSetIfNotPresent("test", c, 100));
+
+        Thread.sleep(150);
+        assertEquals(1, (int)cache.getAndSetIfNotPresent("test", c, 100));
+        Thread.sleep(50);
+
+        assertEquals(2, (int)cache.getAndSetIfNotPresent("test", c, 100));
+        assertEquals(1, cache.getStaleHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testNegativeExpiration() throws Exception {
+
+        BoundedCache<String, Integer> cache = new BoundedCache<String, Integer>("test", 10, 0, 1000, 50);
+        final AtomicInteger numTimesCalled = new AtomicInteger();
+
+        Callable<Integer> notFound = new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                numTimesCalled.incrementAndGet();
+                return null;
+            }
+        };
+
+        assertNull(cache.getAndSetIfNotPresent("test", notFound, 60000));
+        assertNull(cache.getAndSetIfNotPresent("test", notFound, 60000));
+        assertEquals(1, numTimesCalled.get());
+
+        // not found is not served stale
+        Thread.sleep(60);
+        assertNull(cache.getAndSetIfNotPresent("test", notFound, 60000));
+        assertEquals(2, numTimesCalled.get());
+    }
+
+    @Test
+    public void testConcurrentLoadsCallOnce() throws Exception {
+
+        final BoundedCache<Integer, Integer> cache = new BoundedCache<Integer, Integer>("test", 10);
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicInteger numTimesCalled = new AtomicInteger();
+
+        final Callable<Integer> slow = new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                numTimesCalled.incrementAndGet();
+                started.await();
+                return 1;
+            }
+        };
+
+        ExecutorService e = Executors.newFixedThreadPool(10);
+        final AtomicInteger numCorrect = new AtomicInteger();
+
+        for (int i = 0; i < 10; i++) {
+            e.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (cache.getAndSetIfNotPresent(1, slow, 60000) == 1) {
+                        numCorrect.incrementAndGet();
+                    }
+                }
+            });
+        }
+
+        Thread.sleep(100);
+        started.countDown();
+
+        e.shutdown();
+        assertTrue(e.awaitTermination(5, TimeUnit.SECONDS));
+
+        assertEquals(10, numCorrect.get());
+        assertEquals(1, numTimesCalled.get());
+    }
+}
@@ -0,0 +1,68 @@
+/**
+ * Copyright 2012 Comcast Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.comcast.cmb.test.unit;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.comcast.cmb.common.controller.CacheInvalidationBus;
+
+public class CacheInvalidationBusTest {
+
+    private static class RecordingInvalidator implements CacheInvalidationBus.Invalidator {
+
+    	final List<String> keys = new ArrayList<String>();
+
+    	public void invalidate(String key) {
+    		keys.add(key);
+    	}
+    }
+
+    @Test
+    public void testHandle() throws Exception {
+
+    	RecordingInvalidator invalidator = new RecordingInvalidator();
+    	CacheInvalidationBus.register("test_topic", invalidator);
+
+    	// keys may contain the separator themselves
+    	CacheInvalidationBus.handle("test_topic:arn:cmb:cns:ccp:123456789012:my-topic");
+    	CacheInvalidationBus.handle("unknown_type:key");
+    	CacheInvalidationBus.handle("no_separator");
+
+    	assertEquals(1, invalidator.keys.size());
+    	assertEquals("arn:cmb:cns:ccp:123456789012:my-topic", invalidator.keys.get(0));
+    }
+
+    @Test
+    public void testInvalidateWithoutPeers() throws Exception {
+
+    	RecordingInvalidator invalidator = new RecordingInvalidator();
+    	CacheInvalidationBus.register("test_queue", invalidator);
+
+    	// bus is not started, invalidation only applies locally and nothing is published
+    	assertFalse(CacheInvalidationBus.isActive());
+    	assertFalse(CacheInvalidationBus.invalidate("test_queue", "123456789012/q"));
+    	assertFalse(CacheInvalidationBus.invalidate("test_queue", null));
+    	assertFalse(CacheInvalidationBus.isActive());
+
+    	assertEquals(1, invalidator.keys.size());
+    	assertEquals("123456789012/q", invalidator.keys.get(0));
+    }
+}
@@ -0,0 +1,156 @@
+/**
+ * Copyright 2012 Comcast Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.comcast.cmb.test.unit;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.comcast.cmb.common.controller.CMBControllerServlet;
+import com.comcast.cmb.common.persistence.AbstractDurablePersistence;
+import com.comcast.cmb.common.persistence.AbstractDurablePersistence.CMB_SERIALIZER;
+import com.comcast.cmb.common.persistence.AbstractDurablePersistence.CmbColumn;
+import com.comcast.cmb.common.persistence.AbstractDurablePersistence.CmbColumnSlice;
+import com.comcast.cmb.common.persistence.AbstractDurablePersistence.CmbComposite;
+import com.comcast.cmb.common.persistence.AbstractDurablePersistence.CmbRow;
+import com.comcast.cmb.common.persistence.DurablePersistenceFactory;
+import com.comcast.cmb.common.util.Util;
+
+/**
+ * Runs against the cassandra configured in cmb.properties using the cql client. Skipped unless built with
+ * mvn -Pcql and a cassandra with the cql schema is reachable on cmb.cql.nativePort.
+ */
+public class CassandraCqlPersistenceTest {
+
+	private static Logger logger = Logger.getLogger(CassandraCqlPersistenceTest.class);
+
+	private AbstractDurablePersistence cql;
+
+	@Before
+	public void setup() throws Exception {
+
+		Util.initLog4jTest();
+		CMBControllerServlet.valueAccumulator.initializeAllCounters();
+
+		try {
+			cql = DurablePersistenceFactory.getInstance(DurablePersistenceFactory.CLIENT_CQL);
+		} catch (Throwable t) {
+			logger.warn("event=skipping_cql_tests reason=" + t.getMessage());
+		}
+
+		Assume.assumeTrue(cql != null && cql.isAlive());
+	}
+
+	@After
+	public void tearDown() {
+		CMBControllerServlet.valueAccumulator.deleteAllCounters();
+	}
+
+	@Test
+	public void testNamedColumns() throws Exception {
+
+		String key = "cql_test_user_" + System.currentTimeMillis();
+		Map<String, String> columns = new HashMap<String, String>();
+		columns.put("userId", "42");
+		columns.put("accessKey", "ak");
+		columns.put("description", "cql test");
+
+		cql.insertRow(AbstractDurablePersistence.CMB_KEYSPACE, key, AbstractDurablePersistence.CMB_USERS, columns, CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.STRING_SERIALIZER, null);
+
+		CmbColumnSlice<String, String> slice = cql.readColumnSlice(AbstractDurablePersistence.CMB_KEYSPACE, AbstractDurablePersistence.CMB_USERS, key, null, null, 10, CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.STRING_SERIALIZER);
+		assertEquals(3, slice.size());
+		assertEquals("42", slice.getColumnByName("userId").getValue());
+		assertEquals("accessKey", slice.getColumns().get(0).getName());
+		assertTrue(slice.getColumnByName("userId").getClock() > 0);
+
+		cql.update(AbstractDurablePersistence.CMB_KEYSPACE, AbstractDurablePersistence.CMB_USERS, key, "description", "updated", CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.STRING_SERIALIZER, null);
+		CmbColumn<String, String> column = cql.readColumn(AbstractDurablePersistence.CMB_KEYSPACE, AbstractDurablePersistence.CMB_USERS, key, "description", CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.STRING_SERIALIZER);
+		assertEquals("updated", column.getValue());
+
+		cql.delete(AbstractDurablePersistence.CMB_KEYSPACE, AbstractDurablePersistence.CMB_USERS, key, "description", CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.STRING_SERIALIZER);
+		assertEquals(2, cql.getCount(AbstractDurablePersistence.CMB_KEYSPACE, AbstractDurablePersistence.CMB_USERS, key, CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.STRING_SERIALIZER));
+
+		cql.delete(AbstractDurablePersistence.CMB_KEYSPACE, AbstractDurablePersistence.CMB_USERS, key, null, CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.STRING_SERIALIZER);
+		assertNull(cql.readColumnSlice(AbstractDurablePersistence.CMB_KEYSPACE, AbstractDurablePersistence.CMB_USERS, key, null, null, 10, CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.STRING_SERIALIZER));
+	}
+
+	@Test
+	public void testCompositeColumns() throws Exception {
+
+		String key = "cql_test_0_0_" + System.currentTimeMillis();
+		Map<CmbComposite, String> columns = new HashMap<CmbComposite, String>();
+
+		for (long i = 1; i <= 5; i++) {
+			columns.put(cql.getCmbComposite(Arrays.asList(i * 100, i)), "m" + i);
+		}
+
+		cql.insertRow(AbstractDurablePersistence.CQS_KEYSPACE, key, AbstractDurablePersistence.CQS_PARTITIONED_QUEUE_MESSAGES, columns, CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.COMPOSITE_SERIALIZER, CMB_SERIALIZER.STRING_SERIALIZER, 60);
+
+		CmbColumnSlice<CmbComposite, String> slice = cql.readColumnSlice(AbstractDurablePersistence.CQS_KEYSPACE, AbstractDurablePersistence.CQS_PARTITIONED_QUEUE_MESSAGES, key,
+				cql.getCmbComposite(Arrays.asList(200L, 2L)), cql.getCmbComposite(Arrays.asList(400L, 4L)), 10, CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.COMPOSITE_SERIALIZER, CMB_SERIALIZER.STRING_SERIALIZER);
+
+		assertEquals(3, slice.size());
+		assertEquals("m2", slice.getColumns().get(0).getValue());
+		assertEquals(200L, slice.getColumns().get(0).getName().get(0));
+		assertEquals(2L, slice.getColumns().get(0).getName().get(1));
+		assertEquals("m4", slice.getColumns().get(2).getValue());
+
+		slice = cql.readColumnSlice(AbstractDurablePersistence.CQS_KEYSPACE, AbstractDurablePersistence.CQS_PARTITIONED_QUEUE_MESSAGES, key, null, null, 2, CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.COMPOSITE_SERIALIZER, CMB_SERIALIZER.STRING_SERIALIZER);
+		assertEquals(2, slice.size());
+		assertEquals("m1", slice.getColumns().get(0).getValue());
+
+		Map<String, List<CmbComposite>> columnNamesByKey = new HashMap<String, List<CmbComposite>>();
+		columnNamesByKey.put(key, Arrays.asList(cql.getCmbComposite(Arrays.asList(300L, 3L)), cql.getCmbComposite(Arrays.asList(300L, 4L))));
+		List<CmbRow<String, CmbComposite, String>> rows = cql.readColumnsByKeys(AbstractDurablePersistence.CQS_KEYSPACE, AbstractDurablePersistence.CQS_PARTITIONED_QUEUE_MESSAGES, columnNamesByKey, CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.COMPOSITE_SERIALIZER, CMB_SERIALIZER.STRING_SERIALIZER);
+		assertEquals(1, rows.size());
+		assertEquals(1, rows.get(0).getColumnSlice().size());
+		assertEquals("m3", rows.get(0).getColumnSlice().getColumnByName(cql.getCmbComposite(Arrays.asList(300L, 3L))).getValue());
+
+		List<String> keys = new ArrayList<String>();
+		List<CmbComposite> names = new ArrayList<CmbComposite>();
+
+		for (long i = 1; i <= 5; i++) {
+			keys.add(key);
+			names.add(cql.getCmbComposite(Arrays.asList(i * 100, i)));
+		}
+
+		cql.deleteBatch(AbstractDurablePersistence.CQS_KEYSPACE, AbstractDurablePersistence.CQS_PARTITIONED_QUEUE_MESSAGES, keys, names, CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.COMPOSITE_SERIALIZER);
+		assertEquals(0, cql.getCount(AbstractDurablePersistence.CQS_KEYSPACE, AbstractDurablePersistence.CQS_PARTITIONED_QUEUE_MESSAGES, key, CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.COMPOSITE_SERIALIZER));
+	}
+
+	@Test
+	public void testCounters() throws Exception {
+
+		String key = "cql_test_counter_" + System.currentTimeMillis();
+
+		assertEquals(0, cql.getCounter(AbstractDurablePersistence.CNS_KEYSPACE, AbstractDurablePersistence.CNS_TOPIC_STATS, key, "c", CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.STRING_SERIALIZER));
+
+		cql.incrementCounter(AbstractDurablePersistence.CNS_KEYSPACE, AbstractDurablePersistence.CNS_TOPIC_STATS, key, "c", 3, CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.STRING_SERIALIZER);
+		cql.decrementCounter(AbstractDurablePersistence.CNS_KEYSPACE, AbstractDurablePersistence.CNS_TOPIC_STATS, key, "c", 1, CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.STRING_SERIALIZER);
+
+		assertEquals(2, cql.getCounter(AbstractDurablePersistence.CNS_KEYSPACE, AbstractDurablePersistence.CNS_TOPIC_STATS, key, "c", CMB_SERIALIZER.STRING_SERIALIZER, CMB_SERIALIZER.STRING_SERIALIZER));
+	}
+}
@@ -0,0 +1,180 @@
+/**
+ * Copyright 2012 Comcast Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.comcast.cqs.test.unit;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Test;
+
+import com.comcast.cmb.common.persistence.AbstractDurablePersistence;
+import com.comcast.cqs.persistence.CQSQueueMessageCounters;
+import com.comcast.cqs.persistence.CQSQueueMessageCounters.Counts;
+import com.comcast.cqs.util.MemIdCodec;
+
+public class CQSQueueMessageCountersTest {
+
+	private static final String queueUrl = "123456789012/q1";
+
+	/**
+	 * Counters that keep flushed changes in memory and never reconcile
+	 */
+	private static class LocalCounters extends CQSQueueMessageCounters {
+
+		final Map<String, Long> inFlight = new ConcurrentHashMap<String, Long>();
+
+		LocalCounters(int reconcileSec) {
+			super(reconcileSec);
+		}
+
+		@Override
+		protected void write(Map<String, Counts> drained) {
+			for (Map.Entry<String, Counts> e : drained.entrySet()) {
+				Long value = inFlight.get(e.getKey());
+				inFlight.put(e.getKey(), (value == null ? 0 : value) + e.getValue().getInFlight());
+			}
+		}
+
+		@Override
+		protected void reconcile(String queueUrl) {
+		}
+	}
+
+    @Test
+    public void testDisabledCountersIgnoreChanges() {
+
+    	CQSQueueMessageCounters counters = new CQSQueueMessageCounters(60);
+
+    	counters.add(queueUrl, 10, 0, 2);
+
+    	assertFalse(counters.isEnabled());
+    	assertTrue(counters.drainDeltas().isEmpty());
+    	assertEquals(0, counters.getNumPendingQueues());
+    	assertEquals(0, counters.getNumActiveQueues());
+    }
+
+    @Test
+    public void testDeltasAreBufferedAndDrained() {
+
+    	// long intervals so the scheduler does not drain concurrently
+    	CQSQueueMessageCounters counters = new LocalCounters(3600);
+    	counters.start(3600000);
+
+    	counters.add(queueUrl, 10, 0, 2);
+    	counters.add(queueUrl, 0, 4, 0);
+    	counters.add(queueUrl, -3, -3, 0);
+    	counters.add(queueUrl + "2", 1, 0, 0);
+
+    	Map<String, Counts> drained = counters.drainDeltas();
+
+    	assertEquals(2, drained.size());
+    	assertEquals(7, drained.get(queueUrl).getTotal());
+    	assertEquals(1, drained.get(queueUrl).getInFlight());
+    	assertEquals(2, drained.get(queueUrl).getDelayed());
+    	assertEquals(1, drained.get(queueUrl + "2").getTotal());
+
+    	// nothing new since the last drain
+    	assertTrue(counters.drainDeltas().isEmpty());
+    }
+
+    @Test
+    public void testVisibilityChanges() {
+
+    	CQSQueueMessageCounters counters = new LocalCounters(3600);
+    	counters.start(3600000);
+
+    	// only changed messages made visible right away leave the in flight count
+    	counters.addVisibilityChanges(queueUrl, Arrays.asList(0, 30, 0, 0), Arrays.asList(true, true, false, true));
+
+    	Map<String, Counts> drained = counters.drainDeltas();
+
+    	assertEquals(1, drained.size());
+    	assertEquals(-2, drained.get(queueUrl).getInFlight());
+    	assertEquals(0, drained.get(queueUrl).getTotal());
+
+    	counters.addVisibilityChanges(queueUrl, Arrays.asList(30, 0), Arrays.asList(true, false));
+
+    	assertTrue(counters.drainDeltas().isEmpty());
+    }
+
+    @Test
+    public void testSchedulerDrainsDeltasAndActiveQueues() throws Exception {
+
+    	LocalCounters counters = new LocalCounters(1);
+    	counters.start(10);
+
+    	counters.add(queueUrl, 2, 2, 0);
+    	counters.add(queueUrl + "2", 1, 0, 0);
+    	counters.addVisibilityChanges(queueUrl, Arrays.asList(0), Arrays.asList(true));
+
+    	assertEquals(2, counters.getNumActiveQueues());
+
+    	// queues unused for two reconciliation intervals are no longer reconciled
+
+    	long deadline = System.currentTimeMillis() + 10000;
+
+    	while ((counters.getNumPendingQueues() > 0 || counters.getNumActiveQueues() > 0) && System.currentTimeMillis() < deadline) {
+    		Thread.sleep(50);
+    	}
+
+    	assertEquals(0, counters.getNumPendingQueues());
+    	assertEquals(0, counters.getNumActiveQueues());
+    	assertEquals(Long.valueOf(1), counters.inFlight.get(queueUrl));
+    }
+
+    @Test
+    public void testMerge() {
+
+    	Map<String, String> hash = new HashMap<String, String>();
+    	hash.put(CQSQueueMessageCounters.TOTAL, "100");
+    	hash.put(CQSQueueMessageCounters.IN_FLIGHT, "20");
+    	hash.put(CQSQueueMessageCounters.DELAYED, "5");
+
+    	// never reconciled
+    	assertNull(CQSQueueMessageCounters.merge(hash, null));
+
+    	hash.put(CQSQueueMessageCounters.RECONCILED_TS, "1400000000000");
+    	Counts counts = CQSQueueMessageCounters.merge(hash, new Counts(3, -1, 0));
+
+    	assertEquals(103, counts.getTotal());
+    	assertEquals(19, counts.getInFlight());
+    	assertEquals(5, counts.getDelayed());
+    	assertEquals(24, counts.getNotVisible());
+    	assertEquals(79, counts.getVisible());
+
+    	// drift between reconciliations never produces negative or inconsistent counts
+    	counts = CQSQueueMessageCounters.merge(hash, new Counts(-110, -30, 0));
+
+    	assertEquals(0, counts.getTotal());
+    	assertEquals(0, counts.getInFlight());
+    	assertEquals(0, counts.getDelayed());
+    }
+
+    @Test
+    public void testDelayedOrInFlight() {
+
+    	long now = 1400000000000L;
+    	String delayed = MemIdCodec.encode("45c1596598f85ce59f060dc2b8ec4ebb_0_1:" + AbstractDurablePersistence.newTime(now + 60000, false) + ":1");
+    	String received = MemIdCodec.encode("45c1596598f85ce59f060dc2b8ec4ebb_0_1:" + AbstractDurablePersistence.newTime(now - 60000, false) + ":1");
+
+    	assertTrue(CQSQueueMessageCounters.isDelayed(delayed, now));
+    	assertFalse(CQSQueueMessageCounters.isDelayed(received, now));
+    }
+}
@@ -202,4 +202,44 @@ public class CQSSendDeleteReceiveMessageTest extends CMBAWSBaseTest {
     		fail("no message found in " + queueUrl);
     	}
     }
+
+    @Test
+    public void testCacheFillerResumeAfterSendWhileUnavailable() throws Exception {
+
+    	String queueUrl = getQueueUrl(1, USR.USER1);
+    	String relativeUrl = Util.getRelativeForAbsoluteQueueUrl(queueUrl);
+    	RedisSortedSetPersistence redisP = RedisSortedSetPersistence.getInstance();
+    	int num = 5;
+
+    	for (int i = 0; i < num; i++) {
+    		cqs1.sendMessage(new SendMessageRequest(queueUrl, "before" + i));
+    	}
+
+    	waitForCacheState(redisP, relativeUrl, RedisSortedSetPersistence.QCacheState.OK);
+    	assertEquals(num, redisP.getCacheQueueMessageCount(relativeUrl));
+
+    	redisP.testInterface.setCacheState(relativeUrl, RedisSortedSetPersistence.QCacheState.Unavailable, null, false);
+
+    	// the first send finds the cache unavailable and starts the filler, all of them must end up in the cache
+
+    	for (int i = 0; i < num; i++) {
+    		cqs1.sendMessage(new SendMessageRequest(queueUrl, "during" + i));
+    	}
+
+    	waitForCacheState(redisP, relativeUrl, RedisSortedSetPersistence.QCacheState.OK);
+    	assertEquals(2 * num, redisP.getCacheQueueMessageCount(relativeUrl));
+    }
+
+    private void waitForCacheState(RedisSortedSetPersistence redisP, String relativeUrl, RedisSortedSetPersistence.QCacheState state) throws InterruptedException {
+
+    	for (int i = 0; i < 100; i++) {
+    		redisP.testInterface.checkCacheConsistency(relativeUrl);
+    		if (redisP.testInterface.getCacheState(relativeUrl) == state) {
+    			return;
+    		}
+    		Thread.sleep(100);
+    	}
+
+    	fail("cache of " + relativeUrl + " did not reach state " + state);
+    }
 }
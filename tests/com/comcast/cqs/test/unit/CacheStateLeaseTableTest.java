@@ -0,0 +1,93 @@
+/**
+ * Copyright 2012 Comcast Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.comcast.cqs.test.unit;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.comcast.cqs.persistence.CacheStateLeaseTable;
+
+public class CacheStateLeaseTableTest {
+
+    @Test
+    public void testLeaseAndExpire() throws Exception {
+
+    	CacheStateLeaseTable table = CacheStateLeaseTable.getInstance();
+    	String key = "testLeaseAndExpire-0";
+
+    	assertFalse(table.isLeased(key));
+    	assertTrue(table.lease(key, table.getVersion(key), 100));
+    	assertTrue(table.isLeased(key));
+
+    	Thread.sleep(150);
+    	assertFalse(table.isLeased(key));
+
+    	assertFalse("lease of 0 ms disables the table", table.lease(key, table.getVersion(key), 0));
+    	assertFalse(table.isLeased(key));
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+
+    	CacheStateLeaseTable table = CacheStateLeaseTable.getInstance();
+    	String key = "testInvalidate-0";
+
+    	assertTrue(table.lease(key, table.getVersion(key), 60000));
+    	table.invalidate(key);
+    	assertFalse(table.isLeased(key));
+    }
+
+    @Test
+    public void testStaleLeaseRejected() throws Exception {
+
+    	CacheStateLeaseTable table = CacheStateLeaseTable.getInstance();
+    	String key = "testStaleLeaseRejected-0";
+
+    	// a reader fetched OK from redis while the state was being changed elsewhere
+    	long version = table.getVersion(key);
+    	table.invalidate(key);
+    	assertFalse(table.lease(key, version, 60000));
+    	assertFalse(table.isLeased(key));
+
+    	assertTrue(table.lease(key, table.getVersion(key), 60000));
+    	assertTrue(table.isLeased(key));
+    }
+
+    @Test
+    public void testPrune() throws Exception {
+
+    	CacheStateLeaseTable table = CacheStateLeaseTable.getInstance();
+    	String expired = "testPruneExpired-0";
+    	String invalidated = "testPruneInvalidated-0";
+    	String live = "testPruneLive-0";
+
+    	assertTrue(table.lease(expired, table.getVersion(expired), 1));
+    	table.invalidate(invalidated);
+    	assertTrue(table.lease(live, table.getVersion(live), 2 * 3600000));
+
+    	// recently changed entries are kept so their versions still reject stale leases
+    	table.prune(System.currentTimeMillis());
+    	assertEquals(1, table.getVersion(invalidated));
+
+    	int size = table.size();
+    	assertTrue(table.prune(System.currentTimeMillis() + 3600000) >= 2);
+    	assertTrue(table.size() <= size - 2);
+    	assertEquals(0, table.getVersion(expired));
+    	assertEquals(0, table.getVersion(invalidated));
+    	assertTrue(table.isLeased(live));
+    }
+}
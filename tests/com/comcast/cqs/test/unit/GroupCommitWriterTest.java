@@ -0,0 +1,192 @@
+/**
+ * Copyright 2012 Comcast Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.comcast.cqs.test.unit;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.comcast.cmb.common.persistence.AbstractDurablePersistence.CmbComposite;
+import com.comcast.cmb.common.util.CMBErrorCodes;
+import com.comcast.cmb.common.util.PersistenceException;
+import com.comcast.cqs.persistence.GroupCommitWriter;
+
+public class GroupCommitWriterTest {
+
+	private static class Column extends CmbComposite {
+		@Override
+		public Object get(int i) {
+			return null;
+		}
+		@Override
+		public int compareTo(CmbComposite c) {
+			return 0;
+		}
+	}
+
+	private static class RecordingWriter extends GroupCommitWriter {
+
+		final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+		final List<Integer> ttls = Collections.synchronizedList(new ArrayList<Integer>());
+		volatile CountDownLatch block = null;
+		volatile PersistenceException failure = null;
+
+		RecordingWriter(int maxDelayMS, int maxMessages, int numFlushers) {
+			super(maxDelayMS, maxMessages, numFlushers);
+		}
+
+		@Override
+		protected void insertRows(Map<String, Map<CmbComposite, String>> rows, int ttl) throws PersistenceException {
+			if (block != null) {
+				try {
+					block.await();
+				} catch (InterruptedException ex) {
+					throw new PersistenceException(ex);
+				}
+			}
+			if (failure != null) {
+				throw failure;
+			}
+			int n = 0;
+			for (Map<CmbComposite, String> columns : rows.values()) {
+				n += columns.size();
+			}
+			batchSizes.add(n);
+			ttls.add(ttl);
+		}
+	}
+
+    @Test
+    public void testConcurrentWritesAreBatched() throws Exception {
+
+    	final RecordingWriter writer = new RecordingWriter(5, 100, 1);
+    	writer.start();
+    	final int numThreads = 32;
+    	final int writesPerThread = 50;
+    	final AtomicInteger completed = new AtomicInteger();
+    	ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    	List<Future<?>> futures = new ArrayList<Future<?>>();
+
+    	for (int i = 0; i < numThreads; i++) {
+    		final String rowKey = "row" + (i % 4);
+    		futures.add(executor.submit(new Runnable() {
+    			public void run() {
+    				for (int j = 0; j < writesPerThread; j++) {
+    					try {
+    						writer.write(rowKey, new Column(), "v", 60).get();
+    						completed.incrementAndGet();
+    					} catch (Exception ex) {
+    						throw new RuntimeException(ex);
+    					}
+    				}
+    			}
+    		}));
+    	}
+
+    	for (Future<?> f : futures) {
+    		f.get(30, TimeUnit.SECONDS);
+    	}
+
+    	executor.shutdown();
+    	writer.shutdown();
+
+    	int total = 0;
+    	for (int n : writer.batchSizes) {
+    		assertTrue(n <= 100);
+    		total += n;
+    	}
+
+    	assertEquals(numThreads * writesPerThread, completed.get());
+    	assertEquals(numThreads * writesPerThread, total);
+    	assertTrue("expected fewer batches than writes, got " + writer.batchSizes.size(), writer.batchSizes.size() < numThreads * writesPerThread);
+    }
+
+    @Test
+    public void testWriteCompletesOnlyAfterBatchIsWritten() throws Exception {
+
+    	RecordingWriter writer = new RecordingWriter(1, 100, 1);
+    	writer.start();
+    	writer.block = new CountDownLatch(1);
+
+    	Future<Void> f = writer.write("row", new Column(), "v", 60);
+    	Thread.sleep(50);
+    	assertFalse(f.isDone());
+
+    	writer.block.countDown();
+    	f.get(5, TimeUnit.SECONDS);
+    	assertEquals(1, writer.batchSizes.size());
+
+    	writer.shutdown();
+    }
+
+    @Test
+    public void testFailureIsReportedToEveryWriter() throws Exception {
+
+    	RecordingWriter writer = new RecordingWriter(20, 100, 1);
+    	writer.start();
+    	writer.failure = new PersistenceException(CMBErrorCodes.InternalError, "write failed");
+
+    	Future<Void> f1 = writer.write("row1", new Column(), "v", 60);
+    	Future<Void> f2 = writer.write("row2", new Column(), "v", 60);
+
+    	for (Future<Void> f : new Future[] { f1, f2 }) {
+    		try {
+    			f.get(5, TimeUnit.SECONDS);
+    			fail("expected ExecutionException");
+    		} catch (ExecutionException ex) {
+    			assertSame(writer.failure, ex.getCause());
+    		}
+    	}
+
+    	writer.shutdown();
+    }
+
+    @Test
+    public void testOneBatchPerTtl() throws Exception {
+
+    	RecordingWriter writer = new RecordingWriter(200, 100, 1);
+    	writer.start();
+
+    	// all four writes arrive within the window and are split into one batch per ttl
+    	Future<Void> f0 = writer.write("row", new Column(), "v", 10);
+    	Future<Void> f1 = writer.write("row", new Column(), "v", 20);
+    	Future<Void> f2 = writer.write("row", new Column(), "v", 10);
+    	Future<Void> f3 = writer.write("row", new Column(), "v", 20);
+
+    	for (Future<Void> f : new Future[] { f0, f1, f2, f3 }) {
+    		f.get(5, TimeUnit.SECONDS);
+    	}
+
+    	assertEquals(2, writer.batchSizes.size());
+    	assertEquals(2, (int)writer.batchSizes.get(0));
+    	assertEquals(2, (int)writer.batchSizes.get(1));
+    	assertTrue(writer.ttls.contains(10) && writer.ttls.contains(20));
+
+    	writer.shutdown();
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright 2012 Comcast Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.comcast.cqs.test.unit;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.comcast.cqs.util.MemIdCodec;
+import com.comcast.cqs.util.Util;
+
+public class MemIdCodecTest {
+
+	private static final String queueUrlHash = "45c1596598f85ce59f060dc2b8ec4ebb";
+	private static final String messageId = queueUrlHash + "_3_72:2923737900040323074:-8763141905575923938";
+
+    @Test
+    public void testVersion1RoundTrip() throws Exception {
+
+    	String memId = MemIdCodec.encode(messageId);
+
+    	assertEquals(28, memId.length());
+    	assertEquals(-1, memId.indexOf(':'));
+    	assertTrue(MemIdCodec.isVersion1(memId));
+    	assertTrue(MemIdCodec.isValid(memId));
+    	assertEquals(messageId, MemIdCodec.getMessageId(queueUrlHash, memId));
+    	assertEquals(3, MemIdCodec.getShard(memId));
+    	assertEquals(3, Util.getShardFromReceiptHandle(memId));
+    	assertEquals(2923737900040323074L, MemIdCodec.getTime(memId));
+    	assertEquals(0, MemIdCodec.getInitialDelay(memId));
+    }
+
+    @Test
+    public void testExtremeValues() throws Exception {
+
+    	String id = queueUrlHash + "_65535_0:" + Long.MIN_VALUE + ":" + Long.MAX_VALUE;
+    	String memId = MemIdCodec.encode(id);
+
+    	assertTrue(MemIdCodec.isVersion1(memId));
+    	assertEquals(id, MemIdCodec.getMessageId(queueUrlHash, memId));
+    	assertEquals(Long.MIN_VALUE, MemIdCodec.getTime(memId));
+    }
+
+    @Test
+    public void testVersion2RoundTrip() throws Exception {
+
+    	String id = queueUrlHash + "_3_72_29400120:2923737900040323074:-8763141905575923938";
+    	String memId = MemIdCodec.encode(id);
+
+    	assertEquals(36, memId.length());
+    	assertEquals(-1, memId.indexOf(':'));
+    	assertTrue(MemIdCodec.isVersion2(memId));
+    	assertFalse(MemIdCodec.isVersion1(memId));
+    	assertTrue(MemIdCodec.isValid(memId));
+    	assertEquals(id, MemIdCodec.getMessageId(queueUrlHash, memId));
+    	assertEquals(3, MemIdCodec.getShard(memId));
+    	assertEquals(2923737900040323074L, MemIdCodec.getTime(memId));
+    	assertEquals(0, MemIdCodec.getInitialDelay(memId));
+    }
+
+    @Test
+    public void testVersion2Legacy() throws Exception {
+
+    	String id = queueUrlHash + "_3_72_29400120:2923737900040323074:-8763141905575923938";
+    	String memId = MemIdCodec.encodeLegacy(id);
+
+    	assertEquals("0:0:0_3_72_29400120:2923737900040323074:-8763141905575923938", memId);
+    	assertEquals(id, MemIdCodec.getMessageId(queueUrlHash, memId));
+    	assertEquals(3, MemIdCodec.getShard(memId));
+    	assertEquals(2923737900040323074L, MemIdCodec.getTime(memId));
+    }
+
+    @Test
+    public void testLegacy() throws Exception {
+
+    	String memId = "0:0:0_3_72:2923737900040323074:-8763141905575923938";
+
+    	assertEquals(memId, MemIdCodec.encodeLegacy(messageId));
+    	assertFalse(MemIdCodec.isVersion1(memId));
+    	assertTrue(MemIdCodec.isValid(memId));
+    	assertEquals(messageId, MemIdCodec.getMessageId(queueUrlHash, memId));
+    	assertEquals(3, MemIdCodec.getShard(memId));
+    	assertEquals(2923737900040323074L, MemIdCodec.getTime(memId));
+    	assertEquals(0, MemIdCodec.getInitialDelay(memId));
+    }
+
+    @Test
+    public void testLegacyShard() throws Exception {
+
+    	assertEquals(12, MemIdCodec.getShard("5:1400000000000:0_12_72:2923737900040323074:-8763141905575923938"));
+    	assertEquals(12, MemIdCodec.getShard("0:0:0_12_72"));
+    	assertEquals(-1, MemIdCodec.getShard("0:0:0_12:2923737900040323074:-8763141905575923938"));
+    	assertEquals(-1, MemIdCodec.getShard("0:0:0_12_:1:2"));
+
+    	try {
+    		MemIdCodec.getShard("0:0:");
+    		fail("memId without message id accepted");
+    	} catch (IllegalArgumentException ex) {
+    	}
+    }
+
+    @Test
+    public void testFallbackToLegacy() throws Exception {
+    	String id = queueUrlHash + "_70000_0:1:2";
+    	assertEquals("0:0:0_70000_0:1:2", MemIdCodec.encode(id));
+    }
+
+    @Test
+    public void testInvalid() throws Exception {
+
+    	assertFalse(MemIdCodec.isValid(null));
+    	assertFalse(MemIdCodec.isValid("garbage"));
+    	assertFalse(MemIdCodec.isValid("a:b:c"));
+    	assertFalse(MemIdCodec.isValid("AAAAAAAAAAAAAAAAAAAAAAAAAAAA"));
+    	assertFalse(MemIdCodec.isValid("AQAAAAAAAAAAAAAAAAAAAAAAAA!A"));
+
+    	try {
+    		MemIdCodec.getMessageId(queueUrlHash, "garbage");
+    		fail("expected IllegalArgumentException");
+    	} catch (IllegalArgumentException ex) {
+    	}
+    }
+}
@@ -0,0 +1,243 @@
+/**
+ * Copyright 2012 Comcast Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.comcast.cqs.test.unit;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Test;
+
+import com.comcast.cqs.model.CQSMessage;
+import com.comcast.cqs.model.CQSMessageAttribute;
+import com.comcast.cqs.util.CQSConstants;
+import com.comcast.cqs.util.CompressionCodec;
+import com.comcast.cqs.util.MessageCodec;
+import com.comcast.cqs.util.Util;
+
+public class MessageCodecTest {
+
+	private static CQSMessage getMessage(boolean withMessageAttributes) throws Exception {
+
+		Map<String, String> attributes = new HashMap<String, String>();
+		attributes.put(CQSConstants.SENT_TIMESTAMP, "1400000000000");
+		attributes.put(CQSConstants.APPROXIMATE_RECEIVE_COUNT, "0");
+		attributes.put(CQSConstants.SENDER_ID, "user:1");
+
+		Map<String, CQSMessageAttribute> messageAttributes = new HashMap<String, CQSMessageAttribute>();
+
+		if (withMessageAttributes) {
+			messageAttributes.put("color", new CQSMessageAttribute("blue:12:\"{}", "String"));
+			messageAttributes.put("size", new CQSMessageAttribute("42", "Number"));
+		}
+
+		CQSMessage message = new CQSMessage("héllo: {\"a\":1}\n12:-1:", attributes, messageAttributes);
+		message.setMessageId("45c1596598f85ce59f060dc2b8ec4ebb_0_72:2923737900040323074:-8763141905575923938");
+
+		if (withMessageAttributes) {
+			message.setMD5OfMessageAttributes("abc");
+		}
+
+		return message;
+	}
+
+	private static void assertSameMessage(CQSMessage expected, CQSMessage actual) {
+		assertEquals(expected.getMessageId(), actual.getMessageId());
+		assertEquals(expected.getMessageId(), actual.getReceiptHandle());
+		assertEquals(expected.getMD5OfBody(), actual.getMD5OfBody());
+		assertEquals(expected.getBody(), actual.getBody());
+		assertEquals(expected.getAttributes(), actual.getAttributes());
+		assertEquals(expected.getMD5OfMessageAttributes(), actual.getMD5OfMessageAttributes());
+		Map<String, CQSMessageAttribute> ma = expected.getMessageAttributes();
+		if (ma == null || ma.isEmpty()) {
+			assertTrue(actual.getMessageAttributes() == null || actual.getMessageAttributes().isEmpty());
+			return;
+		}
+		assertEquals(ma.size(), actual.getMessageAttributes().size());
+		for (String name : ma.keySet()) {
+			assertEquals(ma.get(name).getStringValue(), actual.getMessageAttributes().get(name).getStringValue());
+			assertEquals(ma.get(name).getDataType(), actual.getMessageAttributes().get(name).getDataType());
+		}
+	}
+
+    @Test
+    public void testVersion1RoundTrip() throws Exception {
+
+    	for (boolean withMessageAttributes : new boolean[] { false, true }) {
+    		CQSMessage message = getMessage(withMessageAttributes);
+    		String value = MessageCodec.encode(message);
+    		assertTrue(MessageCodec.isVersion1(value));
+    		assertTrue(value.length() < MessageCodec.encodeLegacy(message).length());
+    		assertSameMessage(message, MessageCodec.decode(value));
+    	}
+    }
+
+    @Test
+    public void testVersion2RoundTrip() throws Exception {
+
+    	for (CompressionCodec codec : new CompressionCodec[] { CompressionCodec.DEFLATE, CompressionCodec.LZ4 }) {
+    		CQSMessage message = getMessage(true);
+    		StringBuilder body = new StringBuilder();
+    		for (int i = 0; i < 200; i++) {
+    			body.append(message.getBody());
+    		}
+    		message.setBody(body.toString());
+    		String value = MessageCodec.encode(message, codec);
+    		assertTrue(MessageCodec.isVersion2(value));
+    		assertFalse(MessageCodec.isVersion1(value));
+    		assertEquals(codec, CompressionCodec.fromId(value.charAt(1)));
+    		assertTrue(value.length() < MessageCodec.encode(message).length());
+    		assertSameMessage(message, MessageCodec.decode(value));
+    	}
+    }
+
+    @Test
+    public void testSnappyRoundTrip() throws Exception {
+
+    	CQSMessage message = getMessage(false);
+
+    	try {
+    		CompressionCodec.SNAPPY.compress(new byte[1]);
+    	} catch (Throwable ex) {
+    		// native library not available on this platform
+    		return;
+    	}
+
+    	String value = MessageCodec.encode(message, CompressionCodec.SNAPPY);
+    	assertTrue(MessageCodec.isVersion2(value));
+    	assertSameMessage(message, MessageCodec.decode(value));
+    }
+
+    @Test
+    public void testCodecNoneWritesVersion1() throws Exception {
+
+    	CQSMessage message = getMessage(true);
+    	String value = MessageCodec.encode(message, CompressionCodec.NONE);
+    	assertTrue(MessageCodec.isVersion1(value));
+    	assertSameMessage(message, MessageCodec.decode(value));
+    }
+
+    @Test
+    public void testCodecLookup() throws Exception {
+
+    	for (CompressionCodec codec : CompressionCodec.values()) {
+    		assertEquals(codec, CompressionCodec.fromId(codec.getId()));
+    		assertEquals(codec, CompressionCodec.fromName(codec.name().toLowerCase()));
+    	}
+
+    	try {
+    		CompressionCodec.fromName("gzip");
+    		fail("expected IllegalArgumentException");
+    	} catch (IllegalArgumentException ex) {
+    	}
+    }
+
+    @Test
+    public void testLegacyJSON() throws Exception {
+
+    	for (boolean withMessageAttributes : new boolean[] { false, true }) {
+    		CQSMessage message = getMessage(withMessageAttributes);
+    		String value = MessageCodec.encodeLegacy(message);
+    		assertFalse(MessageCodec.isVersion1(value));
+    		assertSameMessage(message, MessageCodec.decode(value));
+    	}
+    }
+
+    @Test
+    public void testOnlySystemAttributesAreKept() throws Exception {
+
+    	CQSMessage message = getMessage(false);
+    	message.getAttributes().put(CQSConstants.DELAY_SECONDS, "5");
+
+    	assertNull(MessageCodec.decode(MessageCodec.encode(message)).getAttributes().get(CQSConstants.DELAY_SECONDS));
+    	assertNull(MessageCodec.decode(MessageCodec.encodeLegacy(message)).getAttributes().get(CQSConstants.DELAY_SECONDS));
+    }
+
+    @Test
+    public void testSmallBodyIsNotLegacy() throws Exception {
+
+    	// bodies below the compression threshold are written as version 1 and must not be gunzipped on read
+    	CQSMessage message = getMessage(false);
+    	message.setBody(Util.compress("hello"));
+
+    	String value = MessageCodec.encode(message, CompressionCodec.NONE);
+    	assertFalse(MessageCodec.isLegacy(value));
+    	assertEquals(message.getBody(), MessageCodec.decode(value).getBody());
+
+    	assertFalse(MessageCodec.isLegacy(MessageCodec.encode(message, CompressionCodec.DEFLATE)));
+    	assertTrue(MessageCodec.isLegacy(MessageCodec.encodeLegacy(message)));
+    }
+
+    @Test
+    public void testBinaryMessageAttributes() throws Exception {
+
+    	byte[] bytes = new byte[256];
+    	for (int i = 0; i < bytes.length; i++) {
+    		bytes[i] = (byte)i;
+    	}
+
+    	CQSMessage message = getMessage(true);
+    	message.getMessageAttributes().put("image", new CQSMessageAttribute(Base64.encodeBase64String(bytes), "Binary"));
+
+    	List<String> values = Arrays.asList(MessageCodec.encode(message), MessageCodec.encode(message, CompressionCodec.DEFLATE), MessageCodec.encodeLegacy(message));
+
+    	for (String value : values) {
+    		CQSMessage decoded = MessageCodec.decode(value);
+    		assertSameMessage(message, decoded);
+    		CQSMessageAttribute image = decoded.getMessageAttributes().get("image");
+    		assertEquals("Binary", image.getDataType());
+    		assertEquals(ByteBuffer.wrap(bytes), image.getBinaryValue());
+    	}
+    }
+
+    @Test
+    public void testBadLz4Length() throws Exception {
+
+    	byte[] block = CompressionCodec.LZ4.compress("hello hello hello".getBytes("UTF-8"));
+    	assertEquals("hello hello hello", new String(CompressionCodec.LZ4.decompress(block), "UTF-8"));
+
+    	// a corrupt length must not make the reader allocate it
+    	for (int length : new int[] { Integer.MAX_VALUE, 64 * 1024 * 1024, block.length * 1000 }) {
+    		block[0] = (byte)(length >>> 24);
+    		block[1] = (byte)(length >>> 16);
+    		block[2] = (byte)(length >>> 8);
+    		block[3] = (byte)length;
+    		try {
+    			CompressionCodec.LZ4.decompress(block);
+    			fail("length " + length + " accepted");
+    		} catch (IOException ex) {
+    		}
+    	}
+    }
+
+    @Test
+    public void testTruncated() throws Exception {
+
+    	String value = MessageCodec.encode(getMessage(true));
+
+    	try {
+    		MessageCodec.decode(value.substring(0, value.length() - 3));
+    		fail("expected IllegalArgumentException");
+    	} catch (IllegalArgumentException ex) {
+    	}
+    }
+}
@@ -0,0 +1,157 @@
+/**
+ * Copyright 2012 Comcast Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.comcast.cqs.test.unit;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Test;
+
+import com.comcast.cqs.persistence.PartitionBuckets;
+
+public class PartitionBucketsTest {
+
+	private static final String partitionKey = "45c1596598f85ce59f060dc2b8ec4ebb_0_7";
+
+	// 2014-05-13 16:00 UTC, a multiple of 60 minutes
+	private static final long NOW = 1400000400000L;
+	private static final long NOW_MINUTE = NOW / 60000;
+
+	/**
+	 * Keeps the shared first live buckets in a map instead of Redis, instances sharing a map behave like
+	 * servers of one cluster or like one server before and after a restart
+	 */
+	private static class LocalPartitionBuckets extends PartitionBuckets {
+
+		final Map<String, Long> store;
+
+		LocalPartitionBuckets(int bucketMinutes, long legacyCutoverMS, Map<String, Long> store) {
+			super(bucketMinutes, 900, legacyCutoverMS);
+			this.store = store;
+		}
+
+		LocalPartitionBuckets(int bucketMinutes, long legacyCutoverMS) {
+			this(bucketMinutes, legacyCutoverMS, new ConcurrentHashMap<String, Long>());
+		}
+
+		@Override
+		protected Long loadFirstLiveBucket(String partitionKey) {
+			return store.get(partitionKey);
+		}
+
+		@Override
+		protected void storeFirstLiveBucket(String partitionKey, long bucket) {
+			store.put(partitionKey, bucket);
+		}
+	}
+
+    @Test
+    public void testDisabled() {
+
+    	PartitionBuckets buckets = new PartitionBuckets(0, 900, 0);
+
+    	assertFalse(buckets.isEnabled());
+    	assertEquals(PartitionBuckets.LEGACY_BUCKET, buckets.getBucket(NOW));
+    	assertEquals(Arrays.asList(PartitionBuckets.LEGACY_BUCKET), buckets.getBuckets(partitionKey, 345600, NOW));
+    	assertFalse(buckets.markDrained(partitionKey, PartitionBuckets.LEGACY_BUCKET, NOW));
+    	assertEquals(Arrays.asList(PartitionBuckets.LEGACY_BUCKET), buckets.getBuckets(partitionKey, 345600, NOW));
+    }
+
+    @Test
+    public void testRowKeys() {
+
+    	PartitionBuckets buckets = new LocalPartitionBuckets(60, 0);
+    	long bucket = buckets.getBucket(NOW + 59 * 60000);
+
+    	assertEquals(NOW_MINUTE, bucket);
+    	assertEquals(NOW_MINUTE + 60, buckets.getBucket(NOW + 60 * 60000));
+    	assertEquals(partitionKey + "_" + bucket, PartitionBuckets.getRowKey(partitionKey, bucket));
+    	assertEquals(partitionKey, PartitionBuckets.getRowKey(partitionKey, PartitionBuckets.LEGACY_BUCKET));
+    	assertEquals(bucket, PartitionBuckets.getBucketFromRowKey(partitionKey + "_" + bucket));
+    	assertEquals(PartitionBuckets.LEGACY_BUCKET, PartitionBuckets.getBucketFromRowKey(partitionKey));
+    }
+
+    @Test
+    public void testBucketRange() {
+
+    	PartitionBuckets buckets = new LocalPartitionBuckets(60, 0);
+    	List<Long> l = buckets.getBuckets(partitionKey, 3 * 3600, NOW);
+
+    	// legacy row, three hours of retention, the current hour and nothing beyond the max delay
+    	assertEquals(Arrays.asList(PartitionBuckets.LEGACY_BUCKET, NOW_MINUTE - 180, NOW_MINUTE - 120, NOW_MINUTE - 60, NOW_MINUTE), l);
+
+    	// close to the end of the hour delayed messages may already be in the next bucket
+    	l = buckets.getBuckets(partitionKey, 3600, NOW + 50 * 60000);
+    	assertEquals(Arrays.asList(PartitionBuckets.LEGACY_BUCKET, NOW_MINUTE - 60, NOW_MINUTE, NOW_MINUTE + 60), l);
+    }
+
+    @Test
+    public void testDrainedBucketsAreSkipped() {
+
+    	PartitionBuckets buckets = new LocalPartitionBuckets(60, NOW - 3600000);
+
+    	assertTrue(buckets.markDrained(partitionKey, PartitionBuckets.LEGACY_BUCKET, NOW));
+    	assertTrue(buckets.markDrained(partitionKey, NOW_MINUTE - 180, NOW));
+    	assertTrue(buckets.markDrained(partitionKey, NOW_MINUTE - 120, NOW));
+    	assertEquals(Arrays.asList(NOW_MINUTE - 60, NOW_MINUTE), buckets.getBuckets(partitionKey, 3 * 3600, NOW));
+
+    	// the current bucket may still receive messages
+    	assertTrue(buckets.markDrained(partitionKey, NOW_MINUTE - 60, NOW + 5 * 60000));
+    	assertFalse(buckets.markDrained(partitionKey, NOW_MINUTE, NOW + 5 * 60000));
+    	assertEquals(Arrays.asList(NOW_MINUTE), buckets.getBuckets(partitionKey, 3 * 3600, NOW + 5 * 60000));
+
+    	// other partitions are not affected
+    	assertEquals(5, buckets.getBuckets(partitionKey + "1", 3 * 3600, NOW).size());
+    }
+
+    @Test
+    public void testLegacyRowKeptUntilCutover() {
+
+    	// no cutover configured, servers still writing unbucketed rows may exist
+    	PartitionBuckets buckets = new LocalPartitionBuckets(60, 0);
+    	assertTrue(buckets.markDrained(partitionKey, PartitionBuckets.LEGACY_BUCKET, NOW));
+    	assertTrue(buckets.markDrained(partitionKey, NOW_MINUTE - 180, NOW));
+    	assertEquals(Arrays.asList(PartitionBuckets.LEGACY_BUCKET, NOW_MINUTE - 120, NOW_MINUTE - 60, NOW_MINUTE), buckets.getBuckets(partitionKey, 3 * 3600, NOW));
+
+    	// cutover not reached yet
+    	buckets = new LocalPartitionBuckets(60, NOW + 3600000);
+    	assertTrue(buckets.markDrained(partitionKey, PartitionBuckets.LEGACY_BUCKET, NOW));
+    	assertEquals(PartitionBuckets.LEGACY_BUCKET, (long)buckets.getBuckets(partitionKey, 3 * 3600, NOW).get(0));
+
+    	// legacy row found empty after the cutover
+    	assertTrue(buckets.markDrained(partitionKey, PartitionBuckets.LEGACY_BUCKET, NOW + 2 * 3600000));
+    	assertEquals(NOW_MINUTE - 60, (long)buckets.getBuckets(partitionKey, 3 * 3600, NOW + 2 * 3600000).get(0));
+    }
+
+    @Test
+    public void testFirstLiveBucketSurvivesRestart() {
+
+    	Map<String, Long> store = new ConcurrentHashMap<String, Long>();
+
+    	PartitionBuckets buckets = new LocalPartitionBuckets(60, 0, store);
+    	assertTrue(buckets.markDrained(partitionKey, NOW_MINUTE - 180, NOW));
+    	assertTrue(buckets.markDrained(partitionKey, NOW_MINUTE - 120, NOW));
+
+    	// a new instance continues from the stored bucket instead of the start of the retention period
+    	PartitionBuckets restarted = new LocalPartitionBuckets(60, 0, store);
+    	assertEquals(Arrays.asList(PartitionBuckets.LEGACY_BUCKET, NOW_MINUTE - 60, NOW_MINUTE), restarted.getBuckets(partitionKey, 3 * 3600, NOW));
+    	assertEquals(5, restarted.getBuckets(partitionKey + "1", 3 * 3600, NOW).size());
+    }
+}